@@ -30,6 +30,14 @@
 package com.caucho.quercus;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.sql.Connection;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -44,6 +52,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.cache.Cache;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -70,6 +80,7 @@ import com.caucho.quercus.expr.ExprFactory;
 import com.caucho.quercus.function.AbstractFunction;
 import com.caucho.quercus.lib.db.JavaSqlDriverWrapper;
 import com.caucho.quercus.lib.file.FileModule;
+import com.caucho.quercus.lib.regexp.Regexp;
 import com.caucho.quercus.lib.regexp.RegexpModule;
 import com.caucho.quercus.lib.session.QuercusSessionManager;
 import com.caucho.quercus.module.IniDefinition;
@@ -83,6 +94,8 @@ import com.caucho.quercus.page.PageManager;
 import com.caucho.quercus.page.QuercusPage;
 import com.caucho.quercus.parser.QuercusParser;
 import com.caucho.quercus.program.ClassDef;
+import com.caucho.quercus.program.Function;
+import com.caucho.quercus.program.InterpretedClassDef;
 import com.caucho.quercus.program.JavaClassDef;
 import com.caucho.quercus.program.QuercusProgram;
 import com.caucho.quercus.program.UndefinedFunction;
@@ -177,6 +190,8 @@ public class QuercusContext
 
   private AbstractFunction []_functionMap = new AbstractFunction[256];
 
+  private ArrayList<Path> _preloadPathList = new ArrayList<Path>();
+
   private LruCache<String, QuercusProgram> _evalCache
     = new LruCache<String, QuercusProgram>(4096);
 
@@ -185,6 +200,12 @@ public class QuercusContext
 
   private TimedCache<IncludeKey, Path> _includeCache;
 
+  // cached pages and include paths are only invalidated explicitly
+  private boolean _isImmutableDeploy;
+  private Path _deployMarker;
+  private DeployWatchThread _deployWatchThread;
+  private ObjectName _deployAdminName;
+
   //private LruCache<DefinitionKey,SoftReference<DefinitionState>> _defCache
   //    = new LruCache<DefinitionKey,SoftReference<DefinitionState>>(4096);
 
@@ -358,6 +379,64 @@ public class QuercusContext
     return _includeCacheTimeout;
   }
 
+  /**
+   * Set true if the deployed scripts never change while running, so
+   * cached pages and include paths are not checked against the
+   * filesystem.
+   */
+  public void setImmutableDeploy(boolean isImmutableDeploy)
+  {
+    _isImmutableDeploy = isImmutableDeploy;
+  }
+
+  /**
+   * Returns true if cached pages are not checked for modification.
+   */
+  public boolean isImmutableDeploy()
+  {
+    return _isImmutableDeploy;
+  }
+
+  /**
+   * Sets a marker file whose modification invalidates the cached pages
+   * of an immutable deploy.
+   */
+  public void setDeployMarker(Path deployMarker)
+  {
+    _deployMarker = deployMarker;
+  }
+
+  public Path getDeployMarker()
+  {
+    return _deployMarker;
+  }
+
+  /**
+   * Discards the cached pages and include paths, e.g. after a new
+   * deploy.
+   */
+  public void invalidateDeploy()
+  {
+    log.info(L.l("Quercus[{0}] invalidating cached pages and include paths",
+                 getPwd()));
+
+    _pageManager.clearCache();
+
+    _includeCache = createIncludeCache();
+
+    clearDefinitionCache();
+  }
+
+  private TimedCache<IncludeKey, Path> createIncludeCache()
+  {
+    long timeout = getIncludeCacheTimeout();
+
+    if (_isImmutableDeploy)
+      timeout = Long.MAX_VALUE / 2;
+
+    return new TimedCache<IncludeKey, Path>(getIncludeCacheMax(), timeout);
+  }
+
   public String getVersion()
   {
     return "Open Source " + QuercusVersion.getVersionNumber();
@@ -517,6 +596,88 @@ public class QuercusContext
     _pageManager.setLazyCompile(isCompile);
   }
 
+  /**
+   * Set true if hot functions should be compiled individually.
+   */
+  public void setTieredCompile(boolean isTieredCompile)
+  {
+    _pageManager.setTieredCompile(isTieredCompile);
+  }
+
+  /**
+   * true if hot functions should be compiled individually.
+   */
+  public boolean isTieredCompile()
+  {
+    return _pageManager.isTieredCompile();
+  }
+
+  /**
+   * Sets the invocation and loop count which makes a function hot.
+   */
+  public void setTieredCompileThreshold(int threshold)
+  {
+    _pageManager.setTieredCompileThreshold(threshold);
+  }
+
+  /**
+   * Returns the invocation and loop count which makes a function hot.
+   */
+  public int getTieredCompileThreshold()
+  {
+    return _pageManager.getTieredCompileThreshold();
+  }
+
+  /**
+   * true if static include targets are parsed in the background.
+   */
+  public void setIncludePrefetch(boolean isIncludePrefetch)
+  {
+    _pageManager.setIncludePrefetch(isIncludePrefetch);
+  }
+
+  /**
+   * true if static include targets are parsed in the background.
+   */
+  public boolean isIncludePrefetch()
+  {
+    return _pageManager.isIncludePrefetch();
+  }
+
+  /**
+   * Schedules a hot interpreted function for compilation.
+   */
+  public void compileFunction(Function fun)
+  {
+    _pageManager.compileFunction(fun);
+  }
+
+  /**
+   * Schedules a hot regular expression for compilation.
+   */
+  public void compileRegexp(Regexp regexp)
+  {
+    _pageManager.compileRegexp(regexp);
+  }
+
+  /**
+   * Adds a file or directory whose class and function definitions are
+   * loaded once at startup and visible to every request without
+   * autoloading.
+   */
+  public void addPreloadPath(Path path)
+  {
+    _preloadPathList.add(path);
+  }
+
+  /**
+   * Returns the preloaded files and directories.
+   */
+  public ArrayList<Path> getPreloadPathList()
+  {
+    return _preloadPathList;
+  }
+
   /*
    * true if interpreted pages should be used if pages fail to compile.
    */
@@ -1173,6 +1334,80 @@ public class QuercusContext
   }
   */
 
+  /**
+   * Loads the definitions of the configured preload paths.
+   */
+  protected void preload()
+  {
+    for (Path path : _preloadPathList) {
+      try {
+        if (path.isDirectory())
+          preloadDirectory(path);
+        else
+          preloadFile(path);
+      } catch (IOException e) {
+        log.log(Level.WARNING, L.l("{0}: unable to preload\n{1}",
+                                   path, e.toString()), e);
+      }
+    }
+  }
+
+  private void preloadDirectory(Path path)
+    throws IOException
+  {
+    String []list = path.list();
+
+    for (int i = 0; i < list.length; i++) {
+      Path subPath = path.lookup(list[i]);
+
+      if (subPath.isDirectory())
+        preloadDirectory(subPath);
+      else if (subPath.getTail().endsWith(".php"))
+        preloadFile(subPath);
+    }
+  }
+
+  /**
+   * Registers the top-level classes and functions of a file as
+   * context-wide definitions.  The file's top-level code is not run.
+   */
+  private void preloadFile(Path path)
+    throws IOException
+  {
+    if (log.isLoggable(Level.FINE))
+      log.fine(L.l("Quercus[{0}] preloading definitions", path));
+
+    QuercusProgram program
+      = QuercusParser.parse(this, path, getScriptEncoding());
+
+    for (Function fun : program.getFunctionList()) {
+      if (! fun.isGlobal())
+        continue;
+
+      String name = fun.getName();
+
+      if (findLowerFunctionImpl(name.toLowerCase(Locale.ENGLISH)) != null) {
+        log.warning(L.l("{0}: can't preload function {1} because it is a builtin",
+                        path, name));
+        continue;
+      }
+
+      setFunction(name, fun);
+    }
+
+    for (InterpretedClassDef cl : program.getClassList()) {
+      int id = getClassId(cl.getName());
+
+      if (_classDefMap[id] != null) {
+        log.warning(L.l("{0}: can't preload class {1} because it is already defined",
+                        path, cl.getName()));
+        continue;
+      }
+
+      _classDefMap[id] = cl;
+    }
+  }
+
   /**
    * Clears the definition cache.
    */
@@ -1564,6 +1799,18 @@ public class QuercusContext
       return getConstantId(new ConstStringValue(name));
   }
 
+  /**
+   * Returns the id of an existing constant name, or -1 without
+   * allocating an id.
+   */
+  public int findConstantId(String name)
+  {
+    if (isUnicodeSemantics())
+      return _constantNameMap.get(new UnicodeBuilderValue(name));
+    else
+      return _constantNameMap.get(new ConstStringValue(name));
+  }
+
   /**
    * Returns the id for a constant
    */
@@ -1792,8 +2039,7 @@ public class QuercusContext
 
     _iniDefinitions.addAll(_ini);
 
-    _includeCache = new TimedCache<IncludeKey, Path>(getIncludeCacheMax(),
-                                                     getIncludeCacheTimeout());
+    _includeCache = createIncludeCache();
 
     initLocal();
   }
@@ -2064,6 +2310,8 @@ public class QuercusContext
 
   public void start()
   {
+    preload();
+
     try {
       _quercusTimer = new QuercusTimer();
 
@@ -2072,6 +2320,38 @@ public class QuercusContext
     } catch (Exception e) {
       log.log(Level.FINE, e.getMessage(), e);
     }
+
+    if (_isImmutableDeploy)
+      startImmutableDeploy();
+  }
+
+  /**
+   * Registers the invalidation MXBean and starts watching the deploy
+   * marker.
+   */
+  private void startImmutableDeploy()
+  {
+    try {
+      ObjectName name = new ObjectName("com.caucho.quercus:type=Deploy,id="
+                                       + System.identityHashCode(this));
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new DeployAdmin(), name);
+
+      _deployAdminName = name;
+    } catch (Exception e) {
+      log.log(Level.FINE, e.toString(), e);
+    }
+
+    if (_deployMarker != null) {
+      try {
+        _deployWatchThread = new DeployWatchThread(_deployMarker);
+        _deployWatchThread.start();
+      } catch (IOException e) {
+        log.log(Level.WARNING, L.l("{0}: can't watch deploy marker\n{1}",
+                                   _deployMarker, e.toString()), e);
+      }
+    }
   }
 
   public Env createEnv(QuercusPage page,
@@ -2120,6 +2400,99 @@ public class QuercusContext
     if (_quercusTimer != null) {
       _quercusTimer.shutdown();
     }
+
+    if (_deployWatchThread != null)
+      _deployWatchThread.shutdown();
+
+    if (_deployAdminName != null) {
+      try {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.unregisterMBean(_deployAdminName);
+      } catch (Exception e) {
+        log.log(Level.FINE, e.toString(), e);
+      }
+    }
+  }
+
+  class DeployAdmin implements QuercusDeployMXBean {
+    public boolean isImmutableDeploy()
+    {
+      return QuercusContext.this.isImmutableDeploy();
+    }
+
+    public void invalidate()
+    {
+      invalidateDeploy();
+    }
+  }
+
+  /**
+   * Invalidates the cached pages when the deploy marker is touched.
+   */
+  class DeployWatchThread extends Thread {
+    private final WatchService _watcher;
+    private final String _markerName;
+    private volatile boolean _isRunnable = true;
+
+    DeployWatchThread(Path marker)
+      throws IOException
+    {
+      super("quercus-deploy-watch");
+
+      setDaemon(true);
+
+      java.nio.file.Path markerPath
+        = Paths.get(marker.getNativePath()).toAbsolutePath();
+
+      _markerName = markerPath.getFileName().toString();
+
+      _watcher = FileSystems.getDefault().newWatchService();
+
+      markerPath.getParent().register(_watcher,
+                                      StandardWatchEventKinds.ENTRY_CREATE,
+                                      StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    public void shutdown()
+    {
+      _isRunnable = false;
+
+      try {
+        _watcher.close();
+      } catch (IOException e) {
+        log.log(Level.FINER, e.toString(), e);
+      }
+    }
+
+    public void run()
+    {
+      while (_isRunnable) {
+        WatchKey key;
+
+        try {
+          key = _watcher.take();
+        } catch (InterruptedException e) {
+          continue;
+        } catch (ClosedWatchServiceException e) {
+          return;
+        }
+
+        boolean isInvalidate = false;
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+          Object context = event.context();
+
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW
+              || context != null && _markerName.equals(context.toString()))
+            isInvalidate = true;
+        }
+
+        key.reset();
+
+        if (isInvalidate && _isRunnable)
+          invalidateDeploy();
+      }
+    }
   }
 
   static class IncludeKey {
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.env;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts array entries whose keys or values are all longs, doubles or
+ * strings on a primitive projection, avoiding Value comparisons.
+ *
+ * The sort is a stable merge sort, matching Arrays.sort for objects,
+ * and large arrays are sorted in parallel.  Since the projection is
+ * taken before sorting, no PHP code runs on the worker threads.
+ */
+public final class ArraySort {
+  public static final int SORT_REGULAR = 0;
+  public static final int SORT_NUMERIC = 1;
+  public static final int SORT_STRING = 2;
+
+  private static final int MIN_SIZE = 8;
+  private static final int INSERTION_SIZE = 16;
+  private static final int PARALLEL_MIN_SIZE = 64 * 1024;
+  private static final int PARALLEL_CHUNK_SIZE = 16 * 1024;
+
+  // longs beyond this magnitude aren't exact as doubles
+  private static final long DOUBLE_EXACT_MAX = 1L << 53;
+
+  private static ForkJoinPool _sortPool;
+
+  private ArraySort()
+  {
+  }
+
+  /**
+   * A comparator whose order can be computed from the primitive value
+   * of the key or value alone.
+   */
+  public interface PrimitiveComparator
+    extends Comparator<Map.Entry<Value,Value>>
+  {
+    /**
+     * True if the keys are compared, false for the values.
+     */
+    public boolean isKey();
+
+    /**
+     * Returns SORT_REGULAR, SORT_NUMERIC or SORT_STRING.
+     */
+    public int getSortType();
+
+    /**
+     * Returns 1 for ascending and -1 for descending.
+     */
+    public int getOrder();
+  }
+
+  /**
+   * Sorts the entries in place, returning false if the comparator
+   * or the entries have no primitive projection.
+   */
+  static boolean sort(ArrayValue.Entry []entries,
+                      Comparator<Map.Entry<Value,Value>> comparator)
+  {
+    int length = entries.length;
+
+    if (length < MIN_SIZE || ! (comparator instanceof PrimitiveComparator))
+      return false;
+
+    PrimitiveComparator cmp = (PrimitiveComparator) comparator;
+
+    Keys keys = createKeys(entries, cmp);
+
+    if (keys == null)
+      return false;
+
+    int []perm = new int[length];
+
+    for (int i = 0; i < length; i++) {
+      perm[i] = i;
+    }
+
+    int []tmp = new int[length];
+
+    if (length >= PARALLEL_MIN_SIZE
+        && Runtime.getRuntime().availableProcessors() > 1) {
+      getSortPool().invoke(new SortTask(keys, perm, tmp, 0, length));
+    }
+    else
+      mergeSort(keys, perm, tmp, 0, length);
+
+    ArrayValue.Entry []copy = entries.clone();
+
+    for (int i = 0; i < length; i++) {
+      entries[i] = copy[perm[i]];
+    }
+
+    return true;
+  }
+
+  /**
+   * Projects the entries to the narrowest primitive array which
+   * preserves the comparator's order, or returns null.
+   */
+  private static Keys createKeys(ArrayValue.Entry []entries,
+                                 PrimitiveComparator cmp)
+  {
+    int length = entries.length;
+    int sortType = cmp.getSortType();
+    boolean isKey = cmp.isKey();
+
+    Value []values = new Value[length];
+
+    boolean isLong = true;
+    boolean isString = true;
+    boolean hasString = false;
+    boolean hasNumberString = false;
+    boolean hasInexactLong = false;
+
+    for (int i = 0; i < length; i++) {
+      Value value = isKey ? entries[i].getKey() : entries[i].getValue();
+
+      values[i] = value;
+
+      if (value instanceof LongValue) {
+        isString = false;
+
+        long v = value.toLong();
+
+        if (v < -DOUBLE_EXACT_MAX || DOUBLE_EXACT_MAX < v)
+          hasInexactLong = true;
+      }
+      else if (value instanceof DoubleValue) {
+        isLong = false;
+        isString = false;
+      }
+      else if (value instanceof StringValue) {
+        isLong = false;
+        hasString = true;
+
+        if (sortType == SORT_REGULAR && value.isNumberConvertible())
+          hasNumberString = true;
+      }
+      else
+        return null;
+    }
+
+    int order = cmp.getOrder();
+
+    if (sortType == SORT_STRING
+        || sortType == SORT_REGULAR && isString && ! hasNumberString) {
+      // regular comparison of non-numeric strings is lexical
+      String []strings = new String[length];
+
+      for (int i = 0; i < length; i++) {
+        strings[i] = values[i].toString();
+      }
+
+      return new StringKeys(strings, order);
+    }
+    else if (isLong) {
+      long []longs = new long[length];
+
+      for (int i = 0; i < length; i++) {
+        longs[i] = values[i].toLong();
+      }
+
+      return new LongKeys(longs, order);
+    }
+    else if (sortType == SORT_NUMERIC
+             || ! hasString && ! hasInexactLong) {
+      // regular comparison orders two longs exactly, which their
+      // doubles can't above 2^53
+      double []doubles = new double[length];
+
+      for (int i = 0; i < length; i++) {
+        double d = values[i].toDouble();
+
+        if (Double.isNaN(d))
+          return null;
+
+        doubles[i] = d;
+      }
+
+      return new DoubleKeys(doubles, order);
+    }
+    else
+      return null;
+  }
+
+  private static synchronized ForkJoinPool getSortPool()
+  {
+    if (_sortPool == null)
+      _sortPool = new ForkJoinPool();
+
+    return _sortPool;
+  }
+
+  //
+  // merge sort
+  //
+
+  private static void mergeSort(Keys keys, int []perm, int []tmp,
+                                int start, int end)
+  {
+    if (end - start <= INSERTION_SIZE) {
+      insertionSort(keys, perm, start, end);
+      return;
+    }
+
+    int mid = (start + end) >>> 1;
+
+    mergeSort(keys, perm, tmp, start, mid);
+    mergeSort(keys, perm, tmp, mid, end);
+
+    merge(keys, perm, tmp, start, mid, end);
+  }
+
+  private static void insertionSort(Keys keys, int []perm,
+                                    int start, int end)
+  {
+    for (int i = start + 1; i < end; i++) {
+      int index = perm[i];
+      int j = i;
+
+      for (; start < j && keys.compare(index, perm[j - 1]) < 0; j--) {
+        perm[j] = perm[j - 1];
+      }
+
+      perm[j] = index;
+    }
+  }
+
+  /**
+   * Merges two sorted runs, taking from the left run on ties.
+   */
+  private static void merge(Keys keys, int []perm, int []tmp,
+                            int start, int mid, int end)
+  {
+    if (keys.compare(perm[mid - 1], perm[mid]) <= 0)
+      return;
+
+    System.arraycopy(perm, start, tmp, start, end - start);
+
+    int i = start;
+    int j = mid;
+    int k = start;
+
+    while (i < mid && j < end) {
+      if (keys.compare(tmp[j], tmp[i]) < 0)
+        perm[k++] = tmp[j++];
+      else
+        perm[k++] = tmp[i++];
+    }
+
+    while (i < mid) {
+      perm[k++] = tmp[i++];
+    }
+
+    while (j < end) {
+      perm[k++] = tmp[j++];
+    }
+  }
+
+  static class SortTask extends RecursiveAction {
+    private final Keys _keys;
+    private final int []_perm;
+    private final int []_tmp;
+    private final int _start;
+    private final int _end;
+
+    SortTask(Keys keys, int []perm, int []tmp, int start, int end)
+    {
+      _keys = keys;
+      _perm = perm;
+      _tmp = tmp;
+      _start = start;
+      _end = end;
+    }
+
+    @Override
+    protected void compute()
+    {
+      if (_end - _start <= PARALLEL_CHUNK_SIZE) {
+        mergeSort(_keys, _perm, _tmp, _start, _end);
+        return;
+      }
+
+      int mid = (_start + _end) >>> 1;
+
+      invokeAll(new SortTask(_keys, _perm, _tmp, _start, mid),
+                new SortTask(_keys, _perm, _tmp, mid, _end));
+
+      merge(_keys, _perm, _tmp, _start, mid, _end);
+    }
+  }
+
+  //
+  // primitive keys
+  //
+
+  abstract static class Keys {
+    /**
+     * Compares the keys at the two original positions.
+     */
+    abstract int compare(int a, int b);
+  }
+
+  static final class LongKeys extends Keys {
+    private final long []_keys;
+    private final int _order;
+
+    LongKeys(long []keys, int order)
+    {
+      _keys = keys;
+      _order = order;
+    }
+
+    @Override
+    int compare(int a, int b)
+    {
+      long aKey = _keys[a];
+      long bKey = _keys[b];
+
+      if (aKey == bKey)
+        return 0;
+      else if (aKey < bKey)
+        return -_order;
+      else
+        return _order;
+    }
+  }
+
+  static final class DoubleKeys extends Keys {
+    private final double []_keys;
+    private final int _order;
+
+    DoubleKeys(double []keys, int order)
+    {
+      _keys = keys;
+      _order = order;
+    }
+
+    @Override
+    int compare(int a, int b)
+    {
+      double aKey = _keys[a];
+      double bKey = _keys[b];
+
+      if (aKey == bKey)
+        return 0;
+      else if (aKey < bKey)
+        return -_order;
+      else
+        return _order;
+    }
+  }
+
+  static final class StringKeys extends Keys {
+    private final String []_keys;
+    private final int _order;
+
+    StringKeys(String []keys, int order)
+    {
+      _keys = keys;
+      _order = order;
+    }
+
+    @Override
+    int compare(int a, int b)
+    {
+      int cmp = _keys[a].compareTo(_keys[b]);
+
+      if (cmp == 0)
+        return 0;
+      else if (cmp < 0)
+        return -_order;
+      else
+        return _order;
+    }
+  }
+}
@@ -1319,7 +1319,8 @@ abstract public class ArrayValue extends Value {
       entries[i++] = entry;
     }
 
-    Arrays.sort(entries, comparator);
+    if (! ArraySort.sort(entries, comparator))
+      Arrays.sort(entries, comparator);
 
     clear();
 
@@ -1997,6 +1998,16 @@ abstract public class ArrayValue extends Value {
     return new ArrayValueImpl(keysToArray());
   }
 
+  /**
+   * Returns the value index for in_array lookups, or null if the array
+   * isn't indexed.  Only constant arrays and their unmodified copies
+   * are indexed; arrays built at runtime are always scanned.
+   */
+  public ArrayValueIndex getValueIndex()
+  {
+    return null;
+  }
+
   /**
    * Returns the keys.
    */
@@ -1301,6 +1301,19 @@ public class ArrayValueImpl extends ArrayValue
       return super.getValues();
   }
 
+  /**
+   * Returns the value index of the constant array while this array is
+   * still an unmodified copy of it.
+   */
+  @Override
+  public ArrayValueIndex getValueIndex()
+  {
+    if (_constSource != null)
+      return _constSource.getValueIndex();
+    else
+      return null;
+  }
+
   //
   // Java serialization code
   //
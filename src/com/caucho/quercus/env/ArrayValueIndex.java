@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+
+package com.caucho.quercus.env;
+
+import java.util.HashMap;
+
+/**
+ * Hash index from the values of a constant array to their first key,
+ * answering in_array and array_search without a scan.
+ *
+ * Only arrays of integers, or of non-numeric strings, are indexed since
+ * those are the only ones where PHP's loose comparison is plain equality.
+ */
+public class ArrayValueIndex
+{
+  private final HashMap<Object,Value> _map;
+  private final boolean _isLong;
+  private final boolean _isUnique;
+
+  private ArrayValueIndex(HashMap<Object,Value> map,
+                          boolean isLong,
+                          boolean isUnique)
+  {
+    _map = map;
+    _isLong = isLong;
+    _isUnique = isUnique;
+  }
+
+  /**
+   * Builds the index, returning null if the values can't be indexed.
+   */
+  static ArrayValueIndex create(ArrayValue array)
+  {
+    HashMap<Object,Value> map = new HashMap<Object,Value>();
+
+    boolean isLong = false;
+    boolean isString = false;
+    boolean isUnique = true;
+
+    for (ArrayValue.Entry entry = array.getHead();
+         entry != null;
+         entry = entry.getNext()) {
+      Value value = entry.getRawValue();
+      Object key;
+
+      if (value instanceof LongValue) {
+        isLong = true;
+        key = value.toLong();
+      }
+      else if (value instanceof StringValue
+               && ! value.getValueType().isNumberCmp()) {
+        isString = true;
+        key = value.toString();
+      }
+      else
+        return null;
+
+      if (isLong && isString)
+        return null;
+
+      if (map.containsKey(key))
+        isUnique = false;
+      else
+        map.put(key, entry.getKey());
+    }
+
+    return new ArrayValueIndex(map, isLong, isUnique);
+  }
+
+  /**
+   * Returns the key of the first value loosely equal to the needle,
+   * NULL if there's none, or null if the index can't answer.
+   */
+  public Value search(Value needle)
+  {
+    needle = needle.toValue();
+
+    Object key;
+
+    if (_isLong && needle instanceof LongValue)
+      key = needle.toLong();
+    else if (! _isLong && needle instanceof StringValue)
+      key = needle.toString();
+    else
+      return null;
+
+    Value result = _map.get(key);
+
+    return result != null ? result : NullValue.NULL;
+  }
+
+  /**
+   * Returns the key of the first value identical to the needle, NULL if
+   * there's none, or null if the index can't answer.
+   */
+  public Value searchStrict(ArrayValue array, Value needle)
+  {
+    needle = needle.toValue();
+
+    if (_isLong) {
+      if (! (needle instanceof LongValue))
+        return NullValue.NULL;
+
+      return search(needle);
+    }
+    else if (needle instanceof StringValue && _isUnique) {
+      Value result = search(needle);
+
+      // identical strings are also loosely equal, and the values are
+      // unique, so the candidate is the only one to check
+      if (result == null || result.isNull())
+        return result;
+      else if (array.get(result).eql(needle))
+        return result;
+      else
+        return NullValue.NULL;
+    }
+    else
+      return null;
+  }
+}
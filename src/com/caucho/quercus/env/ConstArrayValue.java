@@ -40,6 +40,16 @@ public class ConstArrayValue
   
   private Value []_keysArray;
   private Value []_valuesArray;
+
+  // small arrays and arrays searched once are cheaper to scan
+  private static final int INDEX_MIN_SIZE = 8;
+  private static final int INDEX_SEARCH_THRESHOLD = 4;
+
+  private volatile ArrayValueIndex _valueIndex;
+  private volatile boolean _isIndexChecked;
+
+  // unsynchronized across requests, so only a hint
+  private int _searchCount;
   
   public ConstArrayValue(ArrayValueImpl source)
   {
@@ -123,5 +133,28 @@ public class ConstArrayValue
    
     return _values.copy();
   }
-}
 
+  /**
+   * Returns the value index, built once the array has been searched
+   * a few times.
+   */
+  @Override
+  public ArrayValueIndex getValueIndex()
+  {
+    ArrayValueIndex index = _valueIndex;
+
+    if (index == null
+        && ! _isIndexChecked
+        && INDEX_MIN_SIZE <= getSize()
+        && ++_searchCount >= INDEX_SEARCH_THRESHOLD) {
+      // arrays which can't be indexed are only checked once
+      _isIndexChecked = true;
+
+      index = ArrayValueIndex.create(this);
+
+      _valueIndex = index;
+    }
+
+    return index;
+  }
+}
@@ -84,6 +84,8 @@ import com.caucho.quercus.module.ModuleContext;
 import com.caucho.quercus.module.ModuleStartupListener;
 import com.caucho.quercus.page.QuercusPage;
 import com.caucho.quercus.program.ClassDef;
+import com.caucho.quercus.program.Function;
+import com.caucho.quercus.program.InterpretedClassDef;
 import com.caucho.quercus.program.JavaClassDef;
 import com.caucho.quercus.program.QuercusProgram;
 import com.caucho.quercus.program.UndefinedFunction;
@@ -235,6 +237,12 @@ public class Env
   // anonymous functions created by create_function()
   public HashMap<String, AbstractFunction> _anonymousFunMap;
 
+  // interpreted function currently executing, for tiered compilation
+  private Function _interpretedFunction;
+
+  // tier-compiled pages initialized for this env, by compiled id
+  private boolean []_isTierPageInit;
+
   // Class map
   public ClassDef []_classDef;
   public QuercusClass []_qClass;
@@ -1191,6 +1199,57 @@ public class Env
     _timeLimit = ms;
   }
 
+  /**
+   * Sets the currently executing interpreted function, returning the
+   * old value.
+   */
+  public final Function setInterpretedFunction(Function fun)
+  {
+    Function oldFun = _interpretedFunction;
+
+    _interpretedFunction = fun;
+
+    return oldFun;
+  }
+
+  /**
+   * Initializes the generated page of a tier-compiled function the first
+   * time this env calls it.
+   *
+   * @param id the compiled function's id, from Function
+   */
+  public final void initTierPage(int id, QuercusPage page)
+  {
+    boolean []isInit = _isTierPageInit;
+
+    if (isInit != null && id < isInit.length && isInit[id])
+      return;
+
+    if (isInit == null || isInit.length <= id) {
+      boolean []newInit = new boolean[id + 32];
+
+      if (isInit != null)
+        System.arraycopy(isInit, 0, newInit, 0, isInit.length);
+
+      _isTierPageInit = isInit = newInit;
+    }
+
+    isInit[id] = true;
+
+    page.init(this);
+  }
+
+  /**
+   * Counts an interpreted loop iteration against the current function.
+   */
+  public final void countBackEdge()
+  {
+    Function fun = _interpretedFunction;
+
+    if (fun != null)
+      fun.countBackEdge();
+  }
+
   /**
    * Checks for the program timeout.
    */
@@ -1242,6 +1301,18 @@ public class Env
     return _originalOut;
   }
 
+  /**
+   * Replaces the writer, e.g. with a compressing stream.  Output
+   * buffers flush to the new writer.
+   */
+  public void setOriginalOut(WriteStream out)
+  {
+    if (_out == _originalOut)
+      _out = out;
+
+    _originalOut = out;
+  }
+
   /**
    * Flushes the output buffer.
    */
@@ -3940,7 +4011,12 @@ public class Env
       _fun = funMap;
     }
 
-    if (_fun[id] != null && ! (_fun[id] instanceof UndefinedFunction))
+    AbstractFunction []defFuns = getDefaultFunctionMap();
+
+    // a preloaded function may be redeclared by including its own file
+    if (_fun[id] != null
+        && ! (_fun[id] instanceof UndefinedFunction)
+        && (defFuns.length <= id || _fun[id] != defFuns[id]))
       throw new QuercusException(L.l("can't redefine function {0}", name));
 
     _fun[id] = fun;
@@ -5211,12 +5287,45 @@ public class Env
 
     ClassDef staticClass = _quercus.getClassDef(id);
 
-    if (staticClass != null)
+    if (staticClass instanceof InterpretedClassDef)
+      return createPreloadClass(id, staticClass);
+    else if (staticClass != null)
       return createQuercusClass(id, staticClass, null); // XXX: cache
     else
       return null;
   }
 
+  /**
+   * Links a class preloaded into the context, sharing the linked
+   * QuercusClass between requests.
+   */
+  private QuercusClass createPreloadClass(int id, ClassDef def)
+  {
+    String parentName = def.getParentName();
+
+    QuercusClass parent = null;
+
+    if (parentName != null) {
+      parent = findClass(parentName);
+
+      if (parent == null)
+        return null;
+    }
+
+    QuercusClass qClass = _quercus.getCachedClass(id);
+
+    if (qClass == null
+        || qClass.isModified()
+        || qClass.getClassDef() != def
+        || qClass.getParent() != parent) {
+      qClass = createQuercusClass(id, def, parent);
+
+      _quercus.setCachedClass(id, qClass);
+    }
+
+    return qClass;
+  }
+
   /*
    * Registers an SPL autoload function.
    */
@@ -5622,7 +5731,8 @@ public class Env
 
       if (page != null && isOnce)
         return BooleanValue.TRUE;
-      else if (page == null || page.isModified()) {
+      else if (page == null
+               || ! _quercus.isImmutableDeploy() && page.isModified()) {
         page = _quercus.parse(path);
 
         pageInit(page);
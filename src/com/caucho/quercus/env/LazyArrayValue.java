@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.env;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * An array whose entries are computed by position, e.g. a range or the
+ * result of array_map.  Iteration, count and copies use the positional
+ * entries directly.  Any write, reference or hash access materializes a
+ * real ArrayValueImpl, which is used from then on.
+ */
+abstract public class LazyArrayValue extends ArrayValueWrapper {
+  private ArrayValue _array;
+
+  protected LazyArrayValue()
+  {
+    super(null);
+  }
+
+  /**
+   * Returns the number of entries.
+   */
+  abstract protected int getLazySize();
+
+  /**
+   * Returns the key at the position.
+   */
+  abstract protected Value getLazyKey(int i);
+
+  /**
+   * Returns the raw value at the position.
+   */
+  abstract protected Value getLazyValue(int i);
+
+  /**
+   * Returns a new unmaterialized view sharing this array's entries.
+   */
+  abstract protected LazyArrayValue copyLazy();
+
+  /**
+   * Returns true once the entries are copied into a real array.
+   */
+  protected final boolean isMaterialized()
+  {
+    return _array != null;
+  }
+
+  /**
+   * Returns the materialized array.
+   */
+  @Override
+  public ArrayValue getArray()
+  {
+    if (_array == null) {
+      int size = getLazySize();
+
+      ArrayValueImpl array = new ArrayValueImpl(size);
+
+      for (int i = 0; i < size; i++) {
+        array.append(getLazyKey(i), getLazyValue(i).copyArrayItem());
+      }
+
+      _array = array;
+    }
+
+    return _array;
+  }
+
+  /**
+   * Copy for assignment.
+   */
+  @Override
+  public Value copy()
+  {
+    if (_array != null)
+      return _array.copy();
+    else
+      return copyLazy();
+  }
+
+  /**
+   * Copy for saving a function arguments.
+   */
+  @Override
+  public Value copySaveFunArg()
+  {
+    if (_array != null)
+      return _array.copySaveFunArg();
+    else
+      return copyLazy();
+  }
+
+  /**
+   * Convert to an argument value.
+   */
+  @Override
+  public Value toLocalValue()
+  {
+    if (_array != null)
+      return _array.toLocalValue();
+    else
+      return copyLazy();
+  }
+
+  /**
+   * Returns the size.
+   */
+  @Override
+  public int getSize()
+  {
+    if (_array != null)
+      return _array.getSize();
+    else
+      return getLazySize();
+  }
+
+  /**
+   * Slices.
+   */
+  @Override
+  public ArrayValue slice(Env env, int start, int end, boolean isPreserveKeys)
+  {
+    if (_array != null)
+      return _array.slice(env, start, end, isPreserveKeys);
+
+    int size = getLazySize();
+
+    if (start < 0)
+      start = 0;
+
+    if (size < end)
+      end = size;
+
+    if (end <= start)
+      return new ArrayValueImpl();
+
+    int len = end - start;
+
+    Value []keys = null;
+    Value []values = new Value[len];
+
+    long index = 0;
+
+    for (int i = 0; i < len; i++) {
+      Value key = getLazyKey(start + i);
+
+      if (! isPreserveKeys && ! key.isString())
+        key = LongValue.create(index++);
+
+      if (keys == null && ! isIndexKey(key, i)) {
+        keys = new Value[len];
+
+        for (int j = 0; j < i; j++) {
+          keys[j] = LongValue.create(j);
+        }
+      }
+
+      if (keys != null)
+        keys[i] = key;
+
+      values[i] = getLazyValue(start + i).toValue();
+    }
+
+    return new PackedArrayValue(keys, values);
+  }
+
+  /**
+   * Returns the keys as a java array.
+   */
+  @Override
+  public Value []keysToArray()
+  {
+    if (_array != null)
+      return _array.keysToArray();
+
+    int size = getLazySize();
+    Value []keys = new Value[size];
+
+    for (int i = 0; i < size; i++) {
+      keys[i] = getLazyKey(i);
+    }
+
+    return keys;
+  }
+
+  /**
+   * Returns the values as a java array.
+   */
+  @Override
+  public Value []valuesToArray()
+  {
+    if (_array != null)
+      return _array.valuesToArray();
+
+    int size = getLazySize();
+    Value []values = new Value[size];
+
+    for (int i = 0; i < size; i++) {
+      values[i] = getLazyValue(i).toValue();
+    }
+
+    return values;
+  }
+
+  @Override
+  public Iterator<Map.Entry<Value, Value>> getIterator(Env env)
+  {
+    if (_array != null)
+      return _array.getIterator(env);
+    else
+      return new LazyEntryIterator();
+  }
+
+  @Override
+  public Iterator<Value> getKeyIterator(Env env)
+  {
+    if (_array != null)
+      return _array.getKeyIterator(env);
+    else
+      return new LazyKeyIterator();
+  }
+
+  @Override
+  public Iterator<Value> getValueIterator(Env env)
+  {
+    if (_array != null)
+      return _array.getValueIterator(env);
+    else
+      return new LazyValueIterator();
+  }
+
+  /**
+   * Returns true if the key is the long at the position.
+   */
+  static boolean isIndexKey(Value key, int i)
+  {
+    return key instanceof LongValue && key.toLong() == i;
+  }
+
+  //
+  // iterators
+  //
+
+  abstract class LazyIterator<T> implements Iterator<T> {
+    private final int _size = getLazySize();
+    private int _index;
+
+    public boolean hasNext()
+    {
+      return _index < _size;
+    }
+
+    public T next()
+    {
+      if (_index < _size)
+        return get(_index++);
+      else
+        return null;
+    }
+
+    abstract protected T get(int i);
+
+    public void remove()
+    {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  class LazyEntryIterator extends LazyIterator<Map.Entry<Value,Value>> {
+    @Override
+    protected Map.Entry<Value,Value> get(int i)
+    {
+      return new Entry(getLazyKey(i), getLazyValue(i));
+    }
+  }
+
+  class LazyKeyIterator extends LazyIterator<Value> {
+    @Override
+    protected Value get(int i)
+    {
+      return getLazyKey(i);
+    }
+  }
+
+  class LazyValueIterator extends LazyIterator<Value> {
+    @Override
+    protected Value get(int i)
+    {
+      return getLazyValue(i).toValue();
+    }
+  }
+}
@@ -0,0 +1,865 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.env;
+
+import com.caucho.quercus.QuercusRuntimeException;
+import com.caucho.vfs.TempBuffer;
+import com.caucho.vfs.WriteStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.IdentityHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Represents a read-only 8-bit string backed by a memory-mapped file
+ * (unicode.semantics = off), used by file_get_contents for large files.
+ *
+ * The bytes stay in the mapping.  Reads, substrings, output and
+ * appending to a builder copy at most a buffer at a time.  Modifying
+ * the string first copies it to a StringBuilderValue.
+ *
+ * A mapping would see later writes to the file, so the request copies
+ * the bytes to the heap before it writes, truncates, renames or removes
+ * the file.  For changes from outside the request, a read which faults
+ * on a truncated file rereads the bytes into the heap, and the file's
+ * length and modification time are checked when the string is written
+ * out.
+ */
+public class MappedStringValue
+  extends StringValue
+{
+  private static final Logger log
+    = Logger.getLogger(MappedStringValue.class.getName());
+
+  // substrings at least this long share the mapping instead of copying
+  private static final int SLICE_MIN_LENGTH = 64 * 1024;
+
+  // numbers are parsed from at most this many leading bytes
+  private static final int NUMBER_PREFIX_LENGTH = 64;
+
+  private final Mapping _mapping;
+  private final int _offset;
+  private final int _length;
+
+  private int _hashCode;
+  private int _hashVersion;
+
+  public MappedStringValue(Mapping mapping)
+  {
+    this(mapping, 0, mapping.getBuffer().capacity());
+  }
+
+  private MappedStringValue(Mapping mapping, int offset, int length)
+  {
+    _mapping = mapping;
+    _offset = offset;
+    _length = length;
+  }
+
+  /**
+   * Returns a single byte.
+   */
+  private byte getByte(int index)
+  {
+    try {
+      return _mapping.getBuffer().get(_offset + index);
+    } catch (InternalError e) {
+      _mapping.fault(e);
+
+      return _mapping.getBuffer().get(_offset + index);
+    }
+  }
+
+  /**
+   * Copies bytes of the string into the buffer.
+   */
+  private void readBytes(int offset, byte []buffer, int bufOffset, int length)
+  {
+    try {
+      readBytes(_mapping.getBuffer(), offset, buffer, bufOffset, length);
+    } catch (InternalError e) {
+      _mapping.fault(e);
+
+      readBytes(_mapping.getBuffer(), offset, buffer, bufOffset, length);
+    }
+  }
+
+  private void readBytes(ByteBuffer bytes, int offset,
+                         byte []buffer, int bufOffset, int length)
+  {
+    bytes = bytes.duplicate();
+    bytes.position(_offset + offset);
+
+    bytes.get(buffer, bufOffset, length);
+  }
+
+  /**
+   * Creates an empty string builder of the same type.
+   */
+  public StringValue createEmptyStringBuilder()
+  {
+    return new StringBuilderValue();
+  }
+
+  /**
+   * Returns the value.
+   */
+  public String getValue()
+  {
+    return toString();
+  }
+
+  /**
+   * Returns the type.
+   */
+  @Override
+  public String getType()
+  {
+    return "string";
+  }
+
+  /**
+   * Returns true for a long
+   */
+  @Override
+  public boolean isLongConvertible()
+  {
+    return false;
+  }
+
+  /**
+   * Returns true for a double
+   */
+  public boolean isDouble()
+  {
+    return false;
+  }
+
+  /**
+   * Returns true for a number
+   */
+  @Override
+  public boolean isNumber()
+  {
+    return false;
+  }
+
+  /**
+   * Returns true for a scalar
+   */
+  @Override
+  public boolean isScalar()
+  {
+    return true;
+  }
+
+  /**
+   * Converts to a long.
+   */
+  @Override
+  public long toLong()
+  {
+    byte []prefix = getNumberPrefix();
+
+    return parseLong(prefix, 0, prefix.length);
+  }
+
+  /**
+   * Converts to a double.
+   */
+  @Override
+  public double toDouble()
+  {
+    byte []prefix = getNumberPrefix();
+
+    return StringBuilderValue.toDouble(prefix, 0, prefix.length);
+  }
+
+  /**
+   * Returns the leading bytes after any whitespace, which are all a
+   * numeric conversion can use.
+   */
+  private byte []getNumberPrefix()
+  {
+    int offset = 0;
+
+    while (offset < _length
+           && Character.isWhitespace((char) (getByte(offset) & 0xff))) {
+      offset++;
+    }
+
+    int sublen = Math.min(NUMBER_PREFIX_LENGTH, _length - offset);
+
+    byte []prefix = new byte[sublen];
+
+    readBytes(offset, prefix, 0, sublen);
+
+    return prefix;
+  }
+
+  /**
+   * Convert to an input stream.
+   */
+  @Override
+  public InputStream toInputStream()
+  {
+    return new MappedInputStream();
+  }
+
+  /**
+   * Converts to a string.
+   */
+  @Override
+  public String toString()
+  {
+    char []buffer = new char[_length];
+
+    for (int i = _length - 1; i >= 0; i--) {
+      buffer[i] = (char) (getByte(i) & 0xff);
+    }
+
+    return new String(buffer, 0, _length);
+  }
+
+  /**
+   * Converts to an object.
+   */
+  @Override
+  public Object toJavaObject()
+  {
+    return toString();
+  }
+
+  /**
+   * Converts to a string builder
+   */
+  @Override
+  public StringValue toStringBuilder()
+  {
+    StringBuilderValue sb = new StringBuilderValue(_length);
+
+    appendTo(sb);
+
+    return sb;
+  }
+
+  /**
+   * Converts to a string builder
+   */
+  @Override
+  public StringValue toStringBuilder(Env env)
+  {
+    return toStringBuilder();
+  }
+
+  /**
+   * Converts to a BinaryValue.
+   */
+  @Override
+  public StringValue toBinaryValue(Env env)
+  {
+    return this;
+  }
+
+  /**
+   * Converts to a BinaryValue in desired charset.
+   */
+  @Override
+  public StringValue toBinaryValue(String charset)
+  {
+    return this;
+  }
+
+  /**
+   * Append to a binary builder.
+   */
+  @Override
+  public StringValue appendTo(StringBuilderValue sb)
+  {
+    appendBytesTo(sb);
+
+    return sb;
+  }
+
+  /**
+   * Append to a binary builder.
+   */
+  @Override
+  public StringValue appendTo(BinaryBuilderValue sb)
+  {
+    appendBytesTo(sb);
+
+    return sb;
+  }
+
+  /**
+   * Append to a binary builder.
+   */
+  @Override
+  public StringValue appendTo(LargeStringBuilderValue sb)
+  {
+    appendBytesTo(sb);
+
+    return sb;
+  }
+
+  /**
+   * Copies the bytes to the builder a buffer at a time.
+   */
+  private void appendBytesTo(StringValue sb)
+  {
+    TempBuffer tempBuf = TempBuffer.allocate();
+
+    try {
+      byte []buffer = tempBuf.getBuffer();
+
+      for (int offset = 0; offset < _length; ) {
+        int sublen = Math.min(buffer.length, _length - offset);
+
+        readBytes(offset, buffer, 0, sublen);
+
+        sb.append(buffer, 0, sublen);
+
+        offset += sublen;
+      }
+    } finally {
+      TempBuffer.free(tempBuf);
+    }
+  }
+
+  /**
+   * Converts to a byte array, with no consideration of character encoding.
+   */
+  public byte[] toBytes()
+  {
+    byte []bytes = new byte[_length];
+
+    readBytes(0, bytes, 0, _length);
+
+    return bytes;
+  }
+
+  //
+  // Operations
+  //
+
+  /**
+   * Returns the character at an index
+   */
+  public Value get(Value key)
+  {
+    return charValueAt(key.toLong());
+  }
+
+  /**
+   * Returns the character at an index
+   */
+  @Override
+  public Value charValueAt(long index)
+  {
+    if (index < 0 || _length <= index)
+      return UnsetStringValue.UNSET;
+    else {
+      int data = getByte((int) index);
+
+      return StringBuilderValue.create((char) (data & 0xff));
+    }
+  }
+
+  //
+  // CharSequence
+  //
+
+  /**
+   * Returns the length of the string.
+   */
+  @Override
+  public int length()
+  {
+    return _length;
+  }
+
+  /**
+   * Returns the character at a particular location
+   */
+  @Override
+  public char charAt(int index)
+  {
+    if (index < 0 || _length <= index) {
+      throw new ArrayIndexOutOfBoundsException(_length + ", " + index);
+    }
+
+    return (char) (getByte(index) & 0xff);
+  }
+
+  /**
+   * Returns a subsequence
+   */
+  @Override
+  public CharSequence subSequence(int start, int end)
+  {
+    if (end <= start)
+      return StringBuilderValue.EMPTY;
+
+    if (SLICE_MIN_LENGTH <= end - start)
+      return new MappedStringValue(_mapping, _offset + start, end - start);
+
+    StringBuilderValue sb = new StringBuilderValue(end - start);
+
+    byte []buffer = sb.getBuffer();
+    readBytes(start, buffer, 0, end - start);
+    sb.setLength(end - start);
+
+    return sb;
+  }
+
+  /**
+   * Convert to lower case.
+   */
+  @Override
+  public StringValue toLowerCase()
+  {
+    int length = _length;
+
+    StringBuilderValue string = new StringBuilderValue(length);
+
+    byte []buffer = string.getBuffer();
+    readBytes(0, buffer, 0, length);
+
+    for (int i = 0; i < length; i++) {
+      int ch = buffer[i];
+
+      if ('A' <= ch && ch <= 'Z')
+        buffer[i] = (byte) (ch + 'a' - 'A');
+    }
+
+    string.setLength(length);
+
+    return string;
+  }
+
+  /**
+   * Convert to upper case.
+   */
+  @Override
+  public StringValue toUpperCase()
+  {
+    int length = _length;
+
+    StringBuilderValue string = new StringBuilderValue(length);
+
+    byte []buffer = string.getBuffer();
+    readBytes(0, buffer, 0, length);
+
+    for (int i = 0; i < length; i++) {
+      int ch = buffer[i];
+
+      if ('a' <= ch && ch <= 'z')
+        buffer[i] = (byte) (ch + 'A' - 'a');
+    }
+
+    string.setLength(length);
+
+    return string;
+  }
+
+  //
+  // append code
+  //
+
+  /**
+   * Creates a string builder of the same type.
+   */
+  @Override
+  public StringValue createStringBuilder()
+  {
+    return new StringBuilderValue();
+  }
+
+  /**
+   * Creates a string builder of the same type.
+   */
+  @Override
+  public StringValue createStringBuilder(int length)
+  {
+    return new StringBuilderValue(length);
+  }
+
+  //
+  // Java generator code
+  //
+
+  /**
+   * Prints the value.
+   * @param env
+   */
+  @Override
+  public void print(Env env)
+  {
+    _mapping.checkFile();
+
+    TempBuffer tempBuf = TempBuffer.allocate();
+
+    try {
+      byte []buffer = tempBuf.getBuffer();
+
+      for (int offset = 0; offset < _length; ) {
+        int sublen = Math.min(buffer.length, _length - offset);
+
+        readBytes(offset, buffer, 0, sublen);
+
+        env.write(buffer, 0, sublen);
+
+        offset += sublen;
+      }
+    } finally {
+      TempBuffer.free(tempBuf);
+    }
+  }
+
+  /**
+   * Prints the value.
+   * @param env
+   */
+  @Override
+  public void print(Env env, WriteStream out)
+  {
+    _mapping.checkFile();
+
+    TempBuffer tempBuf = TempBuffer.allocate();
+
+    try {
+      byte []buffer = tempBuf.getBuffer();
+
+      for (int offset = 0; offset < _length; ) {
+        int sublen = Math.min(buffer.length, _length - offset);
+
+        readBytes(offset, buffer, 0, sublen);
+
+        out.write(buffer, 0, sublen);
+
+        offset += sublen;
+      }
+    } catch (IOException e) {
+      throw new QuercusRuntimeException(e);
+    } finally {
+      TempBuffer.free(tempBuf);
+    }
+  }
+
+  /**
+   * Serializes the value.
+   */
+  @Override
+  public void serialize(Env env, StringBuilder sb)
+  {
+    sb.append("s:");
+    sb.append(_length);
+    sb.append(":\"");
+    sb.append(toString());
+    sb.append("\";");
+  }
+
+  /**
+   * Returns the hash code.
+   */
+  @Override
+  public int hashCode()
+  {
+    // a reread file invalidates the cached hash
+    int version = _mapping.getVersion();
+
+    if (_hashCode != 0 && _hashVersion == version)
+      return _hashCode;
+
+    int hash = 37;
+
+    int length = _length;
+
+    for (int i = 0; i < length; i++) {
+      hash = 65521 * hash + (getByte(i) & 0xff);
+    }
+
+    _hashCode = hash;
+    _hashVersion = version;
+
+    return hash;
+  }
+
+  @Override
+  public String toDebugString()
+  {
+    StringBuilder sb = new StringBuilder();
+
+    int length = length();
+
+    sb.append("string(");
+    sb.append(length);
+    sb.append(") \"");
+
+    int appendLength = length > 256 ? 256 : length;
+
+    for (int i = 0; i < appendLength; i++)
+      sb.append(charAt(i));
+
+    if (length > 256)
+      sb.append(" ...");
+
+    sb.append('"');
+
+    return sb.toString();
+  }
+
+  @Override
+  public void varDumpImpl(Env env,
+                          WriteStream out,
+                          int depth,
+                          IdentityHashMap<Value, String> valueSet)
+    throws IOException
+  {
+    int length = length();
+
+    out.print("string(");
+    out.print(length);
+    out.print(") \"");
+
+    print(env, out);
+
+    out.print("\"");
+  }
+
+  class MappedInputStream extends InputStream {
+    private int _position;
+
+    MappedInputStream()
+    {
+      // the stream is how fwrite and file_put_contents write the string
+      _mapping.checkFile();
+    }
+
+    /**
+     * Reads the next byte.
+     */
+    @Override
+    public int read()
+    {
+      if (_position < _length)
+        return getByte(_position++) & 0xff;
+      else
+        return -1;
+    }
+
+    /**
+     * Reads into a buffer.
+     */
+    @Override
+    public int read(byte []buffer, int offset, int length)
+    {
+      int sublen = _length - _position;
+
+      if (length < sublen)
+        sublen = length;
+
+      if (sublen <= 0)
+        return -1;
+
+      readBytes(_position, buffer, offset, sublen);
+
+      _position += sublen;
+
+      return sublen;
+    }
+
+    /**
+     * Skips bytes.
+     */
+    @Override
+    public long skip(long n)
+    {
+      int sublen = (int) Math.max(0, Math.min(n, _length - _position));
+
+      _position += sublen;
+
+      return sublen;
+    }
+
+    /**
+     * Returns the unread length.
+     */
+    @Override
+    public int available()
+    {
+      return _length - _position;
+    }
+  }
+
+  /**
+   * A mapped region of a file, shared by a string and its substrings.
+   */
+  public static final class Mapping {
+    private File _file;
+    private final long _fileOffset;
+    private final long _fileLength;
+    private final long _lastModified;
+
+    private ByteBuffer _buffer;
+    private int _version;
+
+    /**
+     * Creates the mapping, with the file's length and modification time
+     * read before the region was mapped.
+     */
+    public Mapping(File file, long fileOffset,
+                   long fileLength, long lastModified,
+                   ByteBuffer buffer)
+    {
+      _file = file;
+      _fileOffset = fileOffset;
+      _fileLength = fileLength;
+      _lastModified = lastModified;
+
+      _buffer = buffer;
+    }
+
+    /**
+     * Returns the file, or null once the bytes are in the heap.
+     */
+    public File getFile()
+    {
+      return _file;
+    }
+
+    ByteBuffer getBuffer()
+    {
+      return _buffer;
+    }
+
+    int getVersion()
+    {
+      return _version;
+    }
+
+    /**
+     * Rereads the bytes if the file has changed, called when the string
+     * is written out rather than on each read.
+     */
+    void checkFile()
+    {
+      File file = _file;
+
+      if (file != null
+          && (file.length() != _fileLength
+              || file.lastModified() != _lastModified)) {
+        reread(file);
+      }
+    }
+
+    /**
+     * A read of the mapping faulted, because the file was truncated.
+     */
+    void fault(InternalError e)
+    {
+      File file = _file;
+
+      if (file == null)
+        throw e;
+
+      log.log(Level.FINER, e.toString(), e);
+
+      reread(file);
+    }
+
+    /**
+     * Copies the bytes to the heap before the request modifies the file,
+     * so the string keeps its value.
+     */
+    public void detach()
+    {
+      if (_file == null)
+        return;
+
+      ByteBuffer heap = ByteBuffer.allocate(_buffer.capacity());
+
+      ByteBuffer mapped = _buffer.duplicate();
+      mapped.clear();
+
+      try {
+        heap.put(mapped);
+      } catch (InternalError e) {
+        fault(e);
+        return;
+      }
+
+      heap.clear();
+
+      _buffer = heap;
+      _file = null;
+    }
+
+    /**
+     * The file was changed outside the request.  The mapping may now be
+     * past the end of the file, so the bytes are read without it.
+     */
+    private void reread(File file)
+    {
+      log.warning(file + " changed while mapped by file_get_contents");
+
+      ByteBuffer heap = ByteBuffer.allocate(_buffer.capacity());
+
+      try {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try {
+          FileChannel channel = raf.getChannel();
+
+          while (heap.hasRemaining()
+                 && channel.read(heap, _fileOffset + heap.position()) > 0) {
+          }
+        } finally {
+          raf.close();
+        }
+      } catch (IOException e) {
+        log.log(Level.FINER, e.toString(), e);
+      }
+
+      heap.clear();
+
+      _buffer = heap;
+      _file = null;
+      _version++;
+    }
+  }
+}
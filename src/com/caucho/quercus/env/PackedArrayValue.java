@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+
+package com.caucho.quercus.env;
+
+import java.util.Arrays;
+
+/**
+ * An array result held as plain key and value arrays, e.g. from
+ * array_map or array_filter, until it's written or hashed.
+ */
+public class PackedArrayValue extends LazyArrayValue {
+  private final Value []_keys;
+  private final Value []_values;
+
+  /**
+   * Creates the array.
+   *
+   * @param keys the keys, or null for the keys 0 to n - 1
+   * @param values the raw values
+   */
+  public PackedArrayValue(Value []keys, Value []values)
+  {
+    _keys = keys;
+    _values = values;
+  }
+
+  /**
+   * Creates the array from the first size keys and values, dropping
+   * the keys if they're the positions.
+   */
+  public static PackedArrayValue create(Value []keys, Value []values, int size)
+  {
+    if (size < values.length) {
+      keys = Arrays.copyOf(keys, size);
+      values = Arrays.copyOf(values, size);
+    }
+
+    for (int i = 0; i < size; i++) {
+      if (! isIndexKey(keys[i], i))
+        return new PackedArrayValue(keys, values);
+    }
+
+    return new PackedArrayValue(null, values);
+  }
+
+  @Override
+  protected int getLazySize()
+  {
+    return _values.length;
+  }
+
+  @Override
+  protected Value getLazyKey(int i)
+  {
+    if (_keys != null)
+      return _keys[i];
+    else
+      return LongValue.create(i);
+  }
+
+  @Override
+  protected Value getLazyValue(int i)
+  {
+    return _values[i];
+  }
+
+  @Override
+  protected LazyArrayValue copyLazy()
+  {
+    return new PackedArrayValue(_keys, _values);
+  }
+
+  /**
+   * Gets a new value.
+   */
+  @Override
+  public Value get(Value key)
+  {
+    if (isMaterialized() || _keys != null || ! (key instanceof LongValue))
+      return super.get(key);
+
+    long index = key.toLong();
+
+    if (0 <= index && index < _values.length)
+      return _values[(int) index].toValue();
+    else
+      return UnsetValue.UNSET;
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+
+package com.caucho.quercus.env;
+
+/**
+ * The result of range() for integers, computed on demand.
+ */
+public class RangeArrayValue extends LazyArrayValue {
+  private final long _start;
+  private final long _step;
+  private final int _size;
+
+  public RangeArrayValue(long start, long step, int size)
+  {
+    _start = start;
+    _step = step;
+    _size = size;
+  }
+
+  @Override
+  protected int getLazySize()
+  {
+    return _size;
+  }
+
+  @Override
+  protected Value getLazyKey(int i)
+  {
+    return LongValue.create(i);
+  }
+
+  @Override
+  protected Value getLazyValue(int i)
+  {
+    return LongValue.create(_start + i * _step);
+  }
+
+  @Override
+  protected LazyArrayValue copyLazy()
+  {
+    return new RangeArrayValue(_start, _step, _size);
+  }
+
+  /**
+   * Gets a new value.
+   */
+  @Override
+  public Value get(Value key)
+  {
+    if (isMaterialized() || ! (key instanceof LongValue))
+      return super.get(key);
+
+    long index = key.toLong();
+
+    if (0 <= index && index < _size)
+      return getLazyValue((int) index);
+    else
+      return UnsetValue.UNSET;
+  }
+
+  /**
+   * Slices.
+   */
+  @Override
+  public ArrayValue slice(Env env, int start, int end, boolean isPreserveKeys)
+  {
+    if (isMaterialized() || isPreserveKeys)
+      return super.slice(env, start, end, isPreserveKeys);
+
+    if (start < 0)
+      start = 0;
+
+    if (_size < end)
+      end = _size;
+
+    if (end <= start)
+      return new ArrayValueImpl();
+
+    return new RangeArrayValue(_start + start * _step, _step, end - start);
+  }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.gen;
+
+import com.caucho.java.JavaWriter;
+import com.caucho.java.LineMap;
+import com.caucho.java.gen.ClassComponent;
+import com.caucho.quercus.program.*;
+import com.caucho.vfs.Path;
+
+import java.io.IOException;
+
+/**
+ * Represents a single hot function compiled apart from its page.
+ */
+public class QuercusFunctionMain extends ClassComponent
+{
+  private QuercusProgram _program;
+  private Function _function;
+  private String _className;
+
+  private String _userPath;
+
+  /**
+   * Creates a new function main
+   *
+   * @param program the owning quercus program
+   * @param function the function to compile
+   */
+  public QuercusFunctionMain(QuercusProgram program,
+                             Function function,
+                             String className)
+  {
+    _program = program;
+    _function = function;
+    _className = className;
+
+    if (! (function instanceof CompilingFunction))
+      throw new IllegalArgumentException(function.getClass().getName() + " needs to be a compiling function");
+  }
+
+  public void setUserPath(String userPath)
+  {
+    _userPath = userPath;
+  }
+
+  /**
+   * Generates the code for the class component.
+   *
+   * @param javaOut the writer to the output stream.
+   */
+  protected void generate(JavaWriter javaOut)
+    throws IOException
+  {
+    PhpWriter out = new ProPhpWriter(javaOut, _program, _className);
+
+    Path dstPath = javaOut.getWriteStream().getPath();
+    String dstFilename = dstPath.getFullPath();
+    LineMap lineMap = new LineMap(dstFilename);
+
+    lineMap.setSourceType("PHP");
+
+    javaOut.setLineMap(lineMap);
+
+    out.println();
+    out.println("static com.caucho.vfs.Path _quercus_selfPath;");
+    out.println("static com.caucho.vfs.Path _quercus_selfDirectory;");
+
+    out.println();
+    out.println("public static void quercus_setSelfPath(com.caucho.vfs.Path path)");
+    out.println("{");
+    out.println("  _quercus_selfPath = path;");
+    out.println("  _quercus_selfDirectory = path.getParent();");
+    out.println("}");
+
+    out.println();
+    out.println("public com.caucho.vfs.Path getSelfPath(Env env)");
+    out.println("{");
+    out.println("  return _quercus_selfPath;");
+    out.println("}");
+
+    out.println();
+    out.println("public String getUserPath()");
+    out.println("{");
+    out.print("  return \"");
+    out.printJavaString(_userPath);
+    out.println("\";");
+    out.println("}");
+
+    out.println();
+    out.println("public Value execute(com.caucho.quercus.env.Env env)");
+    out.println("{");
+    out.println("  return NullValue.NULL;");
+    out.println("}");
+
+    FunctionGenerator funGen = ((CompilingFunction) _function).getGenerator();
+
+    funGen.analyze(_program);
+
+    ClassDef cl = _function.getDeclaringClass();
+    String funClassName = "fun_" + _function.getCompilationName();
+
+    if (cl instanceof InterpretedClassDef) {
+      String javaClassName
+        = "quercus_" + ((InterpretedClassDef) cl).getCompilationName();
+
+      String oldClassName = out.getCurrentClassName();
+      out.setCurrentClassName(javaClassName);
+
+      out.println();
+      out.println("public static class " + javaClassName + " {");
+      out.pushDepth();
+
+      funGen.generate(out);
+
+      out.popDepth();
+      out.println("}");
+
+      out.setCurrentClassName(oldClassName);
+
+      funClassName = javaClassName + "." + funClassName;
+    }
+    else
+      funGen.generate(out);
+
+    out.println();
+    out.println("public static AbstractFunction quercus_createFunction()");
+    out.println("{");
+    out.println("  return new " + funClassName + "();");
+    out.println("}");
+
+    out.println();
+    out.println("private void initFunctions(QuercusContext quercus)");
+    out.println("{");
+    out.println("}");
+
+    out.println();
+    out.println("@Override");
+    out.println("public boolean isModified()");
+    out.println("{");
+    out.println("  return _caucho_is_modified();");
+    out.println("}");
+
+    out.generateCoda();
+
+    javaOut.generateSmap();
+  }
+}
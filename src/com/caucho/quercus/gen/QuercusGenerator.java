@@ -10,6 +10,10 @@ import com.caucho.java.gen.GenClass;
 import com.caucho.java.gen.JavaClassGenerator;
 import com.caucho.make.VersionDependency;
 import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.lib.regexp.RegexpGenerator;
+import com.caucho.quercus.program.ClassDef;
+import com.caucho.quercus.program.Function;
+import com.caucho.quercus.program.InterpretedClassDef;
 import com.caucho.quercus.program.QuercusProgram;
 import com.caucho.vfs.Path;
 
@@ -155,6 +159,106 @@ public class QuercusGenerator {
     return gen.getPendingFiles();
   }
 
+  /**
+   * Returns the class name of a separately compiled hot function.
+   */
+  public String getFunctionClassName(QuercusProgram program, Function fun)
+  {
+    String className = _quercus.getClassName(program.getSourcePath());
+
+    ClassDef cl = fun.getDeclaringClass();
+
+    if (cl instanceof InterpretedClassDef) {
+      className = (className + "__"
+                   + ((InterpretedClassDef) cl).getCompilationName());
+    }
+
+    return className + "__fun_" + fun.getCompilationName();
+  }
+
+  /**
+   * Generates the Java source for a single hot function.
+   */
+  public String []generateFunction(QuercusProgram program,
+                                   Function fun,
+                                   String userPath)
+    throws Exception
+  {
+    JavaClassGenerator gen = createGenerator(false);
+
+    String className = getFunctionClassName(program, fun);
+
+    GenClass cl = new GenClass(className);
+
+    cl.setSuperClassName("com.caucho.quercus.page.QuercusPage");
+
+    cl.addImport("com.caucho.quercus.*");
+    cl.addImport("com.caucho.quercus.classes.*");
+    cl.addImport("com.caucho.quercus.env.*");
+    cl.addImport("com.caucho.quercus.expr.*");
+    cl.addImport("com.caucho.quercus.function.*");
+    cl.addImport("com.caucho.quercus.program.*");
+    cl.addImport("com.caucho.quercus.lib.*");
+
+    QuercusFunctionMain main = new QuercusFunctionMain(program, fun, className);
+    main.setUserPath(userPath);
+
+    cl.addComponent(main);
+
+    cl.addDependencyComponent().addDependency(new VersionDependency());
+    cl.addDependencyComponent().addDependencyList(program.getDependencyList());
+
+    gen.generate(cl);
+
+    return gen.getPendingFiles();
+  }
+
+  /**
+   * Loads a compiled hot function class.
+   */
+  public Class<?> loadFunction(QuercusProgram program, Function fun)
+    throws Exception
+  {
+    JavaClassGenerator gen = createGenerator(false);
+
+    return gen.load(getFunctionClassName(program, fun));
+  }
+
+  /**
+   * Generates the matcher class for a hot regexp.
+   */
+  public String []generateRegexp(RegexpGenerator regexpGen)
+    throws Exception
+  {
+    JavaClassGenerator gen = createGenerator(false);
+
+    GenClass cl = new GenClass(regexpGen.getClassName());
+
+    cl.setSuperClassName("com.caucho.quercus.lib.regexp.CompiledRegexp");
+
+    cl.addImport("com.caucho.quercus.env.*");
+    cl.addImport("com.caucho.quercus.lib.regexp.*");
+
+    cl.addComponent(new QuercusRegexpMain(regexpGen));
+
+    cl.addDependencyComponent().addDependency(new VersionDependency());
+
+    gen.generate(cl);
+
+    return gen.getPendingFiles();
+  }
+
+  /**
+   * Loads a compiled regexp class.
+   */
+  public Class<?> loadRegexp(String className)
+    throws Exception
+  {
+    JavaClassGenerator gen = createGenerator(false);
+
+    return gen.load(className);
+  }
+
   public void compile(String []files)
     throws Exception
   {
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.gen;
+
+import com.caucho.java.JavaWriter;
+import com.caucho.java.gen.ClassComponent;
+import com.caucho.quercus.lib.regexp.RegexpGenerator;
+
+import java.io.IOException;
+
+/**
+ * Represents the matcher of a hot regexp.
+ */
+public class QuercusRegexpMain extends ClassComponent
+{
+  private RegexpGenerator _regexpGen;
+
+  /**
+   * Creates a new regexp main
+   *
+   * @param regexpGen the generator for the regexp's node graph
+   */
+  public QuercusRegexpMain(RegexpGenerator regexpGen)
+  {
+    _regexpGen = regexpGen;
+  }
+
+  /**
+   * Generates the code for the class component.
+   *
+   * @param out the writer to the output stream.
+   */
+  protected void generate(JavaWriter out)
+    throws IOException
+  {
+    out.println();
+    out.print(_regexpGen.generate());
+  }
+}
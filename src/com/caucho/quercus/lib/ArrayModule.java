@@ -30,7 +30,10 @@
 package com.caucho.quercus.lib;
 
 import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Locale;
 import java.util.Map;
@@ -43,14 +46,20 @@ import com.caucho.quercus.annotation.ReadOnly;
 import com.caucho.quercus.annotation.Reference;
 import com.caucho.quercus.annotation.UsesSymbolTable;
 import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueIndex;
 import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.ArraySort;
 import com.caucho.quercus.env.BooleanValue;
 import com.caucho.quercus.env.Callable;
+import com.caucho.quercus.env.CallbackFunction;
+import com.caucho.quercus.env.ConstArrayValue;
 import com.caucho.quercus.env.DoubleValue;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.NullValue;
 import com.caucho.quercus.env.NumberValue;
+import com.caucho.quercus.env.PackedArrayValue;
+import com.caucho.quercus.env.RangeArrayValue;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.Value;
 import com.caucho.quercus.env.Var;
@@ -288,6 +297,26 @@ public class ArrayModule
     return result;
   }
 
+  /**
+   * Adds the string forms of the array's values, which is how the
+   * array_diff and array_intersect families compare values.
+   */
+  private static void addValueSet(HashSet<StringValue> valueSet,
+                                  ArrayValue array)
+  {
+    for (Map.Entry<Value, Value> entry : array.entrySet()) {
+      valueSet.add(entry.getValue().toStringValue());
+    }
+  }
+
+  /**
+   * Returns true if the values have the same string form.
+   */
+  private static boolean isStringEqual(Value a, Value b)
+  {
+    return a.toStringValue().equals(b.toStringValue());
+  }
+
   /**
    * Returns an array with everything that is in array and not in the other
    * arrays, keys also used
@@ -327,8 +356,9 @@ public class ArrayModule
           return NullValue.NULL;
         }
 
-        valueFound =
-          ((ArrayValue) arrays[k]).contains(entryValue).eq(entryKey);
+        Value value = ((ArrayValue) arrays[k]).containsKey(entryKey);
+
+        valueFound = value != null && isStringEqual(value, entryValue);
       }
 
       if (! valueFound)
@@ -532,27 +562,24 @@ public class ArrayModule
       return NullValue.NULL;
     }
 
-    ArrayValue diffArray = new ArrayValueImpl();
-
-    boolean valueFound;
+    HashSet<StringValue> valueSet = new HashSet<StringValue>();
 
-    for (Map.Entry<Value, Value> entry : array.entrySet()) {
-      valueFound = false;
+    for (int k = 0; k < arrays.length; k++) {
+      if (! (arrays[k] instanceof ArrayValue)) {
+        env.warning("Argument #" + (k + 2) + " is not an array");
 
-      Value entryValue = entry.getValue();
+        return NullValue.NULL;
+      }
 
-      for (int k = 0; k < arrays.length && ! valueFound; k++) {
-        if (! (arrays[k] instanceof ArrayValue)) {
-          env.warning("Argument #" + (k + 2) + " is not an array");
+      addValueSet(valueSet, (ArrayValue) arrays[k]);
+    }
 
-          return NullValue.NULL;
-        }
+    ArrayValue diffArray = new ArrayValueImpl();
 
-        valueFound =
-          ! ((ArrayValue) arrays[k]).contains(entryValue).isNull();
-      }
+    for (Map.Entry<Value, Value> entry : array.entrySet()) {
+      Value entryValue = entry.getValue();
 
-      if (! valueFound)
+      if (! valueSet.contains(entryValue.toStringValue()))
         diffArray.put(entry.getKey(), entryValue);
     }
 
@@ -625,7 +652,11 @@ public class ArrayModule
     if (array == null)
       return NullValue.NULL;
 
-    ArrayValue filteredArray = new ArrayValueImpl();
+    int size = array.getSize();
+
+    Value []keys = new Value[size];
+    Value []values = new Value[size];
+    int count = 0;
 
     if (! callbackName.isDefault()) {
       Callable callback = callbackName.toCallable(env);
@@ -652,8 +683,16 @@ public class ArrayModule
           boolean isMatch
             = callback.callArray(env, array, key, value).toBoolean();
 
-          if (isMatch)
-            filteredArray.put(key, value);
+          if (isMatch) {
+            // the callback may add to the array by reference
+            if (count == keys.length) {
+              keys = Arrays.copyOf(keys, 2 * count + 1);
+              values = Arrays.copyOf(values, 2 * count + 1);
+            }
+
+            keys[count] = key;
+            values[count++] = value;
+          }
         }
       }
       catch (Exception t) {
@@ -664,13 +703,21 @@ public class ArrayModule
       }
     }
     else {
-      for (Map.Entry<Value, Value> entry : array.entrySet()) {
-        if (entry.getValue().toBoolean())
-          filteredArray.put(entry.getKey(), entry.getValue());
+      Iterator<Map.Entry<Value,Value>> iter = array.getIterator(env);
+
+      while (iter.hasNext()) {
+        Map.Entry<Value,Value> entry = iter.next();
+
+        Value value = entry.getValue();
+
+        if (value.toBoolean()) {
+          keys[count] = entry.getKey();
+          values[count++] = value;
+        }
       }
     }
 
-    return filteredArray;
+    return PackedArrayValue.create(keys, values, count);
   }
 
   /**
@@ -749,7 +796,7 @@ public class ArrayModule
         Value searchValue = ((ArrayValue) arrays[k]).containsKey(entryKey);
 
         if (searchValue != null)
-          valueFound = searchValue.eq(entryValue);
+          valueFound = isStringEqual(searchValue, entryValue);
         else
           valueFound = false;
       }
@@ -970,25 +1017,33 @@ public class ArrayModule
       return NullValue.NULL;
     }
 
-    ArrayValue interArray = new ArrayValueImpl();
+    ArrayList<HashSet<StringValue>> valueSets
+      = new ArrayList<HashSet<StringValue>>(arrays.length);
 
-    for (Map.Entry<Value, Value> entry : array.entrySet()) {
-      boolean valueFound = false;
+    for (int k = 0; k < arrays.length; k++) {
+      if (! (arrays[k] instanceof ArrayValue)) {
+        env.warning("Argument #" + (k + 2) + " is not an array");
 
-      Value entryValue = entry.getValue();
+        return NullValue.NULL;
+      }
 
-      for (int k = 0; k < arrays.length; k++) {
-        if (! (arrays[k] instanceof ArrayValue)) {
-          env.warning("Argument #" + (k + 2) + " is not an array");
+      HashSet<StringValue> valueSet = new HashSet<StringValue>();
 
-          return NullValue.NULL;
-        }
+      addValueSet(valueSet, (ArrayValue) arrays[k]);
 
-        if (k > 0 && ! valueFound)
-          break;
+      valueSets.add(valueSet);
+    }
+
+    ArrayValue interArray = new ArrayValueImpl();
+
+    for (Map.Entry<Value, Value> entry : array.entrySet()) {
+      boolean valueFound = true;
+
+      Value entryValue = entry.getValue();
+      StringValue entryString = entryValue.toStringValue();
 
-        valueFound =
-          ! ((ArrayValue) arrays[k]).contains(entryValue).isNull();
+      for (int k = 0; k < valueSets.size() && valueFound; k++) {
+        valueFound = valueSets.get(k).contains(entryString);
       }
 
       if (valueFound)
@@ -1050,8 +1105,13 @@ public class ArrayModule
     if (array == null)
       return NullValue.NULL;
 
-    if (searchValue.isDefault())
-      return array.getKeys();
+    if (searchValue.isDefault()) {
+      // const arrays cache their keys
+      if (array instanceof ConstArrayValue)
+        return array.getKeys();
+      else
+        return new PackedArrayValue(null, array.keysToArray());
+    }
 
     ArrayValue newArray = new ArrayValueImpl(array.getSize());
 
@@ -1086,7 +1146,7 @@ public class ArrayModule
       return NullValue.NULL;
 
     // quercus/1730
-    Iterator<Map.Entry<Value, Value>> argIter = arg.entrySet().iterator();
+    Iterator<Map.Entry<Value, Value>> argIter = arg.getIterator(env);
 
     Iterator []iters = new Iterator[args.length];
     for (int i = 0; i < args.length; i++) {
@@ -1095,10 +1155,14 @@ public class ArrayModule
 
       ArrayValue argArray = (ArrayValue) args[i];
 
-      iters[i] = argArray.values().iterator();
+      iters[i] = argArray.getValueIterator(env);
     }
 
-    ArrayValue resultArray = new ArrayValueImpl();
+    int size = arg.getSize();
+
+    Value []keys = new Value[size];
+    Value []values = new Value[size];
+    int count = 0;
 
     Value []param = new Value[args.length + 1];
     while (argIter.hasNext()) {
@@ -1113,10 +1177,11 @@ public class ArrayModule
           param[i + 1] = NullValue.NULL;
       }
 
-      resultArray.put(entry.getKey(), fun.call(env, param));
+      keys[count] = entry.getKey();
+      values[count++] = fun.call(env, param);
     }
 
-    return resultArray;
+    return PackedArrayValue.create(keys, values, count);
   }
 
   /**
@@ -1657,6 +1722,16 @@ public class ArrayModule
     if (array == null)
       return BooleanValue.FALSE;
 
+    ArrayValueIndex index = array.getValueIndex();
+
+    if (index != null) {
+      // integers and non-numeric strings compare by type and value
+      Value key = index.search(needle);
+
+      if (key != null)
+        return key.isNull() ? BooleanValue.FALSE : key;
+    }
+
     Iterator<Map.Entry<Value, Value>> iterator = array.getIterator(env);
 
     while (iterator.hasNext()) {
@@ -2379,33 +2454,18 @@ public class ArrayModule
     if (array == null)
       return BooleanValue.FALSE;
 
-    array.sort(CNO_VALUE_NORMAL, NO_KEY_RESET, NOT_STRICT);
-
-    Map.Entry<Value, Value> lastEntry = null;
+    HashSet<StringValue> valueSet = new HashSet<StringValue>();
 
     ArrayValue uniqueArray = new ArrayValueImpl();
 
+    // the first of the values with the same string form is kept
     for (Map.Entry<Value, Value> entry : array.entrySet()) {
       Value entryValue = entry.getValue();
 
-      if (lastEntry == null) {
+      if (valueSet.add(entryValue.toStringValue()))
         uniqueArray.put(entry.getKey(), entryValue);
-
-        lastEntry = entry;
-
-        continue;
-      }
-
-      Value lastEntryValue = lastEntry.getValue();
-
-      if (! entryValue.toString().equals(lastEntryValue.toString()))
-        uniqueArray.put(entry.getKey(), entryValue);
-
-      lastEntry = entry;
     }
 
-    uniqueArray.sort(CNO_KEY_NORMAL, NO_KEY_RESET, NOT_STRICT);
-
     return uniqueArray;
   }
 
@@ -2909,12 +2969,23 @@ public class ArrayModule
     if (stack == null)
       return false;
 
-    Value result;
+    Value result = null;
 
-    if (strict)
-      result = stack.containsStrict(needle);
-    else
-      result = stack.contains(needle);
+    ArrayValueIndex index = stack.getValueIndex();
+
+    if (index != null) {
+      if (strict)
+        result = index.searchStrict(stack, needle);
+      else
+        result = index.search(needle);
+    }
+
+    if (result == null) {
+      if (strict)
+        result = stack.containsStrict(needle);
+      else
+        result = stack.contains(needle);
+    }
 
     return ! result.isNull();
   }
@@ -3155,6 +3226,13 @@ public class ArrayModule
       increment = false;
     }
 
+    if (start instanceof LongValue) {
+      long size = (end.toLong() - start.toLong()) / step + 1;
+
+      if (0 < size && size <= Integer.MAX_VALUE)
+        return new RangeArrayValue(start.toLong(), step, (int) size);
+    }
+
     ArrayValue array = new ArrayValueImpl();
 
     do {
@@ -3383,8 +3461,7 @@ public class ArrayModule
   }
 
   private static class CompareString
-    implements
-    Comparator<Map.Entry<Value, Value>>
+    implements ArraySort.PrimitiveComparator
   {
     private AbstractGet _getter;
 
@@ -3396,6 +3473,21 @@ public class ArrayModule
       _order = order;
     }
 
+    public boolean isKey()
+    {
+      return _getter instanceof GetKey;
+    }
+
+    public int getSortType()
+    {
+      return ArraySort.SORT_STRING;
+    }
+
+    public int getOrder()
+    {
+      return _order;
+    }
+
     public int compare(Map.Entry<Value, Value> aEntry,
                        Map.Entry<Value, Value> bEntry)
     {
@@ -3407,8 +3499,7 @@ public class ArrayModule
   }
 
   private static class CompareNumeric
-    implements
-    Comparator<Map.Entry<Value, Value>>
+    implements ArraySort.PrimitiveComparator
   {
     private AbstractGet _getter;
 
@@ -3420,6 +3511,21 @@ public class ArrayModule
       _order = order;
     }
 
+    public boolean isKey()
+    {
+      return _getter instanceof GetKey;
+    }
+
+    public int getSortType()
+    {
+      return ArraySort.SORT_NUMERIC;
+    }
+
+    public int getOrder()
+    {
+      return _order;
+    }
+
     public int compare(Map.Entry<Value, Value> aEntry,
                        Map.Entry<Value, Value> bEntry)
     {
@@ -3469,7 +3575,7 @@ public class ArrayModule
   }
 
   private static class CompareNormal
-    implements Comparator<Map.Entry<Value, Value>>
+    implements ArraySort.PrimitiveComparator
   {
     private AbstractGet _getter;
 
@@ -3481,6 +3587,21 @@ public class ArrayModule
       _order = order;
     }
 
+    public boolean isKey()
+    {
+      return _getter instanceof GetKey;
+    }
+
+    public int getSortType()
+    {
+      return ArraySort.SORT_REGULAR;
+    }
+
+    public int getOrder()
+    {
+      return _order;
+    }
+
     public int compare(Map.Entry<Value, Value> aEntry,
                        Map.Entry<Value, Value> bEntry)
     {
@@ -3567,29 +3688,47 @@ public class ArrayModule
   private static class CompareCallBack
     implements Comparator<Map.Entry<Value, Value>>
   {
-    private AbstractGet _getter;
+    private final boolean _isKey;
 
-    private int _order;
+    private final int _order;
 
-    private Callable _func;
+    private final Callable _func;
 
-    private Env _env;
+    private final Env _env;
 
     CompareCallBack(AbstractGet getter, int order, Callable func,
                     Env env)
     {
-      _getter = getter;
+      _isKey = getter instanceof GetKey;
       _order = order;
-      _func = func;
       _env = env;
+
+      // bind a named function once instead of on every comparison
+      if (func instanceof CallbackFunction) {
+        AbstractFunction fun = ((CallbackFunction) func).getFunction(env);
+
+        if (fun != null)
+          func = fun;
+      }
+
+      _func = func;
     }
 
     public int compare(Map.Entry<Value, Value> aEntry,
                        Map.Entry<Value, Value> bEntry)
     {
       try {
-        Value aElement = _getter.get(aEntry);
-        Value bElement = _getter.get(bEntry);
+        Value aElement;
+        Value bElement;
+
+        if (_isKey) {
+          aElement = aEntry.getKey();
+          bElement = bEntry.getKey();
+        }
+        else {
+          aElement = aEntry.getValue();
+          bElement = bEntry.getValue();
+        }
 
         return (int) _func.call(_env, aElement, bElement).toLong();
       }
@@ -37,6 +37,10 @@ import com.caucho.util.*;
 import com.caucho.vfs.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.*;
 import java.util.*;
 import java.util.logging.Level;
@@ -59,6 +63,10 @@ public class HashModule extends AbstractQuercusModule {
 
   public static final int HASH_HMAC = 1;
 
+  // local files at least this large are digested through mapped windows
+  private static final long MAP_MIN_LENGTH = 1024 * 1024;
+  private static final long MAP_WINDOW_LENGTH = 64 * 1024 * 1024;
+
   private static HashMap<String,String> _algorithmMap
     = new HashMap<String,String>();
 
@@ -87,11 +95,7 @@ public class HashModule extends AbstractQuercusModule {
 
       MessageDigest digest = MessageDigest.getInstance(algorithm);
 
-      int len = string.length();
-
-      for (int i = 0; i < len; i++) {
-        digest.update((byte) string.charAt(i));
-      }
+      updateString(digest, string);
 
       byte []bytes = digest.digest();
 
@@ -148,25 +152,9 @@ public class HashModule extends AbstractQuercusModule {
 
       MessageDigest digest = MessageDigest.getInstance(algorithm);
 
-      TempBuffer tempBuffer = TempBuffer.allocate();
-      byte []buffer = tempBuffer.getBuffer();
-      ReadStream is = path.openRead();
+      digestFile(digest, path);
 
-      try {
-        int len;
-
-        while ((len = is.read(buffer, 0, buffer.length)) > 0) {
-          digest.update(buffer, 0, len);
-        }
-
-        byte []bytes = digest.digest();
-
-        return hashToValue(env, bytes, isBinary);
-      } finally {
-        TempBuffer.free(tempBuffer);
-
-        is.close();
-      }
+      return hashToValue(env, digest.digest(), isBinary);
     } catch (NoSuchAlgorithmException e) {
       env.error(L.l("'{0}' is an unknown algorithm", algorithm), e);
 
@@ -218,7 +206,8 @@ public class HashModule extends AbstractQuercusModule {
   {
     HashContext context = hash_init(env, algorithm, HASH_HMAC, key);
 
-    hash_update_file(env, context, path);
+    if (! hash_update_file(env, context, path).toBoolean())
+      return BooleanValue.FALSE;
 
     return hash_final(env, context, isBinary);
   }
@@ -294,25 +283,12 @@ public class HashModule extends AbstractQuercusModule {
     if (context == null)
       return BooleanValue.FALSE;
 
-    TempBuffer tempBuffer = TempBuffer.allocate();
-    byte []buffer = tempBuffer.getBuffer();
-    ReadStream is = null;
-
     try {
-      is = path.openRead();
-
-      int len;
-
-      while ((len = is.read(buffer, 0, buffer.length)) > 0) {
-        context.update(buffer, 0, len);
-      }
+      updateFile(context, path);
     } catch (IOException e) {
       log.log(Level.WARNING, e.toString(), e);
-    } finally {
-      TempBuffer.free(tempBuffer);
 
-      if (is != null)
-        is.close();
+      return BooleanValue.FALSE;
     }
 
     return BooleanValue.TRUE;
@@ -363,10 +339,91 @@ public class HashModule extends AbstractQuercusModule {
     return readLength;
   }
 
-  // XXX: hash_update_file
-  // XXX: hash_update_stream
-  // XXX: hash_update
-  // XXX: hash
+  /**
+   * Digests the contents of the path in constant memory.
+   */
+  public static void digestFile(MessageDigest digest, Path path)
+    throws IOException
+  {
+    updateFile(new HashDigestContext(digest), path);
+  }
+
+  /**
+   * Updates the hash with the contents of the path.  Large local files
+   * are mapped a window at a time, and everything else is streamed
+   * through a temp buffer.
+   */
+  private static void updateFile(HashContext context, Path path)
+    throws IOException
+  {
+    if ("file".equals(path.getScheme())
+        && MAP_MIN_LENGTH <= path.getLength()) {
+      FileChannel channel
+        = FileChannel.open(Paths.get(path.getNativePath()),
+                           StandardOpenOption.READ);
+
+      try {
+        long length = channel.size();
+
+        for (long offset = 0; offset < length; offset += MAP_WINDOW_LENGTH) {
+          long sublen = Math.min(MAP_WINDOW_LENGTH, length - offset);
+
+          context.update(channel.map(FileChannel.MapMode.READ_ONLY,
+                                     offset, sublen));
+        }
+      } finally {
+        channel.close();
+      }
+
+      return;
+    }
+
+    TempBuffer tempBuffer = TempBuffer.allocate();
+    byte []buffer = tempBuffer.getBuffer();
+    ReadStream is = path.openRead();
+
+    try {
+      int len;
+
+      while ((len = is.read(buffer, 0, buffer.length)) > 0) {
+        context.update(buffer, 0, len);
+      }
+    } finally {
+      TempBuffer.free(tempBuffer);
+
+      is.close();
+    }
+  }
+
+  /**
+   * Updates the digest with the bytes of the string.
+   */
+  private static void updateString(MessageDigest digest, StringValue value)
+  {
+    if (value instanceof StringBuilderValue) {
+      StringBuilderValue sb = (StringBuilderValue) value;
+
+      digest.update(sb.getBuffer(), 0, sb.length());
+      return;
+    }
+
+    int len = value.length();
+
+    TempBuffer tBuf = TempBuffer.allocate();
+    byte []buffer = tBuf.getBuffer();
+
+    for (int offset = 0; offset < len; offset += buffer.length) {
+      int sublen = Math.min(buffer.length, len - offset);
+
+      for (int i = 0; i < sublen; i++) {
+        buffer[i] = (byte) value.charAt(offset + i);
+      }
+
+      digest.update(buffer, 0, sublen);
+    }
+
+    TempBuffer.free(tBuf);
+  }
 
   private static Value hashToValue(Env env, byte []bytes, boolean isBinary)
   {
@@ -424,6 +481,8 @@ public class HashModule extends AbstractQuercusModule {
 
     abstract void update(byte []buffer, int offset, int length);
 
+    abstract void update(ByteBuffer buffer);
+
     abstract byte []digest();
 
     abstract HashContext copy();
@@ -450,13 +509,7 @@ public class HashModule extends AbstractQuercusModule {
 
     void update(StringValue value)
     {
-      int len = value.length();
-
-      MessageDigest digest = _digest;
-
-      for (int i = 0; i < len; i++) {
-        digest.update((byte) value.charAt(i));
-      }
+      updateString(_digest, value);
     }
 
     void update(byte []buffer, int offset, int length)
@@ -464,6 +517,11 @@ public class HashModule extends AbstractQuercusModule {
       _digest.update(buffer, offset, length);
     }
 
+    void update(ByteBuffer buffer)
+    {
+      _digest.update(buffer);
+    }
+
     byte []digest()
     {
       return _digest.digest();
@@ -502,6 +560,13 @@ public class HashModule extends AbstractQuercusModule {
 
     void update(StringValue value)
     {
+      if (value instanceof StringBuilderValue) {
+        StringBuilderValue sb = (StringBuilderValue) value;
+
+        _digest.update(sb.getBuffer(), 0, sb.length());
+        return;
+      }
+
       int len = value.length();
 
       Mac digest = _digest;
@@ -533,6 +598,11 @@ public class HashModule extends AbstractQuercusModule {
       _digest.update(buffer, offset, length);
     }
 
+    void update(ByteBuffer buffer)
+    {
+      _digest.update(buffer);
+    }
+
     byte []digest()
     {
       return _digest.doFinal();
@@ -541,7 +611,7 @@ public class HashModule extends AbstractQuercusModule {
     HashContext copy()
     {
       try {
-        return new HashDigestContext((MessageDigest) _digest.clone());
+        return new HashMacContext((Mac) _digest.clone());
       } catch (Exception e) {
         log.log(Level.FINE, e.toString(), e);
 
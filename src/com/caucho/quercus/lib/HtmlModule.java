@@ -48,6 +48,7 @@ import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.StringBuilderValue;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.Value;
+import com.caucho.quercus.lib.string.ByteKernels;
 import com.caucho.quercus.module.AbstractQuercusModule;
 import com.caucho.util.L10N;
 import com.caucho.vfs.Encoding;
@@ -74,6 +75,16 @@ public class HtmlModule extends AbstractQuercusModule {
       ENT_HTML_QUOTE_SINGLE | ENT_HTML_QUOTE_DOUBLE;
   public static final int ENT_NOQUOTES = ENT_HTML_QUOTE_NONE;
 
+  // htmlspecialchars escapes, indexed by the quote style
+  private static final ByteKernels.Escape []HTML_SPECIALCHARS_ESCAPE
+    = new ByteKernels.Escape[] {
+    new ByteKernels.Escape("&<>", "&amp;", "&lt;", "&gt;"),
+    new ByteKernels.Escape("&<>'", "&amp;", "&lt;", "&gt;", "&#039;"),
+    new ByteKernels.Escape("&<>\"", "&amp;", "&lt;", "&gt;", "&quot;"),
+    new ByteKernels.Escape("&<>'\"",
+                           "&amp;", "&lt;", "&gt;", "&#039;", "&quot;"),
+  };
+
   private static StringValue []HTML_SPECIALCHARS_MAP;
   
   private static ArrayValue HTML_SPECIALCHARS_ARRAY;
@@ -264,6 +275,13 @@ public class HtmlModule extends AbstractQuercusModule {
                                        @Optional("ENT_COMPAT") int quoteStyle,
                                        @Optional String charset)
   {
+    if (string instanceof StringBuilderValue) {
+      ByteKernels.Escape escape
+        = HTML_SPECIALCHARS_ESCAPE[quoteStyle & ENT_QUOTES];
+
+      return ByteKernels.escape((StringBuilderValue) string, escape);
+    }
+
     int len = string.length();
     
     StringValue sb = string.createStringBuilder(len * 5 / 4);
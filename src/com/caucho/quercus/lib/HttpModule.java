@@ -33,6 +33,7 @@ import com.caucho.quercus.QuercusModuleException;
 import com.caucho.quercus.annotation.Optional;
 import com.caucho.quercus.annotation.Reference;
 import com.caucho.quercus.env.*;
+import com.caucho.quercus.lib.zlib.ZlibModule;
 import com.caucho.quercus.module.AbstractQuercusModule;
 import com.caucho.util.Alarm;
 import com.caucho.util.L10N;
@@ -108,6 +109,11 @@ public class HttpModule extends AbstractQuercusModule {
       String key = header.substring(0, colonIndex).trim();
       String value = header.substring(colonIndex + 1).trim();
 
+      // the compressed length isn't known until the response ends
+      if (key.equalsIgnoreCase("Content-Length")
+          && ZlibModule.isOutputCompression(env))
+        return NullValue.NULL;
+
       if (key.equalsIgnoreCase("Location")) {
         // do not use sendRedirect because sendRedirect commits the response,
         // preventing Wordpress from sending a second Location header that
@@ -37,7 +37,7 @@ import com.caucho.quercus.annotation.ReturnNullAsFalse;
 import com.caucho.quercus.env.*;
 import com.caucho.quercus.lib.file.SocketInputOutput;
 import com.caucho.quercus.lib.file.TcpInputOutput;
-import com.caucho.quercus.lib.file.UdpInputOutput;
+import com.caucho.quercus.lib.file.ChannelInputOutput;
 import com.caucho.quercus.lib.file.SocketInputOutput.Domain;
 import com.caucho.quercus.module.AbstractQuercusModule;
 import com.caucho.util.L10N;
@@ -157,19 +157,20 @@ public class NetworkModule extends AbstractQuercusModule {
         port = 80;
       
       SocketInputOutput stream;
-      
-      if ("udp".equals(protocol))
-        stream = new UdpInputOutput(env, host, port, Domain.AF_INET);
-      else {
-        boolean isSecure = "ssl".equals(protocol);
-        
-        stream = new TcpInputOutput(env, host, port, isSecure, Domain.AF_INET);
-      }
-      
+
+      long timeoutMs = 120000;
+
       if (timeout > 0)
-        stream.setTimeout((int) (timeout * 1000));
+        timeoutMs = (long) (timeout * 1000);
+
+      if ("udp".equals(protocol))
+        stream = ChannelInputOutput.openUdp(env, host, port);
+      else if ("ssl".equals(protocol))
+        stream = new TcpInputOutput(env, host, port, true, Domain.AF_INET);
       else
-        stream.setTimeout(120000);
+        stream = ChannelInputOutput.openTcp(env, host, port, timeoutMs);
+
+      stream.setTimeout(timeoutMs);
 
       stream.init();
 
@@ -35,7 +35,6 @@ import com.caucho.quercus.env.ArrayValue;
 import com.caucho.quercus.env.ArrayValueImpl;
 import com.caucho.quercus.env.BooleanValue;
 import com.caucho.quercus.env.Callable;
-import com.caucho.quercus.env.ConstStringValue;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.NullValue;
@@ -43,6 +42,8 @@ import com.caucho.quercus.env.OutputBuffer;
 import com.caucho.quercus.env.StringBuilderOutputStream;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.Value;
+import com.caucho.quercus.lib.zlib.ContentEncodingStream;
+import com.caucho.quercus.lib.zlib.ZlibModule;
 import com.caucho.quercus.module.AbstractQuercusModule;
 import com.caucho.quercus.module.ModuleStartupListener;
 import com.caucho.quercus.module.IniDefinitions;
@@ -50,10 +51,8 @@ import com.caucho.quercus.module.IniDefinition;
 import com.caucho.util.L10N;
 
 import java.io.IOException;
-import java.io.OutputStream;
 import java.util.logging.Logger;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.Deflater;
 
 /**
  * PHP output routines.
@@ -64,17 +63,12 @@ public class OutputModule extends AbstractQuercusModule
   private static final Logger log = Logger.getLogger(
       OutputModule.class.getName());
 
-  private static final StringValue HTTP_ACCEPT_ENCODING
-    = new ConstStringValue("HTTP_ACCEPT_ENCODING");
-
   private static final IniDefinitions _iniDefinitions = new IniDefinitions();
 
   // ob_gzhandler related variables/types
-  private enum Encoding { NONE, GZIP, DEFLATE };
-
   private static class GZOutputPair {
     public StringBuilderOutputStream _tempStream;
-    public OutputStream _outputStream;
+    public ContentEncodingStream _outputStream;
   }
 
   public static final int PHP_OUTPUT_HANDLER_START = 1;
@@ -509,25 +503,13 @@ public class OutputModule extends AbstractQuercusModule
    */
   public static Value ob_gzhandler(Env env, StringValue buffer, int state)
   {
-    Encoding encoding = Encoding.NONE;
-    Value _SERVER = env.getGlobalVar("_SERVER");
-
-    String [] acceptedList
-      = _SERVER.get(HTTP_ACCEPT_ENCODING).toString().split(",");
-
-    for (String accepted : acceptedList) {
-      accepted = accepted.trim();
+    // the response is already compressed
+    if (ZlibModule.isOutputCompression(env))
+      return BooleanValue.FALSE;
 
-      if (accepted.equalsIgnoreCase("gzip")) {
-        encoding = Encoding.GZIP;
-        break;
-      } else if (accepted.equalsIgnoreCase("deflate")) {
-        encoding = Encoding.DEFLATE;
-        break;
-      }
-    }
+    String encoding = ZlibModule.getAcceptEncoding(env);
 
-    if (encoding == Encoding.NONE)
+    if (encoding == null)
       return BooleanValue.FALSE;
 
     GZOutputPair pair = null;
@@ -538,28 +520,25 @@ public class OutputModule extends AbstractQuercusModule
       HttpModule.header(
           env, env.createString("Vary: Accept-Encoding"), true, 0);
 
-      int encodingFlag = 0;
-
       pair = new GZOutputPair();
       pair._tempStream = new StringBuilderOutputStream(result);
       pair._tempStream.setStringBuilder(result);
 
       try {
-        if (encoding == Encoding.GZIP) {
-          HttpModule.header(
-              env, env.createString("Content-Encoding: gzip"), true, 0);
-
-          pair._outputStream = new GZIPOutputStream(pair._tempStream);
-        } else if (encoding == Encoding.DEFLATE) {
-          HttpModule.header(
-              env, env.createString("Content-Encoding: deflate"), true, 0);
+        HttpModule.header(
+            env, env.createString("Content-Encoding: " + encoding), true, 0);
 
-          pair._outputStream = new DeflaterOutputStream(pair._tempStream);
-        }
+        pair._outputStream
+          = new ContentEncodingStream(pair._tempStream,
+                                      encoding.equals("gzip"),
+                                      Deflater.DEFAULT_COMPRESSION);
       } catch (IOException e) {
         return BooleanValue.FALSE;
       }
 
+      // releases the deflater if the handler isn't called to the end
+      env.addCleanup(pair._outputStream);
+
       env.setGzStream(pair);
     } else {
       pair = (GZOutputPair) env.getGzStream();
@@ -572,11 +551,11 @@ public class OutputModule extends AbstractQuercusModule
 
     try {
       buffer.writeTo(pair._outputStream);
-      pair._outputStream.flush();
 
-      if ((state & (PHP_OUTPUT_HANDLER_END)) != 0) {
-        pair._outputStream.close();
-      }
+      if ((state & (PHP_OUTPUT_HANDLER_END)) != 0)
+        pair._outputStream.finish();
+      else
+        pair._outputStream.flush();
     } catch (IOException e) {
       return BooleanValue.FALSE;
     }
@@ -105,4 +105,29 @@ public final class CurlHostnameVerifier
     
     return true;
   }
+
+  /**
+   * Verifiers with the same options are equal, which lets the JDK reuse
+   * pooled https connections across requests.
+   */
+  @Override
+  public boolean equals(Object o)
+  {
+    if (! (o instanceof CurlHostnameVerifier))
+      return false;
+
+    CurlHostnameVerifier verifier = (CurlHostnameVerifier) o;
+
+    return (_isVerifySSLPeer == verifier._isVerifySSLPeer
+            && _isVerifySSLCommonName == verifier._isVerifySSLCommonName
+            && _isVerifySSLHostname == verifier._isVerifySSLHostname);
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return ((_isVerifySSLPeer ? 4 : 0)
+            + (_isVerifySSLCommonName ? 2 : 0)
+            + (_isVerifySSLHostname ? 1 : 0));
+  }
 }
\ No newline at end of file
@@ -268,11 +268,17 @@ public class CurlHttpConnection
     headConn.connect();
 
     int responseCode = headConn.getResponseCode();
+    String proxyHeader = headConn.getHeaderField("Proxy-Authenticate");
+    String header = headConn.getHeaderField("WWW-Authenticate");
+
+    // releasing the connection instead of disconnecting leaves it in the
+    // keep-alive pool for the request itself
+    release(headConn);
 
     if (responseCode == HttpURLConnection.HTTP_PROXY_AUTH
         && _proxyAuthorization == null)
     {
-      String header = headConn.getHeaderField("Proxy-Authenticate");
+      header = proxyHeader;
 
       _proxyAuthorization = getAuthorization(_URL,
                                             _conn.getRequestMethod(),
@@ -285,8 +291,6 @@ public class CurlHttpConnection
     else if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED
         && _authorization == null)
     {
-      String header = headConn.getHeaderField("WWW-Authenticate");
-
       _authorization = getAuthorization(_URL,
                                        _conn.getRequestMethod(),
                                        header,
@@ -295,8 +299,24 @@ public class CurlHttpConnection
                                        _password);
       authenticateImpl();
     }
+  }
 
-    headConn.disconnect();
+  /**
+   * Closes a response with no body, returning its socket to the
+   * keep-alive pool.
+   */
+  private static void release(HttpURLConnection conn)
+  {
+    try {
+      InputStream is = conn.getErrorStream();
+
+      if (is == null)
+        is = conn.getInputStream();
+
+      is.close();
+    } catch (IOException e) {
+      conn.disconnect();
+    }
   }
 
   /**
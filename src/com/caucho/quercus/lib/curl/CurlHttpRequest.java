@@ -33,9 +33,11 @@ import com.caucho.quercus.QuercusModuleException;
 import com.caucho.quercus.env.BooleanValue;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.EnvCleanup;
+import com.caucho.quercus.env.StringBuilderValue;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.Value;
 import com.caucho.util.L10N;
+import com.caucho.vfs.TempBuffer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -65,6 +67,13 @@ public class CurlHttpRequest
   private CurlResource _curl;
   private CurlHttpConnection _conn;
 
+  // response read by transact(), which may run on a worker thread
+  private int _responseCode;
+  private StringValue _responseBody;
+  private String _unknownEncoding;
+  private boolean _isReusable;
+  private Exception _exception;
+
   public CurlHttpRequest(CurlResource curlResource)
   {
     _curl = curlResource;
@@ -137,6 +146,11 @@ public class CurlHttpRequest
 
     _conn.setInstanceFollowRedirects(_curl.getIsFollowingRedirects());
 
+    // connections are pooled by the JDK's keep-alive cache, which can't
+    // be bypassed, so a fresh connection is also closed after use
+    if (_curl.getIsForbidReuse() || _curl.getIsFreshConnect())
+      _conn.setRequestProperty("Connection", "close");
+
     int timeout = _curl.getConnectTimeout();
     if (timeout >= 0)
       _conn.setConnectTimeout(timeout);
@@ -177,7 +191,7 @@ public class CurlHttpRequest
     if (_curl == null || _conn == null)
       return false;
     
-    _curl.setResponseCode(_conn.getResponseCode());
+    _curl.setResponseCode(_responseCode);
 
     Value header = getHeader(env, env.createBinaryBuilder());
     
@@ -197,8 +211,15 @@ public class CurlHttpRequest
 
     _curl.setCookie(_conn.getHeaderField("Set-Cookie"));
 
-    _conn.close();
-    
+    // disconnecting would close the pooled socket of a fully read response
+    if (! _isReusable
+        || _curl.getIsForbidReuse()
+        || _curl.getIsFreshConnect()) {
+      _conn.close();
+    }
+
+    _conn = null;
+
     return true;
   }
 
@@ -206,50 +227,109 @@ public class CurlHttpRequest
    * Perform this request.
    */
   public final boolean execute(Env env)
+  {
+    if (! start(env))
+      return false;
+
+    transact(env);
+
+    return complete(env);
+  }
+
+  /**
+   * Opens and initializes the connection.
+   */
+  final boolean start(Env env)
   {
     try {
       create(env);
 
-      if (! init(env))
-        return false;
+      return init(env);
+    }
+    catch (IOException e) {
+      return error(env, e);
+    }
+  }
 
+  /**
+   * Connects, sends the request and reads the response.  The Env is only
+   * used to write the request body, so curl_multi runs this part of the
+   * request on a worker thread.
+   */
+  final void transact(Env env)
+  {
+    try {
       connect(env);
 
       transfer(env);
 
+      readResponse();
+    }
+    catch (IOException e) {
+      _exception = e;
+    }
+    catch (RuntimeException e) {
+      _exception = e;
+    }
+  }
+
+  /**
+   * Sends the response and any transfer error to curl.
+   */
+  final boolean complete(Env env)
+  {
+    if (_exception instanceof RuntimeException)
+      throw (RuntimeException) _exception;
+    else if (_exception != null)
+      return error(env, (IOException) _exception);
+
+    try {
       return finish(env);
     }
-    catch (MalformedURLException e) {
+    catch (IOException e) {
+      return error(env, e);
+    }
+  }
+
+  /**
+   * Aborts a transfer in progress, e.g. on a timeout.
+   */
+  final void abort()
+  {
+    CurlHttpConnection conn = _conn;
+
+    if (conn != null)
+      conn.close();
+  }
+
+  /**
+   * Reports a failed request.
+   */
+  private boolean error(Env env, IOException e)
+  {
+    if (e instanceof MalformedURLException) {
       error(env, CurlModule.CURLE_URL_MALFORMAT, e.getMessage(), e);
-      
-      return false;
     }
-    catch (SocketTimeoutException e) {
+    else if (e instanceof SocketTimeoutException) {
       error(
         env, CurlModule.CURLE_OPERATION_TIMEOUTED, "connection timed out", e);
-      
-      return false;
     }
-    catch (ConnectException e) {
+    else if (e instanceof ConnectException) {
       error(env, CurlModule.CURLE_COULDNT_CONNECT, e.getMessage(), e);
-      
-      return false;
     }
-    catch (ProtocolException e) {
+    else if (e instanceof ProtocolException) {
       throw new QuercusModuleException(e.getMessage());
       //error(0, e.getMessage(), e);
     }
-    catch (UnknownHostException e) {
+    else if (e instanceof UnknownHostException) {
       error(env, CurlModule.CURLE_COULDNT_RESOLVE_HOST,
             "unknown host: " + e.getMessage(), e);
-      
-      return false;
     }
-    catch (IOException e) {
+    else {
       error(env, CurlModule.CURLE_RECV_ERROR, e.getMessage(), e);
-      
-      return false;
     }
+
+    return false;
   }
 
   protected final CurlResource getCurlResource()
@@ -381,20 +461,24 @@ public class CurlHttpRequest
   }
 
   /**
-   * Returns the server response body.
+   * Reads the response code and the decoded body.
    */
-  private final Value getBody(Env env, StringValue bb)
-    throws SocketTimeoutException, IOException
+  private void readResponse()
+    throws IOException
   {
+    _responseCode = _conn.getResponseCode();
+
     InputStream in;
 
-    if ((_conn.getResponseCode() < 400))
+    if (_responseCode < 400)
       in = _conn.getInputStream();
     else
       in = _conn.getErrorStream();
 
-    if (in == null)
-      return StringValue.EMPTY;
+    if (in == null) {
+      _isReusable = true;
+      return;
+    }
 
     String encoding = _conn.getHeaderField("Content-Encoding");
 
@@ -406,26 +490,52 @@ public class CurlHttpRequest
       else if (encoding.equals("identity")) {
       }
       else {
-        _curl.setError(encoding);
-        _curl.setErrorCode(CurlModule.CURLE_BAD_CONTENT_ENCODING);
-        return StringValue.EMPTY;
+        _unknownEncoding = encoding;
+        return;
       }
     }
 
-    int ch;
-    
+    StringValue body = new StringBuilderValue();
+
+    TempBuffer tBuf = TempBuffer.allocate();
+    byte []buffer = tBuf.getBuffer();
+
     try {
-      while ((ch = in.read()) >= 0) {
-        bb.appendByte(ch);
+      int len;
+
+      while ((len = in.read(buffer, 0, buffer.length)) > 0) {
+        body.append(buffer, 0, len);
       }
+    } finally {
+      TempBuffer.free(tBuf);
     }
-    catch (IOException e) {
-      throw new QuercusModuleException(e);
+
+    // closing the drained stream returns the socket to the keep-alive pool
+    in.close();
+
+    _isReusable = true;
+    _responseBody = body;
+  }
+
+  /**
+   * Returns the server response body.
+   */
+  private final Value getBody(Env env, StringValue bb)
+  {
+    if (_unknownEncoding != null) {
+      _curl.setError(_unknownEncoding);
+      _curl.setErrorCode(CurlModule.CURLE_BAD_CONTENT_ENCODING);
+      return StringValue.EMPTY;
     }
-    
+
+    if (_responseBody == null)
+      return StringValue.EMPTY;
+
+    bb.append(_responseBody);
+
     if (_curl.getReadCallback() != null) {
       Value len = _curl.getReadCallback().call(env, env.wrapJava(_curl), bb);
-      
+
       if (len.toInt() != bb.length()) {
         _curl.setErrorCode(CurlModule.CURLE_WRITE_ERROR);
         return BooleanValue.FALSE;
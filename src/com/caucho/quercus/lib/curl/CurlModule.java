@@ -30,7 +30,6 @@
 package com.caucho.quercus.lib.curl;
 
 import com.caucho.quercus.QuercusModuleException;
-import com.caucho.quercus.UnimplementedException;
 import com.caucho.quercus.annotation.NotNull;
 import com.caucho.quercus.annotation.Optional;
 import com.caucho.quercus.annotation.Reference;
@@ -549,105 +548,144 @@ public class CurlModule
   }
 
   /**
-   * XXX: not documented by PHP
+   * Adds a cURL handle to a multi handle.
    *
    * @param env
-   * @param curls
+   * @param multi
    * @param curl
    */
   public static LongValue curl_multi_add_handle(Env env,
-                                                Value curls,
-                                                Value curl)
+                                                @NotNull CurlMultiResource multi,
+                                                @NotNull CurlResource curl)
   {
-    throw new UnimplementedException("curl_multi_add_handle");
+    if (multi == null)
+      return LongValue.create(CURLM_BAD_HANDLE);
+    else if (curl == null || ! multi.addHandle(curl))
+      return LongValue.create(CURLM_BAD_EASY_HANDLE);
+    else
+      return LongValue.create(CURLM_OK);
   }
 
   /**
-   * XXX: not documented by PHP
+   * Closes a multi handle, aborting any running transfers.
    *
    * @param env
-   * @param curls
+   * @param multi
    */
-  public static LongValue curl_multi_close(Env env,
-                                           Value curls)
+  public static void curl_multi_close(Env env,
+                                      @NotNull CurlMultiResource multi)
   {
-    throw new UnimplementedException("curl_multi_close");
+    if (multi == null)
+      return;
+
+    multi.close();
   }
 
   /**
-   * XXX: not documented by PHP
+   * Starts the added transfers and completes the finished ones.
    *
    * @param env
-   * @param curls
-   * @param stillRunning
+   * @param multi
+   * @param stillRunning set to the number of running transfers
    */
   public static LongValue curl_multi_exec(Env env,
-                                          Value curls,
+                                          @NotNull CurlMultiResource multi,
                                           @Reference Value stillRunning)
   {
-    throw new UnimplementedException("curl_multi_exec");
+    if (multi == null)
+      return LongValue.create(CURLM_BAD_HANDLE);
+
+    stillRunning.set(LongValue.create(multi.exec(env)));
+
+    return LongValue.create(CURLM_OK);
   }
 
   /**
-   * XXX: not documented by PHP
+   * Returns the content of a handle's transfer when
+   * CURLOPT_RETURNTRANSFER is set.
    *
    * @param env
    * @param curl
    */
-  public static StringValue curl_multi_getcontent(Env env,
-                                                  Value curl)
+  public static Value curl_multi_getcontent(Env env,
+                                            @NotNull CurlResource curl)
   {
-    throw new UnimplementedException("curl_multi_getcontent");
+    if (curl == null)
+      return NullValue.NULL;
+
+    return curl.getMultiContent();
   }
 
   /**
-   * XXX: not documented by PHP
+   * Returns the next message about a completed transfer.
    *
    * @param env
-   * @param curls
+   * @param multi
+   * @param msgsInQueue set to the number of remaining messages
    */
+  @ReturnNullAsFalse
   public static ArrayValue curl_multi_info_read(Env env,
-                                                Value curls)
+                                                @NotNull CurlMultiResource multi,
+                                                @Optional @Reference
+                                                Value msgsInQueue)
   {
-    throw new UnimplementedException("curl_multi_info_read");
+    if (multi == null)
+      return null;
+
+    ArrayValue info = multi.readInfo(env);
+
+    if (! msgsInQueue.isDefault())
+      msgsInQueue.set(LongValue.create(multi.getMessageCount()));
+
+    return info;
   }
 
   /**
-   * XXX: not documented by PHP
+   * Returns a new multi handle.
    *
    * @param env
    */
-  public static Value curl_multi_init(Env env)
+  public static CurlMultiResource curl_multi_init(Env env)
   {
-    throw new UnimplementedException("curl_multi_init");
+    return new CurlMultiResource();
   }
 
   /**
-   * XXX: not documented by PHP
+   * Removes a cURL handle from a multi handle.
    *
    * @param env
-   * @param curls
+   * @param multi
    * @param curl
    */
   public static LongValue curl_multi_remove_handle(Env env,
-                                                   Value curls,
-                                                   Value curl)
+                                                   @NotNull CurlMultiResource multi,
+                                                   @NotNull CurlResource curl)
   {
-    throw new UnimplementedException("curl_multi_remove_handle");
+    if (multi == null)
+      return LongValue.create(CURLM_BAD_HANDLE);
+    else if (curl == null || ! multi.removeHandle(curl))
+      return LongValue.create(CURLM_BAD_EASY_HANDLE);
+    else
+      return LongValue.create(CURLM_OK);
   }
 
   /**
-   * XXX: not documented by PHP
+   * Waits for activity on any of the multi handle's transfers.
    *
    * @param env
-   * @param curls
-   * @param timeout
+   * @param multi
+   * @param timeout the timeout in seconds
    */
   public static LongValue curl_multi_select(Env env,
-                                            Value curls,
-                                            @Optional Value timeout)
+                                            @NotNull CurlMultiResource multi,
+                                            @Optional("1.0") double timeout)
   {
-    throw new UnimplementedException("curl_multi_select");
+    if (multi == null)
+      return LongValue.MINUS_ONE;
+
+    long timeoutMs = (long) (timeout * 1000);
+
+    return LongValue.create(multi.select(env, Math.max(timeoutMs, 0)));
   }
 
   /**
@@ -719,8 +757,11 @@ public class CurlModule
       case CURLOPT_FOLLOWLOCATION:
         curl.setIsFollowingRedirects(value.toBoolean());
         break;
+      case CURLOPT_FORBID_REUSE:
+        curl.setIsForbidReuse(value.toBoolean());
+        break;
       case CURLOPT_FRESH_CONNECT:
-        // caching handled by Java
+        curl.setIsFreshConnect(value.toBoolean());
         break;
       case CURLOPT_HEADER:
         curl.setIsReturningHeader(value.toBoolean());
@@ -776,6 +817,9 @@ public class CurlModule
       case CURLOPT_CONNECTTIMEOUT:
         curl.setConnectTimeout(value.toInt() * 1000);
         break;
+      case CURLOPT_CONNECTTIMEOUT_MS:
+        curl.setConnectTimeout(value.toInt());
+        break;
       case CURLOPT_HTTP_VERSION:
         if (value.toInt() == CURL_HTTP_VERSION_1_0) {
           env.stub("cURL HTTP/1.0 not specifically supported");
@@ -864,6 +908,9 @@ public class CurlModule
       case CURLOPT_TIMEOUT:
         curl.setReadTimeout(value.toInt() * 1000);
         break;
+      case CURLOPT_TIMEOUT_MS:
+        curl.setReadTimeout(value.toInt());
+        break;
       case CURLOPT_TIMEVALUE:
         long time = value.toLong() * 1000L;
         String format = "%a, %d %b %Y %H:%M:%S %Z";
@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.curl;
+
+import com.caucho.env.thread.ThreadPool;
+import com.caucho.quercus.annotation.ResourceType;
+import com.caucho.quercus.env.*;
+import com.caucho.util.CurrentTime;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A curl_multi handle.  Each added handle's connect, send and receive
+ * run concurrently on the thread pool, while option processing,
+ * callbacks and output stay on the request thread in curl_multi_exec.
+ */
+@ResourceType("curl_multi")
+public class CurlMultiResource extends ResourceValue
+{
+  private static final Logger log
+    = Logger.getLogger(CurlMultiResource.class.getName());
+
+  private static final int STATE_IDLE = 0;
+  private static final int STATE_RUNNING = 1;
+  private static final int STATE_DONE = 2;
+  private static final int STATE_COMPLETE = 3;
+
+  private final ArrayList<Transfer> _transfers = new ArrayList<Transfer>();
+
+  private final LinkedList<Transfer> _messages = new LinkedList<Transfer>();
+
+  public CurlMultiResource()
+  {
+  }
+
+  /**
+   * Adds a handle, returning false if it was already added.
+   */
+  public boolean addHandle(CurlResource curl)
+  {
+    if (findTransfer(curl) != null)
+      return false;
+
+    _transfers.add(new Transfer(curl));
+
+    return true;
+  }
+
+  /**
+   * Removes a handle, aborting its transfer if it is still running.
+   */
+  public boolean removeHandle(CurlResource curl)
+  {
+    Transfer transfer = findTransfer(curl);
+
+    if (transfer == null)
+      return false;
+
+    _transfers.remove(transfer);
+    _messages.remove(transfer);
+
+    transfer.abort();
+
+    return true;
+  }
+
+  /**
+   * Starts any new transfers and completes the finished ones.
+   *
+   * @return the number of transfers still running
+   */
+  public int exec(Env env)
+  {
+    long now = CurrentTime.getCurrentTime();
+
+    int running = 0;
+
+    // completing a transfer calls back into PHP, which may remove handles
+    for (Transfer transfer : new ArrayList<Transfer>(_transfers)) {
+      if (transfer.getState() == STATE_IDLE)
+        transfer.start(env, now);
+
+      if (transfer.isTimeout(now))
+        transfer.timeout(env);
+
+      if (transfer.getState() == STATE_DONE)
+        transfer.complete(env);
+
+      if (transfer.getState() != STATE_COMPLETE)
+        running++;
+    }
+
+    return running;
+  }
+
+  /**
+   * Waits until a transfer finishes or the timeout expires.
+   *
+   * @return the number of transfers ready to complete, or -1 if there
+   *   are no running transfers
+   */
+  public int select(Env env, long timeout)
+  {
+    long now = CurrentTime.getCurrentTime();
+    long expires = now + timeout;
+
+    synchronized (this) {
+      while (true) {
+        int running = 0;
+        int ready = 0;
+
+        for (Transfer transfer : _transfers) {
+          int state = transfer.getState();
+
+          if (state == STATE_DONE || transfer.isTimeout(now))
+            ready++;
+          else if (state == STATE_RUNNING) {
+            running++;
+
+            expires = Math.min(expires, transfer.getDeadline());
+          }
+        }
+
+        if (ready > 0)
+          return ready;
+        else if (running == 0)
+          return -1;
+        else if (expires <= now)
+          return 0;
+
+        try {
+          wait(expires - now);
+        } catch (InterruptedException e) {
+          log.log(Level.FINER, e.toString(), e);
+
+          return 0;
+        }
+
+        now = CurrentTime.getCurrentTime();
+      }
+    }
+  }
+
+  /**
+   * Returns the next message for a completed transfer, or null.
+   */
+  public ArrayValue readInfo(Env env)
+  {
+    if (_messages.size() == 0)
+      return null;
+
+    Transfer transfer = _messages.removeFirst();
+    CurlResource curl = transfer.getCurl();
+
+    ArrayValue info = new ArrayValueImpl();
+
+    info.put(env.createString("msg"),
+             LongValue.create(CurlModule.CURLMSG_DONE));
+    info.put(env.createString("result"),
+             LongValue.create(curl.getErrorCode()));
+    info.put(env.createString("handle"), curl);
+
+    return info;
+  }
+
+  /**
+   * Returns the number of unread messages.
+   */
+  public int getMessageCount()
+  {
+    return _messages.size();
+  }
+
+  /**
+   * Aborts all transfers and removes the handles.
+   */
+  public void close()
+  {
+    for (Transfer transfer : _transfers) {
+      transfer.abort();
+    }
+
+    _transfers.clear();
+    _messages.clear();
+  }
+
+  private Transfer findTransfer(CurlResource curl)
+  {
+    for (Transfer transfer : _transfers) {
+      if (transfer.getCurl() == curl)
+        return transfer;
+    }
+
+    return null;
+  }
+
+  private synchronized void wake()
+  {
+    notifyAll();
+  }
+
+  public String toString()
+  {
+    return "CurlMultiResource[" + _transfers.size() + "]";
+  }
+
+  /**
+   * One handle's transfer.  The state is guarded by the multi handle.
+   */
+  class Transfer implements Runnable
+  {
+    private final CurlResource _curl;
+
+    private CurlHttpRequest _request;
+    private Env _env;
+    private long _deadline = Long.MAX_VALUE;
+
+    private int _state = STATE_IDLE;
+
+    Transfer(CurlResource curl)
+    {
+      _curl = curl;
+    }
+
+    CurlResource getCurl()
+    {
+      return _curl;
+    }
+
+    long getDeadline()
+    {
+      return _deadline;
+    }
+
+    int getState()
+    {
+      synchronized (CurlMultiResource.this) {
+        return _state;
+      }
+    }
+
+    /**
+     * Returns true if the transfer has run past CURLOPT_TIMEOUT.
+     */
+    boolean isTimeout(long now)
+    {
+      return getState() == STATE_RUNNING && _deadline <= now;
+    }
+
+    /**
+     * Initializes the request on the request thread and schedules the
+     * network part on the thread pool.
+     */
+    void start(Env env, long now)
+    {
+      _env = env;
+      _request = _curl.createRequest(env);
+
+      if (! _request.start(env)) {
+        finish(env, BooleanValue.FALSE);
+        return;
+      }
+
+      // like libcurl, CURLOPT_TIMEOUT limits the whole transfer
+      int timeout = _curl.getReadTimeout();
+
+      if (timeout > 0)
+        _deadline = now + timeout;
+
+      synchronized (CurlMultiResource.this) {
+        _state = STATE_RUNNING;
+      }
+
+      ThreadPool.getThreadPool().schedule(this);
+    }
+
+    /**
+     * Runs the blocking part of the request.
+     */
+    public void run()
+    {
+      try {
+        _request.transact(_env);
+      } finally {
+        synchronized (CurlMultiResource.this) {
+          if (_state == STATE_RUNNING)
+            _state = STATE_DONE;
+        }
+
+        wake();
+      }
+    }
+
+    /**
+     * Completes a finished transfer on the request thread.
+     */
+    void complete(Env env)
+    {
+      Value result;
+
+      if (_request.complete(env))
+        result = _curl.finishRequest(env);
+      else
+        result = BooleanValue.FALSE;
+
+      finish(env, result);
+    }
+
+    /**
+     * Fails a transfer which has run past its deadline.
+     */
+    void timeout(Env env)
+    {
+      _request.abort();
+
+      _curl.setError("operation timed out");
+      _curl.setErrorCode(CurlModule.CURLE_OPERATION_TIMEOUTED);
+
+      finish(env, BooleanValue.FALSE);
+    }
+
+    void abort()
+    {
+      synchronized (CurlMultiResource.this) {
+        if (_state != STATE_RUNNING)
+          return;
+
+        _state = STATE_COMPLETE;
+      }
+
+      _request.abort();
+    }
+
+    private void finish(Env env, Value result)
+    {
+      synchronized (CurlMultiResource.this) {
+        _state = STATE_COMPLETE;
+      }
+
+      if (result.isString())
+        _curl.setMultiContent(result);
+      else
+        _curl.setMultiContent(NullValue.NULL);
+
+      _messages.add(this);
+    }
+
+    public String toString()
+    {
+      return getClass().getSimpleName() + "[" + _curl + "]";
+    }
+  }
+}
@@ -88,6 +88,9 @@ public class CurlResource extends ResourceValue
   private int _readTimeout = -1;
   private int _connectTimeout = -1;
 
+  private boolean _isForbidReuse;
+  private boolean _isFreshConnect;
+
   private HashMap<String,String> _requestProperties
     = new HashMap<String, String>();
 
@@ -95,6 +98,9 @@ public class CurlResource extends ResourceValue
   private StringValue _body;
   private Value _postBody;
 
+  // result of the last transfer run by curl_multi
+  private Value _multiContent = NullValue.NULL;
+
   private String _contentType;
   private int _contentLength;
 
@@ -292,6 +298,38 @@ public class CurlResource extends ResourceValue
     _isFollowingRedirects = followRedirects;
   }
 
+  /**
+   * Returns true if the connection is closed after the transfer.
+   */
+  public boolean getIsForbidReuse()
+  {
+    return _isForbidReuse;
+  }
+
+  /**
+   * Set to true to close the connection after the transfer.
+   */
+  public void setIsForbidReuse(boolean isForbidReuse)
+  {
+    _isForbidReuse = isForbidReuse;
+  }
+
+  /**
+   * Returns true if the transfer must not use a pooled connection.
+   */
+  public boolean getIsFreshConnect()
+  {
+    return _isFreshConnect;
+  }
+
+  /**
+   * Set to true to keep the transfer off pooled connections.
+   */
+  public void setIsFreshConnect(boolean isFreshConnect)
+  {
+    _isFreshConnect = isFreshConnect;
+  }
+
   /**
    * Returns true if a proxy is to be used.
    */
@@ -747,6 +785,19 @@ public class CurlResource extends ResourceValue
    * Executes this request.
    */
   public Value execute(Env env)
+  {
+    CurlHttpRequest httpRequest = createRequest(env);
+
+    if (! httpRequest.execute(env))
+      return BooleanValue.FALSE;
+
+    return finishRequest(env);
+  }
+
+  /**
+   * Creates the request for the current options.
+   */
+  CurlHttpRequest createRequest(Env env)
   {
     init();
 
@@ -754,9 +805,14 @@ public class CurlResource extends ResourceValue
 
     env.addCleanup(httpRequest);
 
-    if (! httpRequest.execute(env))
-      return BooleanValue.FALSE;
+    return httpRequest;
+  }
 
+  /**
+   * Saves the cookies and returns the result of a successful request.
+   */
+  Value finishRequest(Env env)
+  {
     //if (hasError())
       //return BooleanValue.FALSE;
 
@@ -766,6 +822,22 @@ public class CurlResource extends ResourceValue
     return getReturnValue(env);
   }
 
+  /**
+   * Returns the result of the last transfer run by curl_multi.
+   */
+  public Value getMultiContent()
+  {
+    return _multiContent;
+  }
+
+  /**
+   * Sets the result of the last transfer run by curl_multi.
+   */
+  void setMultiContent(Value content)
+  {
+    _multiContent = content;
+  }
+
   /**
    * Returns headers and/or body of the last request.
    */
@@ -883,6 +955,8 @@ public class CurlResource extends ResourceValue
     curl.setHeaderCallback(_headerCallback);
     curl.setHeader(_header);
     curl.setIsFollowingRedirects(_isFollowingRedirects);
+    curl.setIsForbidReuse(_isForbidReuse);
+    curl.setIsFreshConnect(_isFreshConnect);
     curl.setIfModifiedSince(_ifModifiedSince);
     curl.setIsProxying(_isProxying);
     curl.setIsReturningBody(_isReturningBody);
@@ -0,0 +1,634 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.util.L10N;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A tcp or udp socket stream over a non-blocking channel.
+ *
+ * Blocking reads and all writes wait on a private selector up to the
+ * stream timeout, and in non-blocking mode reads return only the data
+ * already available.
+ */
+public class ChannelInputOutput
+  extends AbstractBinaryInputOutput
+  implements SocketInputOutput, SelectableStream
+{
+  private static final L10N L = new L10N(ChannelInputOutput.class);
+  private static final Logger log
+    = Logger.getLogger(ChannelInputOutput.class.getName());
+
+  // large enough for a maximal datagram
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final SelectableChannel _channel;
+  private final ByteChannel _byteChannel;
+  private final Domain _domain;
+
+  private final ByteBuffer _readBuffer;
+  private final byte []_writeByte = new byte[1];
+
+  private Selector _selector;
+
+  private boolean _isBlocking = true;
+  private long _timeout;
+  private boolean _isChannelEOF;
+
+  private int _error;
+
+  private ChannelInputOutput(Env env,
+                             SelectableChannel channel,
+                             ByteChannel byteChannel,
+                             Domain domain)
+    throws IOException
+  {
+    super(env);
+    env.addCleanup(this);
+
+    _channel = channel;
+    _byteChannel = byteChannel;
+    _domain = domain;
+
+    _channel.configureBlocking(false);
+
+    _readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+    _readBuffer.flip();
+
+    init(new ChannelInputStream(), new ChannelOutputStream());
+  }
+
+  /**
+   * Opens a tcp connection, waiting up to the timeout to connect.
+   */
+  public static ChannelInputOutput openTcp(Env env,
+                                           String host, int port,
+                                           long timeout)
+    throws IOException
+  {
+    SocketChannel channel = SocketChannel.open();
+
+    try {
+      channel.socket().connect(resolve(host, port), (int) timeout);
+
+      ChannelInputOutput stream
+        = new ChannelInputOutput(env, channel, channel, Domain.AF_INET);
+
+      stream.setTimeout(timeout);
+
+      return stream;
+    } catch (IOException e) {
+      channel.close();
+
+      throw e;
+    }
+  }
+
+  /**
+   * Opens a udp socket connected to the address.
+   */
+  public static ChannelInputOutput openUdp(Env env, String host, int port)
+    throws IOException
+  {
+    DatagramChannel channel = DatagramChannel.open();
+
+    try {
+      channel.connect(resolve(host, port));
+
+      return new ChannelInputOutput(env, channel, channel, Domain.AF_INET);
+    } catch (IOException e) {
+      channel.close();
+
+      throw e;
+    }
+  }
+
+  private static InetSocketAddress resolve(String host, int port)
+    throws UnknownHostException
+  {
+    InetSocketAddress address = new InetSocketAddress(host, port);
+
+    if (address.isUnresolved())
+      throw new UnknownHostException(host);
+
+    return address;
+  }
+
+  //
+  // SocketInputOutput
+  //
+
+  public void init()
+  {
+  }
+
+  public void bind(SocketAddress address)
+    throws IOException
+  {
+    ((NetworkChannel) _channel).bind(address);
+  }
+
+  public void connect(SocketAddress address)
+    throws IOException
+  {
+    if (_channel instanceof DatagramChannel) {
+      ((DatagramChannel) _channel).connect(address);
+      return;
+    }
+
+    SocketChannel channel = (SocketChannel) _channel;
+
+    if (! channel.connect(address)) {
+      while (! channel.finishConnect()) {
+        waitFor(SelectionKey.OP_CONNECT);
+      }
+    }
+  }
+
+  public void setError(int error)
+  {
+    _error = error;
+  }
+
+  public int getError()
+  {
+    return _error;
+  }
+
+  /**
+   * Sets the read and write timeout in milliseconds, 0 for none.
+   */
+  @Override
+  public void setTimeout(long timeout)
+  {
+    _timeout = Math.max(timeout, 0);
+  }
+
+  //
+  // SelectableStream
+  //
+
+  public SelectableChannel getSelectableChannel()
+  {
+    return _channel;
+  }
+
+  public boolean isReadBuffered()
+  {
+    return _readBuffer.hasRemaining();
+  }
+
+  public boolean isBlocking()
+  {
+    return _isBlocking;
+  }
+
+  public void setBlocking(boolean isBlocking)
+  {
+    _isBlocking = isBlocking;
+  }
+
+  //
+  // read methods
+  //
+
+  /**
+   * Reads a byte, returning -1 on EOF or when no data is available to
+   * a non-blocking read.
+   */
+  @Override
+  public int read()
+    throws IOException
+  {
+    try {
+      if (fillBuffer())
+        return _readBuffer.get() & 0xff;
+
+      if (_isChannelEOF)
+        _isEOF = true;
+
+      return -1;
+    } catch (IOException e) {
+      _isTimeout = true;
+      _isEOF = true;
+
+      log.log(Level.FINER, e.toString(), e);
+
+      return -1;
+    }
+  }
+
+  /**
+   * Reads a buffer, returning 0 when no data is available to a
+   * non-blocking read and -1 on EOF.
+   */
+  @Override
+  public int read(byte []buffer, int offset, int length)
+    throws IOException
+  {
+    try {
+      int sublen = readBuffer(buffer, offset, length);
+
+      if (sublen < 0)
+        _isEOF = true;
+
+      return sublen;
+    } catch (IOException e) {
+      _isTimeout = true;
+      _isEOF = true;
+
+      log.log(Level.FINER, e.toString(), e);
+
+      return -1;
+    }
+  }
+
+  /**
+   * Reads into a binary builder.
+   */
+  @Override
+  public StringValue read(int length)
+    throws IOException
+  {
+    try {
+      if (! fillBuffer()) {
+        if (_isChannelEOF)
+          _isEOF = true;
+
+        return null;
+      }
+
+      int position = _readBuffer.position();
+      int sublen = Math.min(length, _readBuffer.remaining());
+
+      StringValue bb = _env.createBinaryBuilder();
+      bb.append(_readBuffer.array(), position, sublen);
+
+      _readBuffer.position(position + sublen);
+
+      return bb;
+    } catch (IOException e) {
+      _isTimeout = true;
+      _isEOF = true;
+
+      log.log(Level.FINER, e.toString(), e);
+
+      return null;
+    }
+  }
+
+  /**
+   * Appends the rest of the stream, or in non-blocking mode the data
+   * available now.
+   */
+  @Override
+  public StringValue appendTo(StringValue builder)
+    throws IOException
+  {
+    try {
+      while (fillBuffer()) {
+        int position = _readBuffer.position();
+        int limit = _readBuffer.limit();
+
+        builder.append(_readBuffer.array(), position, limit - position);
+
+        _readBuffer.position(limit);
+      }
+
+      if (_isChannelEOF)
+        _isEOF = true;
+    } catch (IOException e) {
+      _isTimeout = true;
+      _isEOF = true;
+
+      log.log(Level.FINER, e.toString(), e);
+    }
+
+    return builder;
+  }
+
+  /**
+   * Unread the last byte.
+   */
+  public void unread()
+    throws IOException
+  {
+    int position = _readBuffer.position();
+
+    if (position > 0) {
+      _readBuffer.position(position - 1);
+      _isEOF = false;
+    }
+  }
+
+  public long getPosition()
+  {
+    return -1;
+  }
+
+  public boolean setPosition(long offset)
+  {
+    return false;
+  }
+
+  private int readBuffer(byte []buffer, int offset, int length)
+    throws IOException
+  {
+    if (length == 0)
+      return 0;
+
+    if (! fillBuffer())
+      return _isChannelEOF ? -1 : 0;
+
+    int sublen = Math.min(length, _readBuffer.remaining());
+
+    _readBuffer.get(buffer, offset, sublen);
+
+    return sublen;
+  }
+
+  /**
+   * Fills an empty read buffer from the channel, returning false on EOF
+   * or if a non-blocking read has no data.
+   */
+  private boolean fillBuffer()
+    throws IOException
+  {
+    if (_readBuffer.hasRemaining())
+      return true;
+    else if (_isChannelEOF)
+      return false;
+
+    while (true) {
+      _readBuffer.clear();
+
+      int len = _byteChannel.read(_readBuffer);
+
+      _readBuffer.flip();
+
+      if (len > 0)
+        return true;
+      else if (len < 0) {
+        _isChannelEOF = true;
+        return false;
+      }
+      else if (! _isBlocking)
+        return false;
+
+      waitFor(SelectionKey.OP_READ);
+    }
+  }
+
+  //
+  // write methods
+  //
+
+  @Override
+  public void write(int ch)
+    throws IOException
+  {
+    _writeByte[0] = (byte) ch;
+
+    write(_writeByte, 0, 1);
+  }
+
+  /**
+   * Writes the buffer, waiting for the channel as needed.
+   */
+  @Override
+  public void write(byte []buffer, int offset, int length)
+    throws IOException
+  {
+    ByteBuffer bb = ByteBuffer.wrap(buffer, offset, length);
+
+    while (bb.hasRemaining()) {
+      if (_byteChannel.write(bb) == 0)
+        waitFor(SelectionKey.OP_WRITE);
+    }
+  }
+
+  /**
+   * Returns true if transferFrom can write to the channel.
+   */
+  public boolean isTransferSupported()
+  {
+    return _channel instanceof SocketChannel;
+  }
+
+  /**
+   * Writes part of a file to the socket with FileChannel.transferTo,
+   * waiting for the channel as needed.
+   */
+  public long transferFrom(FileChannel file, long position, long length)
+    throws IOException
+  {
+    long count = 0;
+
+    while (count < length) {
+      long sublen = file.transferTo(position + count, length - count,
+                                    _byteChannel);
+
+      if (sublen > 0)
+        count += sublen;
+      else if (file.size() <= position + count)
+        break;
+      else
+        waitFor(SelectionKey.OP_WRITE);
+    }
+
+    return count;
+  }
+
+  /**
+   * Prints a string to the socket.
+   */
+  @Override
+  public void print(String s)
+    throws IOException
+  {
+    int len = s.length();
+    byte []buffer = new byte[len];
+
+    for (int i = 0; i < len; i++) {
+      buffer[i] = (byte) s.charAt(i);
+    }
+
+    write(buffer, 0, len);
+  }
+
+  @Override
+  public void flush()
+  {
+  }
+
+  /**
+   * Waits until the channel is ready for the operation.
+   */
+  private void waitFor(int ops)
+    throws IOException
+  {
+    Selector selector = _selector;
+
+    if (selector == null) {
+      selector = Selector.open();
+      _channel.register(selector, 0);
+
+      _selector = selector;
+    }
+
+    SelectionKey key = _channel.keyFor(selector);
+
+    long timeout = _timeout;
+    long expires = System.currentTimeMillis() + timeout;
+
+    key.interestOps(ops);
+
+    try {
+      while (true) {
+        long delta = 0;
+
+        if (timeout > 0) {
+          delta = expires - System.currentTimeMillis();
+
+          if (delta <= 0)
+            throw new SocketTimeoutException(L.l("{0} timed out", this));
+        }
+
+        if (selector.select(delta) > 0) {
+          selector.selectedKeys().clear();
+          return;
+        }
+
+        if (Thread.interrupted())
+          throw new InterruptedIOException(L.l("{0} interrupted", this));
+      }
+    } finally {
+      key.interestOps(0);
+    }
+  }
+
+  //
+  // close
+  //
+
+  @Override
+  public void close()
+  {
+    super.close();
+
+    cleanup();
+  }
+
+  /**
+   * Implements the EnvCleanup interface.
+   */
+  public void cleanup()
+  {
+    try {
+      Selector selector = _selector;
+      _selector = null;
+
+      if (selector != null)
+        selector.close();
+
+      _channel.close();
+    } catch (IOException e) {
+      log.log(Level.FINE, e.toString(), e);
+    }
+  }
+
+  public String toString()
+  {
+    return getClass().getSimpleName() + "[" + _channel + "]";
+  }
+
+  class ChannelInputStream extends InputStream {
+    @Override
+    public int read()
+      throws IOException
+    {
+      if (fillBuffer())
+        return _readBuffer.get() & 0xff;
+      else
+        return -1;
+    }
+
+    @Override
+    public int read(byte []buffer, int offset, int length)
+      throws IOException
+    {
+      return readBuffer(buffer, offset, length);
+    }
+
+    @Override
+    public int available()
+    {
+      return _readBuffer.remaining();
+    }
+  }
+
+  class ChannelOutputStream extends OutputStream {
+    @Override
+    public void write(int ch)
+      throws IOException
+    {
+      ChannelInputOutput.this.write(ch);
+    }
+
+    @Override
+    public void write(byte []buffer, int offset, int length)
+      throws IOException
+    {
+      ChannelInputOutput.this.write(buffer, offset, length);
+    }
+  }
+}
@@ -0,0 +1,488 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.PackedArrayValue;
+import com.caucho.quercus.env.StringBuilderValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.util.L10N;
+import com.caucho.vfs.ReadStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Parses comma-separated values for fgetcsv and str_getcsv.
+ *
+ * The parser scans a byte buffer in bulk: the ReadStream's own buffer
+ * for file input, the string's bytes for str_getcsv, or single bytes
+ * for other streams.  Each field is collected in a reused buffer and
+ * copied once into its string, and each record is a PackedArrayValue.
+ */
+public class CsvReader
+{
+  private static final L10N L = new L10N(CsvReader.class);
+
+  private static final int NONE = -2;
+
+  private final Env _env;
+
+  private final int _comma;
+  private final int _quote;
+  private final int _escape;
+
+  // line endings, or NONE when newlines are field data
+  private final int _lf;
+  private final int _cr;
+
+  private ReadStream _rs;
+  private BinaryInput _is;
+
+  private byte []_buffer;
+  private int _offset;
+  private int _length;
+  private boolean _isEOF;
+
+  private final byte []_single = new byte[1];
+
+  // bytes left for the current record
+  private long _limit;
+
+  private byte []_field = new byte[256];
+  private int _fieldLength;
+
+  private final ArrayList<Value> _values = new ArrayList<Value>();
+
+  private CsvReader(Env env, int comma, int quote, int escape,
+                    boolean isLineBreak)
+  {
+    _env = env;
+
+    _comma = comma;
+    _quote = quote;
+    _escape = escape;
+
+    _lf = isLineBreak ? '\n' : NONE;
+    _cr = isLineBreak ? '\r' : NONE;
+  }
+
+  /**
+   * Creates a reader for records from a stream.
+   */
+  public static CsvReader create(Env env, BinaryInput is,
+                                 int comma, int quote, int escape)
+  {
+    CsvReader reader = new CsvReader(env, comma, quote, escape, true);
+
+    InputStream rs = is.getInputStream();
+
+    // other inputs keep their own read state, e.g. EOF flags
+    if (is instanceof ReadStreamInput && rs instanceof ReadStream)
+      reader._rs = (ReadStream) rs;
+    else
+      reader._is = is;
+
+    return reader;
+  }
+
+  /**
+   * Creates a reader for a single record in a string, where unquoted
+   * newlines are part of the field, as in str_getcsv.
+   */
+  public static CsvReader create(Env env, StringValue s,
+                                 int comma, int quote, int escape)
+  {
+    CsvReader reader = new CsvReader(env, comma, quote, escape, false);
+
+    int length = s.length();
+
+    // a trailing line ending isn't part of the record
+    if (length > 0 && s.charAt(length - 1) == '\n')
+      length--;
+
+    if (length > 0 && s.charAt(length - 1) == '\r')
+      length--;
+
+    if (s instanceof StringBuilderValue)
+      reader._buffer = ((StringBuilderValue) s).getBuffer();
+    else
+      reader._buffer = s.toBytes();
+
+    reader._length = length;
+    reader._isEOF = true;
+
+    return reader;
+  }
+
+  /**
+   * Reads up to max records, stopping at the end of the input.
+   */
+  public ArrayValue readRows(int max, long length)
+    throws IOException
+  {
+    ArrayValue rows = new ArrayValueImpl();
+
+    for (int i = 0; i < max; i++) {
+      Value row = readRow(length);
+
+      if (row == BooleanValue.FALSE)
+        break;
+
+      rows.append(row);
+    }
+
+    return rows;
+  }
+
+  /**
+   * Reads the next record, returning FALSE at the end of the input.
+   *
+   * @param length the maximum bytes to read for the record
+   */
+  public Value readRow(long length)
+    throws IOException
+  {
+    _limit = length > 0 ? length : Long.MAX_VALUE;
+    _values.clear();
+
+    ReadStream rs = _rs;
+
+    if (rs != null && ! _isEOF) {
+      _buffer = rs.getBuffer();
+      _offset = rs.getOffset();
+      _length = rs.getLength();
+    }
+
+    try {
+      return readRecord();
+    } finally {
+      if (rs != null && ! _isEOF)
+        rs.setOffset(_offset);
+    }
+  }
+
+  private Value readRecord()
+    throws IOException
+  {
+    int ch;
+
+    while (true) {
+      // scan whitespace
+      while (true) {
+        ch = read();
+
+        if (ch < 0) {
+          if (_values.size() == 0)
+            return BooleanValue.FALSE;
+          else
+            return createRow();
+        }
+        else if (ch == _lf)
+          return createRow();
+        else if (ch == _cr) {
+          readOptionalLinefeed();
+          return createRow();
+        }
+        else if (ch == ' ' || ch == '\t')
+          continue;
+        else
+          break;
+      }
+
+      _fieldLength = 0;
+
+      if (ch == _quote) {
+        ch = readQuoted();
+
+        addField();
+
+        while (ch == ' ' || ch == '\t') {
+          ch = read();
+        }
+      }
+      else {
+        ch = readUnquoted(ch);
+
+        addField();
+      }
+
+      if (ch < 0)
+        return createRow();
+      else if (ch == _lf)
+        return createRow();
+      else if (ch == _cr) {
+        readOptionalLinefeed();
+        return createRow();
+      }
+      else if (ch == _comma) {
+      }
+      else {
+        _env.warning(L.l("expected comma"));
+      }
+    }
+  }
+
+  /**
+   * Reads an unquoted field, returning the delimiter, line ending or -1.
+   */
+  private int readUnquoted(int ch)
+    throws IOException
+  {
+    int comma = _comma;
+    int lf = _lf;
+    int cr = _cr;
+
+    while (ch >= 0 && ch != comma && ch != lf && ch != cr) {
+      appendField(ch);
+
+      byte []buffer = _buffer;
+      int offset = _offset;
+      int end = getScanEnd();
+
+      int i = offset;
+
+      for (; i < end; i++) {
+        int b = buffer[i] & 0xff;
+
+        if (b == comma || b == lf || b == cr)
+          break;
+      }
+
+      appendField(buffer, offset, i - offset);
+
+      _limit -= i - offset;
+      _offset = i;
+
+      ch = read();
+    }
+
+    return ch;
+  }
+
+  /**
+   * Reads a quoted field after the opening quote, returning the
+   * character after the closing quote or -1.
+   */
+  private int readQuoted()
+    throws IOException
+  {
+    int quote = _quote;
+    int escape = _escape;
+
+    while (true) {
+      byte []buffer = _buffer;
+      int offset = _offset;
+      int end = getScanEnd();
+
+      int i = offset;
+
+      for (; i < end; i++) {
+        int b = buffer[i] & 0xff;
+
+        if (b == quote || b == escape)
+          break;
+      }
+
+      appendField(buffer, offset, i - offset);
+
+      _limit -= i - offset;
+      _offset = i;
+
+      int ch = read();
+
+      if (ch < 0)
+        return ch;
+      else if (ch == quote) {
+        ch = read();
+
+        if (ch == quote)
+          appendField(ch);
+        else
+          return ch;
+      }
+      else if (ch == escape) {
+        // the escape and the escaped character are both kept, as in PHP
+        appendField(ch);
+
+        ch = read();
+
+        if (ch < 0)
+          return ch;
+
+        appendField(ch);
+      }
+      else
+        appendField(ch);
+    }
+  }
+
+  private Value createRow()
+  {
+    Value []values = new Value[_values.size()];
+
+    _values.toArray(values);
+
+    return new PackedArrayValue(null, values);
+  }
+
+  //
+  // field buffer
+  //
+
+  private void appendField(int ch)
+  {
+    if (_field.length <= _fieldLength)
+      growField(_fieldLength + 1);
+
+    _field[_fieldLength++] = (byte) ch;
+  }
+
+  private void appendField(byte []buffer, int offset, int length)
+  {
+    if (length <= 0)
+      return;
+
+    if (_field.length < _fieldLength + length)
+      growField(_fieldLength + length);
+
+    System.arraycopy(buffer, offset, _field, _fieldLength, length);
+
+    _fieldLength += length;
+  }
+
+  private void growField(int capacity)
+  {
+    byte []field = new byte[Math.max(capacity, 2 * _field.length)];
+
+    System.arraycopy(_field, 0, field, 0, _fieldLength);
+
+    _field = field;
+  }
+
+  private void addField()
+  {
+    _values.add(_env.createBinaryBuilder(_field, 0, _fieldLength));
+  }
+
+  //
+  // input buffer
+  //
+
+  /**
+   * Returns the end of the buffered bytes the record may still use.
+   */
+  private int getScanEnd()
+  {
+    int end = _length;
+
+    if (_limit < end - _offset)
+      end = _offset + (int) _limit;
+
+    return end;
+  }
+
+  private int read()
+    throws IOException
+  {
+    if (_limit <= 0)
+      return -1;
+
+    if (_length <= _offset && ! fillBuffer())
+      return -1;
+
+    _limit--;
+
+    return _buffer[_offset++] & 0xff;
+  }
+
+  private void readOptionalLinefeed()
+    throws IOException
+  {
+    if (_is != null) {
+      if (_limit > 0 && _is.readOptionalLinefeed())
+        _limit--;
+
+      return;
+    }
+
+    int ch = read();
+
+    if (ch >= 0 && ch != '\n') {
+      // the byte is still in the buffer
+      _offset--;
+      _limit++;
+    }
+  }
+
+  private boolean fillBuffer()
+    throws IOException
+  {
+    if (_isEOF)
+      return false;
+
+    if (_rs != null) {
+      _rs.setOffset(_offset);
+
+      int length = _rs.fillBuffer();
+
+      if (length < 0) {
+        _isEOF = true;
+
+        return false;
+      }
+
+      _buffer = _rs.getBuffer();
+      _offset = _rs.getOffset();
+      _length = length;
+
+      return true;
+    }
+    else {
+      int ch = _is.read();
+
+      if (ch < 0)
+        return false;
+
+      _single[0] = (byte) ch;
+
+      _buffer = _single;
+      _offset = 0;
+      _length = 1;
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.StringBuilderValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.vfs.TempBuffer;
+
+import java.io.IOException;
+
+/**
+ * Encodes comma-separated-value records for fputcsv.  The record is
+ * built in a TempBuffer and written with as few writes as possible.
+ */
+public class CsvWriter
+{
+  private final BinaryOutput _os;
+
+  private final byte _comma;
+  private final byte _quote;
+
+  private byte []_buffer;
+  private int _length;
+  private int _writeLength;
+
+  private CsvWriter(BinaryOutput os, int comma, int quote, byte []buffer)
+  {
+    _os = os;
+
+    _comma = (byte) comma;
+    _quote = (byte) quote;
+
+    _buffer = buffer;
+  }
+
+  /**
+   * Writes the values as a record with every field quoted, returning
+   * the number of bytes written.
+   */
+  public static int writeRow(BinaryOutput os, ArrayValue value,
+                             int comma, int quote)
+    throws IOException
+  {
+    TempBuffer tempBuf = TempBuffer.allocate();
+
+    try {
+      CsvWriter writer = new CsvWriter(os, comma, quote, tempBuf.getBuffer());
+
+      boolean isFirst = true;
+
+      for (Value data : value.values()) {
+        if (! isFirst)
+          writer.write(writer._comma);
+
+        isFirst = false;
+
+        writer.writeField(data.toStringValue());
+      }
+
+      writer.write((byte) '\n');
+
+      writer.flush();
+
+      return writer._writeLength;
+    } finally {
+      TempBuffer.free(tempBuf);
+    }
+  }
+
+  private void writeField(StringValue s)
+    throws IOException
+  {
+    byte quote = _quote;
+
+    write(quote);
+
+    int strlen = s.length();
+
+    if (s instanceof StringBuilderValue) {
+      byte []data = ((StringBuilderValue) s).getBuffer();
+
+      int start = 0;
+
+      for (int i = 0; i < strlen; i++) {
+        if (data[i] == quote) {
+          // copies through the quote, then doubles it
+          write(data, start, i + 1 - start);
+          write(quote);
+
+          start = i + 1;
+        }
+      }
+
+      write(data, start, strlen - start);
+    }
+    else {
+      for (int i = 0; i < strlen; i++) {
+        byte ch = (byte) s.charAt(i);
+
+        write(ch);
+
+        if (ch == quote)
+          write(quote);
+      }
+    }
+
+    write(quote);
+  }
+
+  private void write(byte ch)
+    throws IOException
+  {
+    if (_buffer.length <= _length)
+      flush();
+
+    _buffer[_length++] = ch;
+  }
+
+  private void write(byte []data, int offset, int length)
+    throws IOException
+  {
+    while (length > 0) {
+      if (_buffer.length <= _length)
+        flush();
+
+      int sublen = Math.min(length, _buffer.length - _length);
+
+      System.arraycopy(data, offset, _buffer, _length, sublen);
+
+      _length += sublen;
+      offset += sublen;
+      length -= sublen;
+    }
+  }
+
+  private void flush()
+    throws IOException
+  {
+    if (_length > 0)
+      _os.write(_buffer, 0, _length);
+
+    _writeLength += _length;
+    _length = 0;
+  }
+}
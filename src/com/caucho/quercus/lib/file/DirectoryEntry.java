@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Nam Nguyen
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.vfs.Path;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A directory entry with the attributes read while listing the
+ * directory.  When the attributes weren't read, e.g. for non-local
+ * paths, each method falls back to the Path.
+ */
+public final class DirectoryEntry
+{
+  private final Path _dir;
+  private final String _name;
+
+  private Path _path;
+
+  private final boolean _isStat;
+  private final boolean _isLink;
+
+  // the attributes of a link's target, or of a dangling link itself
+  private final BasicFileAttributes _attrs;
+
+  DirectoryEntry(Path dir, String name)
+  {
+    _dir = dir;
+    _name = name;
+
+    _isStat = false;
+    _isLink = false;
+    _attrs = null;
+  }
+
+  /**
+   * @param attrs the attributes, or null for a missing file
+   * @param isLink true if the entry itself is a symbolic link
+   */
+  DirectoryEntry(Path dir, String name,
+                 BasicFileAttributes attrs, boolean isLink)
+  {
+    _dir = dir;
+    _name = name;
+
+    _isStat = true;
+    _isLink = isLink;
+    _attrs = attrs;
+  }
+
+  /**
+   * Returns the entry's name in the directory.
+   */
+  public String getName()
+  {
+    return _name;
+  }
+
+  /**
+   * Returns the entry's path.
+   */
+  public Path getPath()
+  {
+    if (_path == null)
+      _path = _dir.lookup(_name);
+
+    return _path;
+  }
+
+  /**
+   * Returns true if the attributes were read with the listing.
+   */
+  public boolean isStat()
+  {
+    return _isStat;
+  }
+
+  public boolean exists()
+  {
+    if (_isStat)
+      return _attrs != null && ! _attrs.isSymbolicLink();
+    else
+      return getPath().exists();
+  }
+
+  public boolean isDirectory()
+  {
+    if (_isStat)
+      return _attrs != null && _attrs.isDirectory();
+    else
+      return getPath().isDirectory();
+  }
+
+  public boolean isFile()
+  {
+    if (_isStat)
+      return _attrs != null && _attrs.isRegularFile();
+    else
+      return getPath().isFile();
+  }
+
+  /**
+   * Returns true for a symbolic link.
+   */
+  public boolean isLink()
+  {
+    if (_isStat)
+      return _isLink;
+    else
+      return getPath().isLink();
+  }
+
+  public long getLength()
+  {
+    if (! _isStat)
+      return getPath().getLength();
+    else if (exists())
+      return _attrs.size();
+    else
+      return -1;
+  }
+
+  /**
+   * Returns the last modified time in milliseconds.
+   */
+  public long getLastModified()
+  {
+    if (! _isStat)
+      return getPath().getLastModified();
+    else if (exists())
+      return _attrs.lastModifiedTime().toMillis();
+    else
+      return 0;
+  }
+
+  /**
+   * Returns the last access time in milliseconds.
+   */
+  public long getLastAccessTime()
+  {
+    if (! _isStat)
+      return getPath().getLastAccessTime();
+    else if (exists())
+      return _attrs.lastAccessTime().toMillis();
+    else
+      return 0;
+  }
+
+  /**
+   * Returns the creation time in milliseconds.
+   */
+  public long getCreateTime()
+  {
+    if (! _isStat)
+      return getPath().getCreateTime();
+    else if (exists())
+      return _attrs.creationTime().toMillis();
+    else
+      return 0;
+  }
+
+  public String toString()
+  {
+    return getClass().getSimpleName() + "[" + _dir + "," + _name + "]";
+  }
+}
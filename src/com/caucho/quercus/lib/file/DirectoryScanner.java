@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Nam Nguyen
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.vfs.Path;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Lists directories for glob, scandir and the SPL directory iterators.
+ *
+ * Local directories are read with java.nio.file, fetching each entry's
+ * attributes in the same pass instead of one Path call per attribute.
+ * The listing reads the entries' own attributes, and only symbolic
+ * links are read a second time for their targets.  Other paths fall
+ * back to Path.list().
+ */
+public final class DirectoryScanner
+{
+  private static final Logger log
+    = Logger.getLogger(DirectoryScanner.class.getName());
+
+  private static final DirectoryEntry []NULL_ENTRIES = new DirectoryEntry[0];
+
+  private DirectoryScanner()
+  {
+  }
+
+  /**
+   * Returns the directory's entries.
+   *
+   * @param isStat true if the entries' attributes will be used
+   */
+  public static DirectoryEntry []list(Path dir, boolean isStat)
+    throws IOException
+  {
+    java.nio.file.Path nioDir = toNioPath(dir);
+
+    if (nioDir == null)
+      return createEntries(dir, dir.list());
+    else if (isStat)
+      return listStat(dir, nioDir);
+    else
+      return createEntries(dir, listNames(dir));
+  }
+
+  /**
+   * Returns the names of the directory's entries.
+   */
+  public static String []listNames(Path dir)
+    throws IOException
+  {
+    java.nio.file.Path nioDir = toNioPath(dir);
+
+    if (nioDir == null)
+      return dir.list();
+
+    ArrayList<String> names = new ArrayList<String>();
+
+    try {
+      DirectoryStream<java.nio.file.Path> stream
+        = Files.newDirectoryStream(nioDir);
+
+      try {
+        for (java.nio.file.Path file : stream) {
+          names.add(file.getFileName().toString());
+        }
+      } finally {
+        stream.close();
+      }
+    } catch (IOException e) {
+      // like Path.list(), a missing directory is empty
+      if (Files.isDirectory(nioDir))
+        throw e;
+
+      log.log(Level.FINEST, e.toString(), e);
+    }
+
+    return names.toArray(new String[names.size()]);
+  }
+
+  /**
+   * Returns a single entry with its attributes, e.g. for a glob
+   * segment without wildcards.
+   */
+  public static DirectoryEntry lookup(Path dir, String name)
+  {
+    java.nio.file.Path nioDir = toNioPath(dir);
+
+    if (nioDir == null)
+      return new DirectoryEntry(dir, name);
+
+    java.nio.file.Path file;
+
+    try {
+      file = nioDir.resolve(name);
+    } catch (RuntimeException e) {
+      log.log(Level.FINER, e.toString(), e);
+
+      return new DirectoryEntry(dir, name);
+    }
+
+    return createEntry(dir, name, file, readLinkAttributes(file));
+  }
+
+  private static DirectoryEntry []createEntries(Path dir, String []names)
+  {
+    if (names.length == 0)
+      return NULL_ENTRIES;
+
+    DirectoryEntry []entries = new DirectoryEntry[names.length];
+
+    for (int i = 0; i < names.length; i++) {
+      entries[i] = new DirectoryEntry(dir, names[i]);
+    }
+
+    return entries;
+  }
+
+  private static DirectoryEntry []listStat(Path dir,
+                                           java.nio.file.Path nioDir)
+    throws IOException
+  {
+    ArrayList<DirectoryEntry> entries = new ArrayList<DirectoryEntry>();
+
+    // a linked directory is listed through its target
+    if (walk(dir, nioDir, entries))
+      walk(dir, nioDir.toRealPath(), entries);
+
+    if (entries.size() == 0)
+      return NULL_ENTRIES;
+
+    return entries.toArray(new DirectoryEntry[entries.size()]);
+  }
+
+  /**
+   * Adds the directory's entries, returning true if the directory is
+   * itself a symbolic link and wasn't listed.
+   */
+  private static boolean walk(final Path dir,
+                              final java.nio.file.Path root,
+                              final ArrayList<DirectoryEntry> entries)
+    throws IOException
+  {
+    final boolean []isRootLink = new boolean[1];
+
+    // the walk reads each child's own attributes as it lists the directory
+    Files.walkFileTree(root,
+                       EnumSet.noneOf(FileVisitOption.class),
+                       1,
+                       new SimpleFileVisitor<java.nio.file.Path>() {
+      @Override
+      public FileVisitResult visitFile(java.nio.file.Path file,
+                                       BasicFileAttributes attrs)
+      {
+        if (file.equals(root))
+          isRootLink[0] = attrs.isSymbolicLink();
+        else {
+          String name = file.getFileName().toString();
+
+          entries.add(createEntry(dir, name, file, attrs));
+        }
+
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(java.nio.file.Path file,
+                                             IOException e)
+        throws IOException
+      {
+        if (file.equals(root)) {
+          // like Path.list(), a missing directory is empty
+          if (Files.isDirectory(root))
+            throw e;
+
+          return FileVisitResult.TERMINATE;
+        }
+
+        log.log(Level.FINEST, e.toString(), e);
+
+        String name = file.getFileName().toString();
+
+        entries.add(createEntry(dir, name, file, readLinkAttributes(file)));
+
+        return FileVisitResult.CONTINUE;
+      }
+    });
+
+    return isRootLink[0];
+  }
+
+  /**
+   * Creates an entry from the file's own attributes, following the file
+   * only if it's a symbolic link, as is_dir() and filesize() do.
+   */
+  private static DirectoryEntry createEntry(Path dir,
+                                            String name,
+                                            java.nio.file.Path file,
+                                            BasicFileAttributes attrs)
+  {
+    if (attrs == null || ! attrs.isSymbolicLink())
+      return new DirectoryEntry(dir, name, attrs, false);
+
+    try {
+      attrs = Files.readAttributes(file, BasicFileAttributes.class);
+    } catch (IOException e) {
+      // a dangling link keeps its own attributes
+      log.log(Level.FINEST, e.toString(), e);
+    }
+
+    return new DirectoryEntry(dir, name, attrs, true);
+  }
+
+  /**
+   * Returns the file's own attributes, or null for a missing file.
+   */
+  private static BasicFileAttributes readLinkAttributes(java.nio.file.Path file)
+  {
+    try {
+      return Files.readAttributes(file, BasicFileAttributes.class,
+                                  LinkOption.NOFOLLOW_LINKS);
+    } catch (IOException e) {
+      log.log(Level.FINEST, e.toString(), e);
+
+      return null;
+    }
+  }
+
+  /**
+   * Returns the java.nio path for a local directory, or null.
+   */
+  private static java.nio.file.Path toNioPath(Path path)
+  {
+    if (! "file".equals(path.getScheme()))
+      return null;
+
+    try {
+      return Paths.get(path.getNativePath());
+    } catch (RuntimeException e) {
+      log.log(Level.FINER, e.toString(), e);
+
+      return null;
+    }
+  }
+}
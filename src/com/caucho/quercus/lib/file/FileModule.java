@@ -43,6 +43,7 @@ import com.caucho.quercus.resources.StreamContextResource;
 import com.caucho.util.L10N;
 import com.caucho.vfs.Path;
 import com.caucho.vfs.ReadStream;
+import com.caucho.vfs.TempBuffer;
 import com.caucho.vfs.WriteStream;
 import com.caucho.vfs.LockableStream;
 
@@ -58,9 +59,6 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
 
 /**
  * Information and actions for about files
@@ -233,6 +231,8 @@ public class FileModule extends AbstractQuercusModule {
       else
         file.changeGroup(group.toString());
 
+      StatCache.clear(env);
+
       return true;
     } catch (IOException e) {
       log.log(Level.FINE, e.toString(), e);
@@ -260,6 +260,8 @@ public class FileModule extends AbstractQuercusModule {
     // quercus/160j
     file.chmod(mode);
 
+    StatCache.clear(env);
+
     return true;
   }
 
@@ -286,6 +288,8 @@ public class FileModule extends AbstractQuercusModule {
       else
         file.changeOwner(user.toString());
 
+      StatCache.clear(env);
+
       return true;
     } catch (IOException e) {
       log.log(Level.FINE, e.toString(), e);
@@ -298,12 +302,23 @@ public class FileModule extends AbstractQuercusModule {
    * Clears the stat cache for the file
    *
    * @param env the PHP executing environment
+   * @param isClearRealpathCache if true, also clear the realpath cache
+   * @param filename the file to clear from the realpath cache
    */
-  public static Value clearstatcache(Env env)
+  public static Value clearstatcache(Env env,
+                                     @Optional boolean isClearRealpathCache,
+                                     @Optional StringValue filename)
   {
     // quercus/160l
 
-    // XXX: stubbed
+    StatCache.clear(env);
+
+    if (isClearRealpathCache) {
+      if (filename == null || filename.length() == 0)
+        StatCache.clearRealpath(env);
+      else
+        StatCache.clearRealpath(env, env.lookupPwd(filename));
+    }
 
     return NullValue.NULL;
   }
@@ -330,6 +345,9 @@ public class FileModule extends AbstractQuercusModule {
         return false;
       }
 
+      StatCache.clear(env);
+      MappedFiles.detach(env, dst);
+
       WriteStream os = dst.openWrite();
 
       try {
@@ -529,12 +547,14 @@ public class FileModule extends AbstractQuercusModule {
    * @param length the maximum line length
    * @param delimiter optional comma replacement
    * @param enclosure optional quote replacement
+   * @param escape optional escape character
    */
   public Value fgetcsv(Env env,
                        @NotNull BinaryInput is,
                        @Optional int length,
                        @Optional String delimiter,
-                       @Optional String enclosure)
+                       @Optional String enclosure,
+                       @Optional("'\\\\'") String escape)
   {
     // php/1619
 
@@ -542,101 +562,28 @@ public class FileModule extends AbstractQuercusModule {
       if (is == null)
         return BooleanValue.FALSE;
 
-      // XXX: length is never used
-      if (length <= 0)
-        length = Integer.MAX_VALUE;
-
-      int comma = ',';
-
-      if (delimiter != null && delimiter.length() > 0)
-        comma = delimiter.charAt(0);
-
-      int quote = '"';
-
-      if (enclosure != null && enclosure.length() > 0)
-        quote = enclosure.charAt(0);
-
-      ArrayValue array = new ArrayValueImpl();
-
-      int ch;
-
-      while (true) {
-        // scan whitespace
-        while (true) {
-          ch = is.read();
-
-          if (ch < 0) {
-            if (array.getSize() == 0)
-              return BooleanValue.FALSE;
-            else
-              return array;
-          }
-          else if (ch == '\n')
-            return array;
-          else if (ch == '\r') {
-            is.readOptionalLinefeed();
-            return array;
-          }
-          else if (ch == ' ' || ch == '\t')
-            continue;
-          else
-            break;
-        }
-
-        StringValue sb = env.createBinaryBuilder();
-
-        if (ch == quote) {
-          for (ch = is.read(); ch >= 0; ch = is.read()) {
-            if (ch == quote) {
-              ch = is.read();
-
-              if (ch == quote)
-                sb.append((char) ch);
-              else
-                break;
-            }
-            else
-              sb.append((char) ch);
-          }
-
-          array.append(sb);
-
-          for (; ch >= 0 && ch == ' ' || ch == '\t'; ch = is.read()) {
-          }
-        }
-        else {
-          for (;
-               ch >= 0 && ch != comma && ch != '\r' && ch != '\n';
-               ch = is.read()) {
-            sb.append((char) ch);
-          }
-
-          array.append(sb);
-        }
+      CsvReader reader = CsvReader.create(env, is,
+                                          getCsvChar(delimiter, ','),
+                                          getCsvChar(enclosure, '"'),
+                                          getCsvChar(escape, -1));
 
-        if (ch < 0) {
-          if (array.getSize() == 0)
-            return BooleanValue.FALSE;
-          else
-            return array;
-        }
-        else if (ch == '\n')
-          return array;
-        else if (ch == '\r') {
-          is.readOptionalLinefeed();
-          return array;
-        }
-        else if (ch == comma) {
-        }
-        else {
-          env.warning("expected comma");
-        }
-      }
+      return reader.readRow(length);
     } catch (IOException e) {
       throw new QuercusModuleException(e);
     }
   }
 
+  /**
+   * Returns the first character of a csv option, or the default.
+   */
+  public static int getCsvChar(String value, int defaultChar)
+  {
+    if (value != null && value.length() > 0)
+      return value.charAt(0);
+    else
+      return defaultChar;
+  }
+
   /**
    * Returns the next line
    */
@@ -717,46 +664,72 @@ public class FileModule extends AbstractQuercusModule {
 
       ArrayValue array = new ArrayValueImpl();
 
+      TempBuffer tempBuf = TempBuffer.allocate();
+
       try {
+        byte []buffer = tempBuf.getBuffer();
+
         StringValue bb = env.createBinaryBuilder();
+        boolean isCr = false;
+        int sublen;
 
-        for (int ch = is.read(); ch >= 0; ch = is.read()) {
-          if (ch == '\n') {
-            if (! ignoreNewLines) {
-              bb.appendByte(ch);
-            }
+        // scans whole chunks, appending each line's bytes at once
+        while ((sublen = is.read(buffer, 0, buffer.length)) > 0) {
+          int offset = 0;
 
-            if (bb.length() > 0 || ! skipEmptyLines) {
-              array.append(bb);
-              bb = env.createBinaryBuilder();
+          if (isCr) {
+            // \r was the last byte of the previous chunk
+            isCr = false;
+
+            if (buffer[0] == '\n') {
+              if (! ignoreNewLines)
+                bb.appendByte('\n');
+
+              offset = 1;
             }
+
+            bb = appendFileLine(env, array, bb, skipEmptyLines);
           }
-          else if (ch == '\r') {
-            if (! ignoreNewLines) {
-              bb.appendByte('\r');
-            }
 
-            int ch2 = is.read();
+          int start = offset;
 
-            if (ch2 == '\n') {
-              if (! ignoreNewLines) {
-                bb.appendByte('\n');
+          for (; offset < sublen; offset++) {
+            byte ch = buffer[offset];
+
+            if (ch != '\n' && ch != '\r')
+              continue;
+
+            if (ignoreNewLines)
+              bb.append(buffer, start, offset - start);
+            else
+              bb.append(buffer, start, offset + 1 - start);
+
+            start = offset + 1;
+
+            if (ch == '\r') {
+              if (sublen <= offset + 1) {
+                isCr = true;
+                break;
               }
-            }
-            else {
-              is.unread();
-            }
+              else if (buffer[offset + 1] == '\n') {
+                if (! ignoreNewLines)
+                  bb.appendByte('\n');
 
-            if (bb.length() > 0 || ! skipEmptyLines) {
-              array.append(bb);
-              bb = env.createBinaryBuilder();
+                offset++;
+                start = offset + 1;
+              }
             }
+
+            bb = appendFileLine(env, array, bb, skipEmptyLines);
           }
-          else {
-            bb.appendByte(ch);
-          }
+
+          if (start < sublen)
+            bb.append(buffer, start, sublen - start);
         }
 
+        if (isCr)
+          bb = appendFileLine(env, array, bb, skipEmptyLines);
+
         if (bb.length() > 0) {
           array.append(bb);
         }
@@ -764,6 +737,8 @@ public class FileModule extends AbstractQuercusModule {
         return array;
 
       } finally {
+        TempBuffer.free(tempBuf);
+
         is.close();
       }
     } catch (IOException e) {
@@ -771,6 +746,24 @@ public class FileModule extends AbstractQuercusModule {
     }
   }
 
+  /**
+   * Adds a line to the file() result, returning the builder for the
+   * next line.
+   */
+  private static StringValue appendFileLine(Env env,
+                                            ArrayValue array,
+                                            StringValue bb,
+                                            boolean skipEmptyLines)
+  {
+    if (bb.length() > 0 || ! skipEmptyLines) {
+      array.append(bb);
+
+      return env.createBinaryBuilder();
+    }
+    else
+      return bb;
+  }
+
   /**
    * Returns the file access time
    *
@@ -848,7 +841,14 @@ public class FileModule extends AbstractQuercusModule {
    */
   public static Value filemtime(Env env, Path path)
   {
-    long time = path.getLastModified();
+    StatCache.FileStat stat = StatCache.getStat(env, path);
+
+    long time;
+
+    if (stat != null)
+      time = stat.getLastModified();
+    else
+      time = path.getLastModified();
 
     if (24 * 3600 * 1000L < time)
       return new LongValue(time / 1000L);
@@ -925,12 +925,14 @@ public class FileModule extends AbstractQuercusModule {
       return BooleanValue.FALSE;
     }
 
-    if (! path.exists() || ! path.isFile()) {
+    StatCache.FileStat stat = StatCache.getStat(env, path);
+
+    if (stat == null || ! stat.isFile()) {
       env.warning(L.l("{0} cannot be read", path.getFullPath()));
       return BooleanValue.FALSE;
     }
 
-    long length = path.getLength();
+    long length = stat.getLength();
 
     if (length < 0)
       return BooleanValue.FALSE;
@@ -985,7 +987,7 @@ public class FileModule extends AbstractQuercusModule {
     Path path = env.lookupPwd(filename);
 
     if (path != null)
-      return path.exists();
+      return StatCache.getStat(env, path) != null;
     else
       return false;
   }
@@ -1017,11 +1019,25 @@ public class FileModule extends AbstractQuercusModule {
 
     BinaryInput is = (BinaryInput) s;
 
-    StringValue bb = env.createLargeBinaryBuilder();
-    bb.appendReadAll(is, maxLen);
+    try {
+      if (s instanceof FileInput && ! env.isUnicodeSemantics()) {
+        StringValue mapped = MappedFiles.map(env, ((FileInput) s).getPath(),
+                                            offset, maxLen);
 
-    s.close();
-    return bb;
+        if (mapped != null)
+          return mapped;
+
+        if (offset > 0)
+          is.setPosition(offset);
+      }
+
+      StringValue bb = env.createLargeBinaryBuilder();
+      bb.appendReadAll(is, maxLen);
+
+      return bb;
+    } finally {
+      s.close();
+    }
   }
 
   /**
@@ -1156,7 +1172,7 @@ public class FileModule extends AbstractQuercusModule {
   /**
    * Converts a glob pattern to a regular expression.
    */
-  private static String globToRegex(String pattern, int flags, boolean brace)
+  static String globToRegex(String pattern, int flags, boolean brace)
   {
     StringBuilder globRegex = new StringBuilder();
 
@@ -1440,6 +1456,11 @@ public class FileModule extends AbstractQuercusModule {
 
       Path path = env.lookupPwd(filename);
 
+      if (! mode.startsWith("r") || mode.indexOf('+') >= 0) {
+        StatCache.clear(env);
+        MappedFiles.detach(env, path);
+      }
+
       if (! env.isAllowUrlFopen() && isUrl(path)) {
         String msg = (L.l("not allowed to fopen url {0}", filename));
         env.error(msg);
@@ -1575,9 +1596,14 @@ public class FileModule extends AbstractQuercusModule {
       if (is == null)
         return BooleanValue.FALSE;
 
+      long writeLength = FileTransfer.transferToResponse(env, is);
+
+      if (writeLength >= 0)
+        return LongValue.create(writeLength);
+
       WriteStream out = env.getOut();
 
-      long writeLength = out.writeStream(is.getInputStream());
+      writeLength = out.writeStream(is.getInputStream());
 
       return LongValue.create(writeLength);
     } catch (IOException e) {
@@ -1595,8 +1621,8 @@ public class FileModule extends AbstractQuercusModule {
   public Value fputcsv(Env env,
                        @NotNull BinaryOutput os,
                        @NotNull ArrayValue value,
-                       @Optional StringValue delimiter,
-                       @Optional StringValue enclosure)
+                       @Optional String delimiter,
+                       @Optional String enclosure)
   {
     // php/1636
 
@@ -1607,51 +1633,10 @@ public class FileModule extends AbstractQuercusModule {
       if (value == null)
         return BooleanValue.FALSE;
 
-      char comma = ',';
-      char quote = '\"';
-
-      if (delimiter != null && delimiter.length() > 0)
-        comma = delimiter.charAt(0);
-
-      if (enclosure != null && enclosure.length() > 0)
-        quote = enclosure.charAt(0);
-
-      int writeLength = 0;
-      boolean isFirst = true;
-
-      for (Value data : value.values()) {
-        if (! isFirst) {
-          os.print(comma);
-          writeLength++;
-        }
-        isFirst = false;
-
-        StringValue s = data.toStringValue();
-        int strlen = s.length();
-
-        writeLength++;
-        os.print(quote);
-
-        for (int i = 0; i < strlen; i++) {
-          char ch = s.charAt(i);
+      int comma = getCsvChar(delimiter, ',');
+      int quote = getCsvChar(enclosure, '"');
 
-          if (ch != quote) {
-            os.print(ch);
-            writeLength++;
-          }
-          else {
-            os.print(quote);
-            os.print(quote);
-            writeLength += 2;
-          }
-        }
-
-        os.print(quote);
-        writeLength++;
-      }
-
-      os.print("\n");
-      writeLength++;
+      int writeLength = CsvWriter.writeRow(os, value, comma, quote);
 
       return LongValue.create(writeLength);
     } catch (IOException e) {
@@ -1783,6 +1768,8 @@ public class FileModule extends AbstractQuercusModule {
       path = ((FileInputOutput) handle).getPath();
     else return false;
 
+    MappedFiles.detach(env, path);
+
     try {
       return path.truncate(size);
     } catch (IOException e) {
@@ -1810,103 +1797,83 @@ public class FileModule extends AbstractQuercusModule {
     }
   }
 
-  private static ArrayValue globImpl(Env env, String pattern, int flags,
-                                     Path path, String prefix,
+  /**
+   * Matches the pattern's segments from the index against the entries
+   * of the directory.
+   */
+  private static ArrayValue globImpl(Env env, GlobPattern glob, int index,
+                                     int flags, Path path, String prefix,
                                      ArrayValue result)
   {
-    String cwdPattern;
-    String subPattern = null;
-
-    int firstSlash = pattern.indexOf('/');
+    int segmentCount = glob.getSegmentCount();
 
-    if (firstSlash < 0)
-      cwdPattern = pattern;
-    else {
-      cwdPattern = pattern.substring(0, firstSlash);
-
-      // strip off any extra slashes
-      for (; firstSlash < pattern.length(); firstSlash++) {
-        if (pattern.charAt(firstSlash) != '/')
-          break;
-      }
-
-      subPattern = pattern.substring(firstSlash);
-    }
+    if (segmentCount <= index)
+      return result;
 
-    int fnmatchFlags = 0;
+    boolean isLast = index + 1 == segmentCount;
+    boolean isMark = (flags & GLOB_MARK) != 0;
+    boolean isOnlyDir = (flags & GLOB_ONLYDIR) != 0;
 
-    if ((flags & GLOB_NOESCAPE) != 0)
-      fnmatchFlags = FNM_NOESCAPE;
+    // the file type is only needed to descend or for the flags
+    boolean isStat = ! isLast || isMark || isOnlyDir;
 
-    boolean doBraces = (flags & GLOB_BRACE) != 0;
+    DirectoryEntry []entries;
 
-    String globRegex = globToRegex(cwdPattern, fnmatchFlags, doBraces);
+    String literal = glob.getLiteral(index);
 
-    if (globRegex == null)
-      return null;
+    if (literal != null) {
+      // a segment without wildcards doesn't need the directory listing
+      DirectoryEntry entry = DirectoryScanner.lookup(path, literal);
 
-    Pattern compiledGlobRegex;
+      if (! entry.exists() && ! entry.isLink())
+        return result;
 
-    try {
-      compiledGlobRegex = Pattern.compile(globRegex);
-    } catch (PatternSyntaxException e) {
-      log.log(Level.FINE, e.toString(), e);
-
-      return null;
+      entries = new DirectoryEntry[] { entry };
     }
+    else {
+      try {
+        entries = DirectoryScanner.list(path, isStat);
+      } catch (IOException e) {
+        log.log(Level.FINE, e.toString(), e);
 
-    String [] list;
-
-    try {
-      list = path.list();
-    } catch (IOException e) {
-      log.log(Level.FINE, e.toString(), e);
-
-      return null;
+        return null;
+      }
     }
 
-    for (String entry : list) {
-      Matcher matcher = compiledGlobRegex.matcher(entry);
+    for (DirectoryEntry entry : entries) {
+      String name = entry.getName();
 
-      if (matcher.matches()) {
-        StringValue sb = env.createUnicodeBuilder();
+      if (! glob.matches(index, name))
+        continue;
 
-        if (prefix.length() > 0) {
-          sb.append(prefix);
+      StringValue sb = env.createUnicodeBuilder();
 
-          if (! prefix.equals("/"))
-            sb.append("/");
-        }
+      if (prefix.length() > 0) {
+        sb.append(prefix);
 
-        sb.append(entry);
+        if (! prefix.equals("/"))
+          sb.append("/");
+      }
 
-        Path entryPath = path.lookup(entry);
+      sb.append(name);
 
-        if (entryPath != null && entryPath.isDirectory()) {
-          if (firstSlash >= 0 && subPattern.length() > 0) {
-            // ArrayValue.add only adds values when the argument is an
-            // actual array
+      boolean isDirectory = isStat && entry.isDirectory();
 
-            boolean isNull = null == globImpl(env,
-                                              subPattern,
-                                              flags,
-                                              entryPath,
-                                              sb.toString(),
-                                              result);
+      if (! isLast) {
+        if (isDirectory) {
+          boolean isNull = null == globImpl(env, glob, index + 1, flags,
+                                            entry.getPath(), sb.toString(),
+                                            result);
 
-            if ((flags & GLOB_ERR) != 0 && isNull)
-              return null;
-          } else if ((flags & GLOB_MARK) != 0) {
-            sb.append("/");
-          }
+          if ((flags & GLOB_ERR) != 0 && isNull)
+            return null;
         }
+      }
+      else if (! isOnlyDir || isDirectory) {
+        if (isMark && isDirectory)
+          sb.append("/");
 
-        if ((firstSlash < 0 || subPattern.length() == 0)
-            && (((flags & GLOB_ONLYDIR) == 0)
-            || (((flags & GLOB_ONLYDIR) != 0)
-            && (entryPath != null && entryPath.isDirectory())))) {
-            result.put(sb);
-        }
+        result.put(sb);
       }
     }
 
@@ -1981,9 +1948,14 @@ public class FileModule extends AbstractQuercusModule {
       pattern = pattern.substring(3);
     }
 
+    GlobPattern glob = GlobPattern.compile(pattern, flags);
+
+    if (glob == null)
+      return BooleanValue.FALSE;
+
     ArrayValue result = new ArrayValueImpl();
 
-    result = globImpl(env, pattern, flags, path, prefix, result);
+    result = globImpl(env, glob, 0, flags, path, prefix, result);
 
     if (result == null)
       return BooleanValue.FALSE;
@@ -2133,7 +2105,9 @@ public class FileModule extends AbstractQuercusModule {
       return false;
     }
 
-    return path.isDirectory();
+    StatCache.FileStat stat = StatCache.getStat(env, path);
+
+    return stat != null && stat.isDirectory();
   }
 
   /**
@@ -2174,12 +2148,14 @@ public class FileModule extends AbstractQuercusModule {
    *
    * @param path the path to check
    */
-  public static boolean is_file(@NotNull Path path)
+  public static boolean is_file(Env env, @NotNull Path path)
   {
     if (path == null)
       return false;
 
-    return path.isFile();
+    StatCache.FileStat stat = StatCache.getStat(env, path);
+
+    return stat != null && stat.isFile();
   }
 
   /**
@@ -2200,12 +2176,17 @@ public class FileModule extends AbstractQuercusModule {
    *
    * @param path the path to check
    */
-  public static boolean is_readable(Path path)
+  public static boolean is_readable(Env env, Path path)
   {
     if (path == null)
       return false;
 
-    return path.canRead();
+    StatCache.FileStat stat = StatCache.getStat(env, path);
+
+    if (stat != null)
+      return stat.canRead();
+    else
+      return path.canRead();
   }
 
   /**
@@ -2250,7 +2231,12 @@ public class FileModule extends AbstractQuercusModule {
       return false;
     }
 
-    return path.canWrite();
+    StatCache.FileStat stat = StatCache.getStat(env, path);
+
+    if (stat != null)
+      return stat.canWrite();
+    else
+      return path.canWrite();
   }
 
   /**
@@ -2268,6 +2254,8 @@ public class FileModule extends AbstractQuercusModule {
    */
   public boolean link(Env env, Path source, Path destination)
   {
+    StatCache.clear(env);
+
     try {
       return destination.createLink(source, true);
     } catch (Exception e) {
@@ -2330,6 +2318,8 @@ public class FileModule extends AbstractQuercusModule {
       return false;
     }
 
+    StatCache.clear(env);
+
     try {
       if (recursive) {
         return path.mkdirs();
@@ -2374,6 +2364,10 @@ public class FileModule extends AbstractQuercusModule {
 
     try {
       if (src.canRead()) {
+        StatCache.clear(env);
+        StatCache.clearRealpath(env);
+        MappedFiles.detach(env, dst);
+
         return src.renameTo(dst);
       }
       else
@@ -2631,10 +2625,10 @@ public class FileModule extends AbstractQuercusModule {
     if (path == null)
       return BooleanValue.FALSE;
 
-    String pathStr = path.getNativePath();
+    String pathStr = StatCache.realpath(env, path);
 
     if (pathStr == null)
-      pathStr = path.getFullPath();
+      return BooleanValue.FALSE;
 
     StringValue sb = env.createStringBuilder();
 
@@ -2666,6 +2660,11 @@ public class FileModule extends AbstractQuercusModule {
       return false;
     }
 
+    StatCache.clear(env);
+    StatCache.clearRealpath(env);
+    MappedFiles.detach(env, fromPath);
+    MappedFiles.detach(env, toPath);
+
     try {
       return fromPath.renameTo(toPath);
     } catch (IOException e) {
@@ -2728,6 +2727,9 @@ public class FileModule extends AbstractQuercusModule {
         return false;
       }
 
+      StatCache.clear(env);
+      StatCache.clearRealpath(env);
+
       return path.remove();
     } catch (IOException e) {
       log.log(Level.FINE, e.toString(), e);
@@ -2771,7 +2773,7 @@ public class FileModule extends AbstractQuercusModule {
         return BooleanValue.FALSE;
       }
 
-      String []values = path.list();
+      String []values = DirectoryScanner.listNames(path);
 
       Arrays.sort(values);
 
@@ -2817,7 +2819,12 @@ public class FileModule extends AbstractQuercusModule {
 
     Path path = env.getPwd().lookup(filename.toString());
 
-    return statImpl(env, path);
+    StatCache.FileStat stat = StatCache.getStat(env, path);
+
+    if (stat != null)
+      return stat.getStat(env);
+    else
+      return statImpl(env, path);
   }
 
   static Value statImpl(Env env, Path path)
@@ -2869,6 +2876,8 @@ public class FileModule extends AbstractQuercusModule {
    */
   public boolean symlink(Env env, Path source, Path destination)
   {
+    StatCache.clear(env);
+
     try {
       return destination.createLink(source, false);
     } catch (Exception e) {
@@ -2946,6 +2955,8 @@ public class FileModule extends AbstractQuercusModule {
   {
     // XXX: atime not implemented (it might be > time)
 
+    StatCache.clear(env);
+
     try {
       if (path.exists()) {
         if (time > 0)
@@ -2992,6 +3003,10 @@ public class FileModule extends AbstractQuercusModule {
 
       Path path = env.lookupPwd(filename);
 
+      StatCache.clear(env);
+      StatCache.clearRealpath(env);
+      MappedFiles.detach(env, path);
+
       return path.remove();
     } catch (IOException e) {
       log.log(Level.FINE, e.toString(), e);
@@ -3053,6 +3068,18 @@ public class FileModule extends AbstractQuercusModule {
   static final IniDefinition INI_AUTO_DETECT_LINE_ENDINGS
     = _iniDefinitions.add("auto_detect_line_endings", false, PHP_INI_ALL);
 
+  static final IniDefinition INI_REALPATH_CACHE_SIZE
+    = _iniDefinitions.add("realpath_cache_size", "4096K", PHP_INI_SYSTEM);
+
+  static final IniDefinition INI_REALPATH_CACHE_TTL
+    = _iniDefinitions.add("realpath_cache_ttl", 120, PHP_INI_SYSTEM);
+
+  // files at least this large are mapped by file_get_contents, 0 disables.
+  // Only for files which aren't rewritten by other processes while mapped.
+  static final IniDefinition INI_FILE_GET_CONTENTS_MMAP_SIZE
+    = _iniDefinitions.add("quercus.file_get_contents_mmap_size", "0",
+                          PHP_INI_SYSTEM);
+
   // file uploads
 
   static final IniDefinition INI_FILE_UPLOADS
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.lib.zlib.ZlibModule;
+import com.caucho.vfs.Path;
+import com.caucho.vfs.TempBuffer;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Copies local files to the servlet response or to a socket without
+ * passing the bytes through the Quercus stream buffers.  Each method
+ * returns -1 when the fast path doesn't apply, and the caller falls
+ * back to the stream copy.
+ */
+final class FileTransfer
+{
+  private static final Logger log
+    = Logger.getLogger(FileTransfer.class.getName());
+
+  private FileTransfer()
+  {
+  }
+
+  /**
+   * Writes the rest of the file directly to the servlet response.  Only
+   * used when no output buffer, output handler or output compression
+   * is active.
+   */
+  static long transferToResponse(Env env, BinaryInput is)
+    throws IOException
+  {
+    if (env.getOutputBuffer() != null || ! (is instanceof FileInput))
+      return -1;
+
+    // zlib.output_compression must see the file's bytes
+    if (ZlibModule.isOutputCompression(env))
+      return -1;
+
+    HttpServletResponse response = env.getResponse();
+
+    if (response == null)
+      return -1;
+
+    FileInput file = (FileInput) is;
+    FileChannel channel = openChannel(file.getPath());
+
+    if (channel == null)
+      return -1;
+
+    try {
+      OutputStream os;
+
+      try {
+        os = response.getOutputStream();
+      } catch (IllegalStateException e) {
+        // the response is using a writer
+        log.log(Level.FINEST, e.toString(), e);
+
+        return -1;
+      }
+
+      // earlier output must precede the file
+      env.getOut().flush();
+
+      long position = file.getPosition();
+      long count = 0;
+
+      TempBuffer tempBuf = TempBuffer.allocate();
+
+      try {
+        byte []buffer = tempBuf.getBuffer();
+        ByteBuffer bb = ByteBuffer.wrap(buffer);
+
+        while (true) {
+          bb.clear();
+
+          int sublen = channel.read(bb, position + count);
+
+          if (sublen < 0)
+            break;
+
+          os.write(buffer, 0, sublen);
+
+          count += sublen;
+        }
+      } finally {
+        TempBuffer.free(tempBuf);
+      }
+
+      file.setPosition(position + count);
+
+      return count;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Sends part of the file to a socket with FileChannel.transferTo.
+   *
+   * @param offset bytes to skip from the current position
+   * @param length the maximum length to copy
+   */
+  static long transferToSocket(BinaryInput in, BinaryOutput out,
+                               long offset, long length)
+    throws IOException
+  {
+    if (! (in instanceof FileInput) || ! (out instanceof ChannelInputOutput))
+      return -1;
+
+    FileInput file = (FileInput) in;
+    ChannelInputOutput socket = (ChannelInputOutput) out;
+
+    if (! socket.isTransferSupported())
+      return -1;
+
+    FileChannel channel = openChannel(file.getPath());
+
+    if (channel == null)
+      return -1;
+
+    try {
+      long position = file.getPosition() + offset;
+      long available = channel.size() - position;
+
+      if (available < length)
+        length = available;
+
+      if (length < 0)
+        length = 0;
+
+      long count = socket.transferFrom(channel, position, length);
+
+      file.setPosition(position + count);
+
+      return count;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * Opens a channel for a local file, or returns null.
+   */
+  private static FileChannel openChannel(Path path)
+  {
+    if (! "file".equals(path.getScheme()))
+      return null;
+
+    try {
+      return FileChannel.open(Paths.get(path.getNativePath()),
+                              StandardOpenOption.READ);
+    } catch (IOException e) {
+      log.log(Level.FINER, e.toString(), e);
+
+      return null;
+    } catch (RuntimeException e) {
+      log.log(Level.FINER, e.toString(), e);
+
+      return null;
+    }
+  }
+}
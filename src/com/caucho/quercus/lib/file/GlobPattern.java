@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Nam Nguyen
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A glob pattern compiled into one matcher per path segment.  Compiled
+ * patterns are cached, so a glob in a loop is only compiled once.
+ */
+final class GlobPattern
+{
+  private static final Logger log
+    = Logger.getLogger(GlobPattern.class.getName());
+
+  private static final LruCache<String,GlobPattern> _patternCache
+    = new LruCache<String,GlobPattern>(256);
+
+  private final String []_segments;
+
+  // null for a segment without wildcards
+  private final Pattern []_patterns;
+
+  private GlobPattern(String []segments, Pattern []patterns)
+  {
+    _segments = segments;
+    _patterns = patterns;
+  }
+
+  /**
+   * Returns the compiled pattern, or null for an invalid pattern.
+   */
+  static GlobPattern compile(String pattern, int flags)
+  {
+    String key = flags + ":" + pattern;
+
+    GlobPattern glob = _patternCache.get(key);
+
+    if (glob == null) {
+      glob = create(pattern, flags);
+
+      if (glob == null)
+        return null;
+
+      _patternCache.put(key, glob);
+    }
+
+    return glob;
+  }
+
+  private static GlobPattern create(String pattern, int flags)
+  {
+    ArrayList<String> segmentList = new ArrayList<String>();
+
+    // consecutive and trailing slashes don't add segments
+    for (String segment : pattern.split("/")) {
+      if (segment.length() > 0)
+        segmentList.add(segment);
+    }
+
+    int fnmatchFlags = 0;
+
+    if ((flags & FileModule.GLOB_NOESCAPE) != 0)
+      fnmatchFlags = FileModule.FNM_NOESCAPE;
+
+    boolean isBrace = (flags & FileModule.GLOB_BRACE) != 0;
+
+    int size = segmentList.size();
+
+    String []segments = segmentList.toArray(new String[size]);
+    Pattern []patterns = new Pattern[size];
+
+    for (int i = 0; i < size; i++) {
+      String segment = segments[i];
+
+      if (isLiteral(segment, isBrace))
+        continue;
+
+      String regex = FileModule.globToRegex(segment, fnmatchFlags, isBrace);
+
+      if (regex == null)
+        return null;
+
+      try {
+        patterns[i] = Pattern.compile(regex);
+      } catch (PatternSyntaxException e) {
+        log.log(Level.FINE, e.toString(), e);
+
+        return null;
+      }
+    }
+
+    return new GlobPattern(segments, patterns);
+  }
+
+  private static boolean isLiteral(String segment, boolean isBrace)
+  {
+    for (int i = 0; i < segment.length(); i++) {
+      switch (segment.charAt(i)) {
+      case '*': case '?': case '[': case ']': case '\\':
+        return false;
+
+      case '{': case '}':
+        if (isBrace)
+          return false;
+        break;
+      }
+    }
+
+    return true;
+  }
+
+  int getSegmentCount()
+  {
+    return _segments.length;
+  }
+
+  /**
+   * Returns the segment's name if it has no wildcards, or null.
+   */
+  String getLiteral(int i)
+  {
+    if (_patterns[i] == null)
+      return _segments[i];
+    else
+      return null;
+  }
+
+  /**
+   * Returns true if the name matches the segment.
+   */
+  boolean matches(int i, String name)
+  {
+    Pattern pattern = _patterns[i];
+
+    if (pattern != null)
+      return pattern.matcher(name).matches();
+    else
+      return _segments[i].equals(name);
+  }
+
+  public String toString()
+  {
+    return getClass().getSimpleName() + "[" + _segments.length + "]";
+  }
+}
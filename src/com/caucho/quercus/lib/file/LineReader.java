@@ -31,6 +31,7 @@ package com.caucho.quercus.lib.file;
 
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.StringValue;
+import com.caucho.vfs.ReadStream;
 
 import java.io.IOException;
 
@@ -112,4 +113,110 @@ public class LineReader
       return sb;
     
   }
+
+  /**
+   * Reads a line from the ReadStream, returning null on EOF.  The line
+   * endings match readLine(Env, BinaryInput, long), but the stream's
+   * buffer is scanned directly and whole slices are appended at once.
+   */
+  public StringValue readStreamLine(Env env, ReadStream is, long length)
+    throws IOException
+  {
+    StringValue sb = env.createBinaryBuilder();
+
+    byte []buffer = is.getBuffer();
+    int offset = is.getOffset();
+    int readLength = is.getLength();
+
+    try {
+      while (length > 0) {
+        if (readLength <= offset) {
+          is.setOffset(offset);
+
+          if ((readLength = is.fillBuffer()) < 0)
+            break;
+
+          buffer = is.getBuffer();
+          offset = is.getOffset();
+        }
+
+        int end = readLength;
+
+        if (length < end - offset)
+          end = offset + (int) length;
+
+        int i = offset;
+
+        for (; i < end; i++) {
+          byte ch = buffer[i];
+
+          if (ch == '\n' || ch == '\r')
+            break;
+        }
+
+        sb.append(buffer, offset, i - offset);
+        length -= i - offset;
+        offset = i;
+
+        if (i == end)
+          continue;
+
+        byte ch = buffer[offset++];
+        length--;
+
+        sb.appendByte(ch);
+
+        // php/161[pq] newlines
+        if (ch == '\n') {
+          if (_isMacLineEnding == null)
+            _isMacLineEnding = false;
+
+          if (! _isMacLineEnding)
+            break;
+        }
+        else {
+          if (readLength <= offset) {
+            is.setOffset(offset);
+
+            if ((readLength = is.fillBuffer()) < 0) {
+              if (_isMacLineEnding == null)
+                _isMacLineEnding = true;
+
+              break;
+            }
+
+            buffer = is.getBuffer();
+            offset = is.getOffset();
+          }
+
+          if (buffer[offset] == '\n') {
+            if (_isMacLineEnding == null)
+              _isMacLineEnding = false;
+
+            if (! _isMacLineEnding) {
+              sb.appendByte('\n');
+              offset++;
+            }
+
+            break;
+          }
+          else {
+            if (_isMacLineEnding == null)
+              _isMacLineEnding = true;
+
+            if (_isMacLineEnding)
+              break;
+          }
+        }
+      }
+    } finally {
+      if (0 <= readLength)
+        is.setOffset(offset);
+    }
+
+    if (sb.length() == 0)
+      return null;
+    else
+      return sb;
+  }
 }
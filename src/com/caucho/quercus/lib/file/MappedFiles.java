@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.MappedStringValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.vfs.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The files a request has mapped for file_get_contents.
+ *
+ * Before the request writes, truncates, renames or removes a mapped
+ * file, the strings mapping it are copied to the heap, so they keep
+ * the value they were read with.
+ */
+final class MappedFiles
+{
+  private static final Logger log
+    = Logger.getLogger(MappedFiles.class.getName());
+
+  private static final String MAPPED_FILES = "caucho.mapped_files";
+
+  private MappedFiles()
+  {
+  }
+
+  /**
+   * Maps a large local file read-only, returning null if mapping is
+   * disabled, the file is too small or cannot be mapped.
+   */
+  static StringValue map(Env env, Path path, long offset, long maxLen)
+  {
+    long minLength
+      = FileModule.INI_FILE_GET_CONTENTS_MMAP_SIZE.getAsLongBytes(env, 0);
+
+    if (minLength <= 0 || offset < 0 || ! "file".equals(path.getScheme()))
+      return null;
+
+    try {
+      File file = new File(path.getNativePath());
+
+      long fileLength = file.length();
+      long lastModified = file.lastModified();
+
+      long length = fileLength - offset;
+
+      if (maxLen < length)
+        length = maxLen;
+
+      if (length < minLength || Integer.MAX_VALUE < length)
+        return null;
+
+      FileChannel channel
+        = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+      MappedStringValue.Mapping mapping;
+
+      try {
+        mapping
+          = new MappedStringValue.Mapping(file, offset,
+                                          fileLength, lastModified,
+                                          channel.map(FileChannel.MapMode.READ_ONLY,
+                                                      offset, length));
+      } finally {
+        channel.close();
+      }
+
+      getMappings(env, path, true)
+        .add(new WeakReference<MappedStringValue.Mapping>(mapping));
+
+      return new MappedStringValue(mapping);
+    } catch (IOException e) {
+      log.log(Level.FINER, e.toString(), e);
+
+      return null;
+    } catch (RuntimeException e) {
+      log.log(Level.FINER, e.toString(), e);
+
+      return null;
+    }
+  }
+
+  /**
+   * Copies the request's mappings of the file to the heap before the
+   * file is modified.
+   */
+  static void detach(Env env, Path path)
+  {
+    ArrayList<WeakReference<MappedStringValue.Mapping>> mappings
+      = getMappings(env, path, false);
+
+    if (mappings == null)
+      return;
+
+    for (WeakReference<MappedStringValue.Mapping> ref : mappings) {
+      MappedStringValue.Mapping mapping = ref.get();
+
+      if (mapping != null)
+        mapping.detach();
+    }
+
+    mappings.clear();
+  }
+
+  private static ArrayList<WeakReference<MappedStringValue.Mapping>>
+    getMappings(Env env, Path path, boolean isCreate)
+  {
+    HashMap<String,ArrayList<WeakReference<MappedStringValue.Mapping>>> map
+      = (HashMap<String,ArrayList<WeakReference<MappedStringValue.Mapping>>>)
+        env.getSpecialValue(MAPPED_FILES);
+
+    if (map == null) {
+      if (! isCreate)
+        return null;
+
+      map
+        = new HashMap<String,ArrayList<WeakReference<MappedStringValue.Mapping>>>();
+
+      env.setSpecialValue(MAPPED_FILES, map);
+    }
+
+    String key = path.getFullPath();
+
+    ArrayList<WeakReference<MappedStringValue.Mapping>> mappings = map.get(key);
+
+    if (mappings == null && isCreate) {
+      mappings = new ArrayList<WeakReference<MappedStringValue.Mapping>>();
+
+      map.put(key, mappings);
+    }
+
+    return mappings;
+  }
+}
@@ -232,7 +232,10 @@ public class ReadStreamInput extends InputStream implements BinaryInput {
   public StringValue readLine(long length)
     throws IOException
   {
-    return getLineReader().readLine(_env, this, length);
+    if (_is == null)
+      return null;
+
+    return getLineReader().readStreamLine(_env, _is, length);
   }
 
   /**
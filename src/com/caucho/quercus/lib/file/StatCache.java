@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.Value;
+import com.caucho.util.CurrentTime;
+import com.caucho.util.LruCache;
+import com.caucho.vfs.Path;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * PHP's stat and realpath caches.
+ *
+ * The stat cache belongs to the request and holds only existing files,
+ * as in PHP.  clearstatcache() and the functions which modify files
+ * clear it.  The realpath cache is shared by all requests of the
+ * Quercus instance, and its entries expire after realpath_cache_ttl.
+ */
+final class StatCache
+{
+  private static final Logger log
+    = Logger.getLogger(StatCache.class.getName());
+
+  private static final String STAT_CACHE = "caucho.stat_cache";
+  private static final String REALPATH_CACHE = "caucho.realpath_cache";
+
+  private static final int STAT_CACHE_SIZE = 256;
+
+  // estimated bytes per entry for realpath_cache_size
+  private static final int REALPATH_ENTRY_SIZE = 256;
+
+  private StatCache()
+  {
+  }
+
+  /**
+   * Returns the cached status of an existing file, or null if the file
+   * does not exist.
+   */
+  static FileStat getStat(Env env, Path path)
+  {
+    LruCache<String,FileStat> cache = getStatCache(env);
+
+    String key = path.getFullPath();
+
+    FileStat stat = cache.get(key);
+
+    if (stat == null) {
+      if (! path.exists())
+        return null;
+
+      stat = new FileStat(path);
+
+      cache.put(key, stat);
+    }
+
+    return stat;
+  }
+
+  /**
+   * Clears the request's stat cache.
+   */
+  static void clear(Env env)
+  {
+    LruCache<String,FileStat> cache
+      = (LruCache<String,FileStat>) env.getSpecialValue(STAT_CACHE);
+
+    if (cache != null)
+      cache.clear();
+  }
+
+  /**
+   * Returns the canonical path of an existing file, or null.
+   */
+  static String realpath(Env env, Path path)
+  {
+    LruCache<String,RealpathEntry> cache = getRealpathCache(env);
+
+    String key = path.getFullPath();
+    long now = CurrentTime.getCurrentTime();
+
+    RealpathEntry entry = cache.get(key);
+
+    if (entry != null && now < entry.getExpireTime())
+      return entry.getRealPath();
+
+    String realPath = resolve(path);
+
+    if (realPath == null) {
+      cache.remove(key);
+
+      return null;
+    }
+
+    long ttl = FileModule.INI_REALPATH_CACHE_TTL.getAsLong(env) * 1000L;
+
+    if (ttl > 0)
+      cache.put(key, new RealpathEntry(realPath, now + ttl));
+
+    return realPath;
+  }
+
+  /**
+   * Clears the shared realpath cache.
+   */
+  static void clearRealpath(Env env)
+  {
+    getRealpathCache(env).clear();
+  }
+
+  /**
+   * Removes a path from the shared realpath cache.
+   */
+  static void clearRealpath(Env env, Path path)
+  {
+    getRealpathCache(env).remove(path.getFullPath());
+  }
+
+  private static String resolve(Path path)
+  {
+    if (! path.exists())
+      return null;
+
+    String pathStr = path.getNativePath();
+
+    if (pathStr == null)
+      return path.getFullPath();
+
+    if (! "file".equals(path.getScheme()))
+      return pathStr;
+
+    try {
+      return new File(pathStr).getCanonicalPath();
+    } catch (IOException e) {
+      log.log(Level.FINER, e.toString(), e);
+
+      return pathStr;
+    }
+  }
+
+  private static LruCache<String,FileStat> getStatCache(Env env)
+  {
+    LruCache<String,FileStat> cache
+      = (LruCache<String,FileStat>) env.getSpecialValue(STAT_CACHE);
+
+    if (cache == null) {
+      cache = new LruCache<String,FileStat>(STAT_CACHE_SIZE);
+
+      env.setSpecialValue(STAT_CACHE, cache);
+    }
+
+    return cache;
+  }
+
+  private static LruCache<String,RealpathEntry> getRealpathCache(Env env)
+  {
+    QuercusContext quercus = env.getQuercus();
+
+    synchronized (quercus) {
+      LruCache<String,RealpathEntry> cache
+        = (LruCache<String,RealpathEntry>) quercus.getSpecial(REALPATH_CACHE);
+
+      if (cache == null) {
+        long size
+          = FileModule.INI_REALPATH_CACHE_SIZE.getAsLongBytes(env, 4096 * 1024);
+
+        int capacity = (int) Math.min(Integer.MAX_VALUE / 2,
+                                      Math.max(64, size / REALPATH_ENTRY_SIZE));
+
+        cache = new LruCache<String,RealpathEntry>(capacity);
+
+        quercus.setSpecial(REALPATH_CACHE, cache);
+      }
+
+      return cache;
+    }
+  }
+
+  /**
+   * The cached status of an existing file.  Each attribute is read from
+   * the filesystem the first time it is used.
+   */
+  static final class FileStat
+  {
+    private final Path _path;
+
+    private Boolean _isFile;
+    private Boolean _isDirectory;
+    private Boolean _canRead;
+    private Boolean _canWrite;
+    private long _length = -1;
+    private long _lastModified = -1;
+    private Value _stat;
+
+    FileStat(Path path)
+    {
+      _path = path;
+    }
+
+    boolean isFile()
+    {
+      if (_isFile == null)
+        _isFile = _path.isFile();
+
+      return _isFile;
+    }
+
+    boolean isDirectory()
+    {
+      if (_isDirectory == null)
+        _isDirectory = _path.isDirectory();
+
+      return _isDirectory;
+    }
+
+    boolean canRead()
+    {
+      if (_canRead == null)
+        _canRead = _path.canRead();
+
+      return _canRead;
+    }
+
+    boolean canWrite()
+    {
+      if (_canWrite == null)
+        _canWrite = _path.canWrite();
+
+      return _canWrite;
+    }
+
+    long getLength()
+    {
+      if (_length < 0)
+        _length = _path.getLength();
+
+      return _length;
+    }
+
+    long getLastModified()
+    {
+      if (_lastModified < 0)
+        _lastModified = _path.getLastModified();
+
+      return _lastModified;
+    }
+
+    /**
+     * Returns a copy of the stat() array.
+     */
+    Value getStat(Env env)
+    {
+      if (_stat == null)
+        _stat = FileModule.statImpl(env, _path);
+
+      if (_stat instanceof ArrayValue)
+        return _stat.copy();
+      else
+        return _stat;
+    }
+  }
+
+  static final class RealpathEntry
+  {
+    private final String _realPath;
+    private final long _expireTime;
+
+    RealpathEntry(String realPath, long expireTime)
+    {
+      _realPath = realPath;
+      _expireTime = expireTime;
+    }
+
+    String getRealPath()
+    {
+      return _realPath;
+    }
+
+    long getExpireTime()
+    {
+      return _expireTime;
+    }
+  }
+}
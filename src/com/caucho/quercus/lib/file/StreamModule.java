@@ -37,6 +37,7 @@ import com.caucho.quercus.env.ArrayValue;
 import com.caucho.quercus.env.ArrayValueImpl;
 import com.caucho.quercus.env.BooleanValue;
 import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.QuercusClass;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.Value;
@@ -210,33 +211,41 @@ public class StreamModule extends AbstractQuercusModule {
       if (out == null)
         return -1;
 
+      if (length < 0)
+        length = Integer.MAX_VALUE;
+
+      long transferLength
+        = FileTransfer.transferToSocket(in, out, Math.max(offset, 0), length);
+
+      if (transferLength >= 0)
+        return transferLength;
+
       TempBuffer temp = TempBuffer.allocate();
       byte []buffer = temp.getBuffer();
 
-      while (offset-- > 0)
-        in.read();
+      try {
+        while (offset-- > 0)
+          in.read();
 
-      if (length < 0)
-        length = Integer.MAX_VALUE;
+        while (length > 0) {
+          int sublen = buffer.length;
 
-      while (length > 0) {
-        int sublen = buffer.length;
+          if (length < sublen)
+            sublen = (int) length;
 
-        if (length < sublen)
-          sublen = (int) length;
+          sublen = in.read(buffer, 0, sublen);
+          if (sublen < 0)
+            return bytesWritten;
 
-        sublen = in.read(buffer, 0, sublen);
-        if (sublen < 0)
-          return bytesWritten;
+          out.write(buffer, 0, sublen);
 
-        out.write(buffer, 0, sublen);
-
-        bytesWritten += sublen;
-        length -= sublen;
+          bytesWritten += sublen;
+          length -= sublen;
+        }
+      } finally {
+        TempBuffer.free(temp);
       }
 
-      TempBuffer.free(temp);
-
       return bytesWritten;
     } catch (IOException e) {
       env.warning(e);
@@ -344,6 +353,12 @@ public class StreamModule extends AbstractQuercusModule {
     else
       array.put(env.createString("timed_out"), BooleanValue.FALSE);
 
+    if (stream instanceof SelectableStream) {
+      boolean isBlocking = ((SelectableStream) stream).isBlocking();
+
+      array.put(env.createString("blocked"), BooleanValue.create(isBlocking));
+    }
+
     return array;
   }
 
@@ -391,19 +406,60 @@ public class StreamModule extends AbstractQuercusModule {
   }
 
   /**
-   * stream_set_blocking is stubbed since Quercus should wait for
-   * any stream (unless a non-web-server Quercus is developed.)
+   * Sets blocking mode for socket streams.  Other streams, e.g. files,
+   * always block.
    */
   public static boolean stream_set_blocking(Env env,
                                             @NotNull Value stream,
                                             int mode)
   {
-    env.stub("stream_set_blocking()");
-
     if (stream == null)
       return false;
+
+    Object obj = stream.toJavaObject();
+
+    if (obj instanceof SelectableStream)
+      ((SelectableStream) obj).setBlocking(mode != 0);
     else
-      return true;
+      env.stub("stream_set_blocking()");
+
+    return true;
+  }
+
+  /**
+   * Waits until streams are ready to read or write, replacing each array
+   * with its ready streams.
+   *
+   * @param timeoutSec seconds to wait, or null to wait forever
+   * @param timeoutUsec additional microseconds to wait
+   */
+  public static Value stream_select(Env env,
+                                    @Reference Value read,
+                                    @Reference Value write,
+                                    @Reference Value except,
+                                    Value timeoutSec,
+                                    @Optional int timeoutUsec)
+  {
+    long timeout = -1;
+
+    if (! timeoutSec.isNull()) {
+      long usec = timeoutSec.toLong() * 1000000L + timeoutUsec;
+
+      // the selector waits in milliseconds
+      timeout = Math.max(0, (usec + 999) / 1000);
+    }
+
+    try {
+      StreamSelector selector = StreamSelector.getSelector(env);
+
+      int count = selector.select(env, read, write, except, timeout);
+
+      return LongValue.create(count);
+    } catch (IOException e) {
+      env.warning(e);
+
+      return BooleanValue.FALSE;
+    }
   }
 
   public static boolean stream_set_timeout(Env env,
@@ -505,10 +561,14 @@ public class StreamModule extends AbstractQuercusModule {
 
       SocketInputOutput stream;
 
-      if (isTcp)
+      if (isSecure)
         stream = new TcpInputOutput(env, host, port, isSecure, Domain.AF_INET);
+      else if (isTcp) {
+        stream = ChannelInputOutput.openTcp(env, host, port,
+                                            (long) (timeout * 1000));
+      }
       else
-        stream = new UdpInputOutput(env, host, port, Domain.AF_INET);
+        stream = ChannelInputOutput.openUdp(env, host, port);
 
       stream.setTimeout((int) (timeout * 1000));
       stream.init();
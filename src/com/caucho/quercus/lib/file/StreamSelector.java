@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.file;
+
+import com.caucho.quercus.env.ArrayValue;
+import com.caucho.quercus.env.ArrayValueImpl;
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.EnvCleanup;
+import com.caucho.quercus.env.Value;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The request's selector for stream_select.  Channels stay registered
+ * between calls with no interest, so a loop polling the same sockets
+ * does not re-register them.
+ */
+class StreamSelector implements EnvCleanup
+{
+  private static final Logger log
+    = Logger.getLogger(StreamSelector.class.getName());
+
+  private static final String SELECTOR = "caucho.stream_selector";
+
+  private final Selector _selector;
+
+  private StreamSelector()
+    throws IOException
+  {
+    _selector = Selector.open();
+  }
+
+  /**
+   * Returns the selector for the request.
+   */
+  static StreamSelector getSelector(Env env)
+    throws IOException
+  {
+    StreamSelector selector
+      = (StreamSelector) env.getSpecialValue(SELECTOR);
+
+    if (selector == null) {
+      selector = new StreamSelector();
+
+      env.setSpecialValue(SELECTOR, selector);
+      env.addCleanup(selector);
+    }
+
+    return selector;
+  }
+
+  /**
+   * Waits until one of the streams is ready, replacing each array with
+   * its ready streams.
+   *
+   * @param timeout the timeout in milliseconds, or -1 to wait forever
+   *
+   * @return the number of ready streams
+   */
+  int select(Env env, Value read, Value write, Value except, long timeout)
+    throws IOException
+  {
+    ArrayList<SelectionKey> keys = new ArrayList<SelectionKey>();
+
+    try {
+      int ready = 0;
+
+      ready += register(env, read, SelectionKey.OP_READ, keys);
+      ready += register(env, write, SelectionKey.OP_WRITE, keys);
+
+      if (keys.size() > 0) {
+        if (ready > 0 || timeout == 0)
+          _selector.selectNow();
+        else if (timeout < 0)
+          _selector.select();
+        else
+          _selector.select(timeout);
+      }
+
+      int count = 0;
+
+      count += collect(env, read, SelectionKey.OP_READ);
+      count += collect(env, write, SelectionKey.OP_WRITE);
+
+      // out-of-band data is not supported
+      if (except.isArray())
+        except.set(new ArrayValueImpl());
+
+      return count;
+    } finally {
+      for (SelectionKey key : keys) {
+        if (key.isValid())
+          key.interestOps(0);
+      }
+
+      _selector.selectedKeys().clear();
+    }
+  }
+
+  /**
+   * Adds the operation to the interest of each stream's channel,
+   * returning the number of streams which are ready without a select.
+   */
+  private int register(Env env, Value streams, int op,
+                       ArrayList<SelectionKey> keys)
+  {
+    if (! streams.isArray())
+      return 0;
+
+    int ready = 0;
+
+    Iterator<Value> iter = streams.getValueIterator(env);
+
+    while (iter.hasNext()) {
+      Value value = iter.next();
+
+      SelectableChannel channel = getChannel(value, op);
+
+      if (channel == null) {
+        ready++;
+        continue;
+      }
+
+      try {
+        SelectionKey key = channel.keyFor(_selector);
+
+        if (key == null)
+          key = channel.register(_selector, op);
+        else
+          key.interestOps(key.interestOps() | op);
+
+        keys.add(key);
+      } catch (ClosedChannelException e) {
+        ready++;
+      } catch (CancelledKeyException e) {
+        ready++;
+      }
+    }
+
+    return ready;
+  }
+
+  /**
+   * Replaces the array with its ready streams, keeping the keys.
+   */
+  private int collect(Env env, Value streams, int op)
+  {
+    if (! streams.isArray())
+      return 0;
+
+    ArrayValue result = new ArrayValueImpl();
+
+    Iterator<Map.Entry<Value,Value>> iter = streams.getIterator(env);
+
+    while (iter.hasNext()) {
+      Map.Entry<Value,Value> entry = iter.next();
+
+      if (isReady(entry.getValue(), op))
+        result.put(entry.getKey(), entry.getValue());
+    }
+
+    streams.set(result);
+
+    return result.getSize();
+  }
+
+  private boolean isReady(Value value, int op)
+  {
+    SelectableChannel channel = getChannel(value, op);
+
+    if (channel == null)
+      return true;
+
+    SelectionKey key = channel.keyFor(_selector);
+
+    try {
+      return (key == null
+              || ! key.isValid()
+              || (_selector.selectedKeys().contains(key)
+                  && (key.readyOps() & op) != 0));
+    } catch (CancelledKeyException e) {
+      return true;
+    }
+  }
+
+  /**
+   * Returns the channel to select, or null if the stream is ready now:
+   * buffered input, closed streams, and streams without a channel
+   * such as files and ssl sockets, which never wait long.
+   */
+  private static SelectableChannel getChannel(Value value, int op)
+  {
+    Object obj = value.toJavaObject();
+
+    if (! (obj instanceof SelectableStream))
+      return null;
+
+    SelectableStream stream = (SelectableStream) obj;
+
+    if (op == SelectionKey.OP_READ && stream.isReadBuffered())
+      return null;
+
+    SelectableChannel channel = stream.getSelectableChannel();
+
+    if (channel == null || ! channel.isOpen())
+      return null;
+
+    return channel;
+  }
+
+  /**
+   * Implements the EnvCleanup interface.
+   */
+  public void cleanup()
+  {
+    try {
+      _selector.close();
+    } catch (IOException e) {
+      log.log(Level.FINE, e.toString(), e);
+    }
+  }
+}
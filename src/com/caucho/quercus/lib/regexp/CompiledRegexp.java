@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.regexp;
+
+import com.caucho.quercus.env.StringValue;
+
+/**
+ * Base class for regexps compiled to Java code.
+ *
+ * The generated subclass lives in the work directory's class loader, so
+ * it reaches the package-private matching state through the protected
+ * helpers here.
+ */
+public abstract class CompiledRegexp {
+  private RegexpNode []_nodes;
+
+  protected CompiledRegexp()
+  {
+  }
+
+  /**
+   * Binds the nodes the generated code delegates to.
+   */
+  final void init(RegexpNode []nodes)
+  {
+    _nodes = nodes;
+  }
+
+  /**
+   * Matches the regexp at offset, returning the end of the match or -1.
+   */
+  public abstract int match(StringValue s,
+                            int length,
+                            int offset,
+                            RegexpState state);
+
+  /**
+   * Matches a node which has no generated code.
+   */
+  protected final int matchNode(int index,
+                                StringValue s,
+                                int length,
+                                int offset,
+                                RegexpState state)
+  {
+    return _nodes[index].match(s, length, offset, state);
+  }
+
+  protected static int getLoopCount(RegexpState state, int index)
+  {
+    return state._loopCount[index];
+  }
+
+  protected static void setLoopCount(RegexpState state, int index, int count)
+  {
+    state._loopCount[index] = count;
+  }
+
+  protected static int getLoopOffset(RegexpState state, int index)
+  {
+    return state._loopOffset[index];
+  }
+
+  protected static void setLoopOffset(RegexpState state, int index, int offset)
+  {
+    state._loopOffset[index] = offset;
+  }
+
+  protected static void step(RegexpState state)
+  {
+    state.step();
+  }
+
+  protected static void enter(RegexpState state)
+  {
+    state.enter();
+  }
+
+  protected static void exit(RegexpState state)
+  {
+    state.exit();
+  }
+}
@@ -127,6 +127,16 @@ class Regcomp {
     return _nLoop++;
   }
 
+  /**
+   * Returns the linear-time matcher for the program, or null if the
+   * program uses backreferences, lookaround, recursion or other
+   * constructs which need the backtracking matcher.
+   */
+  RegexpNfa compileNfa(RegexpNode prog)
+  {
+    return RegexpNfa.create(prog, _maxGroup);
+  }
+
   RegexpNode parse(PeekStream pattern) throws IllegalRegexpException
   {
     _pattern = pattern;
@@ -32,8 +32,10 @@ package com.caucho.quercus.lib.regexp;
 import java.util.*;
 import java.util.logging.*;
 
+import com.caucho.quercus.QuercusContext;
 import com.caucho.quercus.QuercusException;
 import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.StringBuilderValue;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.UnicodeBuilderValue;
 import com.caucho.quercus.lib.i18n.Utf8Encoder;
@@ -52,7 +54,11 @@ public class Regexp {
   StringValue _pattern;
   int _flags;
   
-  RegexpNode _prog;
+  volatile RegexpNode _prog;
+  RegexpNfa _nfa;
+
+  private int _useCount;
+  private boolean _isCompileQueued;
   boolean _ignoreCase;
   boolean _isGlobal;
 
@@ -239,6 +245,8 @@ public class Regexp {
 
     _nGroup = comp._maxGroup;
     _nLoop = comp._nLoop;
+
+    _nfa = comp.compileNfa(prog);
     
     _groupNames = new StringValue[_nGroup + 1];
     for (Map.Entry<Integer,StringValue> entry
@@ -254,6 +262,49 @@ public class Regexp {
     }
   }
 
+  /**
+   * Counts a match, queueing the regexp for compilation once it's hot.
+   * Regexps run by the linear-time matcher stay interpreted.
+   */
+  void use(Env env)
+  {
+    if (_nfa != null || _isCompileQueued)
+      return;
+
+    QuercusContext quercus = env.getQuercus();
+
+    if (! quercus.isTieredCompile())
+      return;
+
+    // racy counter is fine, it only decides when to compile
+    if (++_useCount < quercus.getTieredCompileThreshold())
+      return;
+
+    _isCompileQueued = true;
+
+    quercus.compileRegexp(this);
+  }
+
+  /**
+   * Replaces the node graph with the compiled matcher.
+   */
+  void setCompiled(CompiledRegexp compiled)
+  {
+    _prog = new RegexpNode.Compiled(compiled);
+  }
+
+  /**
+   * Returns the literal every match starts with, or null if there's none.
+   */
+  StringValue getMatchPrefix()
+  {
+    // utf-8 patterns match against the decoded subject
+    if (_prefix.length() == 0 || isUTF8())
+      return null;
+    else
+      return new StringBuilderValue(_prefix.toString());
+  }
+
   public StringValue getGroupName(int i)
   {
     return _groupNames[i];
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.regexp;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import com.caucho.util.Crc64;
+
+/**
+ * Generates the Java code for a hot regexp.
+ *
+ * Each node which continues the match gets its own method, following
+ * the same backtracking algorithm as RegexpNode.match() with the
+ * character tests and loop bounds inlined.  Nodes without generated
+ * code are matched through the original node graph.
+ */
+public class RegexpGenerator {
+  private final Regexp _regexp;
+  private final RegexpNode _prog;
+
+  private final ArrayList<RegexpNode> _nodes = new ArrayList<RegexpNode>();
+  private final IdentityHashMap<RegexpNode,Integer> _nodeMap
+    = new IdentityHashMap<RegexpNode,Integer>();
+
+  private final ArrayList<RegexpNode> _methods = new ArrayList<RegexpNode>();
+  private final IdentityHashMap<RegexpNode,Integer> _methodMap
+    = new IdentityHashMap<RegexpNode,Integer>();
+
+  private final StringBuilder _fields = new StringBuilder();
+  private int _fieldCount;
+
+  private StringBuilder _sb = new StringBuilder();
+  private int _depth;
+
+  public RegexpGenerator(Regexp regexp)
+  {
+    _regexp = regexp;
+    _prog = regexp._prog;
+  }
+
+  /**
+   * Returns the generated class name, which depends only on the pattern
+   * and its flags.
+   */
+  public String getClassName()
+  {
+    long crc = Crc64.generate(0, _regexp.getClass().getName());
+    crc = Crc64.generate(crc, _regexp._rawRegexp.toString());
+    crc = Crc64.generate(crc, String.valueOf(_regexp._flags));
+
+    return "_quercus._regexp.re_" + Long.toHexString(crc);
+  }
+
+  /**
+   * Returns the Java source of the class body.
+   */
+  public String generate()
+  {
+    StringBuilder methods = new StringBuilder();
+
+    _sb = methods;
+
+    println("public int match(StringValue s, int length, int offset,");
+    println("                 RegexpState state)");
+    println("{");
+    pushDepth();
+    println("return " + call(_prog, "offset") + ";");
+    popDepth();
+    println("}");
+
+    for (int i = 0; i < _methods.size(); i++) {
+      RegexpNode node = _methods.get(i);
+
+      println();
+      println("private int m" + i + "(StringValue s, int length, int offset,");
+      println("                RegexpState state)");
+      println("{");
+      pushDepth();
+      node.generateMatch(this);
+      popDepth();
+      println("}");
+    }
+
+    return _fields.toString() + methods.toString();
+  }
+
+  /**
+   * Instantiates the compiled class and installs it in the regexp.
+   */
+  public void bind(Class<?> cl)
+    throws Exception
+  {
+    CompiledRegexp compiled = (CompiledRegexp) cl.newInstance();
+
+    compiled.init(_nodes.toArray(new RegexpNode[_nodes.size()]));
+
+    _regexp.setCompiled(compiled);
+  }
+
+  //
+  // node callbacks
+  //
+
+  /**
+   * Returns a call to the generated method for the node.
+   */
+  String call(RegexpNode node, String offset)
+  {
+    Integer id = _methodMap.get(node);
+
+    if (id == null) {
+      id = _methods.size();
+
+      _methods.add(node);
+      _methodMap.put(node, id);
+    }
+
+    return "m" + id + "(s, length, " + offset + ", state)";
+  }
+
+  /**
+   * Returns a call matching the node through the node graph.
+   */
+  String matchNode(RegexpNode node, String offset)
+  {
+    Integer id = _nodeMap.get(node);
+
+    if (id == null) {
+      id = _nodes.size();
+
+      _nodes.add(node);
+      _nodeMap.put(node, id);
+    }
+
+    return "matchNode(" + id + ", s, length, " + offset + ", state)";
+  }
+
+  /**
+   * Generates the rest of a concatenation, inlining plain sequences.
+   */
+  void generateNext(RegexpNode next)
+  {
+    if (next instanceof RegexpNode.Concat
+        || next instanceof RegexpNode.End
+        || next instanceof RegexpNode.EmptyNode)
+      next.generateMatch(this);
+    else
+      println("return " + call(next, "offset") + ";");
+  }
+
+  /**
+   * Adds a char[] constant, returning its field name.
+   */
+  String addChars(char []buffer, int length)
+  {
+    String name = "_chars" + _fieldCount++;
+
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("  private static final char []").append(name);
+    sb.append(" = \"");
+
+    for (int i = 0; i < length; i++) {
+      sb.append(escape(buffer[i]));
+    }
+
+    sb.append("\".toCharArray();\n");
+
+    if (_fieldCount == 1)
+      _fields.append("\n");
+
+    _fields.append(sb);
+
+    return name;
+  }
+
+  /**
+   * Returns a Java char literal.
+   */
+  String charLiteral(char ch)
+  {
+    if (ch == '\'')
+      return "'\\''";
+    else
+      return "'" + escape(ch) + "'";
+  }
+
+  private static String escape(char ch)
+  {
+    if (ch == '\\')
+      return "\\\\";
+    else if (ch == '"')
+      return "\\\"";
+    else if (0x20 <= ch && ch < 0x7f)
+      return String.valueOf(ch);
+    else if (ch < 0x100) {
+      // octal, since unicode escapes for newlines break the source
+      String octal = Integer.toOctalString(ch);
+
+      return "\\" + "000".substring(octal.length()) + octal;
+    }
+    else {
+      String hex = Integer.toHexString(ch);
+
+      return "\\u" + "0000".substring(hex.length()) + hex;
+    }
+  }
+
+  //
+  // output
+  //
+
+  void println()
+  {
+    _sb.append("\n");
+  }
+
+  void println(String line)
+  {
+    // the class body is written at depth 1
+    _sb.append("  ");
+
+    for (int i = 0; i < _depth; i++) {
+      _sb.append("  ");
+    }
+
+    _sb.append(line).append("\n");
+  }
+
+  void pushDepth()
+  {
+    _depth++;
+  }
+
+  void popDepth()
+  {
+    _depth--;
+  }
+
+  @Override
+  public String toString()
+  {
+    return getClass().getSimpleName() + "[" + _regexp + "]";
+  }
+}
@@ -38,7 +38,10 @@ import com.caucho.quercus.annotation.Reference;
 import com.caucho.quercus.annotation.UsesSymbolTable;
 import com.caucho.quercus.env.*;
 import com.caucho.quercus.lib.i18n.MbstringModule;
+import com.caucho.quercus.lib.string.MultiStringMatcher;
 import com.caucho.quercus.module.AbstractQuercusModule;
+import com.caucho.quercus.module.IniDefinition;
+import com.caucho.quercus.module.IniDefinitions;
 import com.caucho.util.L10N;
 import com.caucho.util.LruCache;
 
@@ -84,6 +87,10 @@ public class RegexpModule
 
   public static final boolean [] PREG_QUOTE = new boolean[256];
 
+  private static final String LAST_ERROR = "caucho.preg_last_error";
+
+  private static final IniDefinitions _iniDefinitions = new IniDefinitions();
+
   private static LruCache<StringValue, RegexpCacheItem> _regexpCache
     = new LruCache<StringValue, RegexpCacheItem>(1024);
 
@@ -108,6 +115,15 @@ public class RegexpModule
     return new String[] { "ereg", "pcre" };
   }
 
+  /**
+   * Returns the default php.ini values.
+   */
+  @Override
+  public IniDefinitions getIniDefinitions()
+  {
+    return _iniDefinitions;
+  }
+
   @Hide
   public static int getRegexpCacheSize()
   {
@@ -540,7 +556,29 @@ public class RegexpModule
    */
   public static Value preg_last_error(Env env)
   {
-    return LongValue.ZERO;
+    Value error = (Value) env.getSpecialValue(LAST_ERROR);
+
+    if (error != null)
+      return error;
+    else
+      return LongValue.ZERO;
+  }
+
+  /**
+   * Records the error of an aborted match for preg_last_error().
+   */
+  static void setLastError(Env env, int error)
+  {
+    env.setSpecialValue(LAST_ERROR, LongValue.create(error));
+  }
+
+  /**
+   * Clears the last error at the start of a match.
+   */
+  static void clearLastError(Env env)
+  {
+    if (env.getSpecialValue(LAST_ERROR) != null)
+      env.removeSpecialValue(LAST_ERROR);
   }
 
   public static Value preg_match(Env env,
@@ -568,9 +606,14 @@ public class RegexpModule
       if (regs != null)
         matchRef.set(regs);
 
+      boolean isError = regexpState != null && regexpState.isError();
+
       env.freeRegexpState(regexpState);
 
-      return LongValue.ZERO;
+      if (isError)
+        return BooleanValue.FALSE;
+      else
+        return LongValue.ZERO;
     }
 
     boolean isOffsetCapture = (flags & PREG_OFFSET_CAPTURE) != 0;
@@ -707,6 +750,9 @@ public class RegexpModule
     else
       throw new UnsupportedOperationException();
 
+    if (regexpState.isError())
+      result = BooleanValue.FALSE;
+
     env.freeRegexpState(regexpState);
 
     return result;
@@ -1103,6 +1149,14 @@ public class RegexpModule
     if (limit < 0)
       limit = LONG_MAX;
 
+    MultiStringMatcher prefixMatcher = getPrefixMatcher(env, regexpList);
+    boolean []isFound = null;
+
+    if (prefixMatcher != null) {
+      isFound = new boolean[regexpList.length];
+      prefixMatcher.find(string, isFound);
+    }
+
     if (replacement.isArray()) {
       ArrayValue replacementArray = (ArrayValue) replacement;
 
@@ -1116,21 +1170,43 @@ public class RegexpModule
         else
           replacementStr = env.getEmptyString();
 
+        if (isFound != null && ! isFound[i])
+          continue;
+
+        StringValue oldString = string;
+
         string = pregReplaceString(env,
                                    regexpList[i],
                                    replacementStr,
                                    string,
                                    limit,
                                    countV);
+
+        if (string == null)
+          break;
+
+        if (isFound != null && string != oldString)
+          prefixMatcher.find(string, isFound);
       }
     } else {
       for (int i = 0; i < regexpList.length; i++) {
+        if (isFound != null && ! isFound[i])
+          continue;
+
+        StringValue oldString = string;
+
         string = pregReplaceString(env,
                                    regexpList[i],
                                    replacement.toStringValue(),
                                    string,
                                    limit,
                                    countV);
+
+        if (string == null)
+          break;
+
+        if (isFound != null && string != oldString)
+          prefixMatcher.find(string, isFound);
       }
     }
 
@@ -1140,6 +1216,49 @@ public class RegexpModule
       return NullValue.NULL;
   }
 
+  /**
+   * Returns an automaton for the literal prefixes of the patterns, or
+   * null if some pattern has no prefix, so patterns which can't match
+   * are skipped after a single scan of the subject.
+   */
+  private static MultiStringMatcher getPrefixMatcher(Env env,
+                                                    Regexp []regexpList)
+  {
+    if (regexpList.length < 2)
+      return null;
+
+    MultiStringMatcher matcher
+      = MultiStringMatcher.getCached(env, regexpList);
+
+    if (matcher == null) {
+      StringValue []prefixList = new StringValue[regexpList.length];
+
+      for (int i = 0; i < regexpList.length; i++) {
+        Regexp regexp = regexpList[i];
+
+        // eval replacements are compiled even when nothing matches
+        StringValue prefix = regexp.isEval() ? null : regexp.getMatchPrefix();
+
+        if (prefix == null) {
+          prefixList = null;
+          break;
+        }
+
+        prefixList[i] = prefix;
+      }
+
+      if (prefixList != null)
+        matcher = MultiStringMatcher.create(prefixList);
+
+      MultiStringMatcher.putCached(env, regexpList.clone(), matcher);
+    }
+
+    if (matcher == null || MultiStringMatcher.isNone(matcher))
+      return null;
+    else
+      return matcher;
+  }
+
   /**
    * replaces values using regexps and callback fun
    * @param env
@@ -1210,6 +1329,12 @@ public class RegexpModule
       numberOfMatches++;
     }
 
+    if (regexpState.isError()) {
+      env.freeRegexpState(regexpState);
+
+      return null;
+    }
+
     if (tail < regexpState.getSubjectLength())
       result = result.append(regexpState.substring(env, tail));
 
@@ -1253,6 +1378,9 @@ public class RegexpModule
                                                countV,
                                                isEval);
 
+    if (regexpState.isError())
+      result = null;
+
     env.freeRegexpState(regexpState);
 
     return result;
@@ -1586,12 +1714,17 @@ public class RegexpModule
       return env.getEmptyString();
     }
     else {
-      return pregReplaceCallbackImpl(env,
-                                     regexp,
-                                     fun,
-                                     subject,
-                                     limit,
-                                     countV);
+      StringValue result = pregReplaceCallbackImpl(env,
+                                                   regexp,
+                                                   fun,
+                                                   subject,
+                                                   limit,
+                                                   countV);
+
+      if (result != null)
+        return result;
+      else
+        return NullValue.NULL;
     }
   }
 
@@ -1620,6 +1753,9 @@ public class RegexpModule
                                           subject,
                                           limit,
                                           countV);
+
+        if (subject == null)
+          return NullValue.NULL;
       }
 
       return subject;
@@ -1768,6 +1904,12 @@ public class RegexpModule
       }
     }
 
+    if (regexpState.isError()) {
+      env.freeRegexpState(regexpState);
+
+      return BooleanValue.FALSE;
+    }
+
     env.freeRegexpState(regexpState);
 
     return result;
@@ -1920,6 +2062,12 @@ public class RegexpModule
 
       boolean found = regexpState.find(env, entryValue.toStringValue());
 
+      if (regexpState.isError()) {
+        env.freeRegexpState(regexpState);
+
+        return BooleanValue.FALSE;
+      }
+
       if (! found && flag == PREG_GREP_INVERT)
         matchArray.append(entryKey, entryValue);
       else if (found && flag != PREG_GREP_INVERT)
@@ -2523,6 +2671,11 @@ public class RegexpModule
     }
   }
 
+  static final IniDefinition INI_PCRE_BACKTRACK_LIMIT
+    = _iniDefinitions.add("pcre.backtrack_limit", 1000000, PHP_INI_ALL);
+  static final IniDefinition INI_PCRE_RECURSION_LIMIT
+    = _iniDefinitions.add("pcre.recursion_limit", 100000, PHP_INI_ALL);
+
   static {
     PREG_QUOTE['\\'] = true;
     PREG_QUOTE['+'] = true;
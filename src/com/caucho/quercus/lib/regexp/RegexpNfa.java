@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.lib.regexp;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import com.caucho.quercus.env.StringBuilderValue;
+import com.caucho.quercus.env.StringValue;
+
+/**
+ * Linear-time matcher for regexps without backreferences or lookaround.
+ *
+ * The node graph is compiled into a Thompson automaton and run as a
+ * Pike VM: all alternatives advance over the subject together, so each
+ * character is examined at most once per automaton state.  Thread order
+ * follows the backtracking matcher's preference, so the leftmost match
+ * and its groups are the same as the ones the node graph would return.
+ */
+final class RegexpNfa {
+  static final int FAIL = -1;
+  static final int UNKNOWN = -2;
+
+  // largest bounded repetition expanded into states
+  static final int MAX_REPEAT = 64;
+
+  private static final int MAX_STATES = 4096;
+
+  private static final int OP_MATCH = 0;
+  private static final int OP_CHAR = 1;
+  private static final int OP_CHAR_I = 2;
+  private static final int OP_ONE = 3;
+  private static final int OP_NODE = 4;
+  private static final int OP_ASSERT = 5;
+  private static final int OP_SPLIT = 6;
+  private static final int OP_JUMP = 7;
+  private static final int OP_SAVE = 8;
+
+  private final int _nGroup;
+
+  private int []_op = new int[32];
+  private int []_next = new int[32];
+  private int []_alt = new int[32];
+  private char []_ch = new char[32];
+  // ASCII upper case variant of a case-insensitive _ch
+  private char []_chUpper = new char[32];
+  private RegexpNode []_node = new RegexpNode[32];
+  private int _size;
+
+  private int _start;
+
+  private IdentityHashMap<RegexpNode,int[]> _stateMap
+    = new IdentityHashMap<RegexpNode,int[]>();
+
+  private RegexpNfa(int nGroup)
+  {
+    _nGroup = nGroup;
+  }
+
+  /**
+   * Compiles the program, returning null if any node needs the
+   * backtracking matcher.
+   */
+  static RegexpNfa create(RegexpNode prog, int nGroup)
+  {
+    RegexpNfa nfa = new RegexpNfa(nGroup);
+
+    int match = nfa.add(OP_MATCH, FAIL, FAIL, (char) 0, null);
+    int start = prog.compileNfa(nfa, match);
+
+    if (start < 0)
+      return null;
+
+    nfa._start = start;
+    nfa._stateMap = null;
+
+    return nfa;
+  }
+
+  //
+  // compilation
+  //
+
+  /**
+   * Adds a literal character.
+   */
+  int addChar(char ch, int next)
+  {
+    return add(OP_CHAR, next, FAIL, ch, null);
+  }
+
+  /**
+   * Adds a case-insensitive literal character, stored as its ASCII lower
+   * and upper case variants.
+   */
+  int addCharIgnoreCase(char ch, int next)
+  {
+    char lower = ch;
+    char upper = ch;
+
+    if ('A' <= ch && ch <= 'Z')
+      lower = (char) (ch + 'a' - 'A');
+    else if ('a' <= ch && ch <= 'z')
+      upper = (char) (ch + 'A' - 'a');
+
+    int state = add(OP_CHAR_I, next, FAIL, lower, null);
+
+    if (state >= 0)
+      _chUpper[state] = upper;
+
+    return state;
+  }
+
+  /**
+   * Adds a character node which advances by exactly one character,
+   * as the character loops do.
+   */
+  int addOne(RegexpNode node, int next)
+  {
+    return add(OP_ONE, next, FAIL, (char) 0, node);
+  }
+
+  /**
+   * Adds a character node which advances to the end of its match.
+   */
+  int addNode(RegexpNode node, int next)
+  {
+    return add(OP_NODE, next, FAIL, (char) 0, node);
+  }
+
+  /**
+   * Adds a zero-width assertion.
+   */
+  int addAssert(RegexpNode node, int next)
+  {
+    return add(OP_ASSERT, next, FAIL, (char) 0, node);
+  }
+
+  /**
+   * Adds a choice, preferring the first state.
+   */
+  int addSplit(int first, int second)
+  {
+    if (second < 0)
+      return FAIL;
+
+    return add(OP_SPLIT, first, second, (char) 0, null);
+  }
+
+  /**
+   * Adds a group boundary.
+   */
+  int addSave(int group, boolean isEnd, int next)
+  {
+    if (group <= 0)
+      return next;
+    else if (_nGroup <= group)
+      return FAIL;
+
+    int slot = isEnd ? 2 * group + 1 : 2 * group;
+
+    return add(OP_SAVE, next, slot, (char) 0, null);
+  }
+
+  /**
+   * Reserves a state for a loop tail, filled in by setSplit or setJump
+   * once the loop body is compiled.
+   */
+  int reserve()
+  {
+    return add(OP_JUMP, 0, FAIL, (char) 0, null);
+  }
+
+  void setSplit(int state, int first, int second)
+  {
+    _op[state] = OP_SPLIT;
+    _next[state] = first;
+    _alt[state] = second;
+  }
+
+  void setJump(int state, int next)
+  {
+    _op[state] = OP_JUMP;
+    _next[state] = next;
+  }
+
+  /**
+   * Returns the state already compiled for a node, UNKNOWN if the node
+   * has not been compiled, or FAIL if it was compiled for a different
+   * continuation.
+   */
+  int getState(RegexpNode node, int next)
+  {
+    int []entry = _stateMap.get(node);
+
+    if (entry == null)
+      return UNKNOWN;
+    else if (entry[0] != next)
+      return FAIL;
+    else
+      return entry[1];
+  }
+
+  /**
+   * Records the state compiled for a node.
+   */
+  int putState(RegexpNode node, int next, int state)
+  {
+    if (state >= 0)
+      _stateMap.put(node, new int[] { next, state });
+
+    return state;
+  }
+
+  private int add(int op, int next, int alt, char ch, RegexpNode node)
+  {
+    if (op != OP_MATCH && op != OP_JUMP && next < 0 || MAX_STATES <= _size)
+      return FAIL;
+
+    if (_op.length <= _size) {
+      int length = 2 * _op.length;
+
+      _op = Arrays.copyOf(_op, length);
+      _next = Arrays.copyOf(_next, length);
+      _alt = Arrays.copyOf(_alt, length);
+      _ch = Arrays.copyOf(_ch, length);
+      _chUpper = Arrays.copyOf(_chUpper, length);
+      _node = Arrays.copyOf(_node, length);
+    }
+
+    int state = _size++;
+
+    _op[state] = op;
+    _next[state] = next;
+    _alt[state] = alt;
+    _ch[state] = ch;
+    _node[state] = node;
+
+    return state;
+  }
+
+  //
+  // matching
+  //
+
+  /**
+   * Finds the leftmost match at or after start, setting the groups of
+   * the state.
+   *
+   * @param isAnchored only match at start
+   * @param firstSet optional filter for the first matched character
+   *
+   * @return the end of the match, or -1
+   */
+  int match(StringValue subject, int length, int start,
+            boolean isAnchored, boolean []firstSet,
+            RegexpState state)
+  {
+    ThreadList []lists = getThreadLists(state);
+
+    for (ThreadList list : lists) {
+      list.clear();
+    }
+
+    int slotLength = 2 * _nGroup;
+
+    // fold case as the subject's regionMatchesIgnoreCase does
+    boolean isAsciiFold = subject instanceof StringBuilderValue;
+
+    int []matchSlots = null;
+    int matchEnd = -1;
+
+    for (int pos = start; pos <= length; pos++) {
+      ThreadList list = lists[pos % 3];
+
+      if (matchSlots == null && (pos == start || ! isAnchored)) {
+        if (! isAnchored && firstSet != null && isIdle(lists)) {
+          for (; pos < length; pos++) {
+            char ch = subject.charAt(pos);
+
+            if (256 <= ch || firstSet[ch])
+              break;
+          }
+
+          list = lists[pos % 3];
+        }
+
+        int []slots = new int[slotLength];
+        Arrays.fill(slots, -1);
+        slots[0] = pos;
+
+        addThread(list, _start, pos, slots, subject, length, state);
+      }
+      else if (isIdle(lists))
+        break;
+
+      for (int i = 0; i < list._size; i++) {
+        int pc = list._pc[i];
+        int []slots = list._slots[i];
+
+        switch (_op[pc]) {
+        case OP_MATCH:
+          matchSlots = slots;
+          matchEnd = pos;
+
+          // lower-priority threads are cut off by the match
+          i = list._size;
+          break;
+
+        case OP_CHAR:
+          if (pos < length && subject.charAt(pos) == _ch[pc])
+            addThread(lists[(pos + 1) % 3], _next[pc], pos + 1, slots,
+                      subject, length, state);
+          break;
+
+        case OP_CHAR_I:
+          if (pos < length && isCharIgnoreCase(pc, subject.charAt(pos),
+                                               isAsciiFold))
+            addThread(lists[(pos + 1) % 3], _next[pc], pos + 1, slots,
+                      subject, length, state);
+          break;
+
+        case OP_ONE:
+          if (pos < length
+              && _node[pc].match(subject, length, pos, state) >= 0)
+            addThread(lists[(pos + 1) % 3], _next[pc], pos + 1, slots,
+                      subject, length, state);
+          break;
+
+        case OP_NODE:
+          {
+            int end = _node[pc].match(subject, length, pos, state);
+
+            // surrogate pairs advance by two
+            if (pos < end && end <= pos + 2)
+              addThread(lists[end % 3], _next[pc], end, slots,
+                        subject, length, state);
+            break;
+          }
+        }
+      }
+
+      list.clear();
+    }
+
+    if (matchSlots == null)
+      return -1;
+
+    int groupLength = 0;
+
+    for (int i = 1; i < _nGroup; i++) {
+      state._groupBegin[i] = matchSlots[2 * i];
+      state._groupEnd[i] = matchSlots[2 * i + 1];
+
+      if (matchSlots[2 * i + 1] >= 0)
+        groupLength = i;
+    }
+
+    state._groupLength = groupLength;
+    state._groupBegin[0] = matchSlots[0];
+    state._groupEnd[0] = matchEnd;
+
+    return matchEnd;
+  }
+
+  /**
+   * Matches a case-insensitive character: byte strings fold only ASCII
+   * letters, unicode strings compare the lower case characters.
+   */
+  private boolean isCharIgnoreCase(int pc, char ch, boolean isAsciiFold)
+  {
+    if (isAsciiFold)
+      return ch == _ch[pc] || ch == _chUpper[pc];
+    else
+      return Character.toLowerCase(ch) == Character.toLowerCase(_ch[pc]);
+  }
+
+  /**
+   * Adds a thread and its empty transitions to the list for pos.
+   */
+  private void addThread(ThreadList list, int pc, int pos, int []slots,
+                         StringValue subject, int length,
+                         RegexpState state)
+  {
+    if (! list.mark(pc))
+      return;
+
+    switch (_op[pc]) {
+    case OP_JUMP:
+      addThread(list, _next[pc], pos, slots, subject, length, state);
+      break;
+
+    case OP_SPLIT:
+      addThread(list, _next[pc], pos, slots, subject, length, state);
+      addThread(list, _alt[pc], pos, slots, subject, length, state);
+      break;
+
+    case OP_SAVE:
+      {
+        int []copy = slots.clone();
+        copy[_alt[pc]] = pos;
+
+        addThread(list, _next[pc], pos, copy, subject, length, state);
+        break;
+      }
+
+    case OP_ASSERT:
+      if (_node[pc].match(subject, length, pos, state) >= 0)
+        addThread(list, _next[pc], pos, slots, subject, length, state);
+      break;
+
+    default:
+      list.add(pc, slots);
+      break;
+    }
+  }
+
+  private static boolean isIdle(ThreadList []lists)
+  {
+    return (lists[0]._size == 0
+            && lists[1]._size == 0
+            && lists[2]._size == 0);
+  }
+
+  private ThreadList []getThreadLists(RegexpState state)
+  {
+    ThreadList []lists = state._nfaThreadLists;
+
+    if (lists == null || lists[0]._pc.length < _size) {
+      lists = new ThreadList[3];
+
+      for (int i = 0; i < lists.length; i++) {
+        lists[i] = new ThreadList(_size);
+      }
+
+      state._nfaThreadLists = lists;
+    }
+
+    return lists;
+  }
+
+  @Override
+  public String toString()
+  {
+    return getClass().getSimpleName() + "[" + _size + "]";
+  }
+
+  /**
+   * Threads waiting at a single subject position, in priority order.
+   */
+  static final class ThreadList {
+    private final int []_pc;
+    private final int [][]_slots;
+    private final int []_mark;
+
+    private int _size;
+    private int _stamp = 1;
+
+    ThreadList(int capacity)
+    {
+      _pc = new int[capacity];
+      _slots = new int[capacity][];
+      _mark = new int[capacity];
+    }
+
+    /**
+     * Returns false if the state was already visited at this position.
+     */
+    boolean mark(int pc)
+    {
+      if (_mark[pc] == _stamp)
+        return false;
+
+      _mark[pc] = _stamp;
+
+      return true;
+    }
+
+    void add(int pc, int []slots)
+    {
+      _pc[_size] = pc;
+      _slots[_size] = slots;
+      _size++;
+    }
+
+    void clear()
+    {
+      for (int i = 0; i < _size; i++) {
+        _slots[i] = null;
+      }
+
+      _size = 0;
+
+      if (++_stamp == Integer.MAX_VALUE) {
+        Arrays.fill(_mark, 0);
+        _stamp = 1;
+      }
+    }
+  }
+}
@@ -257,6 +257,47 @@ class RegexpNode {
     throw new UnsupportedOperationException(getClass().getName());
   }
 
+  /**
+   * Compiles the node into the linear-time matcher, returning its entry
+   * state, or FAIL if the node needs the backtracking matcher.
+   */
+  int compileNfa(RegexpNfa nfa, int next)
+  {
+    return RegexpNfa.FAIL;
+  }
+
+  //
+  // code generation
+  //
+
+  /**
+   * Generates the body of a method equivalent to match().  Nodes without
+   * generated code are matched through the node graph.
+   */
+  void generateMatch(RegexpGenerator gen)
+  {
+    gen.println("return " + gen.matchNode(this, "offset") + ";");
+  }
+
+  /**
+   * Generates the node as the head of a concatenation, advancing offset
+   * or returning -1.
+   */
+  void generateHead(RegexpGenerator gen)
+  {
+    gen.println("offset = " + gen.matchNode(this, "offset") + ";");
+    gen.println("if (offset < 0)");
+    gen.println("  return -1;");
+  }
+
+  /**
+   * Returns an expression testing a single-character node at pos.
+   */
+  String generateTest(RegexpGenerator gen, String pos)
+  {
+    return "(" + gen.matchNode(this, pos) + " >= 0)";
+  }
+
   @Override
   public String toString()
   {
@@ -323,6 +364,12 @@ class RegexpNode {
     {
       return 1;
     }
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addNode(this, next);
+    }
   }
 
   static class CharNode extends AbstractCharNode {
@@ -333,6 +380,12 @@ class RegexpNode {
       _ch = ch;
     }
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addChar(_ch, next);
+    }
+
     @Override
     int firstChar()
     {
@@ -351,6 +404,22 @@ class RegexpNode {
         return null;
     }
 
+    @Override
+    void generateHead(RegexpGenerator gen)
+    {
+      gen.println("if (length <= offset || s.charAt(offset) != "
+                  + gen.charLiteral(_ch) + ")");
+      gen.println("  return -1;");
+      gen.println("offset++;");
+    }
+
+    @Override
+    String generateTest(RegexpGenerator gen, String pos)
+    {
+      return ("(" + pos + " < length && s.charAt(" + pos + ") == "
+              + gen.charLiteral(_ch) + ")");
+    }
+
     @Override
     int match(StringValue string, int length, int offset, RegexpState state)
     {
@@ -401,6 +470,10 @@ class RegexpNode {
     }
   }
 
+  /**
+   * \G, matching at the search start.  Like the other anchors it is
+   * an assertion node, so patterns using it also run on the Pike VM.
+   */
   static class AnchorBeginRelative extends NullableNode {
     @Override
     int match(StringValue string, int strlen, int offset, RegexpState state)
@@ -610,6 +683,76 @@ class RegexpNode {
       return firstSet;
     }
 
+    //
+    // linear-time matcher
+    //
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      if (RegexpNfa.MAX_REPEAT < _min
+          || _max != INTEGER_MAX && RegexpNfa.MAX_REPEAT < _max)
+        return RegexpNfa.FAIL;
+
+      int exit = _next.compileNfa(nfa, next);
+
+      if (exit < 0)
+        return RegexpNfa.FAIL;
+
+      int state;
+
+      if (_max == INTEGER_MAX) {
+        state = nfa.reserve();
+
+        int body = nfa.addOne(_node, state);
+
+        if (body < 0)
+          return RegexpNfa.FAIL;
+
+        nfa.setSplit(state, body, exit);
+      }
+      else {
+        state = exit;
+
+        for (int i = _min; i < _max; i++) {
+          state = nfa.addSplit(nfa.addOne(_node, state), exit);
+        }
+      }
+
+      for (int i = 0; i < _min; i++) {
+        state = nfa.addOne(_node, state);
+      }
+
+      return state;
+    }
+
+    //
+    // code generation
+    //
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      String test = _node.generateTest(gen, "offset + i");
+
+      gen.println("int i;");
+      gen.println("for (i = 0; i < " + _min + "; i++) {");
+      gen.println("  if (! " + test + ")");
+      gen.println("    return -1;");
+      gen.println("}");
+      gen.println("for (; i < " + _max + "; i++) {");
+      gen.println("  if (! " + test + ")");
+      gen.println("    break;");
+      gen.println("}");
+      gen.println("for (; " + _min + " <= i; i--) {");
+      gen.println("  step(state);");
+      gen.println("  int tail = " + gen.call(_next, "offset + i") + ";");
+      gen.println("  if (tail >= 0)");
+      gen.println("    return tail;");
+      gen.println("}");
+      gen.println("return -1;");
+    }
+
     //
     // match functions
     //
@@ -639,6 +782,8 @@ class RegexpNode {
       }
 
       for (; min <= i; i--) {
+        state.step();
+
         tail = next.match(string, length, offset + i, state);
 
         if (tail >= 0)
@@ -726,6 +871,74 @@ class RegexpNode {
       return firstSet;
     }
 
+    //
+    // linear-time matcher
+    //
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      if (RegexpNfa.MAX_REPEAT < _min
+          || _max != INTEGER_MAX && RegexpNfa.MAX_REPEAT < _max)
+        return RegexpNfa.FAIL;
+
+      int exit = _next.compileNfa(nfa, next);
+
+      if (exit < 0)
+        return RegexpNfa.FAIL;
+
+      int state;
+
+      if (_max == INTEGER_MAX) {
+        state = nfa.reserve();
+
+        int body = nfa.addOne(_node, state);
+
+        if (body < 0)
+          return RegexpNfa.FAIL;
+
+        nfa.setSplit(state, exit, body);
+      }
+      else {
+        state = exit;
+
+        for (int i = _min; i < _max; i++) {
+          state = nfa.addSplit(exit, nfa.addOne(_node, state));
+        }
+      }
+
+      for (int i = 0; i < _min; i++) {
+        state = nfa.addOne(_node, state);
+      }
+
+      return state;
+    }
+
+    //
+    // code generation
+    //
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      String test = _node.generateTest(gen, "offset + i");
+
+      gen.println("int i;");
+      gen.println("for (i = 0; i < " + _min + "; i++) {");
+      gen.println("  if (! " + test + ")");
+      gen.println("    return -1;");
+      gen.println("}");
+      gen.println("for (; i <= " + _max + "; i++) {");
+      gen.println("  step(state);");
+      gen.println("  int tail = " + gen.call(_next, "offset + i") + ";");
+      gen.println("  if (tail >= 0)");
+      gen.println("    return tail;");
+      gen.println("  if (! " + test + ")");
+      gen.println("    return -1;");
+      gen.println("}");
+      gen.println("return -1;");
+    }
+
     //
     // match functions
     //
@@ -749,6 +962,8 @@ class RegexpNode {
       }
 
       for (; i <= max; i++) {
+        state.step();
+
         tail = next.match(string, length, offset + i, state);
 
         if (tail >= 0)
@@ -840,6 +1055,19 @@ class RegexpNode {
       return _next;
     }
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return _head.compileNfa(nfa, _next.compileNfa(nfa, next));
+    }
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      _head.generateHead(gen);
+      gen.generateNext(_next);
+    }
+
     @Override
     int match(StringValue string, int length, int offset, RegexpState state)
     {
@@ -1029,6 +1257,23 @@ class RegexpNode {
     }
 
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return next;
+    }
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      gen.println("return offset;");
+    }
+
+    @Override
+    void generateHead(RegexpGenerator gen)
+    {
+    }
+
     @Override
     int match(StringValue string, int length, int offset, RegexpState state)
     {
@@ -1043,6 +1288,23 @@ class RegexpNode {
       return next;
     }
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return next;
+    }
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      gen.println("return offset;");
+    }
+
+    @Override
+    void generateHead(RegexpGenerator gen)
+    {
+    }
+
     @Override
     int match(StringValue string, int length, int offset, RegexpState state)
     {
@@ -1157,6 +1419,23 @@ class RegexpNode {
       return _node.isAnchorBegin();
     }
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addSave(_group, false, _node.compileNfa(nfa, next));
+    }
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      gen.println("int oldBegin = state.getBegin(" + _group + ");");
+      gen.println("state.setBegin(" + _group + ", offset);");
+      gen.println("int tail = " + gen.call(_node, "offset") + ";");
+      gen.println("if (tail < 0)");
+      gen.println("  state.setBegin(" + _group + ", oldBegin);");
+      gen.println("return tail;");
+    }
+
     @Override
     int match(StringValue string, int length, int offset, RegexpState state)
     {
@@ -1257,6 +1536,41 @@ class RegexpNode {
       return _next.minLength();
     }
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      int state = nfa.getState(this, next);
+
+      // the tail is shared by all alternatives of the group
+      if (state != RegexpNfa.UNKNOWN)
+        return state;
+
+      state = nfa.addSave(_group, true, _next.compileNfa(nfa, next));
+
+      return nfa.putState(this, next, state);
+    }
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      gen.println("int oldEnd = state.getEnd(" + _group + ");");
+      gen.println("int oldLength = state.getLength();");
+
+      if (_group > 0) {
+        gen.println("state.setEnd(" + _group + ", offset);");
+        gen.println("if (oldLength < " + _group + ")");
+        gen.println("  state.setLength(" + _group + ");");
+      }
+
+      gen.println("int tail = " + gen.call(_next, "offset") + ";");
+      gen.println("if (tail < 0) {");
+      gen.println("  state.setEnd(" + _group + ", oldEnd);");
+      gen.println("  state.setLength(oldLength);");
+      gen.println("  return -1;");
+      gen.println("}");
+      gen.println("return tail;");
+    }
+
     @Override
     int match(StringValue string, int length, int offset, RegexpState state)
     {
@@ -1412,6 +1726,12 @@ class RegexpNode {
     {
       return true;
     }
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addAssert(this, next);
+    }
   }
 
   static class LoopHead extends RegexpNode {
@@ -1477,6 +1797,68 @@ class RegexpNode {
       return firstSet;
     }
 
+    //
+    // linear-time matcher
+    //
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      // mandatory iterations after the first don't backtrack
+      if (1 < _min || _max != 1 && _max != INTEGER_MAX)
+        return RegexpNfa.FAIL;
+
+      LoopTail tail = (LoopTail) _tail;
+
+      int loop = nfa.reserve();
+      nfa.putState(tail, next, loop);
+
+      int exit = tail._next.compileNfa(nfa, next);
+      int body = _node.compileNfa(nfa, next);
+
+      if (exit < 0 || body < 0)
+        return RegexpNfa.FAIL;
+
+      if (_max == 1)
+        nfa.setJump(loop, exit);
+      else
+        nfa.setSplit(loop, body, exit);
+
+      if (_min == 0)
+        return nfa.addSplit(body, exit);
+      else
+        return body;
+    }
+
+    //
+    // code generation
+    //
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      String node = gen.call(_node, "offset");
+
+      gen.println("setLoopCount(state, " + _index + ", 0);");
+      gen.println("int i;");
+      gen.println("for (i = 0; i < " + (_min - 1) + "; i++) {");
+      gen.println("  setLoopCount(state, " + _index + ", i);");
+      gen.println("  offset = " + node + ";");
+      gen.println("  if (offset < 0)");
+      gen.println("    return offset;");
+      gen.println("}");
+      gen.println("setLoopCount(state, " + _index + ", i);");
+      gen.println("setLoopOffset(state, " + _index + ", offset);");
+      gen.println("int tail = " + node + ";");
+      gen.println("if (tail >= 0)");
+      gen.println("  return tail;");
+      gen.println("else if (getLoopCount(state, " + _index + ") < "
+                  + _min + ")");
+      gen.println("  return tail;");
+      gen.println("else");
+      gen.println("  return " + gen.call(_tail, "offset") + ";");
+    }
+
     //
     // match functions
     //
@@ -1550,6 +1932,47 @@ class RegexpNode {
       return this;
     }
 
+    //
+    // linear-time matcher
+    //
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      // the state is reserved by the loop head
+      int state = nfa.getState(this, next);
+
+      return state >= 0 ? state : RegexpNfa.FAIL;
+    }
+
+    //
+    // code generation
+    //
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      gen.println("int oldCount = getLoopCount(state, " + _index + ");");
+      gen.println("if (oldCount + 1 < " + _head._min + ")");
+      gen.println("  return offset;");
+      gen.println("else if (oldCount + 1 < " + _head._max + ") {");
+      gen.println("  int oldOffset = getLoopOffset(state, " + _index + ");");
+      gen.println("  if (oldOffset != offset) {");
+      gen.println("    setLoopCount(state, " + _index + ", oldCount + 1);");
+      gen.println("    setLoopOffset(state, " + _index + ", offset);");
+      gen.println("    step(state);");
+      gen.println("    enter(state);");
+      gen.println("    int tail = " + gen.call(_head._node, "offset") + ";");
+      gen.println("    exit(state);");
+      gen.println("    if (tail >= 0)");
+      gen.println("      return tail;");
+      gen.println("    setLoopCount(state, " + _index + ", oldCount);");
+      gen.println("    setLoopOffset(state, " + _index + ", oldOffset);");
+      gen.println("  }");
+      gen.println("}");
+      gen.println("return " + gen.call(_next, "offset") + ";");
+    }
+
     //
     // match functions
     //
@@ -1568,7 +1991,13 @@ class RegexpNode {
           state._loopCount[_index] = oldCount + 1;
           state._loopOffset[_index] = offset;
 
+          state.step();
+          state.enter();
+
           int tail = _head._node.match(string, strlen, offset, state);
+
+          state.exit();
+
           if (tail >= 0)
             return tail;
 
@@ -1638,6 +2067,64 @@ class RegexpNode {
       return _min * _node.minLength() + _tail.minLength();
     }
 
+    //
+    // linear-time matcher
+    //
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      // mandatory iterations don't backtrack
+      if (_min != 0 || _max != 1 && _max != INTEGER_MAX)
+        return RegexpNfa.FAIL;
+
+      int loop = nfa.reserve();
+      nfa.putState(_tail, next, loop);
+
+      int exit = _tail._next.compileNfa(nfa, next);
+      int body = _node.compileNfa(nfa, next);
+
+      if (exit < 0 || body < 0)
+        return RegexpNfa.FAIL;
+
+      if (_max == 1)
+        nfa.setJump(loop, exit);
+      else
+        nfa.setSplit(loop, exit, body);
+
+      return nfa.addSplit(exit, body);
+    }
+
+    //
+    // code generation
+    //
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      String node = gen.call(_node, "offset");
+
+      gen.println("setLoopCount(state, " + _index + ", 0);");
+      gen.println("for (int i = 0; i < " + _min + "; i++) {");
+      gen.println("  setLoopCount(state, " + _index + ", i);");
+      gen.println("  setLoopOffset(state, " + _index + ", offset);");
+      gen.println("  offset = " + node + ";");
+      gen.println("  if (offset < 0)");
+      gen.println("    return -1;");
+      gen.println("}");
+      gen.println("int tail = " + gen.call(_tail._next, "offset") + ";");
+      gen.println("if (tail >= 0)");
+      gen.println("  return tail;");
+
+      if (_min < _max) {
+        gen.println("setLoopCount(state, " + _index + ", " + _min + ");");
+        gen.println("setLoopOffset(state, " + _index + ", offset);");
+        gen.println("return " + node + ";");
+      }
+      else
+        gen.println("return -1;");
+    }
+
     //
     // match functions
     //
@@ -1714,6 +2201,50 @@ class RegexpNode {
       return this;
     }
 
+    //
+    // linear-time matcher
+    //
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      // the state is reserved by the loop head
+      int state = nfa.getState(this, next);
+
+      return state >= 0 ? state : RegexpNfa.FAIL;
+    }
+
+    //
+    // code generation
+    //
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      gen.println("int i = getLoopCount(state, " + _index + ");");
+      gen.println("int oldOffset = getLoopOffset(state, " + _index + ");");
+      gen.println("if (i < " + _head._min + ")");
+      gen.println("  return offset;");
+      gen.println("if (offset == oldOffset)");
+      gen.println("  return -1;");
+      gen.println("int tail = " + gen.call(_next, "offset") + ";");
+      gen.println("if (tail >= 0)");
+      gen.println("  return tail;");
+      gen.println("if (i + 1 < " + _head._max + ") {");
+      gen.println("  setLoopCount(state, " + _index + ", i + 1);");
+      gen.println("  setLoopOffset(state, " + _index + ", offset);");
+      gen.println("  step(state);");
+      gen.println("  enter(state);");
+      gen.println("  tail = " + gen.call(_head._node, "offset") + ";");
+      gen.println("  exit(state);");
+      gen.println("  setLoopCount(state, " + _index + ", i);");
+      gen.println("  setLoopOffset(state, " + _index + ", oldOffset);");
+      gen.println("  return tail;");
+      gen.println("}");
+      gen.println("else");
+      gen.println("  return -1;");
+    }
+
     //
     // match functions
     //
@@ -1738,8 +2269,13 @@ class RegexpNode {
         state._loopCount[_index] = i + 1;
         state._loopOffset[_index] = offset;
 
+        state.step();
+        state.enter();
+
         tail = _head._node.match(string, strlen, offset, state);
 
+        state.exit();
+
         state._loopCount[_index] = i;
         state._loopOffset[_index] = oldOffset;
 
@@ -1855,10 +2391,38 @@ class RegexpNode {
       return _left.isAnchorBegin() && _right != null && _right.isAnchorBegin();
     }
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      int left = _left.compileNfa(nfa, next);
+
+      if (_right == null || left < 0)
+        return left;
+
+      return nfa.addSplit(left, _right.compileNfa(nfa, next));
+    }
+
+    @Override
+    void generateMatch(RegexpGenerator gen)
+    {
+      gen.println("int tail;");
+
+      for (Or ptr = this; ptr != null; ptr = ptr._right) {
+        gen.println("step(state);");
+        gen.println("tail = " + gen.call(ptr._left, "offset") + ";");
+        gen.println("if (tail >= 0)");
+        gen.println("  return tail;");
+      }
+
+      gen.println("return -1;");
+    }
+
     @Override
     int match(StringValue string, int strlen, int offset, RegexpState state)
     {
       for (Or ptr = this; ptr != null; ptr = ptr._right) {
+        state.step();
+
         int value = ptr._left.match(string, strlen, offset, state);
 
         if (value >= 0)
@@ -2460,7 +3024,13 @@ class RegexpNode {
     @Override
     int match(StringValue string, int length, int offset, RegexpState state)
     {
-      return _top.match(string, length, offset, state);
+      state.enter();
+
+      int tail = _top.match(string, length, offset, state);
+
+      state.exit();
+
+      return tail;
     }
   }
 
@@ -2636,6 +3206,29 @@ class RegexpNode {
       return new String(_buffer, 0, _length);
     }
 
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      int state = next;
+
+      for (int i = _length - 1; i >= 0; i--) {
+        state = nfa.addChar(_buffer[i], state);
+      }
+
+      return state;
+    }
+
+    @Override
+    void generateHead(RegexpGenerator gen)
+    {
+      String chars = gen.addChars(_buffer, _length);
+
+      gen.println("if (! s.regionMatches(offset, " + chars + ", 0, "
+                  + _length + "))");
+      gen.println("  return -1;");
+      gen.println("offset += " + _length + ";");
+    }
+
     //
     // match function
     //
@@ -2780,7 +3373,31 @@ class RegexpNode {
     @Override
     String prefix()
     {
-      return new String(_buffer, 0, _length);
+      // the case of the subject isn't known
+      return "";
+    }
+
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      int state = next;
+
+      for (int i = _length - 1; i >= 0; i--) {
+        state = nfa.addCharIgnoreCase(_buffer[i], state);
+      }
+
+      return state;
+    }
+
+    @Override
+    void generateHead(RegexpGenerator gen)
+    {
+      String chars = gen.addChars(_buffer, _length);
+
+      gen.println("if (! s.regionMatchesIgnoreCase(offset, " + chars + ", 0, "
+                  + _length + "))");
+      gen.println("  return -1;");
+      gen.println("offset += " + _length + ";");
     }
 
     //
@@ -2797,12 +3414,36 @@ class RegexpNode {
     }
   }
 
+  /**
+   * Matches through the code generated for a hot regexp.
+   */
+  static final class Compiled extends RegexpNode {
+    private final CompiledRegexp _compiled;
+
+    Compiled(CompiledRegexp compiled)
+    {
+      _compiled = compiled;
+    }
+
+    @Override
+    int match(StringValue string, int length, int offset, RegexpState state)
+    {
+      return _compiled.match(string, length, offset, state);
+    }
+  }
+
   static final StringBegin STRING_BEGIN = new StringBegin();
   static final StringEnd STRING_END = new StringEnd();
   static final StringFirst STRING_FIRST = new StringFirst();
   static final StringNewline STRING_NEWLINE = new StringNewline();
 
   private static class StringBegin extends RegexpNode {
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addAssert(this, next);
+    }
+
     @Override
     int match(StringValue string, int strlen, int offset, RegexpState state)
     {
@@ -2814,6 +3455,12 @@ class RegexpNode {
   }
 
   private static class StringEnd extends RegexpNode {
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addAssert(this, next);
+    }
+
     @Override
     int match(StringValue string, int strlen, int offset, RegexpState state)
     {
@@ -2836,6 +3483,12 @@ class RegexpNode {
   }
 
   private static class StringNewline extends RegexpNode {
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addAssert(this, next);
+    }
+
     @Override
     int match(StringValue string, int strlen, int offset, RegexpState state)
     {
@@ -2851,6 +3504,12 @@ class RegexpNode {
   static final NotWord NOT_WORD = new NotWord();
 
   private static class Word extends RegexpNode {
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addAssert(this, next);
+    }
+
     @Override
     int match(StringValue string, int strlen, int offset, RegexpState state)
     {
@@ -2865,6 +3524,12 @@ class RegexpNode {
   }
 
   private static class NotWord extends RegexpNode {
+    @Override
+    int compileNfa(RegexpNfa nfa, int next)
+    {
+      return nfa.addAssert(this, next);
+    }
+
     @Override
     int match(StringValue string, int strlen, int offset, RegexpState state)
     {
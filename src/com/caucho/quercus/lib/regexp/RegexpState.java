@@ -33,7 +33,6 @@ import java.util.*;
 import java.util.logging.*;
 
 import com.caucho.quercus.QuercusException;
-import com.caucho.quercus.QuercusRuntimeException;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.util.*;
@@ -47,6 +46,7 @@ public class RegexpState {
   public static final int FAIL = -1;
   public static final int SUCCESS = 0;
 
+  private Env _env;
   private Regexp _regexp;
 
   private StringValue _subject;
@@ -74,6 +74,17 @@ public class RegexpState {
   int []_loopCount;
   int []_loopOffset;
 
+  RegexpNfa.ThreadList []_nfaThreadLists;
+
+  // pcre.backtrack_limit and pcre.recursion_limit
+  private long _backtrackLimit;
+  private long _recursionLimit;
+
+  private long _backtrackCount;
+  private long _recursionDepth;
+
+  private int _error;
+
   private RegexpState()
   {
     int size = 32;
@@ -85,8 +96,9 @@ public class RegexpState {
     _loopOffset = new int[size];
   }
 
-  private void init(Regexp regexp)
+  private void init(Env env, Regexp regexp)
   {
+    _env = env;
     _regexp = regexp;
 
     int nGroup = regexp._nGroup;
@@ -118,6 +130,11 @@ public class RegexpState {
 
     _isUTF8 = false;
     _isEval = false;
+
+    _backtrackLimit = RegexpModule.INI_PCRE_BACKTRACK_LIMIT.getAsLong(env);
+    _recursionLimit = RegexpModule.INI_PCRE_RECURSION_LIMIT.getAsLong(env);
+
+    _error = RegexpModule.PREG_NO_ERROR;
   }
 
   public static RegexpState create(Env env, Regexp regexp)
@@ -127,7 +144,11 @@ public class RegexpState {
     if (state == null)
       state = new RegexpState();
 
-    state.init(regexp);
+    state.init(env, regexp);
+
+    RegexpModule.clearLastError(env);
+
+    regexp.use(env);
 
     return state;
   }
@@ -177,6 +198,8 @@ public class RegexpState {
       if (_subject == null)
         return false;
 
+      resetLimits();
+
       StringValue subject = _subject;
       int length = _subjectLength;
 
@@ -187,6 +210,32 @@ public class RegexpState {
       }
       */
 
+      RegexpNfa nfa = _regexp._nfa;
+
+      if (nfa != null) {
+        clearGroup();
+
+        int offset = -1;
+
+        if (_first + minLength <= length)
+          offset = nfa.match(subject, length, _first, false, firstSet, this);
+
+        if (offset >= 0) {
+          int begin = _groupBegin[0];
+
+          if (begin < offset)
+            _first = offset;
+          else
+            _first = begin + 1;
+
+          return true;
+        }
+
+        _first = length + 1;
+
+        return false;
+      }
+
       for (; _first + minLength <= length; _first++) {
         if (firstSet != null && _first < length) {
           char firstChar = subject.charAt(_first);
@@ -213,13 +262,22 @@ public class RegexpState {
 
       _first = length + 1;
 
+      return false;
+    } catch (RegexpLimitException e) {
+      setError(e.getError());
+
+      _first = _subjectLength + 1;
+
       return false;
     } catch (StackOverflowError e) {
       log.warning(L.l("regexp '{0}' produces a StackOverflowError for\n{1}",
                       _regexp, _subject));
 
-      throw new QuercusRuntimeException(
-          L.l("regexp '{0}' produces a StackOverflowError", _regexp), e);
+      setError(RegexpModule.PREG_RECURSION_LIMIT_ERROR);
+
+      _first = _subjectLength + 1;
+
+      return false;
     }
   }
 
@@ -240,8 +298,9 @@ public class RegexpState {
       log.warning(L.l("regexp '{0}' produces a StackOverflowError for\n{1}",
                       _regexp, subject));
 
-      throw new QuercusRuntimeException(
-          L.l("regexp '{0}' produces a StackOverflowError", _regexp), e);
+      setError(RegexpModule.PREG_RECURSION_LIMIT_ERROR);
+
+      return false;
     }
   }
 
@@ -261,14 +320,25 @@ public class RegexpState {
 
       _first = first;
       clearGroup();
+      resetLimits();
+
+      RegexpNfa nfa = _regexp._nfa;
+
+      if (nfa != null)
+        return nfa.match(_subject, _subjectLength, first, true, null, this);
 
       return _regexp._prog.match(_subject, _subjectLength, first, this);
+    } catch (RegexpLimitException e) {
+      setError(e.getError());
+
+      return -1;
     } catch (StackOverflowError e) {
       log.warning(L.l("regexp '{0}' produces a StackOverflowError for\n{1}",
                       _regexp, subject));
 
-      throw new QuercusRuntimeException(
-          L.l("regexp '{0}' produces a StackOverflowError", _regexp), e);
+      setError(RegexpModule.PREG_RECURSION_LIMIT_ERROR);
+
+      return -1;
     }
   }
 
@@ -291,6 +361,7 @@ public class RegexpState {
       }
 
       clearGroup();
+      resetLimits();
 
       _start = start;
       _first = start;
@@ -307,6 +378,18 @@ public class RegexpState {
       if (_regexp._isAnchorBegin)
         end = start;
 
+      RegexpNfa nfa = _regexp._nfa;
+
+      if (nfa != null) {
+        if (end < start)
+          return -1;
+
+        int value = nfa.match(subject, subjectLength, start,
+                              _regexp._isAnchorBegin, firstSet, this);
+
+        return value >= 0 ? _groupBegin[0] : -1;
+      }
+
       for (; start <= end; start++) {
         if (firstSet != null && (start < end || minLength > 0)) {
           char firstChar = subject.charAt(start);
@@ -325,16 +408,77 @@ public class RegexpState {
         }
       }
 
+      return -1;
+    } catch (RegexpLimitException e) {
+      setError(e.getError());
+
       return -1;
     } catch (StackOverflowError e) {
       log.warning(L.l("regexp '{0}' produces a StackOverflowError for\n{1}",
                       _regexp, subject));
 
-      throw new QuercusRuntimeException(
-          L.l("regexp '{0}' produces a StackOverflowError", _regexp), e);
+      setError(RegexpModule.PREG_RECURSION_LIMIT_ERROR);
+
+      return -1;
     }
   }
 
+  /**
+   * Returns the preg_last_error() code of the last match.
+   */
+  public int getError()
+  {
+    return _error;
+  }
+
+  /**
+   * Returns true if the last match was aborted by a pcre limit.
+   */
+  public boolean isError()
+  {
+    return _error != RegexpModule.PREG_NO_ERROR;
+  }
+
+  private void setError(int error)
+  {
+    _error = error;
+
+    RegexpModule.setLastError(_env, error);
+  }
+
+  private void resetLimits()
+  {
+    _backtrackCount = 0;
+    _recursionDepth = 0;
+  }
+
+  /**
+   * Counts a backtracking step, aborting the match when
+   * pcre.backtrack_limit is exceeded.
+   */
+  final void step()
+  {
+    if (_backtrackLimit <= _backtrackCount++)
+      throw new RegexpLimitException(
+        RegexpModule.PREG_BACKTRACK_LIMIT_ERROR);
+  }
+
+  /**
+   * Enters a nested loop iteration, aborting the match when
+   * pcre.recursion_limit is exceeded.
+   */
+  final void enter()
+  {
+    if (_recursionLimit <= _recursionDepth++)
+      throw new RegexpLimitException(
+        RegexpModule.PREG_RECURSION_LIMIT_ERROR);
+  }
+
+  final void exit()
+  {
+    _recursionDepth--;
+  }
+
   private void clearGroup()
   {
     _groupLength = 0;
@@ -35,6 +35,8 @@ import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.UnsetValue;
 import com.caucho.quercus.env.Value;
+import com.caucho.quercus.lib.file.DirectoryEntry;
+import com.caucho.quercus.lib.file.DirectoryScanner;
 import com.caucho.vfs.Path;
 
 import java.io.IOException;
@@ -43,7 +45,7 @@ public class DirectoryIterator
   extends SplFileInfo
   implements Iterator, Traversable, SeekableIterator
 {
-  private String[] _list;
+  private DirectoryEntry []_list;
   private int _index;
 
   private DirectoryIterator _current;
@@ -52,49 +54,64 @@ public class DirectoryIterator
   {
     super(env, fileName);
 
-    try {
-      _list = _path.list();
-    }
-    catch (IOException e) {
-      // XXX: throw the right exception class
-      throw new QuercusRuntimeException(e);
-    }
+    _list = list(_path);
   }
 
   protected DirectoryIterator(Path path)
   {
     super(path);
 
+    _list = list(path);
+  }
+
+  /**
+   * Creates the iterator for an entry of a parent's listing, which
+   * only reads its own directory if it's iterated.
+   */
+  protected DirectoryIterator(DirectoryEntry entry)
+  {
+    super(entry);
+  }
+
+  private static DirectoryEntry []list(Path path)
+  {
     try {
-      _list = path.list();
+      return DirectoryScanner.list(path, true);
     }
     catch (IOException e) {
-      // XXX: throw new the right exception class
+      // XXX: throw the right exception class
       throw new QuercusRuntimeException(e);
     }
   }
 
-  @Override
-  public Value current(Env env)
+  private DirectoryEntry []getList()
   {
-    if (_current == null && _index < _list.length) {
-      String name = _list[_index];
+    if (_list == null)
+      _list = list(_path);
 
-      Path child = _path.lookup(name);
+    return _list;
+  }
 
-      _current = createCurrentIterator(env, child);
-    }
+  @Override
+  public Value current(Env env)
+  {
+    DirectoryIterator current = getCurrent();
 
-    return _current != null ? env.wrapJava(_current) : UnsetValue.UNSET;
+    return current != null ? env.wrapJava(current) : UnsetValue.UNSET;
   }
 
-  protected DirectoryIterator createCurrentIterator(Env env, Path path)
+  protected DirectoryIterator createCurrentIterator(DirectoryEntry entry)
   {
-    return new DirectoryIterator(path);
+    return new DirectoryIterator(entry);
   }
 
   protected DirectoryIterator getCurrent()
   {
+    DirectoryEntry []list = getList();
+
+    if (_current == null && _index < list.length)
+      _current = createCurrentIterator(list[_index]);
+
     return _current;
   }
 
@@ -108,23 +125,26 @@ public class DirectoryIterator
   public void next(Env env)
   {
     _index++;
+    _current = null;
   }
 
   @Override
   public void rewind()
   {
     _index = 0;
+    _current = null;
   }
 
   @Override
   public boolean valid()
   {
-    return _index < _list.length;
+    return _index < getList().length;
   }
 
   @Override
   public void seek(Env env, int index)
   {
     _index = index;
+    _current = null;
   }
 }
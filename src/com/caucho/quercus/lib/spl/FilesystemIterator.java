@@ -32,6 +32,7 @@ package com.caucho.quercus.lib.spl;
 import com.caucho.quercus.annotation.Optional;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.lib.file.DirectoryEntry;
 import com.caucho.vfs.Path;
 
 public class FilesystemIterator extends DirectoryIterator
@@ -71,6 +72,13 @@ public class FilesystemIterator extends DirectoryIterator
     _flags = flags;
   }
 
+  protected FilesystemIterator(DirectoryEntry entry, int flags)
+  {
+    super(entry);
+
+    _flags = flags;
+  }
+
   public int getFlags()
   {
     return _flags;
@@ -32,6 +32,7 @@ package com.caucho.quercus.lib.spl;
 import com.caucho.quercus.annotation.Optional;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.lib.file.DirectoryEntry;
 import com.caucho.vfs.Path;
 
 public class RecursiveDirectoryIterator
@@ -50,6 +51,11 @@ public class RecursiveDirectoryIterator
     super(path, flags);
   }
 
+  protected RecursiveDirectoryIterator(DirectoryEntry entry, int flags)
+  {
+    super(entry, flags);
+  }
+
   @Override
   public boolean hasChildren()
   {
@@ -69,8 +75,8 @@ public class RecursiveDirectoryIterator
   }
 
   @Override
-  protected DirectoryIterator createCurrentIterator(Env env, Path path)
+  protected DirectoryIterator createCurrentIterator(DirectoryEntry entry)
   {
-    return new RecursiveDirectoryIterator(path, getFlags());
+    return new RecursiveDirectoryIterator(entry, getFlags());
   }
 }
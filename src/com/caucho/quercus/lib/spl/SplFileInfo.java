@@ -34,11 +34,16 @@ import com.caucho.quercus.annotation.Optional;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.Value;
+import com.caucho.quercus.lib.file.DirectoryEntry;
 import com.caucho.vfs.Path;
 
 public class SplFileInfo
 {
   protected Path _path;
+
+  // attributes read by a directory listing, if any
+  private DirectoryEntry _entry;
+
   private String _openFileClassName;
   private String _infoFileClassName;
 
@@ -52,6 +57,14 @@ public class SplFileInfo
     _path = path;
   }
 
+  protected SplFileInfo(DirectoryEntry entry)
+  {
+    _path = entry.getPath();
+
+    if (entry.isStat())
+      _entry = entry;
+  }
+
   protected SplFileInfo(Env env, StringValue fileName, boolean isUseIncludePath)
   {
     _path = init(env, fileName, true);
@@ -69,6 +82,9 @@ public class SplFileInfo
 
   public long getATime()
   {
+    if (_entry != null)
+      return _entry.getLastAccessTime() / 1000;
+
     return _path.getLastAccessTime() / 1000;
   }
 
@@ -85,6 +101,9 @@ public class SplFileInfo
 
   public long getCTime()
   {
+    if (_entry != null)
+      return _entry.getCreateTime() / 1000;
+
     return _path.getCreateTime() / 1000;
   }
 
@@ -129,6 +148,9 @@ public class SplFileInfo
 
   public long getMTime()
   {
+    if (_entry != null)
+      return _entry.getLastModified() / 1000;
+
     return _path.getLastModified() / 1000;
   }
 
@@ -166,18 +188,21 @@ public class SplFileInfo
 
   public long getSize()
   {
+    if (_entry != null)
+      return _entry.getLength();
+
     return _path.getLength();
   }
 
   public String getType()
   {
-    if (_path.isLink()) {
+    if (isLink()) {
       return "link";
     }
-    else if (_path.isDirectory()) {
+    else if (isDir()) {
       return "dir";
     }
-    else if (_path.isFile()) {
+    else if (isFile()) {
       return "file";
     }
     else {
@@ -188,6 +213,9 @@ public class SplFileInfo
 
   public boolean isDir()
   {
+    if (_entry != null)
+      return _entry.isDirectory();
+
     return _path.isDirectory();
   }
 
@@ -198,11 +226,17 @@ public class SplFileInfo
 
   public boolean isFile()
   {
+    if (_entry != null)
+      return _entry.isFile();
+
     return _path.isFile();
   }
 
   public boolean isLink()
   {
+    if (_entry != null)
+      return _entry.isLink();
+
     return _path.isLink();
   }
 
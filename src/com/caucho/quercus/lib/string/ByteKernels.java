@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+
+package com.caucho.quercus.lib.string;
+
+import com.caucho.quercus.env.StringBuilderValue;
+import com.caucho.quercus.env.StringValue;
+
+/**
+ * Search, case mapping and escaping loops over the byte buffer of a
+ * StringBuilderValue, avoiding a virtual charAt() per character.
+ * A string without a match or an escapable character is returned
+ * unchanged.
+ */
+public final class ByteKernels {
+  private static final byte []LOWER = new byte[256];
+  private static final byte []UPPER = new byte[256];
+
+  private ByteKernels()
+  {
+  }
+
+  //
+  // search
+  //
+
+  /**
+   * Returns the first index of the byte in [offset, end), or -1.
+   */
+  public static int indexOf(byte []buffer, int offset, int end, int b)
+  {
+    for (; offset < end; offset++) {
+      if (buffer[offset] == (byte) b)
+        return offset;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Returns the first index of the needle in [offset, end), or -1.
+   */
+  public static int indexOf(byte []buffer, int offset, int end,
+                            byte []needle, int needleLength)
+  {
+    if (needleLength <= 0 || offset < 0)
+      return -1;
+
+    byte first = needle[0];
+    int last = end - needleLength;
+
+    while (offset <= last) {
+      offset = indexOf(buffer, offset, last + 1, first);
+
+      if (offset < 0)
+        return -1;
+      else if (regionMatches(buffer, offset, needle, needleLength))
+        return offset;
+
+      offset++;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Returns the first index of the needle ignoring ASCII case, or -1.
+   */
+  public static int indexOfIgnoreCase(byte []buffer, int offset, int end,
+                                      byte []needle, int needleLength)
+  {
+    if (needleLength <= 0 || offset < 0)
+      return -1;
+
+    byte lower = LOWER[needle[0] & 0xff];
+    byte upper = UPPER[needle[0] & 0xff];
+    int last = end - needleLength;
+
+    for (; offset <= last; offset++) {
+      byte ch = buffer[offset];
+
+      if (ch != lower && ch != upper)
+        continue;
+
+      if (regionMatchesIgnoreCase(buffer, offset, needle, needleLength))
+        return offset;
+    }
+
+    return -1;
+  }
+
+  /**
+   * Counts the non-overlapping occurrences of the needle.
+   */
+  public static int count(byte []buffer, int offset, int end,
+                          byte []needle, int needleLength)
+  {
+    int count = 0;
+
+    while ((offset = indexOf(buffer, offset, end,
+                             needle, needleLength)) >= 0) {
+      count++;
+      offset += needleLength;
+    }
+
+    return count;
+  }
+
+  private static boolean regionMatches(byte []buffer, int offset,
+                                       byte []needle, int needleLength)
+  {
+    for (int i = 1; i < needleLength; i++) {
+      if (buffer[offset + i] != needle[i])
+        return false;
+    }
+
+    return true;
+  }
+
+  private static boolean regionMatchesIgnoreCase(byte []buffer, int offset,
+                                                 byte []needle,
+                                                 int needleLength)
+  {
+    for (int i = 0; i < needleLength; i++) {
+      if (LOWER[buffer[offset + i] & 0xff] != LOWER[needle[i] & 0xff])
+        return false;
+    }
+
+    return true;
+  }
+
+  //
+  // case mapping
+  //
+
+  /**
+   * Converts ASCII upper case to lower case, returning the string itself
+   * if it has no upper case letters.
+   */
+  public static StringValue toLowerCase(StringBuilderValue string)
+  {
+    return mapCase(string, 'A', 'Z', LOWER);
+  }
+
+  /**
+   * Converts ASCII lower case to upper case, returning the string itself
+   * if it has no lower case letters.
+   */
+  public static StringValue toUpperCase(StringBuilderValue string)
+  {
+    return mapCase(string, 'a', 'z', UPPER);
+  }
+
+  private static StringValue mapCase(StringBuilderValue string,
+                                     int min, int max, byte []table)
+  {
+    byte []buffer = string.getBuffer();
+    int length = string.length();
+
+    int first = indexOfRange(buffer, 0, length, min, max);
+
+    if (first < 0)
+      return string;
+
+    StringBuilderValue sb = string.createStringBuilder(length);
+    sb.append(buffer, 0, first);
+
+    byte []dst = sb.getBuffer();
+
+    for (int i = first; i < length; i++) {
+      dst[i] = table[buffer[i] & 0xff];
+    }
+
+    sb.setLength(length);
+
+    return sb;
+  }
+
+  /**
+   * Returns the first index of an ASCII byte in [min, max], or -1.
+   */
+  private static int indexOfRange(byte []buffer, int offset, int end,
+                                  int min, int max)
+  {
+    for (; offset < end; offset++) {
+      int ch = buffer[offset];
+
+      if (min <= ch && ch <= max)
+        return offset;
+    }
+
+    return -1;
+  }
+
+  //
+  // escaping
+  //
+
+  /**
+   * Replaces each escapable byte by its replacement, returning the string
+   * itself if there is nothing to escape.
+   */
+  public static StringValue escape(StringBuilderValue string, Escape escape)
+  {
+    byte []buffer = string.getBuffer();
+    int length = string.length();
+
+    int i = escape.indexOf(buffer, 0, length);
+
+    if (i < 0)
+      return string;
+
+    StringBuilderValue sb = string.createStringBuilder(length + length / 4);
+
+    int head = 0;
+
+    for (; i >= 0; i = escape.indexOf(buffer, head, length)) {
+      sb.append(buffer, head, i - head);
+
+      byte []replacement = escape._replacements[buffer[i] & 0xff];
+      sb.append(replacement, 0, replacement.length);
+
+      head = i + 1;
+    }
+
+    sb.append(buffer, head, length - head);
+
+    return sb;
+  }
+
+  /**
+   * A set of bytes and their replacements.
+   */
+  public static final class Escape {
+    private final boolean []_isEscape = new boolean[256];
+    private final byte [][]_replacements = new byte[256][];
+
+    public Escape(String chars, String ...replacements)
+    {
+      if (chars.length() != replacements.length)
+        throw new IllegalArgumentException(chars);
+
+      for (int i = 0; i < chars.length(); i++) {
+        int ch = chars.charAt(i) & 0xff;
+
+        _isEscape[ch] = true;
+        _replacements[ch] = toBytes(replacements[i]);
+      }
+    }
+
+    /**
+     * Returns the first index of an escapable byte, or -1.
+     */
+    int indexOf(byte []buffer, int offset, int end)
+    {
+      boolean []isEscape = _isEscape;
+
+      for (; offset < end; offset++) {
+        if (isEscape[buffer[offset] & 0xff])
+          return offset;
+      }
+
+      return -1;
+    }
+
+    private static byte []toBytes(String s)
+    {
+      byte []bytes = new byte[s.length()];
+
+      for (int i = 0; i < bytes.length; i++) {
+        bytes[i] = (byte) s.charAt(i);
+      }
+
+      return bytes;
+    }
+  }
+
+  static {
+    for (int i = 0; i < 256; i++) {
+      LOWER[i] = (byte) i;
+      UPPER[i] = (byte) i;
+    }
+
+    for (int ch = 'A'; ch <= 'Z'; ch++) {
+      LOWER[ch] = (byte) (ch + 'a' - 'A');
+    }
+
+    for (int ch = 'a'; ch <= 'z'; ch++) {
+      UPPER[ch] = (byte) (ch + 'A' - 'a');
+    }
+  }
+}
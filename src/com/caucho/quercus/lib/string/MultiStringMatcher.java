@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+
+package com.caucho.quercus.lib.string;
+
+import com.caucho.quercus.env.Env;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+
+import java.util.Arrays;
+
+/**
+ * Aho-Corasick automaton matching a set of strings in a single pass
+ * over the subject.
+ *
+ * Replacement follows the strtr rules: scanning left to right, the
+ * longest key starting at the earliest position wins, and replaced
+ * text is not rescanned.
+ */
+public final class MultiStringMatcher {
+  private static final String CACHE_NAME = "caucho.multi_string_matcher";
+  private static final int CACHE_SIZE = 8;
+
+  // limit on the transition table entries
+  private static final int MAX_TABLE = 1 << 22;
+
+  private static final MultiStringMatcher NONE
+    = new MultiStringMatcher(new StringValue[0], new char[0], 1, 1);
+
+  private final StringValue []_keys;
+
+  // maps a character to its column in the transition table
+  private final char []_classMap;
+  private final int _width;
+
+  private final int []_next;
+  private final int []_depth;
+  private final int []_fail;
+
+  // key index of a terminal state, or -1
+  private final int []_key;
+  // nearest terminal state through the fail links, including itself
+  private final int []_output;
+
+  private final int []_keyState;
+
+  private MultiStringMatcher(StringValue []keys,
+                             char []classMap,
+                             int width,
+                             int size)
+  {
+    _keys = keys;
+    _classMap = classMap;
+    _width = width;
+
+    _next = new int[size * width];
+    _depth = new int[size];
+    _fail = new int[size];
+    _key = new int[size];
+    _output = new int[size];
+    _keyState = new int[keys.length];
+  }
+
+  /**
+   * Builds the automaton for the keys, returning null if a key is empty
+   * or the table would be too large.
+   */
+  public static MultiStringMatcher create(StringValue []keys)
+  {
+    int size = 1;
+    int maxChar = 0;
+
+    for (StringValue key : keys) {
+      int len = key.length();
+
+      if (len == 0)
+        return null;
+
+      size += len;
+
+      for (int i = 0; i < len; i++) {
+        char ch = key.charAt(i);
+
+        if (maxChar < ch)
+          maxChar = ch;
+      }
+    }
+
+    char []classMap = new char[maxChar + 1];
+    int width = 1;
+
+    for (StringValue key : keys) {
+      int len = key.length();
+
+      for (int i = 0; i < len; i++) {
+        char ch = key.charAt(i);
+
+        if (classMap[ch] == 0) {
+          if (width == Character.MAX_VALUE)
+            return null;
+
+          classMap[ch] = (char) width++;
+        }
+      }
+    }
+
+    if (MAX_TABLE < (long) size * width)
+      return null;
+
+    MultiStringMatcher matcher
+      = new MultiStringMatcher(keys, classMap, width, size);
+
+    matcher.build();
+
+    return matcher;
+  }
+
+  private void build()
+  {
+    int []next = _next;
+    int width = _width;
+
+    Arrays.fill(_key, -1);
+
+    // the trie, where 0 marks a missing edge since the root is never a child
+    int count = 1;
+
+    for (int i = 0; i < _keys.length; i++) {
+      StringValue key = _keys[i];
+      int len = key.length();
+      int state = 0;
+
+      for (int j = 0; j < len; j++) {
+        int index = state * width + _classMap[key.charAt(j)];
+        int child = next[index];
+
+        if (child == 0) {
+          child = count++;
+          _depth[child] = _depth[state] + 1;
+          next[index] = child;
+        }
+
+        state = child;
+      }
+
+      if (_key[state] < 0)
+        _key[state] = i;
+
+      _keyState[i] = state;
+    }
+
+    // breadth-first fill of the fail links and the missing transitions
+    int []queue = new int[count];
+    int head = 0;
+    int tail = 0;
+
+    _output[0] = -1;
+
+    for (int c = 1; c < width; c++) {
+      int child = next[c];
+
+      if (child != 0)
+        queue[tail++] = child;
+    }
+
+    while (head < tail) {
+      int state = queue[head++];
+      int fail = _fail[state];
+
+      if (_key[state] >= 0)
+        _output[state] = state;
+      else
+        _output[state] = _output[fail];
+
+      int base = state * width;
+      int failBase = fail * width;
+
+      for (int c = 1; c < width; c++) {
+        int child = next[base + c];
+
+        if (child != 0) {
+          _fail[child] = next[failBase + c];
+          queue[tail++] = child;
+        }
+        else
+          next[base + c] = next[failBase + c];
+      }
+    }
+  }
+
+  /**
+   * Returns the number of keys.
+   */
+  public int getKeyCount()
+  {
+    return _keys.length;
+  }
+
+  /**
+   * Replaces each match of the i-th key with values[i].  Returns the
+   * subject itself if nothing matches.
+   *
+   * @param countV if not null, incremented by the number of replacements
+   */
+  public StringValue replace(StringValue subject,
+                             StringValue []values,
+                             Value countV)
+  {
+    char []classMap = _classMap;
+    int []next = _next;
+    int []depth = _depth;
+    int []output = _output;
+    int width = _width;
+
+    int length = subject.length();
+
+    StringValue result = null;
+    long count = 0;
+
+    int head = 0;
+    int state = 0;
+
+    int bestStart = -1;
+    int bestLength = 0;
+    int bestKey = 0;
+
+    for (int i = 0; i < length; i++) {
+      char ch = subject.charAt(i);
+      int c = ch < classMap.length ? classMap[ch] : 0;
+
+      state = next[state * width + c];
+
+      int out = output[state];
+
+      if (out >= 0) {
+        // the longest key ending here is the one starting earliest
+        int start = i + 1 - depth[out];
+
+        if (bestStart < 0 || start <= bestStart) {
+          bestStart = start;
+          bestLength = depth[out];
+          bestKey = _key[out];
+        }
+      }
+
+      // no later match can start at or before the best match
+      if (bestStart >= 0 && bestStart < i + 1 - depth[state]) {
+        if (result == null)
+          result = subject.createStringBuilder();
+
+        result = result.append(subject, head, bestStart);
+        result = result.append(values[bestKey]);
+        count++;
+
+        head = bestStart + bestLength;
+        bestStart = -1;
+
+        state = 0;
+        i = head - 1;
+      }
+    }
+
+    if (bestStart >= 0) {
+      if (result == null)
+        result = subject.createStringBuilder();
+
+      result = result.append(subject, head, bestStart);
+      result = result.append(values[bestKey]);
+      count++;
+
+      head = bestStart + bestLength;
+    }
+
+    if (result == null)
+      return subject;
+
+    if (head < length)
+      result = result.append(subject, head, length);
+
+    if (countV != null)
+      countV.set(LongValue.create(countV.toLong() + count));
+
+    return result;
+  }
+
+  /**
+   * Marks the keys which occur in the subject.
+   */
+  public void find(StringValue subject, boolean []isFound)
+  {
+    char []classMap = _classMap;
+    int []next = _next;
+    int []output = _output;
+    int width = _width;
+
+    boolean []isState = new boolean[_depth.length];
+
+    int length = subject.length();
+    int state = 0;
+
+    for (int i = 0; i < length; i++) {
+      char ch = subject.charAt(i);
+      int c = ch < classMap.length ? classMap[ch] : 0;
+
+      state = next[state * width + c];
+
+      // shorter keys ending here hang off the fail links
+      for (int out = output[state];
+           out >= 0 && ! isState[out];
+           out = output[_fail[out]]) {
+        isState[out] = true;
+      }
+    }
+
+    for (int i = 0; i < _keyState.length; i++) {
+      isFound[i] = isState[_keyState[i]];
+    }
+  }
+
+  /**
+   * Returns true if replacing the keys one after another, as str_replace
+   * does, gives the same result as a single pass.  That holds when no
+   * key can overlap another key or any of the replacement values.
+   */
+  public boolean isIndependent(StringValue []values)
+  {
+    StringValue []keys = _keys;
+
+    for (int i = 0; i < keys.length; i++) {
+      for (int j = i + 1; j < keys.length; j++) {
+        if (isOverlap(keys[i], keys[j]))
+          return false;
+      }
+
+      for (int j = 0; j < values.length; j++) {
+        if (j > 0 && values[j] == values[j - 1])
+          continue;
+
+        if (isOverlap(keys[i], values[j]))
+          return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Returns true if an occurrence of a can share characters with an
+   * occurrence of b.
+   */
+  private static boolean isOverlap(StringValue a, StringValue b)
+  {
+    return (a.indexOf(b) >= 0
+            || b.indexOf(a) >= 0
+            || isSuffixPrefix(a, b)
+            || isSuffixPrefix(b, a));
+  }
+
+  /**
+   * Returns true if a proper suffix of a is a proper prefix of b.
+   */
+  private static boolean isSuffixPrefix(StringValue a, StringValue b)
+  {
+    int aLength = a.length();
+    int max = Math.min(aLength, b.length()) - 1;
+
+    loop:
+    for (int k = 1; k <= max; k++) {
+      int offset = aLength - k;
+
+      for (int i = 0; i < k; i++) {
+        if (a.charAt(offset + i) != b.charAt(i))
+          continue loop;
+      }
+
+      return true;
+    }
+
+    return false;
+  }
+
+  //
+  // per-request cache
+  //
+
+  /**
+   * Returns the automaton built for the same keys earlier in the request.
+   * The source identifies everything the result depends on.
+   */
+  public static MultiStringMatcher getCached(Env env, Object []source)
+  {
+    Cache cache = (Cache) env.getSpecialValue(CACHE_NAME);
+
+    if (cache == null)
+      return null;
+
+    return cache.get(source);
+  }
+
+  /**
+   * Saves an automaton, or null if the source can't use one.
+   */
+  public static void putCached(Env env, Object []source, MultiStringMatcher matcher)
+  {
+    Cache cache = (Cache) env.getSpecialValue(CACHE_NAME);
+
+    if (cache == null) {
+      cache = new Cache();
+      env.setSpecialValue(CACHE_NAME, cache);
+    }
+
+    cache.put(source, matcher != null ? matcher : NONE);
+  }
+
+  /**
+   * Returns true for the marker saved when the source can't use an
+   * automaton.
+   */
+  public static boolean isNone(MultiStringMatcher matcher)
+  {
+    return matcher == NONE;
+  }
+
+  /**
+   * Small round-robin cache.  Entries are compared by content because
+   * arrays are modified in place.
+   */
+  static final class Cache {
+    private final Object [][]_sources = new Object[CACHE_SIZE][];
+    private final MultiStringMatcher []_matchers
+      = new MultiStringMatcher[CACHE_SIZE];
+    private int _nextSlot;
+
+    MultiStringMatcher get(Object []source)
+    {
+      for (int i = 0; i < CACHE_SIZE; i++) {
+        if (Arrays.equals(_sources[i], source))
+          return _matchers[i];
+      }
+
+      return null;
+    }
+
+    void put(Object []source, MultiStringMatcher matcher)
+    {
+      int slot = _nextSlot;
+
+      _nextSlot = (slot + 1) % CACHE_SIZE;
+
+      _sources[slot] = source;
+      _matchers[slot] = matcher;
+    }
+  }
+}
@@ -64,20 +64,25 @@ import com.caucho.quercus.env.LocaleInfo;
 import com.caucho.quercus.env.LongValue;
 import com.caucho.quercus.env.NullValue;
 import com.caucho.quercus.env.QuercusLocale;
+import com.caucho.quercus.env.StringBuilderValue;
 import com.caucho.quercus.env.StringValue;
 import com.caucho.quercus.env.UnexpectedValue;
 import com.caucho.quercus.env.Value;
 import com.caucho.quercus.env.Var;
+import com.caucho.quercus.lib.HashModule;
 import com.caucho.quercus.lib.file.BinaryOutput;
+import com.caucho.quercus.lib.file.CsvReader;
 import com.caucho.quercus.lib.file.FileModule;
 import com.caucho.quercus.module.AbstractQuercusModule;
 import com.caucho.util.CharBuffer;
 import com.caucho.util.FreeList;
 import com.caucho.util.IntSet;
 import com.caucho.util.L10N;
+import com.caucho.util.LruCache;
 import com.caucho.util.RandomUtil;
 import com.caucho.vfs.ByteToChar;
 import com.caucho.vfs.Path;
+import com.caucho.vfs.TempBuffer;
 
 /**
  * PHP functions implemented from the string module
@@ -88,6 +93,9 @@ public class StringModule extends AbstractQuercusModule {
 
   private static final L10N L = new L10N(StringModule.class);
 
+  // subjects shorter than this are cheaper to scan once per search string
+  private static final int MULTI_REPLACE_MIN_LENGTH = 256;
+
   public static final int CRYPT_SALT_LENGTH = 2;
   public static final int CRYPT_STD_DES = 0;
   public static final int CRYPT_EXT_DES = 0;
@@ -117,6 +125,14 @@ public class StringModule extends AbstractQuercusModule {
   private static final FreeList<MessageDigest> _md5FreeList
     = new FreeList<MessageDigest>(16);
 
+  private static final LruCache<StringValue,PrintfFormat> _printfCache
+    = new LruCache<StringValue,PrintfFormat>(1024);
+
+  private static final String NUMBER_FORMAT = "caucho.number_format";
+
+  private static final ByteKernels.Escape ADDSLASHES
+    = new ByteKernels.Escape("\0'\"\\", "\\0", "\\'", "\\\"", "\\\\");
+
   /**
    * Escapes a string using C syntax.
    *
@@ -241,6 +257,9 @@ public class StringModule extends AbstractQuercusModule {
    */
   public static StringValue addslashes(StringValue source)
   {
+    if (source instanceof StringBuilderValue)
+      return ByteKernels.escape((StringBuilderValue) source, ADDSLASHES);
+
     StringValue sb = source.createStringBuilder(source.length() * 5 / 4);
 
     int length = source.length();
@@ -864,13 +883,16 @@ public class StringModule extends AbstractQuercusModule {
 
       md.reset();
 
-      // XXX: iso-8859-1
+      TempBuffer tBuf = TempBuffer.allocate();
+      byte []buffer = tBuf.getBuffer();
 
-      int ch;
-      while ((ch = is.read()) >= 0) {
-        md.update((byte) ch);
+      int len;
+      while ((len = is.read(buffer, 0, buffer.length)) > 0) {
+        md.update(buffer, 0, len);
       }
 
+      TempBuffer.free(tBuf);
+
       byte []digest = md.digest();
 
       _md5FreeList.free(md);
@@ -895,30 +917,17 @@ public class StringModule extends AbstractQuercusModule {
   {
     try {
       MessageDigest md = MessageDigest.getInstance("MD5");
-      InputStream is = null;
 
       try {
-        is = source.openRead();
-        int d;
-
-        while ((d = is.read()) >= 0) {
-          md.update((byte) d);
-        }
+        HashModule.digestFile(md, source);
 
         byte []digest = md.digest();
 
         return hashToValue(env, digest, rawOutput);
-
       } catch (IOException e) {
         log.log(Level.FINE, e.toString(), e);
 
         return BooleanValue.FALSE;
-      } finally {
-        try {
-          if (is != null)
-            is.close();
-        } catch (IOException e) {
-        }
       }
     } catch (Exception e) {
       throw new QuercusModuleException(e);
@@ -1362,6 +1371,21 @@ public class StringModule extends AbstractQuercusModule {
       group = (groupString.length() == 0) ? 0 : groupString.charAt(0);
     }
 
+    long longValue = (long) value;
+
+    // integers are formatted directly, except -0 which DecimalFormat keeps
+    if (longValue == value
+        && Math.abs(value) < 1e15
+        && (longValue != 0 || 1 / value > 0)) {
+      return formatLong(longValue, decimals, point, group);
+    }
+
+    NumberFormatCache cache
+      = (NumberFormatCache) env.getSpecialValue(NUMBER_FORMAT);
+
+    if (cache != null && cache.isMatch(decimals, point, group))
+      return cache.format(value);
+
     if (decimals > 0) {
       StringBuilder patternBuilder = new StringBuilder(6 + decimals);
 
@@ -1389,17 +1413,95 @@ public class StringModule extends AbstractQuercusModule {
 
     DecimalFormat format = new DecimalFormat(pattern, decimalFormatSymbols);
 
-    String result = format.format(value);
+    cache = new NumberFormatCache(format, decimals, point, group);
+
+    env.setSpecialValue(NUMBER_FORMAT, cache);
+
+    return cache.format(value);
+  }
 
-    if (point == 0 && decimals > 0) {
-      // no way to get DecimalFormat to output nothing for the point,
-      // so remove it here
-      int i = result.lastIndexOf(point);
+  /**
+   * Formats an integer the way number_format's DecimalFormat does.
+   */
+  private static String formatLong(long value,
+                                   int decimals,
+                                   char point,
+                                   char group)
+  {
+    StringBuilder sb = new StringBuilder(32 + Math.max(decimals, 0));
 
-      return result.substring(0, i) + result.substring(i + 1, result.length());
+    if (value < 0) {
+      sb.append('-');
+      value = -value;
+    }
+
+    int digits = 1;
+    long divisor = 1;
+
+    for (long v = value / 10; v != 0; v /= 10) {
+      digits++;
+      divisor *= 10;
+    }
+
+    for (; divisor > 0; divisor /= 10) {
+      sb.append((char) ('0' + value / divisor % 10));
+
+      digits--;
+
+      if (group != 0 && digits > 0 && digits % 3 == 0)
+        sb.append(group);
+    }
+
+    if (decimals > 0) {
+      if (point != 0)
+        sb.append(point);
+
+      for (int i = 0; i < decimals; i++)
+        sb.append('0');
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * The last DecimalFormat used by number_format in the request.
+   */
+  static class NumberFormatCache {
+    private final DecimalFormat _format;
+    private final int _decimals;
+    private final char _point;
+    private final char _group;
+
+    NumberFormatCache(DecimalFormat format,
+                      int decimals,
+                      char point,
+                      char group)
+    {
+      _format = format;
+      _decimals = decimals;
+      _point = point;
+      _group = group;
+    }
+
+    boolean isMatch(int decimals, char point, char group)
+    {
+      return (_decimals == decimals && _point == point && _group == group);
+    }
+
+    String format(double value)
+    {
+      String result = _format.format(value);
+
+      if (_point == 0 && _decimals > 0) {
+        // no way to get DecimalFormat to output nothing for the point,
+        // so remove it here
+        int i = result.lastIndexOf(_point);
+
+        return result.substring(0, i) + result.substring(i + 1, result.length());
+      }
+      else
+        return result;
     }
-    else
-      return result;
   }
 
  /**
@@ -1784,12 +1886,23 @@ public class StringModule extends AbstractQuercusModule {
 
       // XXX: iso-8859-1
 
-      for (int i = 0; i < source.length(); i++) {
-        char ch = source.charAt(i);
+      int len = source.length();
 
-        md.update((byte) ch);
+      TempBuffer tBuf = TempBuffer.allocate();
+      byte []buffer = tBuf.getBuffer();
+
+      for (int offset = 0; offset < len; offset += buffer.length) {
+        int sublen = Math.min(buffer.length, len - offset);
+
+        for (int i = 0; i < sublen; i++) {
+          buffer[i] = (byte) source.charAt(offset + i);
+        }
+
+        md.update(buffer, 0, sublen);
       }
 
+      TempBuffer.free(tBuf);
+
       byte []digest = md.digest();
 
       return hashToValue(env, digest, rawOutput);
@@ -1812,15 +1925,9 @@ public class StringModule extends AbstractQuercusModule {
   {
     try {
       MessageDigest md = MessageDigest.getInstance("SHA1");
-      InputStream is = null;
 
       try {
-        is = source.openRead();
-        int d;
-
-        while ((d = is.read()) >= 0) {
-          md.update((byte) d);
-        }
+        HashModule.digestFile(md, source);
 
         byte []digest = md.digest();
 
@@ -1829,12 +1936,6 @@ public class StringModule extends AbstractQuercusModule {
         log.log(Level.FINE, e.toString(), e);
 
         return BooleanValue.FALSE;
-      } finally {
-        try {
-          if (is != null)
-            is.close();
-        } catch (IOException e) {
-        }
       }
     } catch (Exception e) {
       throw new QuercusException(e);
@@ -1925,7 +2026,7 @@ public class StringModule extends AbstractQuercusModule {
    */
   public static Value sprintf(Env env, StringValue format, Value []args)
   {
-    ArrayList<PrintfSegment> segments = parsePrintfFormat(env, format);
+    PrintfSegment []segments = getPrintfFormat(env, format);
 
     StringValue sb = format.createStringBuilder();
 
@@ -1937,6 +2038,30 @@ public class StringModule extends AbstractQuercusModule {
     return sb;
   }
 
+  /**
+   * Returns the parsed format, which is shared by all requests using the
+   * same numeric locale.
+   */
+  private static PrintfSegment []getPrintfFormat(Env env, StringValue format)
+  {
+    QuercusLocale locale = env.getLocaleInfo().getNumeric();
+
+    PrintfFormat printfFormat = _printfCache.get(format);
+
+    if (printfFormat == null || ! printfFormat.isLocale(locale)) {
+      ArrayList<PrintfSegment> segments = parsePrintfFormat(env, format);
+
+      printfFormat = new PrintfFormat(segments, locale);
+
+      // the key is copied since string builders can be modified in place
+      StringValue key = format.createStringBuilder().append(format);
+
+      _printfCache.put(key, printfFormat);
+    }
+
+    return printfFormat.getSegments();
+  }
+
   private static ArrayList<PrintfSegment> parsePrintfFormat(Env env,
                                                             StringValue format)
   {
@@ -2960,7 +3085,42 @@ public class StringModule extends AbstractQuercusModule {
     return i;
   }
 
-  // XXX: str_getcsv
+  /**
+   * Parses a comma-separated-value record from a string.
+   *
+   * @param input the record to parse
+   * @param delimiter optional comma replacement
+   * @param enclosure optional quote replacement
+   * @param escape optional escape character
+   */
+  public static Value str_getcsv(Env env,
+                                 StringValue input,
+                                 @Optional String delimiter,
+                                 @Optional String enclosure,
+                                 @Optional("'\\\\'") String escape)
+  {
+    try {
+      CsvReader reader
+        = CsvReader.create(env, input,
+                           FileModule.getCsvChar(delimiter, ','),
+                           FileModule.getCsvChar(enclosure, '"'),
+                           FileModule.getCsvChar(escape, -1));
+
+      Value row = reader.readRow(0);
+
+      // an empty string is a record with a single null field
+      if (row == BooleanValue.FALSE) {
+        ArrayValue array = new ArrayValueImpl();
+        array.append(NullValue.NULL);
+
+        return array;
+      }
+
+      return row;
+    } catch (IOException e) {
+      throw new QuercusModuleException(e);
+    }
+  }
 
   /**
    * replaces substrings.
@@ -3147,6 +3307,19 @@ public class StringModule extends AbstractQuercusModule {
                                       Value count,
                                       boolean isInsensitive)
   {
+    if (search.isArray()
+        && ! isInsensitive
+        && MULTI_REPLACE_MIN_LENGTH <= subject.length()) {
+      StringValue result = strReplaceMulti(env,
+                                           search.toArrayValue(env),
+                                           replace,
+                                           subject,
+                                           count);
+
+      if (result != null)
+        return result;
+    }
+
     if (! search.isArray()) {
       StringValue searchString = search.toStringValue(env);
 
@@ -3208,6 +3381,72 @@ public class StringModule extends AbstractQuercusModule {
     return subject;
   }
 
+  /**
+   * Replaces all the search strings in a single pass.  Returns null
+   * when the searches interact and must be applied one after another.
+   */
+  private static StringValue strReplaceMulti(Env env,
+                                             ArrayValue searchArray,
+                                             Value replace,
+                                             StringValue subject,
+                                             Value count)
+  {
+    int size = searchArray.getSize();
+
+    if (size < 2)
+      return null;
+
+    StringValue []searchList = new StringValue[size];
+    StringValue []replaceList = new StringValue[size];
+
+    Iterator<Value> replaceIter = null;
+    StringValue replaceString = null;
+
+    if (replace.isArray())
+      replaceIter = replace.toArrayValue(env).values().iterator();
+    else
+      replaceString = replace.toStringValue(env);
+
+    Object []source = new Object[2 * size + 1];
+    source[0] = "str_replace";
+
+    int i = 0;
+    for (Value searchItem : searchArray.values()) {
+      StringValue replaceItem;
+
+      if (replaceIter == null)
+        replaceItem = replaceString;
+      else if (replaceIter.hasNext())
+        replaceItem = replaceIter.next().toStringValue(env);
+      else
+        replaceItem = env.getEmptyString();
+
+      searchList[i] = searchItem.toStringValue(env);
+      replaceList[i] = replaceItem;
+
+      source[1 + i] = searchList[i];
+      source[1 + size + i] = replaceItem;
+
+      i++;
+    }
+
+    MultiStringMatcher matcher = MultiStringMatcher.getCached(env, source);
+
+    if (matcher == null) {
+      matcher = MultiStringMatcher.create(searchList);
+
+      if (matcher != null && ! matcher.isIndependent(replaceList))
+        matcher = null;
+
+      MultiStringMatcher.putCached(env, source, matcher);
+    }
+
+    if (matcher == null || MultiStringMatcher.isNone(matcher))
+      return null;
+
+    return matcher.replace(subject, replaceList, count);
+  }
+
   /**
    * replaces substrings.
    *
@@ -3842,10 +4081,22 @@ public class StringModule extends AbstractQuercusModule {
     else
       needle = StringValue.create((char) needleV.toInt());
 
-    haystack = haystack.toLowerCase();
-    needle = needle.toLowerCase();
+    int pos;
+
+    if (haystack instanceof StringBuilderValue
+        && needle instanceof StringBuilderValue) {
+      StringBuilderValue sb = (StringBuilderValue) needle;
+
+      pos = ByteKernels.indexOfIgnoreCase(
+        ((StringBuilderValue) haystack).getBuffer(), offset, len,
+        sb.getBuffer(), sb.length());
+    }
+    else {
+      haystack = haystack.toLowerCase();
+      needle = needle.toLowerCase();
 
-    int pos = haystack.indexOf(needle, offset);
+      pos = haystack.indexOf(needle, offset);
+    }
 
     if (pos < 0)
       return BooleanValue.FALSE;
@@ -4155,7 +4406,18 @@ public class StringModule extends AbstractQuercusModule {
     else
       needle = StringValue.create((char) needleV.toInt());
 
-    int pos = haystack.indexOf(needle, offset);
+    int pos;
+
+    if (haystack instanceof StringBuilderValue
+        && needle instanceof StringBuilderValue) {
+      StringBuilderValue sb = (StringBuilderValue) needle;
+
+      pos = ByteKernels.indexOf(
+        ((StringBuilderValue) haystack).getBuffer(), offset, haystack.length(),
+        sb.getBuffer(), sb.length());
+    }
+    else
+      pos = haystack.indexOf(needle, offset);
 
     if (pos < 0)
       return BooleanValue.FALSE;
@@ -4522,7 +4784,10 @@ public class StringModule extends AbstractQuercusModule {
    */
   public static StringValue strtolower(StringValue string)
   {
-    return string.toLowerCase();
+    if (string instanceof StringBuilderValue)
+      return ByteKernels.toLowerCase((StringBuilderValue) string);
+    else
+      return string.toLowerCase();
   }
 
   /**
@@ -4532,7 +4797,10 @@ public class StringModule extends AbstractQuercusModule {
    */
   public static StringValue strtoupper(StringValue string)
   {
-    return string.toUpperCase();
+    if (string instanceof StringBuilderValue)
+      return ByteKernels.toUpperCase((StringBuilderValue) string);
+    else
+      return string.toUpperCase();
   }
 
   /**
@@ -4589,6 +4857,47 @@ public class StringModule extends AbstractQuercusModule {
   {
     int size = map.getSize();
 
+    if (size == 0)
+      return string;
+
+    StringValue []fromList = new StringValue[size];
+    StringValue []toList = new StringValue[size];
+
+    int i = 0;
+    for (Map.Entry<Value,Value> entry : map.entrySet()) {
+      fromList[i] = entry.getKey().toStringValue(env);
+      toList[i] = entry.getValue().toStringValue(env);
+      i++;
+    }
+
+    // the automaton depends only on the keys
+    MultiStringMatcher matcher = MultiStringMatcher.getCached(env, fromList);
+
+    if (matcher == null) {
+      matcher = MultiStringMatcher.create(fromList);
+
+      MultiStringMatcher.putCached(env, fromList, matcher);
+    }
+
+    if (matcher == null || MultiStringMatcher.isNone(matcher))
+      return strtrArraySorted(env, string, map);
+
+    return matcher.replace(string, toList, null);
+  }
+
+  /**
+   * Translates characters in a string to target values by trying the
+   * keys longest first at each position.
+   *
+   * @param string the source string
+   * @param map the character map
+   */
+  private static StringValue strtrArraySorted(Env env,
+                                              StringValue string,
+                                              ArrayValue map)
+  {
+    int size = map.getSize();
+
     StringValue []fromList = new StringValue[size];
     StringValue []toList = new StringValue[size];
 
@@ -4751,16 +5060,12 @@ public class StringModule extends AbstractQuercusModule {
                                    @Optional int offset,
                                    @Optional("-1") int length)
   {
-    String haystack = haystackV.toString();
-
-    String needle = needleV.toString();
-
-    if (needle.length() == 0) {
+    if (needleV.length() == 0) {
       env.warning(L.l("empty substr"));
       return BooleanValue.FALSE;
     }
 
-    int haystackLength = haystack.length();
+    int haystackLength = haystackV.length();
 
     if (offset < 0 || offset > haystackLength) {
       env.warning(L.l("offset cannot exceed string length", offset));
@@ -4778,7 +5083,21 @@ public class StringModule extends AbstractQuercusModule {
       haystackLength = newLength;
     }
 
-    int needleLength = needle.length();
+    int needleLength = needleV.length();
+
+    if (haystackV instanceof StringBuilderValue
+        && needleV instanceof StringBuilderValue) {
+      byte []needleBuffer = ((StringBuilderValue) needleV).getBuffer();
+
+      int count = ByteKernels.count(
+        ((StringBuilderValue) haystackV).getBuffer(), offset, haystackLength,
+        needleBuffer, needleLength);
+
+      return LongValue.create(count);
+    }
+
+    String haystack = haystackV.toString();
+    String needle = needleV.toString();
 
     int count = 0;
 
@@ -4787,7 +5106,7 @@ public class StringModule extends AbstractQuercusModule {
     for (int i = offset; i < end; i++) {
       if (haystack.startsWith(needle, i)) {
         count++;
-        i += needleLength;
+        i += needleLength - 1;
       }
     }
 
@@ -5221,6 +5540,32 @@ public class StringModule extends AbstractQuercusModule {
       return -1;
   }
 
+  /**
+   * A parsed printf format.  The numeric segments capture the locale.
+   */
+  static class PrintfFormat {
+    private final PrintfSegment []_segments;
+    private final Locale _locale;
+
+    PrintfFormat(ArrayList<PrintfSegment> segments, QuercusLocale locale)
+    {
+      _segments = new PrintfSegment[segments.size()];
+      segments.toArray(_segments);
+
+      _locale = locale.getLocale();
+    }
+
+    PrintfSegment []getSegments()
+    {
+      return _segments;
+    }
+
+    boolean isLocale(QuercusLocale locale)
+    {
+      return _locale.equals(locale.getLocale());
+    }
+  }
+
   abstract static class PrintfSegment {
     abstract public boolean apply(Env env, StringValue sb, Value []args);
 
@@ -5334,8 +5679,17 @@ public class StringModule extends AbstractQuercusModule {
           return unsign;
       }
 
-      return new LongPrintfSegment(format, index,
-                                   env.getLocaleInfo().getNumeric());
+      QuercusLocale locale = env.getLocaleInfo().getNumeric();
+
+      if (format.charAt(format.length() - 1) == 'd') {
+        DecimalPrintfSegment decimal
+          = DecimalPrintfSegment.create(format, index, locale);
+
+        if (decimal != null)
+          return decimal;
+      }
+
+      return new LongPrintfSegment(format, index, locale);
     }
 
     @Override
@@ -5357,6 +5711,139 @@ public class StringModule extends AbstractQuercusModule {
     }
   }
 
+  /**
+   * Formats %d without java.util.Formatter, writing the digits straight
+   * into the result.
+   */
+  static class DecimalPrintfSegment extends PrintfSegment {
+    private final int _index;
+    private final int _min;
+    private final boolean _isLeft;
+    private final boolean _isZero;
+    private final boolean _isShowSign;
+
+    DecimalPrintfSegment(int index,
+                         int min,
+                         boolean isLeft,
+                         boolean isZero,
+                         boolean isShowSign)
+    {
+      _index = index;
+      _min = min;
+      _isLeft = isLeft;
+      _isZero = isZero;
+      _isShowSign = isShowSign;
+    }
+
+    /**
+     * Returns the segment, or null if the format needs the Formatter.
+     */
+    static DecimalPrintfSegment create(String format,
+                                       int index,
+                                       QuercusLocale locale)
+    {
+      DecimalFormatSymbols symbols
+        = DecimalFormatSymbols.getInstance(locale.getLocale());
+
+      if (symbols.getZeroDigit() != '0' || symbols.getMinusSign() != '-')
+        return null;
+
+      int length = format.length();
+      int offset = 1;
+
+      boolean isLeft = false;
+      boolean isZero = false;
+      boolean isShowSign = false;
+
+      for (; offset < length - 1; offset++) {
+        char ch = format.charAt(offset);
+
+        if (ch == '-' && ! isLeft)
+          isLeft = true;
+        else if (ch == '0' && ! isZero)
+          isZero = true;
+        else if (ch == '+' && ! isShowSign)
+          isShowSign = true;
+        else
+          break;
+      }
+
+      int min = 0;
+      for (; offset < length - 1; offset++) {
+        char ch = format.charAt(offset);
+
+        if ('0' <= ch && ch <= '9')
+          min = 10 * min + ch - '0';
+        else
+          return null;
+      }
+
+      // the Formatter rejects these combinations
+      if (isLeft && isZero || (isLeft || isZero) && min == 0)
+        return null;
+
+      return new DecimalPrintfSegment(index, min, isLeft, isZero, isShowSign);
+    }
+
+    @Override
+    public boolean apply(Env env, StringValue sb, Value []args)
+    {
+      long value;
+
+      if (_index < args.length)
+        value = args[_index].toLong();
+      else {
+        env.warning(L.l("printf(): not enough arguments to match format."));
+
+        return false;
+      }
+
+      boolean isNegative = value < 0;
+
+      int digits = 1;
+      for (long v = value / 10; v != 0; v /= 10)
+        digits++;
+
+      int len = digits;
+
+      if (isNegative || _isShowSign)
+        len++;
+
+      if (! _isLeft && ! _isZero) {
+        for (int i = len; i < _min; i++)
+          sb.append(' ');
+      }
+
+      if (isNegative)
+        sb.append('-');
+      else if (_isShowSign)
+        sb.append('+');
+
+      if (_isZero) {
+        for (int i = len; i < _min; i++)
+          sb.append('0');
+      }
+
+      long divisor = 1;
+      for (int i = 1; i < digits; i++)
+        divisor *= 10;
+
+      // digits are taken from the signed value to handle Long.MIN_VALUE
+      for (; divisor > 0; divisor /= 10) {
+        int digit = (int) (value / divisor % 10);
+
+        sb.append((char) ('0' + (digit < 0 ? -digit : digit)));
+      }
+
+      if (_isLeft) {
+        for (int i = len; i < _min; i++)
+          sb.append(' ');
+      }
+
+      return true;
+    }
+  }
+
   static class HexPrintfSegment extends PrintfSegment {
     private final int _index;
     private final int _min;
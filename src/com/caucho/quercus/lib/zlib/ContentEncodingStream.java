@@ -0,0 +1,249 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Nam Nguyen
+ */
+
+package com.caucho.quercus.lib.zlib;
+
+import com.caucho.quercus.env.EnvCleanup;
+import com.caucho.vfs.TempBuffer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a response body with the gzip or deflate HTTP content
+ * encoding.  Flushing the stream flushes the compressed data written
+ * so far, so the client can start decoding before the response ends.
+ */
+public class ContentEncodingStream extends OutputStream
+  implements EnvCleanup
+{
+  private static final byte []GZIP_HEADER = {
+    (byte) 0x1f, (byte) 0x8b,   // gzip file identifier (ID1, ID2)
+    (byte) 0x8,                 // Deflate compression method (CM)
+    0,                          // optional flags (FLG)
+    0, 0, 0, 0,                 // modification time (MTIME)
+    0,                          // extra optional flags (XFL)
+    (byte) 0x3                  // operating system (OS)
+  };
+
+  private final OutputStream _os;
+  private final boolean _isGzip;
+
+  private Deflater _deflater;
+  private CRC32 _crc32;
+
+  private TempBuffer _tempBuffer;
+  private byte []_buffer;
+
+  private final byte []_oneByte = new byte[1];
+
+  private boolean _isDirty;
+
+  /**
+   * @param os the stream receiving the compressed data
+   * @param isGzip true for the gzip encoding, false for deflate
+   * @param level the compression level
+   */
+  public ContentEncodingStream(OutputStream os, boolean isGzip, int level)
+    throws IOException
+  {
+    _os = os;
+    _isGzip = isGzip;
+
+    // the deflate content encoding is zlib-wrapped, gzip is raw
+    _deflater = ZlibPool.allocateDeflater(level,
+                                          Deflater.DEFAULT_STRATEGY,
+                                          isGzip);
+
+    _tempBuffer = TempBuffer.allocate();
+    _buffer = _tempBuffer.getBuffer();
+
+    if (isGzip) {
+      _crc32 = new CRC32();
+
+      os.write(GZIP_HEADER, 0, GZIP_HEADER.length);
+    }
+  }
+
+  /**
+   * Returns true for the gzip encoding.
+   */
+  public boolean isGzip()
+  {
+    return _isGzip;
+  }
+
+  @Override
+  public void write(int v)
+    throws IOException
+  {
+    byte []data = _oneByte;
+
+    data[0] = (byte) v;
+
+    write(data, 0, 1);
+  }
+
+  @Override
+  public void write(byte []buffer, int offset, int length)
+    throws IOException
+  {
+    Deflater deflater = _deflater;
+
+    if (deflater == null)
+      throw new IOException("write on a finished stream");
+    else if (length <= 0)
+      return;
+
+    if (_crc32 != null)
+      _crc32.update(buffer, offset, length);
+
+    deflater.setInput(buffer, offset, length);
+
+    while (! deflater.needsInput()) {
+      deflate(Deflater.NO_FLUSH);
+    }
+
+    _isDirty = true;
+  }
+
+  /**
+   * Writes out the data compressed so far.
+   */
+  @Override
+  public void flush()
+    throws IOException
+  {
+    if (_deflater != null && _isDirty) {
+      _isDirty = false;
+
+      while (deflate(Deflater.SYNC_FLUSH) == _buffer.length) {
+      }
+    }
+
+    _os.flush();
+  }
+
+  /**
+   * Writes the end of the compressed data and the gzip trailer.
+   */
+  public void finish()
+    throws IOException
+  {
+    Deflater deflater = _deflater;
+
+    if (deflater == null)
+      return;
+
+    try {
+      deflater.finish();
+
+      while (! deflater.finished()) {
+        deflate(Deflater.NO_FLUSH);
+      }
+
+      if (_isGzip) {
+        byte []buffer = _buffer;
+
+        long crc = _crc32.getValue();
+        long size = deflater.getBytesRead();
+
+        buffer[0] = (byte) crc;
+        buffer[1] = (byte) (crc >> 8);
+        buffer[2] = (byte) (crc >> 16);
+        buffer[3] = (byte) (crc >> 24);
+
+        buffer[4] = (byte) size;
+        buffer[5] = (byte) (size >> 8);
+        buffer[6] = (byte) (size >> 16);
+        buffer[7] = (byte) (size >> 24);
+
+        _os.write(buffer, 0, 8);
+      }
+
+      _os.flush();
+    } finally {
+      free();
+    }
+  }
+
+  @Override
+  public void close()
+    throws IOException
+  {
+    finish();
+  }
+
+  /**
+   * Releases the deflater without finishing, e.g. if the request ends
+   * before the output handler's last call.
+   */
+  public void cleanup()
+  {
+    free();
+  }
+
+  private int deflate(int flush)
+    throws IOException
+  {
+    byte []buffer = _buffer;
+
+    int len = _deflater.deflate(buffer, 0, buffer.length, flush);
+
+    if (len > 0)
+      _os.write(buffer, 0, len);
+
+    return len;
+  }
+
+  private void free()
+  {
+    Deflater deflater = _deflater;
+    _deflater = null;
+
+    if (deflater != null)
+      ZlibPool.freeDeflater(deflater, _isGzip);
+
+    TempBuffer tempBuffer = _tempBuffer;
+    _tempBuffer = null;
+
+    _buffer = null;
+
+    if (tempBuffer != null)
+      TempBuffer.free(tempBuffer);
+  }
+
+  public String toString()
+  {
+    return (getClass().getSimpleName()
+            + "[" + (_isGzip ? "gzip" : "deflate") + "]");
+  }
+}
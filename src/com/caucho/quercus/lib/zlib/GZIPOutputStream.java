@@ -55,6 +55,7 @@ public class GZIPOutputStream extends DeflaterOutputStream {
 
   private int _encodingMode;
   private boolean _isGzip;
+  private boolean _isClosed;
 
   /**
    * Writes gzip header to OutputStream upon construction.
@@ -96,22 +97,15 @@ public class GZIPOutputStream extends DeflaterOutputStream {
   }
 
   /**
-   * Creates a deflater based on the Zlib arguments.
+   * Allocates a pooled deflater based on the Zlib arguments.
    */
   private static Deflater createDeflater(int compressionLevel,
                                          int strategy,
                                          int encodingMode)
   {
-    Deflater defl;
-
-    if (encodingMode == ZlibModule.FORCE_GZIP)
-      defl = new Deflater(compressionLevel, true);
-    else
-      defl = new Deflater(compressionLevel, false);
-
-    defl.setStrategy(strategy);
-
-    return defl;
+    return ZlibPool.allocateDeflater(compressionLevel,
+                                     strategy,
+                                     encodingMode == ZlibModule.FORCE_GZIP);
   }
 
   /**
@@ -200,9 +194,18 @@ public class GZIPOutputStream extends DeflaterOutputStream {
   public void close()
     throws IOException
   {
-    if (! def.finished())
-      finish();
-    
-    super.close();
+    if (_isClosed)
+      return;
+
+    _isClosed = true;
+
+    try {
+      if (! def.finished())
+        finish();
+
+      super.close();
+    } finally {
+      ZlibPool.freeDeflater(def, _isGzip);
+    }
   }
 }
@@ -30,6 +30,7 @@
 package com.caucho.quercus.lib.zlib;
 
 import com.caucho.quercus.QuercusModuleException;
+import com.caucho.quercus.annotation.Hide;
 import com.caucho.quercus.annotation.NotNull;
 import com.caucho.quercus.annotation.Optional;
 import com.caucho.quercus.annotation.ReturnNullAsFalse;
@@ -40,12 +41,15 @@ import com.caucho.quercus.lib.file.BinaryStream;
 import com.caucho.quercus.lib.file.FileModule;
 import com.caucho.quercus.lib.OutputModule;
 import com.caucho.quercus.module.AbstractQuercusModule;
+import com.caucho.quercus.module.IniDefinition;
+import com.caucho.quercus.module.IniDefinitions;
+import com.caucho.quercus.module.ModuleStartupListener;
 import com.caucho.util.L10N;
-import com.caucho.vfs.StreamImplOutputStream;
 import com.caucho.vfs.TempBuffer;
-import com.caucho.vfs.TempStream;
+import com.caucho.vfs.Vfs;
 import com.caucho.vfs.WriteStream;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.logging.Level;
@@ -58,11 +62,17 @@ import java.util.zip.InflaterInputStream;
 /**
  * PHP Zlib
  */
-public class ZlibModule extends AbstractQuercusModule {
+public class ZlibModule extends AbstractQuercusModule
+  implements ModuleStartupListener {
   private static final Logger log
     = Logger.getLogger(ZlibModule.class.getName());
   private static final L10N L = new L10N(ZlibModule.class);
 
+  private static final IniDefinitions _iniDefinitions = new IniDefinitions();
+
+  private static final String OUTPUT_COMPRESSION
+    = "caucho.zlib.output_compression";
+
   public static final int FORCE_GZIP = 0x1;
   public static final int FORCE_DEFLATE = 0x2;
 
@@ -73,6 +83,126 @@ public class ZlibModule extends AbstractQuercusModule {
     return new String[] { "zlib" };
   }
 
+  /**
+   * Returns the default php.ini values.
+   */
+  public IniDefinitions getIniDefinitions()
+  {
+    return _iniDefinitions;
+  }
+
+  /**
+   * Starts zlib.output_compression, compressing the response as the
+   * script writes it instead of buffering the whole page.
+   */
+  @Hide
+  public void startup(Env env)
+  {
+    if (! isOutputCompressionEnabled(env))
+      return;
+
+    HttpServletResponse response = env.getResponse();
+
+    if (response == null || response.isCommitted())
+      return;
+
+    String encoding = getAcceptEncoding(env);
+
+    if (encoding == null)
+      return;
+
+    int level = (int) INI_ZLIB_OUTPUT_COMPRESSION_LEVEL.getAsLong(env);
+
+    if (level < -1 || level > 9)
+      level = Deflater.DEFAULT_COMPRESSION;
+
+    // the headers must precede the gzip header in the body
+    response.setHeader("Content-Encoding", encoding);
+    response.addHeader("Vary", "Accept-Encoding");
+
+    try {
+      WriteStream originalOut = env.getOriginalOut();
+
+      ContentEncodingStream encoder
+        = new ContentEncodingStream(originalOut,
+                                    encoding.equals("gzip"),
+                                    level);
+
+      WriteStream out = Vfs.openWrite(encoder);
+      out.setNewlineString("\n");
+
+      String outputEncoding = env.getOutputEncoding();
+
+      if (outputEncoding != null)
+        out.setEncoding(outputEncoding);
+
+      env.setOriginalOut(out);
+      env.setSpecialValue(OUTPUT_COMPRESSION, encoder);
+
+      env.addCleanup(new OutputCompression(out, encoder));
+    } catch (IOException e) {
+      throw new QuercusModuleException(e);
+    }
+  }
+
+  /**
+   * Returns true if zlib.output_compression is compressing the response.
+   */
+  public static boolean isOutputCompression(Env env)
+  {
+    return env.getSpecialValue(OUTPUT_COMPRESSION) != null;
+  }
+
+  /**
+   * Returns true if the zlib.output_compression ini is on, either as a
+   * boolean or as a positive buffer size.
+   */
+  private static boolean isOutputCompressionEnabled(Env env)
+  {
+    String ini = INI_ZLIB_OUTPUT_COMPRESSION.getAsString(env);
+
+    if (ini == null || ini.length() == 0)
+      return false;
+    else if (ini.equalsIgnoreCase("on")
+             || ini.equalsIgnoreCase("true")
+             || ini.equalsIgnoreCase("yes"))
+      return true;
+
+    int ch = ini.charAt(0);
+
+    return '1' <= ch && ch <= '9';
+  }
+
+  /**
+   * Returns the first of gzip or deflate in the request's
+   * Accept-Encoding, or null if neither is accepted.
+   */
+  public static String getAcceptEncoding(Env env)
+  {
+    Value server = env.getGlobalVar("_SERVER");
+
+    Value value = server.get(env.createString("HTTP_ACCEPT_ENCODING"));
+
+    if (! value.isset())
+      return null;
+
+    for (String accepted : value.toString().split(",")) {
+      int p = accepted.indexOf(';');
+
+      if (p >= 0)
+        accepted = accepted.substring(0, p);
+
+      accepted = accepted.trim();
+
+      if (accepted.equalsIgnoreCase("gzip"))
+        return "gzip";
+      else if (accepted.equalsIgnoreCase("deflate"))
+        return "deflate";
+    }
+
+    return null;
+  }
+
   /**
    *
    * @param env
@@ -395,30 +525,13 @@ public class ZlibModule extends AbstractQuercusModule {
    */
   public Value zlib_get_coding_type(Env env)
   {
-    String ini = env.getIniString("zlib.output_compression");
-
-    if (ini == null || ini == "")
+    if (! isOutputCompressionEnabled(env))
       return BooleanValue.FALSE;
 
-    //zlib_get_coding_type can also be an integer > 0
-    if (! ini.equalsIgnoreCase("on")) {
-      int ch = ini.charAt(0);
+    String encoding = getAcceptEncoding(env);
 
-      if (ch < '0' || ch > '9')
-        return BooleanValue.FALSE;
-    }
-
-    ServerArrayValue sav = new ServerArrayValue(env);
-    Value val = sav.get(env.createString("HTTP_ACCEPT_ENCODING"));
-
-    if (!val.isset())
-      return BooleanValue.FALSE;
-
-    String s = val.toString();
-    if (s.contains("gzip"))
-      return env.createString("gzip");
-    else if (s.contains("deflate"))
-      return env.createString("deflate");
+    if (encoding != null)
+      return env.createString(encoding);
     else
       return BooleanValue.FALSE;
   }
@@ -440,7 +553,9 @@ public class ZlibModule extends AbstractQuercusModule {
     Deflater deflater = null;
     
     try {
-      deflater = new Deflater(level, true);
+      deflater = ZlibPool.allocateDeflater(level,
+                                           Deflater.DEFAULT_STRATEGY,
+                                           true);
       Adler32 crc = new Adler32();
 
       boolean isFinished = false;
@@ -495,8 +610,7 @@ public class ZlibModule extends AbstractQuercusModule {
     } finally {
       TempBuffer.free(tempBuf);
 
-      if (deflater != null)
-        deflater.end();
+      ZlibPool.freeDeflater(deflater, true);
     }
   }
 
@@ -513,12 +627,13 @@ public class ZlibModule extends AbstractQuercusModule {
     TempBuffer tempBuf = TempBuffer.allocate();
     byte []buffer = tempBuf.getBuffer();
 
+    Inflater inflater = ZlibPool.allocateInflater(false);
     InflaterInputStream in = null;
     try {
       if (length == 0)
         length = Long.MAX_VALUE;
 
-      in = new InflaterInputStream(is);
+      in = new InflaterInputStream(is, inflater);
 
       StringValue sb = env.createLargeBinaryBuilder();
 
@@ -538,6 +653,8 @@ public class ZlibModule extends AbstractQuercusModule {
           in.close();
       } catch (Exception e) {
       }
+
+      ZlibPool.freeInflater(inflater, false);
     }
   }
   
@@ -552,12 +669,14 @@ public class ZlibModule extends AbstractQuercusModule {
     TempBuffer tempBuf = TempBuffer.allocate();
     byte []buffer = tempBuf.getBuffer();
     Deflater deflater = null;
-    
+
     try {
-      deflater = new Deflater(level, true);
+      deflater = ZlibPool.allocateDeflater(level,
+                                           Deflater.DEFAULT_STRATEGY,
+                                           true);
 
       boolean isFinished = false;
-      TempStream out = new TempStream();
+      StringValue out = env.createLargeBinaryBuilder();
 
       int len;
       while (! isFinished) {
@@ -573,20 +692,18 @@ public class ZlibModule extends AbstractQuercusModule {
         }
 
         while ((len = deflater.deflate(buffer, 0, buffer.length)) > 0) {
-          out.write(buffer, 0, len, false);
+          out.append(buffer, 0, len);
         }
       }
-      deflater.end();
 
-      return env.createBinaryString(out.getHead());
+      return out;
 
     } catch (Exception e) {
       throw QuercusModuleException.create(e);
     } finally {
       TempBuffer.free(tempBuf);
 
-      if (deflater != null)
-        deflater.end();
+      ZlibPool.freeDeflater(deflater, true);
     }
   }
 
@@ -608,7 +725,7 @@ public class ZlibModule extends AbstractQuercusModule {
     Inflater inflater = null;
 
     try {
-      inflater = new Inflater(true);
+      inflater = ZlibPool.allocateInflater(true);
       StringValue sb = env.createBinaryBuilder();
 
       while (true) {
@@ -639,8 +756,7 @@ public class ZlibModule extends AbstractQuercusModule {
     } finally {
       TempBuffer.free(tempBuf);
 
-      if (inflater != null)
-        inflater.end();
+      ZlibPool.freeInflater(inflater, true);
     }
   }
 
@@ -662,13 +778,13 @@ public class ZlibModule extends AbstractQuercusModule {
     TempBuffer tempBuf = TempBuffer.allocate();
     byte[] buffer = tempBuf.getBuffer();
 
-    TempStream ts = new TempStream();
-    StreamImplOutputStream out = new StreamImplOutputStream(ts);
+    StringValue sb = env.createLargeBinaryBuilder();
 
     ZlibOutputStream gzOut = null;
 
     try {
-      gzOut = new ZlibOutputStream(out, level,
+      // the compressed data is appended directly to the result
+      gzOut = new ZlibOutputStream(new StringBuilderOutputStream(sb), level,
                                    Deflater.DEFAULT_STRATEGY,
                                    encodingMode);
 
@@ -678,18 +794,12 @@ public class ZlibModule extends AbstractQuercusModule {
       }
       gzOut.close();
 
-      StringValue sb = env.createBinaryBuilder();
-      for (TempBuffer ptr = ts.getHead(); ptr != null; ptr = ptr.getNext())
-        sb.append(ptr.getBuffer(), 0, ptr.getLength());
-
       return sb;
     } catch (IOException e) {
       throw QuercusModuleException.create(e);
     } finally {
       TempBuffer.free(tempBuf);
 
-      ts.destroy();
-
       if (gzOut != null)
         gzOut.close();
     }
@@ -768,4 +878,38 @@ public class ZlibModule extends AbstractQuercusModule {
     
     return Deflater.DEFAULT_STRATEGY;
   }
+
+  /**
+   * Finishes the compressed response after the output buffers and
+   * shutdown functions have written their output.
+   */
+  static class OutputCompression implements EnvCleanup {
+    private final WriteStream _out;
+    private final ContentEncodingStream _encoder;
+
+    OutputCompression(WriteStream out, ContentEncodingStream encoder)
+    {
+      _out = out;
+      _encoder = encoder;
+    }
+
+    public void cleanup()
+      throws IOException
+    {
+      try {
+        _out.flush();
+
+        _encoder.finish();
+      } finally {
+        _encoder.cleanup();
+      }
+    }
+  }
+
+  // read once when the request starts, so ini_set() can't change them
+  static final IniDefinition INI_ZLIB_OUTPUT_COMPRESSION
+    = _iniDefinitions.add("zlib.output_compression", false, PHP_INI_PERDIR);
+  static final IniDefinition INI_ZLIB_OUTPUT_COMPRESSION_LEVEL
+    = _iniDefinitions.add("zlib.output_compression_level", -1,
+                          PHP_INI_PERDIR);
 }
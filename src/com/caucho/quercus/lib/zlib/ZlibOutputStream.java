@@ -47,6 +47,7 @@ import java.util.zip.DeflaterOutputStream;
 public class ZlibOutputStream extends AbstractBinaryOutput {
   private OutputStream _os;
   private DeflaterOutputStream _out;
+  private Deflater _deflater;
   private CRC32 _crc32;
 
   private static byte[] _header = {
@@ -73,6 +74,7 @@ public class ZlibOutputStream extends AbstractBinaryOutput {
     throws IOException
   {
     _os = os;
+    _deflater = def;
     _out = new DeflaterOutputStream(_os, def);
     
     _os.write(_header, 0, _header.length);
@@ -121,22 +123,15 @@ public class ZlibOutputStream extends AbstractBinaryOutput {
   }
 
   /**
-   * Creates a deflater based on the Zlib arguments.
+   * Allocates a pooled deflater based on the Zlib arguments.
    */
   private static Deflater createDeflater(int compressionLevel,
                                          int strategy,
                                          int encodingMode)
   {
-    Deflater def;
-
-    if (encodingMode == ZlibModule.FORCE_GZIP)
-      def = new Deflater(compressionLevel, true);
-    else
-      def = new Deflater(compressionLevel, false);
-
-    def.setStrategy(strategy);
-
-    return def;
+    return ZlibPool.allocateDeflater(compressionLevel,
+                                     strategy,
+                                     encodingMode == ZlibModule.FORCE_GZIP);
   }
 
   /**
@@ -217,6 +212,12 @@ public class ZlibOutputStream extends AbstractBinaryOutput {
       _os.close();
     } catch (IOException e) {
       throw new RuntimeException(e);
+    } finally {
+      Deflater deflater = _deflater;
+      _deflater = null;
+
+      if (deflater != null)
+        ZlibPool.freeDeflater(deflater, _isGzip);
     }
   }
 
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Nam Nguyen
+ */
+
+package com.caucho.quercus.lib.zlib;
+
+import com.caucho.util.FreeList;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Pool of reusable deflaters and inflaters.  Creating a Deflater
+ * allocates the native zlib state, which is far more expensive than
+ * resetting an idle one.
+ */
+public final class ZlibPool {
+  private static final FreeList<Deflater> _freeDeflaterList
+    = new FreeList<Deflater>(64);
+  private static final FreeList<Deflater> _freeRawDeflaterList
+    = new FreeList<Deflater>(64);
+
+  private static final FreeList<Inflater> _freeInflaterList
+    = new FreeList<Inflater>(64);
+  private static final FreeList<Inflater> _freeRawInflaterList
+    = new FreeList<Inflater>(64);
+
+  private ZlibPool()
+  {
+  }
+
+  /**
+   * Returns a deflater with the given settings.
+   *
+   * @param level the compression level
+   * @param strategy the Deflate compression strategy
+   * @param isRaw true for raw deflate data without the zlib header
+   */
+  public static Deflater allocateDeflater(int level,
+                                          int strategy,
+                                          boolean isRaw)
+  {
+    Deflater def;
+
+    if (isRaw)
+      def = _freeRawDeflaterList.allocate();
+    else
+      def = _freeDeflaterList.allocate();
+
+    if (def == null)
+      return createDeflater(level, strategy, isRaw);
+
+    try {
+      def.setLevel(level);
+      def.setStrategy(strategy);
+    } catch (IllegalArgumentException e) {
+      freeDeflater(def, isRaw);
+
+      throw e;
+    }
+
+    return def;
+  }
+
+  private static Deflater createDeflater(int level,
+                                         int strategy,
+                                         boolean isRaw)
+  {
+    Deflater def = new Deflater(level, isRaw);
+
+    try {
+      def.setStrategy(strategy);
+    } catch (IllegalArgumentException e) {
+      def.end();
+
+      throw e;
+    }
+
+    return def;
+  }
+
+  /**
+   * Returns a deflater to the pool.
+   *
+   * @param isRaw the isRaw flag the deflater was allocated with
+   */
+  public static void freeDeflater(Deflater def, boolean isRaw)
+  {
+    if (def == null)
+      return;
+
+    def.reset();
+
+    boolean isFree;
+
+    if (isRaw)
+      isFree = _freeRawDeflaterList.free(def);
+    else
+      isFree = _freeDeflaterList.free(def);
+
+    if (! isFree)
+      def.end();
+  }
+
+  /**
+   * Returns an inflater.
+   *
+   * @param isRaw true for raw deflate data without the zlib header
+   */
+  public static Inflater allocateInflater(boolean isRaw)
+  {
+    Inflater inf;
+
+    if (isRaw)
+      inf = _freeRawInflaterList.allocate();
+    else
+      inf = _freeInflaterList.allocate();
+
+    if (inf == null)
+      inf = new Inflater(isRaw);
+
+    return inf;
+  }
+
+  /**
+   * Returns an inflater to the pool.
+   *
+   * @param isRaw the isRaw flag the inflater was allocated with
+   */
+  public static void freeInflater(Inflater inf, boolean isRaw)
+  {
+    if (inf == null)
+      return;
+
+    inf.reset();
+
+    boolean isFree;
+
+    if (isRaw)
+      isFree = _freeRawInflaterList.free(inf);
+    else
+      isFree = _freeInflaterList.free(inf);
+
+    if (! isFree)
+      inf.end();
+  }
+}
@@ -31,6 +31,8 @@ package com.caucho.quercus.page;
 
 import com.caucho.quercus.QuercusContext;
 import com.caucho.quercus.parser.QuercusParser;
+import com.caucho.quercus.lib.regexp.Regexp;
+import com.caucho.quercus.program.Function;
 import com.caucho.quercus.program.QuercusProgram;
 import com.caucho.util.CurrentTime;
 import com.caucho.util.L10N;
@@ -41,6 +43,7 @@ import com.caucho.vfs.Path;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.*;
 
 /**
@@ -60,7 +63,15 @@ public class PageManager
   private boolean _isCompile;
   private boolean _isCompileFailover = CurrentTime.isActive();
 
+  private boolean _isTieredCompile;
+  private int _tieredCompileThreshold = 1000;
+
   private boolean _isRequireSource = true;
+
+  private boolean _isIncludePrefetch = true;
+  private ForkJoinPool _prefetchPool;
+  private final ConcurrentHashMap<Path,Boolean> _prefetchMap
+    = new ConcurrentHashMap<Path,Boolean>();
   
   private ConcurrentHashMap<String,Object> _programLockMap
     = new ConcurrentHashMap<String,Object>();
@@ -123,6 +134,42 @@ public class PageManager
     _isLazyCompile = isCompile;
   }
   
+  /**
+   * true if hot functions should be compiled individually while the
+   * rest of the page is interpreted.
+   */
+  public boolean isTieredCompile()
+  {
+    return _isTieredCompile;
+  }
+
+  /**
+   * true if hot functions should be compiled individually.
+   */
+  public void setTieredCompile(boolean isTieredCompile)
+  {
+    _isTieredCompile = isTieredCompile;
+  }
+
+  /**
+   * Returns the sum of invocations and loop iterations after which an
+   * interpreted function is compiled.
+   */
+  public int getTieredCompileThreshold()
+  {
+    return _tieredCompileThreshold;
+  }
+
+  /**
+   * Sets the sum of invocations and loop iterations after which an
+   * interpreted function is compiled.
+   */
+  public void setTieredCompileThreshold(int threshold)
+  {
+    if (threshold > 0)
+      _tieredCompileThreshold = threshold;
+  }
+
   /**
    * true if interpreted pages should be used if pages fail to compile.
    */
@@ -155,6 +202,22 @@ public class PageManager
     return _isRequireSource;
   }
   
+  /**
+   * true if static include targets are parsed in the background.
+   */
+  public boolean isIncludePrefetch()
+  {
+    return _isIncludePrefetch;
+  }
+
+  /**
+   * true if static include targets are parsed in the background.
+   */
+  public void setIncludePrefetch(boolean isIncludePrefetch)
+  {
+    _isIncludePrefetch = isIncludePrefetch;
+  }
+  
   /**
    * Gets the max size of the page cache.
    */
@@ -172,6 +235,14 @@ public class PageManager
       _programCache = new LruCache<Path,SoftReference<QuercusProgram>>(size);
   }
 
+  /**
+   * Discards the cached programs.
+   */
+  public void clearCache()
+  {
+    _programCache.clear();
+  }
+
   /**
    * true if the manager is active.
    */
@@ -261,7 +332,8 @@ public class PageManager
       boolean isModified = false;
       
       if (program != null) {
-        isModified = program.isModified();
+        // immutable deploys are only invalidated explicitly
+        isModified = ! _quercus.isImmutableDeploy() && program.isModified();
         
         if (program.isCompilable()) {
         }
@@ -292,6 +364,8 @@ public class PageManager
         }
 
         _programCache.put(path, new SoftReference<QuercusProgram>(program));
+
+        prefetchIncludes(program);
       }
 
       if (program.getCompiledPage() != null)
@@ -312,6 +386,44 @@ public class PageManager
     return false;
   }
 
+  /**
+   * Parses the static include targets of a freshly parsed program in
+   * the background, so they are cached when execution reaches them.
+   */
+  protected void prefetchIncludes(QuercusProgram program)
+  {
+    if (! _isIncludePrefetch || _isClosed)
+      return;
+
+    for (Path path : program.getIncludeList()) {
+      SoftReference<QuercusProgram> programRef = _programCache.get(path);
+
+      if (programRef != null && programRef.get() != null)
+        continue;
+
+      if (_prefetchMap.putIfAbsent(path, Boolean.TRUE) != null)
+        continue;
+
+      try {
+        getPrefetchPool().execute(new PrefetchTask(path));
+      } catch (RuntimeException e) {
+        _prefetchMap.remove(path);
+
+        log.log(Level.FINER, e.toString(), e);
+      }
+    }
+  }
+
+  private ForkJoinPool getPrefetchPool()
+  {
+    synchronized (_prefetchMap) {
+      if (_prefetchPool == null)
+        _prefetchPool = new ForkJoinPool();
+
+      return _prefetchPool;
+    }
+  }
+
   protected QuercusProgram preloadProgram(Path path, String fileName)
   {
     return null;
@@ -334,9 +446,61 @@ public class PageManager
     return new InterpretedPage(program);
   }
 
+  /**
+   * Schedules a hot function for compilation.  The interpreter has no
+   * compiler, so the function stays interpreted.
+   */
+  public void compileFunction(Function fun)
+  {
+  }
+
+  /**
+   * Schedules a hot regexp for compilation.  The interpreter has no
+   * compiler, so the regexp stays interpreted.
+   */
+  public void compileRegexp(Regexp regexp)
+  {
+  }
+
   public void close()
   {
     _isClosed = true;
+
+    synchronized (_prefetchMap) {
+      if (_prefetchPool != null)
+        _prefetchPool.shutdownNow();
+    }
+  }
+
+  class PrefetchTask implements Runnable {
+    private final Path _path;
+    private final ClassLoader _loader;
+
+    PrefetchTask(Path path)
+    {
+      _path = path;
+      _loader = Thread.currentThread().getContextClassLoader();
+    }
+
+    public void run()
+    {
+      Thread thread = Thread.currentThread();
+      ClassLoader oldLoader = thread.getContextClassLoader();
+
+      try {
+        thread.setContextClassLoader(_loader);
+
+        if (! _isClosed)
+          parse(_path);
+      } catch (Exception e) {
+        // the request will report the error when it reaches the include
+        log.log(Level.FINER, e.toString(), e);
+      } finally {
+        thread.setContextClassLoader(oldLoader);
+
+        _prefetchMap.remove(_path);
+      }
+    }
   }
 }
 
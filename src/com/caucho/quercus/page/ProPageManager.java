@@ -16,7 +16,11 @@ import com.caucho.java.JavaCompilerUtil;
 import com.caucho.quercus.QuercusContext;
 import com.caucho.quercus.QuercusException;
 import com.caucho.quercus.env.ProfilePage;
+import com.caucho.quercus.function.AbstractFunction;
 import com.caucho.quercus.gen.QuercusGenerator;
+import com.caucho.quercus.lib.regexp.Regexp;
+import com.caucho.quercus.lib.regexp.RegexpGenerator;
+import com.caucho.quercus.program.Function;
 import com.caucho.quercus.program.QuercusProgram;
 
 import java.lang.reflect.Method;
@@ -41,8 +45,16 @@ public class ProPageManager extends PageManager
   private ArrayList<CompileItem> _pendingCompile
     = new ArrayList<CompileItem>();
 
+  private ArrayList<Function> _pendingFunctions
+    = new ArrayList<Function>();
+
+  private ArrayList<Regexp> _pendingRegexps
+    = new ArrayList<Regexp>();
+
   private final Semaphore _generatorSemaphore = new Semaphore(2);
   private final Semaphore _compileSemaphore = new Semaphore(2);
+  private final Semaphore _functionSemaphore = new Semaphore(1);
+  private final Semaphore _regexpSemaphore = new Semaphore(1);
 
   private boolean _isRemoveClassOnError;
 
@@ -134,6 +146,48 @@ public class ProPageManager extends PageManager
     return new InterpretedPage(program);
   }
 
+  /**
+   * Queues a hot interpreted function for background compilation.
+   */
+  @Override
+  public void compileFunction(Function fun)
+  {
+    if (! isTieredCompile() || ! isActive())
+      return;
+
+    boolean isSpawn = false;
+
+    synchronized (_pendingFunctions) {
+      _pendingFunctions.add(fun);
+
+      isSpawn = _functionSemaphore.tryAcquire();
+    }
+
+    if (isSpawn)
+      ThreadPool.getThreadPool().schedule(new FunctionCompileThread());
+  }
+
+  /**
+   * Queues a hot regexp for background compilation.
+   */
+  @Override
+  public void compileRegexp(Regexp regexp)
+  {
+    if (! isTieredCompile() || ! isActive())
+      return;
+
+    boolean isSpawn = false;
+
+    synchronized (_pendingRegexps) {
+      _pendingRegexps.add(regexp);
+
+      isSpawn = _regexpSemaphore.tryAcquire();
+    }
+
+    if (isSpawn)
+      ThreadPool.getThreadPool().schedule(new RegexpCompileThread());
+  }
+
   @Override
   protected void clearProgram(Path path, QuercusProgram program)
   {
@@ -496,6 +550,111 @@ public class ProPageManager extends PageManager
     }
   }
 
+  class FunctionCompileThread implements Runnable {
+    public void run()
+    {
+      while (isActive()) {
+        Function fun = null;
+
+        synchronized (_pendingFunctions) {
+          if (_pendingFunctions.size() == 0) {
+            _functionSemaphore.release();
+            return;
+          }
+
+          fun = _pendingFunctions.remove(0);
+        }
+
+        compileFunctionImpl(fun);
+      }
+    }
+
+    private void compileFunctionImpl(Function fun)
+    {
+      QuercusProgram program = fun.getProgram();
+      Path path = program.getSourcePath();
+
+      if (program.getCompiledPage() != null || program.isModified())
+        return;
+
+      QuercusGenerator gen = new QuercusGenerator(getQuercus());
+
+      try {
+        String []files = gen.generateFunction(program, fun,
+                                              getRelativePath(path));
+
+        gen.compile(files);
+
+        Class<?> funClass = gen.loadFunction(program, fun);
+
+        if (funClass == null)
+          throw new IllegalStateException(L.l("can't load '{0}'", fun));
+
+        QuercusPage page = createPage(path, funClass);
+
+        Method create = funClass.getMethod("quercus_createFunction");
+
+        AbstractFunction compiledFun = (AbstractFunction) create.invoke(null);
+
+        fun.setCompiledFunction(page, compiledFun);
+
+        if (log.isLoggable(Level.FINE))
+          log.fine(L.l("Quercus[{0}] compiled hot function {1}", path, fun));
+      } catch (Throwable e) {
+        // need to catch errors as well, the function stays interpreted
+        log.log(Level.FINE, L.l("Quercus[{0}] keeping {1} interpreted because of compile error",
+                                path, fun), e);
+      }
+    }
+  }
+
+  class RegexpCompileThread implements Runnable {
+    public void run()
+    {
+      while (isActive()) {
+        Regexp regexp = null;
+
+        synchronized (_pendingRegexps) {
+          if (_pendingRegexps.size() == 0) {
+            _regexpSemaphore.release();
+            return;
+          }
+
+          regexp = _pendingRegexps.remove(0);
+        }
+
+        compileRegexpImpl(regexp);
+      }
+    }
+
+    private void compileRegexpImpl(Regexp regexp)
+    {
+      QuercusGenerator gen = new QuercusGenerator(getQuercus());
+
+      try {
+        RegexpGenerator regexpGen = new RegexpGenerator(regexp);
+
+        String []files = gen.generateRegexp(regexpGen);
+
+        gen.compile(files);
+
+        Class<?> regexpClass = gen.loadRegexp(regexpGen.getClassName());
+
+        if (regexpClass == null)
+          throw new IllegalStateException(L.l("can't load '{0}'", regexp));
+
+        regexpGen.bind(regexpClass);
+
+        if (log.isLoggable(Level.FINE))
+          log.fine(L.l("Quercus compiled hot regexp {0}", regexp));
+      } catch (Throwable e) {
+        // need to catch errors as well, the regexp stays interpreted
+        log.log(Level.FINE, L.l("Quercus keeping regexp {0} interpreted because of compile error",
+                                regexp), e);
+      }
+    }
+  }
+
   static class CompileItem {
     private QuercusProgram _program;
     private Path _path;
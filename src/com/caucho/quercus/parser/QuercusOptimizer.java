@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 1998-2012 Caucho Technology -- all rights reserved
+ *
+ * This file is part of Resin(R) Open Source
+ *
+ * Each copy or derived work must preserve the copyright notice and this
+ * notice unmodified.
+ *
+ * Resin Open Source is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * Resin Open Source is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, or any warranty
+ * of NON-INFRINGEMENT.  See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Resin Open Source; if not, write to the
+ *
+ *   Free Software Foundation, Inc.
+ *   59 Temple Place, Suite 330
+ *   Boston, MA 02111-1307  USA
+ *
+ * @author Scott Ferguson
+ */
+
+package com.caucho.quercus.parser;
+
+import com.caucho.quercus.QuercusContext;
+import com.caucho.quercus.env.BooleanValue;
+import com.caucho.quercus.env.DoubleValue;
+import com.caucho.quercus.env.LongValue;
+import com.caucho.quercus.env.NullValue;
+import com.caucho.quercus.env.StringValue;
+import com.caucho.quercus.env.Value;
+import com.caucho.quercus.expr.*;
+import com.caucho.quercus.statement.*;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parse-time simplification of expressions and statements.
+ *
+ * Only expressions whose operands are literals or builtin module
+ * constants are folded, so the result never depends on the request.
+ */
+class QuercusOptimizer {
+  private static final Logger log
+    = Logger.getLogger(QuercusOptimizer.class.getName());
+
+  private final QuercusParser _parser;
+  private final QuercusContext _quercus;
+
+  QuercusOptimizer(QuercusParser parser, QuercusContext quercus)
+  {
+    _parser = parser;
+    _quercus = quercus;
+  }
+
+  /**
+   * Replaces a builtin constant used as an operand with its literal value.
+   */
+  Expr constant(Expr expr)
+  {
+    if (_quercus == null || ! (expr instanceof ConstExpr))
+      return expr;
+
+    String name = ((ConstExpr) expr).getVar();
+
+    if (name.indexOf('\\') >= 0)
+      return expr;
+
+    // only names already defined, so typos don't allocate ids
+    int id = _quercus.findConstantId(name);
+
+    Value []constantMap = _quercus.getConstantMap();
+
+    if (id < 0 || constantMap.length <= id)
+      return expr;
+
+    Value value = constantMap[id];
+
+    if (value == null || ! isScalar(value))
+      return expr;
+
+    return createLiteral(value);
+  }
+
+  /**
+   * Folds a freshly created operator expression when all of its
+   * operands are literals.
+   */
+  Expr fold(Expr expr)
+  {
+    if (expr instanceof BinaryAppendExpr)
+      return foldAppend((BinaryAppendExpr) expr);
+    else if (expr instanceof AbstractBinaryExpr) {
+      AbstractBinaryExpr binExpr = (AbstractBinaryExpr) expr;
+
+      Value left = literalValue(binExpr.getLeft());
+      Value right = literalValue(binExpr.getRight());
+
+      if (left == null || right == null)
+        return expr;
+
+      if (isArithmetic(expr)) {
+        if (! isNumber(left) || ! isNumber(right))
+          return expr;
+
+        if ((expr instanceof BinaryDivExpr || expr instanceof BinaryModExpr)
+            && right.toDouble() == 0)
+          return expr;
+      }
+      else if (! isLogical(expr))
+        return expr;
+
+      return evalLiteral(expr);
+    }
+    else if (expr instanceof AbstractUnaryExpr) {
+      Value value = literalValue(((AbstractUnaryExpr) expr).getExpr());
+
+      if (value == null)
+        return expr;
+
+      if (expr instanceof UnaryNotExpr)
+        return evalLiteral(expr);
+      else if ((expr instanceof UnaryMinusExpr
+                || expr instanceof UnaryPlusExpr
+                || expr instanceof UnaryBitNotExpr)
+               && isNumber(value))
+        return evalLiteral(expr);
+      else
+        return expr;
+    }
+    else
+      return expr;
+  }
+
+  /**
+   * Concatenates the scalar literals in an append chain.  The factory
+   * already joins adjacent string literals, so integer, boolean and
+   * null literals are converted to strings first.
+   */
+  private Expr foldAppend(BinaryAppendExpr append)
+  {
+    ArrayList<Expr> values = new ArrayList<Expr>();
+    boolean isChanged = false;
+
+    for (BinaryAppendExpr ptr = append; ptr != null; ptr = ptr.getNext()) {
+      Expr value = ptr.getValue();
+      Value literal = literalValue(value);
+
+      // doubles depend on the precision ini
+      if (literal != null
+          && ! (literal instanceof StringValue)
+          && ! (literal instanceof DoubleValue)) {
+        value = createString(literal.toString());
+        isChanged = true;
+      }
+
+      values.add(value);
+    }
+
+    if (! isChanged)
+      return append;
+
+    ExprFactory factory = getFactory();
+
+    Expr result = values.get(0);
+
+    for (int i = 1; i < values.size(); i++) {
+      result = factory.createAppend(result, values.get(i));
+    }
+
+    return result;
+  }
+
+  /**
+   * Selects the branch of a conditional with a constant test.
+   */
+  Expr foldConditional(Expr test, Expr trueExpr, Expr falseExpr)
+  {
+    Value value = literalValue(test);
+
+    if (value == null)
+      return null;
+    else if (value.toBoolean())
+      return trueExpr;
+    else
+      return falseExpr;
+  }
+
+  /**
+   * Returns the taken branch of an if statement with a constant test,
+   * or null if the test is not constant.
+   */
+  Statement foldIf(Expr test, Statement trueBlock, Statement falseBlock)
+  {
+    Value value = literalValue(test);
+
+    if (value == null)
+      return null;
+    else if (value.toBoolean())
+      return trueBlock;
+    else if (falseBlock != null)
+      return falseBlock;
+    else
+      return getFactory().createNullStatement();
+  }
+
+  /**
+   * Returns true if the loop test is the constant false.
+   */
+  boolean isAlwaysFalse(Expr test)
+  {
+    Value value = literalValue(test);
+
+    return value != null && ! value.toBoolean();
+  }
+
+  /**
+   * Evaluates a call to a pure builtin with literal arguments.
+   */
+  Expr foldCall(String name, ArrayList<Expr> args)
+  {
+    if (args.size() != 1 || name.indexOf('\\') >= 0)
+      return null;
+
+    Value arg = literalValue(args.get(0));
+
+    if (arg == null)
+      return null;
+
+    name = name.toLowerCase();
+
+    if (arg instanceof StringValue) {
+      StringValue str = (StringValue) arg;
+
+      if (name.equals("strlen"))
+        return getFactory().createLong(str.length());
+      else if (name.equals("strtolower"))
+        return createLiteral(str.toLowerCase());
+      else if (name.equals("strtoupper"))
+        return createLiteral(str.toUpperCase());
+      else if (name.equals("ord"))
+        return getFactory().createLong(str.length() > 0 ? str.charAt(0) : 0);
+    }
+
+    if (isNumber(arg)) {
+      if (name.equals("intval"))
+        return getFactory().createLong(arg.toLong());
+      else if (name.equals("floatval"))
+        return createLiteral(DoubleValue.create(arg.toDouble()));
+      else if (name.equals("abs"))
+        return createLiteral(arg.abs());
+    }
+
+    return null;
+  }
+
+  /**
+   * Drops statements following an unconditional jump.
+   */
+  ArrayList<Statement> removeUnreachable(ArrayList<Statement> statementList)
+  {
+    int size = statementList.size();
+
+    for (int i = 0; i < size - 1; i++) {
+      if (! isJump(statementList.get(i)))
+        continue;
+
+      ArrayList<Statement> reachable = new ArrayList<Statement>(i + 1);
+
+      for (int j = 0; j < size; j++) {
+        Statement stmt = statementList.get(j);
+
+        // conditional declarations are still visible to earlier code
+        if (j <= i
+            || stmt instanceof FunctionDefStatement
+            || stmt instanceof ClassDefStatement)
+          reachable.add(stmt);
+      }
+
+      return reachable;
+    }
+
+    return statementList;
+  }
+
+  private boolean isJump(Statement stmt)
+  {
+    return (stmt instanceof ReturnStatement
+            || stmt instanceof ReturnRefStatement
+            || stmt instanceof ThrowStatement
+            || stmt instanceof BreakStatement
+            || stmt instanceof ContinueStatement);
+  }
+
+  private boolean isArithmetic(Expr expr)
+  {
+    return (expr instanceof BinaryAddExpr
+            || expr instanceof BinarySubExpr
+            || expr instanceof BinaryMulExpr
+            || expr instanceof BinaryDivExpr
+            || expr instanceof BinaryModExpr
+            || expr instanceof BinaryBitAndExpr
+            || expr instanceof BinaryBitOrExpr
+            || expr instanceof BinaryBitXorExpr
+            || expr instanceof BinaryLeftShiftExpr
+            || expr instanceof BinaryRightShiftExpr);
+  }
+
+  private boolean isLogical(Expr expr)
+  {
+    return (expr instanceof BinaryAndExpr
+            || expr instanceof BinaryOrExpr
+            || expr instanceof BinaryXorExpr
+            || expr instanceof BinaryEqExpr
+            || expr instanceof BinaryNeqExpr
+            || expr instanceof BinaryEqualsExpr
+            || expr instanceof BinaryLtExpr
+            || expr instanceof BinaryGtExpr
+            || expr instanceof BinaryLeqExpr
+            || expr instanceof BinaryGeqExpr);
+  }
+
+  private static boolean isNumber(Value value)
+  {
+    return (value instanceof LongValue
+            || value instanceof DoubleValue
+            || value instanceof BooleanValue
+            || value instanceof NullValue);
+  }
+
+  private static boolean isScalar(Value value)
+  {
+    return isNumber(value) || value instanceof StringValue;
+  }
+
+  /**
+   * Returns the value of a literal expression, or null.
+   */
+  private Value literalValue(Expr expr)
+  {
+    if (! expr.isLiteral())
+      return null;
+
+    try {
+      // literal expressions ignore the environment
+      Value value = expr.eval(null);
+
+      if (value != null && isScalar(value))
+        return value;
+    } catch (RuntimeException e) {
+      log.log(Level.FINEST, e.toString(), e);
+    }
+
+    return null;
+  }
+
+  private Expr evalLiteral(Expr expr)
+  {
+    try {
+      Value value = expr.eval(null);
+
+      if (value != null && isScalar(value))
+        return createLiteral(value);
+    } catch (RuntimeException e) {
+      log.log(Level.FINEST, e.toString(), e);
+    }
+
+    return expr;
+  }
+
+  private Expr createLiteral(Value value)
+  {
+    ExprFactory factory = getFactory();
+
+    if (value instanceof LongValue)
+      return factory.createLong(value.toLong());
+    else if (value instanceof NullValue)
+      return factory.createNull();
+    else if (value instanceof StringValue)
+      return createString(value.toString());
+    else
+      return factory.createLiteral(value);
+  }
+
+  private Expr createString(String value)
+  {
+    if (_parser.isUnicodeSemantics())
+      return getFactory().createUnicode(value);
+    else
+      return getFactory().createString(value);
+  }
+
+  private ExprFactory getFactory()
+  {
+    return _parser.getExprFactory();
+  }
+}
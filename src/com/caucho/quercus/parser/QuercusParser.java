@@ -49,12 +49,16 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * Parses a PHP program.
  */
 public class QuercusParser {
   private final static L10N L = new L10N(QuercusParser.class);
+  private final static Logger log
+    = Logger.getLogger(QuercusParser.class.getName());
 
   private final static int M_STATIC = 0x1;
   private final static int M_PUBLIC = 0x2;
@@ -191,6 +195,7 @@ public class QuercusParser {
   private ParserLocation _parserLocation = new ParserLocation();
 
   private ExprFactory _factory;
+  private QuercusOptimizer _optimizer;
 
   private boolean _hasCr;
 
@@ -226,6 +231,9 @@ public class QuercusParser {
   private int _functionsParsed;
 
   private ArrayList<String> _loopLabelList = new ArrayList<String>();
+
+  // include targets with a name known at parse time
+  private ArrayList<String> _includeNameList = new ArrayList<String>();
   private int _labelsCreated;
 
   private String _comment;
@@ -239,6 +247,8 @@ public class QuercusParser {
     else
       _factory = quercus.createExprFactory();
 
+    _optimizer = new QuercusOptimizer(this, quercus);
+
     _globalScope = new GlobalScope(_factory);
     _scope = _globalScope;
   }
@@ -491,6 +501,9 @@ public class QuercusParser {
                            _globalScope.getClassList(),
                            _function,
                            stmt);
+
+    addIncludes(program);
+
     return program;
 
     /*
@@ -501,6 +514,30 @@ public class QuercusParser {
     */
   }
 
+  /**
+   * Registers the include targets known at parse time with the program.
+   */
+  private void addIncludes(QuercusProgram program)
+  {
+    if (_sourceFile == null || _includeNameList.size() == 0)
+      return;
+
+    Path dir = _sourceFile.getParent();
+
+    for (String name : _includeNameList) {
+      try {
+        // relative names resolve against the include_path at runtime,
+        // so only the including file's directory is a safe guess
+        Path path = dir.lookup(name);
+
+        if (path.canRead() && ! path.isDirectory())
+          program.addInclude(path);
+      } catch (RuntimeException e) {
+        log.log(Level.FINEST, e.toString(), e);
+      }
+    }
+  }
+
   QuercusProgram parseCode()
     throws IOException
   {
@@ -616,7 +653,7 @@ public class QuercusParser {
 
       switch (token) {
       case -1:
-        return statementList;
+        return _optimizer.removeUnreachable(statementList);
 
       case ';':
         break;
@@ -712,7 +749,7 @@ public class QuercusParser {
         break;
 
       case PHP_END:
-        return statementList;
+        return _optimizer.removeUnreachable(statementList);
 
       case RETURN:
         statementList.add(parseReturn());
@@ -771,7 +808,7 @@ public class QuercusParser {
       case ENDFOREACH:
       case ENDSWITCH:
         _peekToken = token;
-        return statementList;
+        return _optimizer.removeUnreachable(statementList);
 
       case TEXT:
         if (_lexeme.length() > 0) {
@@ -1195,6 +1232,12 @@ public class QuercusParser {
       else
         _peekToken = token;
 
+      Statement foldStmt = _optimizer.foldIf(constant(test),
+                                             trueBlock, falseBlock);
+
+      if (foldStmt != null)
+        return foldStmt;
+
       return _factory.createIf(location, test, trueBlock, falseBlock);
 
     } finally {
@@ -1236,6 +1279,12 @@ public class QuercusParser {
       expect(ENDIF);
     }
 
+    Statement foldStmt = _optimizer.foldIf(constant(test),
+                                           trueBlock, falseBlock);
+
+    if (foldStmt != null)
+      return foldStmt;
+
     return _factory.createIf(location, test, trueBlock, falseBlock);
   }
 
@@ -1401,6 +1450,9 @@ public class QuercusParser {
         block = parseStatement();
       }
 
+      if (_optimizer.isAlwaysFalse(constant(test)))
+        return _factory.createNullStatement();
+
       return _factory.createWhile(location, test, block, label);
     } finally {
       _isTop = oldTop;
@@ -2574,7 +2626,8 @@ public class QuercusParser {
 
       switch (token) {
       case OR_RES:
-        expr = _factory.createOr(expr, parseWeakXorExpr());
+        expr = fold(_factory.createOr(constant(expr),
+                                      constant(parseWeakXorExpr())));
         break;
       default:
         _peekToken = token;
@@ -2596,7 +2649,8 @@ public class QuercusParser {
 
       switch (token) {
       case XOR_RES:
-        expr = _factory.createXor(expr, parseWeakAndExpr());
+        expr = fold(_factory.createXor(constant(expr),
+                                       constant(parseWeakAndExpr())));
         break;
       default:
         _peekToken = token;
@@ -2618,7 +2672,8 @@ public class QuercusParser {
 
       switch (token) {
       case AND_RES:
-        expr = _factory.createAnd(expr, parseConditionalExpr());
+        expr = fold(_factory.createAnd(constant(expr),
+                                       constant(parseConditionalExpr())));
         break;
       default:
         _peekToken = token;
@@ -2651,7 +2706,16 @@ public class QuercusParser {
           Expr trueExpr = parseExpr();
           expect(':');
           // php/33c1
-          expr = _factory.createConditional(expr, trueExpr, parseOrExpr());
+          Expr falseExpr = parseOrExpr();
+
+          Expr foldExpr = _optimizer.foldConditional(constant(expr),
+                                                     trueExpr,
+                                                     falseExpr);
+
+          if (foldExpr != null)
+            expr = foldExpr;
+          else
+            expr = _factory.createConditional(expr, trueExpr, falseExpr);
         }
         break;
       default:
@@ -2674,7 +2738,8 @@ public class QuercusParser {
 
       switch (token) {
       case C_OR:
-        expr = _factory.createOr(expr, parseAndExpr());
+        expr = fold(_factory.createOr(constant(expr),
+                                      constant(parseAndExpr())));
         break;
       default:
         _peekToken = token;
@@ -2696,7 +2761,8 @@ public class QuercusParser {
 
       switch (token) {
       case C_AND:
-        expr = _factory.createAnd(expr, parseBitOrExpr());
+        expr = fold(_factory.createAnd(constant(expr),
+                                       constant(parseBitOrExpr())));
         break;
       default:
         _peekToken = token;
@@ -2718,7 +2784,8 @@ public class QuercusParser {
 
       switch (token) {
       case '|':
-        expr = _factory.createBitOr(expr, parseBitXorExpr());
+        expr = fold(_factory.createBitOr(constant(expr),
+                                         constant(parseBitXorExpr())));
         break;
       default:
         _peekToken = token;
@@ -2740,7 +2807,8 @@ public class QuercusParser {
 
       switch (token) {
       case '^':
-        expr = _factory.createBitXor(expr, parseBitAndExpr());
+        expr = fold(_factory.createBitXor(constant(expr),
+                                          constant(parseBitAndExpr())));
         break;
       default:
         _peekToken = token;
@@ -2762,7 +2830,8 @@ public class QuercusParser {
 
       switch (token) {
       case '&':
-        expr = _factory.createBitAnd(expr, parseEqExpr());
+        expr = fold(_factory.createBitAnd(constant(expr),
+                                          constant(parseEqExpr())));
         break;
       default:
         _peekToken = token;
@@ -2783,16 +2852,20 @@ public class QuercusParser {
 
     switch (token) {
     case EQ:
-      return _factory.createEq(expr, parseCmpExpr());
+      return fold(_factory.createEq(constant(expr),
+                                    constant(parseCmpExpr())));
 
     case NEQ:
-      return _factory.createNeq(expr, parseCmpExpr());
+      return fold(_factory.createNeq(constant(expr),
+                                     constant(parseCmpExpr())));
 
     case EQUALS:
-      return _factory.createEquals(expr, parseCmpExpr());
+      return fold(_factory.createEquals(constant(expr),
+                                        constant(parseCmpExpr())));
 
     case NEQUALS:
-      return _factory.createNot(_factory.createEquals(expr, parseCmpExpr()));
+      return fold(_factory.createNot(fold(_factory.createEquals(constant(expr),
+                                          constant(parseCmpExpr())))));
 
     default:
       _peekToken = token;
@@ -2812,16 +2885,20 @@ public class QuercusParser {
 
     switch (token) {
     case '<':
-      return _factory.createLt(expr, parseShiftExpr());
+      return fold(_factory.createLt(constant(expr),
+                                    constant(parseShiftExpr())));
 
     case '>':
-      return _factory.createGt(expr, parseShiftExpr());
+      return fold(_factory.createGt(constant(expr),
+                                    constant(parseShiftExpr())));
 
     case LEQ:
-      return _factory.createLeq(expr, parseShiftExpr());
+      return fold(_factory.createLeq(constant(expr),
+                                     constant(parseShiftExpr())));
 
     case GEQ:
-      return _factory.createGeq(expr, parseShiftExpr());
+      return fold(_factory.createGeq(constant(expr),
+                                     constant(parseShiftExpr())));
 
     case INSTANCEOF:
       Location location = getLocation();
@@ -2852,10 +2929,12 @@ public class QuercusParser {
 
       switch (token) {
       case LSHIFT:
-        expr = _factory.createLeftShift(expr, parseAddExpr());
+        expr = fold(_factory.createLeftShift(constant(expr),
+                                             constant(parseAddExpr())));
         break;
       case RSHIFT:
-        expr = _factory.createRightShift(expr, parseAddExpr());
+        expr = fold(_factory.createRightShift(constant(expr),
+                                              constant(parseAddExpr())));
         break;
       default:
         _peekToken = token;
@@ -2877,13 +2956,16 @@ public class QuercusParser {
 
       switch (token) {
       case '+':
-        expr = _factory.createAdd(expr, parseMulExpr());
+        expr = fold(_factory.createAdd(constant(expr),
+                                       constant(parseMulExpr())));
         break;
       case '-':
-        expr = _factory.createSub(expr, parseMulExpr());
+        expr = fold(_factory.createSub(constant(expr),
+                                       constant(parseMulExpr())));
         break;
       case '.':
-        expr = _factory.createAppend(expr, parseMulExpr());
+        expr = fold(_factory.createAppend(constant(expr),
+                                          constant(parseMulExpr())));
         break;
       default:
         _peekToken = token;
@@ -2905,13 +2987,16 @@ public class QuercusParser {
 
       switch (token) {
       case '*':
-        expr = _factory.createMul(expr, parseAssignExpr());
+        expr = fold(_factory.createMul(constant(expr),
+                                       constant(parseAssignExpr())));
         break;
       case '/':
-        expr = _factory.createDiv(expr, parseAssignExpr());
+        expr = fold(_factory.createDiv(constant(expr),
+                                       constant(parseAssignExpr())));
         break;
       case '%':
-        expr = _factory.createMod(expr, parseAssignExpr());
+        expr = fold(_factory.createMod(constant(expr),
+                                       constant(parseAssignExpr())));
         break;
       default:
         _peekToken = token;
@@ -3098,28 +3183,28 @@ public class QuercusParser {
       {
         Expr expr = parseAssignExpr();
 
-        return _factory.createPlus(expr);
+        return fold(_factory.createPlus(constant(expr)));
       }
 
     case '-':
       {
         Expr expr = parseAssignExpr();
 
-        return _factory.createMinus(expr);
+        return fold(_factory.createMinus(constant(expr)));
       }
 
     case '!':
       {
         Expr expr = parseAssignExpr();
 
-        return _factory.createNot(expr);
+        return fold(_factory.createNot(constant(expr)));
       }
 
     case '~':
       {
         Expr expr = parseAssignExpr();
 
-        return _factory.createBitNot(expr);
+        return fold(_factory.createBitNot(constant(expr)));
       }
 
     case '@':
@@ -3455,15 +3540,17 @@ public class QuercusParser {
       return parseClosure();
 
     case INCLUDE:
-      return _factory.createInclude(getLocation(), _sourceFile, parseExpr());
+      return _factory.createInclude(getLocation(), _sourceFile,
+                                    parseIncludeExpr());
     case REQUIRE:
-      return _factory.createRequire(getLocation(), _sourceFile, parseExpr());
+      return _factory.createRequire(getLocation(), _sourceFile,
+                                    parseIncludeExpr());
     case INCLUDE_ONCE:
       return _factory.createIncludeOnce(getLocation(),
-          _sourceFile, parseExpr());
+          _sourceFile, parseIncludeExpr());
     case REQUIRE_ONCE:
       return _factory.createRequireOnce(getLocation(),
-          _sourceFile, parseExpr());
+          _sourceFile, parseIncludeExpr());
 
     case LIST:
       return parseList();
@@ -3707,11 +3794,75 @@ public class QuercusParser {
     return _factory.createVar(_function.createVar(_lexeme));
   }
 
+  /**
+   * Folds an operator expression with literal operands.
+   */
+  private Expr fold(Expr expr)
+  {
+    return _optimizer.fold(expr);
+  }
+
+  /**
+   * Replaces a builtin constant operand with its literal value.
+   */
+  private Expr constant(Expr expr)
+  {
+    return _optimizer.constant(expr);
+  }
+
   public Expr createVar(String name)
   {
     return _factory.createVar(_function.createVar(name));
   }
 
+  /**
+   * Parses the path of an include expression, remembering it when the
+   * name is a literal or a __DIR__ concatenation.
+   */
+  private Expr parseIncludeExpr()
+    throws IOException
+  {
+    Expr expr = parseExpr();
+
+    String name = getIncludeName(expr);
+
+    if (name != null && name.length() > 0)
+      _includeNameList.add(name);
+
+    return expr;
+  }
+
+  private String getIncludeName(Expr expr)
+  {
+    if (expr instanceof ConstDirExpr)
+      return expr.toString();
+    else if (expr instanceof BinaryAppendExpr) {
+      StringBuilder sb = new StringBuilder();
+
+      for (BinaryAppendExpr ptr = (BinaryAppendExpr) expr;
+           ptr != null;
+           ptr = ptr.getNext()) {
+        String name = getIncludeName(ptr.getValue());
+
+        if (name == null)
+          return null;
+
+        sb.append(name);
+      }
+
+      return sb.toString();
+    }
+    else if (expr.isLiteral()) {
+      try {
+        return expr.eval(null).toString();
+      } catch (RuntimeException e) {
+        log.log(Level.FINEST, e.toString(), e);
+      }
+    }
+
+    return null;
+  }
+
   /**
    * Parses the next function
    */
@@ -3725,6 +3876,11 @@ public class QuercusParser {
 
     name = resolveIdentifier(name);
 
+    Expr foldExpr = _optimizer.foldCall(name, args);
+
+    if (foldExpr != null)
+      return foldExpr;
+
     return _factory.createCall(this, name, args);
 
     /*
@@ -30,6 +30,7 @@
 package com.caucho.quercus.program;
 
 import com.caucho.quercus.Location;
+import com.caucho.quercus.QuercusContext;
 import com.caucho.quercus.QuercusException;
 import com.caucho.quercus.env.Env;
 import com.caucho.quercus.env.EnvVar;
@@ -45,12 +46,14 @@ import com.caucho.quercus.expr.Expr;
 import com.caucho.quercus.expr.ExprFactory;
 import com.caucho.quercus.expr.ParamRequiredExpr;
 import com.caucho.quercus.function.AbstractFunction;
+import com.caucho.quercus.page.QuercusPage;
 import com.caucho.quercus.statement.*;
 import com.caucho.util.L10N;
 
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
 /**
@@ -60,6 +63,10 @@ public class Function extends AbstractFunction {
   private static final Logger log = Logger.getLogger(Function.class.getName());
   private static final L10N L = new L10N(Function.class);
 
+  // ids of tier-compiled functions, indexing each env's init flags
+  private static final AtomicInteger _compiledIdGenerator
+    = new AtomicInteger();
+
   protected final FunctionInfo _info;
   protected final boolean _isReturnsReference;
 
@@ -73,6 +80,16 @@ public class Function extends AbstractFunction {
   
   protected Arg []_closureUseArgs;
 
+  // tiered compilation
+  private QuercusProgram _program;
+  private int _tierCompileThreshold = Integer.MAX_VALUE;
+  private int _invocationCount;
+  private int _backEdgeCount;
+  private boolean _isTierCompileRequested;
+  private QuercusPage _compiledPage;
+  private int _compiledId;
+  private volatile AbstractFunction _compiledFunction;
+
   Function(Location location,
            String name,
            FunctionInfo info,
@@ -215,6 +232,119 @@ public class Function extends AbstractFunction {
     return _comment;
   }
 
+  /**
+   * Returns the program which declares this function.
+   */
+  public QuercusProgram getProgram()
+  {
+    return _program;
+  }
+
+  /**
+   * Sets the declaring program, enabling tiered compilation when the
+   * page manager supports it.
+   */
+  public void setProgram(QuercusProgram program)
+  {
+    _program = program;
+
+    QuercusContext quercus = program.getPhp();
+
+    if (quercus.isTieredCompile()
+        && program.getSourcePath() != null
+        && isTierCompilable())
+      _tierCompileThreshold = quercus.getTieredCompileThreshold();
+  }
+
+  /**
+   * Returns true if this function can be compiled on its own.
+   */
+  protected boolean isTierCompilable()
+  {
+    return this instanceof CompilingFunction && ! isClosure();
+  }
+
+  /**
+   * Returns the compiled replacement, or null if still interpreted.
+   */
+  public AbstractFunction getCompiledFunction()
+  {
+    return _compiledFunction;
+  }
+
+  /**
+   * Swaps in the compiled replacement.  Calls already in progress
+   * finish interpreted, new calls use the compiled code.
+   *
+   * @param page the generated page holding the function's ids
+   * @param fun the compiled function
+   */
+  public void setCompiledFunction(QuercusPage page, AbstractFunction fun)
+  {
+    _compiledPage = page;
+    _compiledId = _compiledIdGenerator.getAndIncrement();
+    _compiledFunction = fun;
+  }
+
+  /**
+   * Returns the compiled replacement bound to the env, or null if the
+   * function is still interpreted.
+   */
+  private AbstractFunction getCompiledFunction(Env env)
+  {
+    AbstractFunction compiledFun = _compiledFunction;
+
+    if (compiledFun != null) {
+      // compiled code reads env._fun directly, so the ids it uses
+      // must be filled once for this env
+      env.initTierPage(_compiledId, _compiledPage);
+    }
+
+    return compiledFun;
+  }
+
+  /**
+   * Returns the number of interpreted invocations.
+   */
+  public int getInvocationCount()
+  {
+    return _invocationCount;
+  }
+
+  /**
+   * Returns the number of interpreted loop iterations.
+   */
+  public int getBackEdgeCount()
+  {
+    return _backEdgeCount;
+  }
+
+  /**
+   * Counts a loop back-edge in the interpreted body.
+   */
+  public final void countBackEdge()
+  {
+    if (++_backEdgeCount + _invocationCount >= _tierCompileThreshold)
+      requestTierCompile();
+  }
+
+  private void countInvocation()
+  {
+    if (++_invocationCount + _backEdgeCount >= _tierCompileThreshold)
+      requestTierCompile();
+  }
+
+  private void requestTierCompile()
+  {
+    if (_isTierCompileRequested)
+      return;
+
+    _isTierCompileRequested = true;
+    _tierCompileThreshold = Integer.MAX_VALUE;
+
+    _program.getPhp().compileFunction(this);
+  }
+
   public Value execute(Env env)
   {
     return null;
@@ -264,6 +394,19 @@ public class Function extends AbstractFunction {
 
   private Value callImpl(Env env, Expr []args, boolean isRef)
   {
+    AbstractFunction compiledFun = getCompiledFunction(env);
+
+    if (compiledFun != null) {
+      Value []values = evalArguments(env, null, args);
+
+      if (isRef)
+        return compiledFun.callRef(env, values);
+      else
+        return compiledFun.call(env, values);
+    }
+
+    countInvocation();
+
     HashMap<StringValue,EnvVar> map = new HashMap<StringValue,EnvVar>();
 
     Value []values = new Value[args.length];
@@ -313,6 +456,7 @@ public class Function extends AbstractFunction {
 
     Map<StringValue,EnvVar> oldMap = env.pushEnv(map);
     Value []oldArgs = env.setFunctionArgs(values); // php/0476
+    Function oldFun = env.setInterpretedFunction(this);
     Value oldThis;
 
     if (isStatic()) {
@@ -341,30 +485,48 @@ public class Function extends AbstractFunction {
       env.restoreFunctionArgs(oldArgs);
       env.popEnv(oldMap);
       env.setThis(oldThis);
+      env.setInterpretedFunction(oldFun);
     }
   }
 
   @Override
   public Value call(Env env, Value []args)
   {
+    AbstractFunction compiledFun = getCompiledFunction(env);
+
+    if (compiledFun != null)
+      return compiledFun.call(env, args);
+
     return callImpl(env, args, false, null, null);
   }
 
   @Override
   public Value callCopy(Env env, Value []args)
   {
+    AbstractFunction compiledFun = getCompiledFunction(env);
+
+    if (compiledFun != null)
+      return compiledFun.callCopy(env, args);
+
     return callImpl(env, args, false, null, null).copy();
   }
 
   @Override
   public Value callRef(Env env, Value []args)
   {
+    AbstractFunction compiledFun = getCompiledFunction(env);
+
+    if (compiledFun != null)
+      return compiledFun.callRef(env, args);
+
     return callImpl(env, args, true, null, null);
   }
 
   public Value callImpl(Env env, Value []args, boolean isRef,
                         Arg []useParams, Value []useArgs)
   {
+    countInvocation();
+
     HashMap<StringValue,EnvVar> map = new HashMap<StringValue,EnvVar>(8);
 
     if (useParams != null) {
@@ -423,6 +585,7 @@ public class Function extends AbstractFunction {
 
     Map<StringValue,EnvVar> oldMap = env.pushEnv(map);
     Value []oldArgs = env.setFunctionArgs(args);
+    Function oldFun = env.setInterpretedFunction(this);
     Value oldThis;
 
     if (_info.isMethod()) {
@@ -450,6 +613,7 @@ public class Function extends AbstractFunction {
       env.restoreFunctionArgs(oldArgs);
       env.popEnv(oldMap);
       env.setThis(oldThis);
+      env.setInterpretedFunction(oldFun);
     }
   }
   
@@ -463,6 +627,11 @@ public class Function extends AbstractFunction {
                           Value qThis,
                           Value[] args)
   {
+    AbstractFunction compiledFun = getCompiledFunction(env);
+
+    if (compiledFun != null)
+      return compiledFun.callMethod(env, qClass, qThis, args);
+
     if (isStatic())
       qThis = qClass;
     
@@ -483,6 +652,11 @@ public class Function extends AbstractFunction {
                              Value qThis,
                              Value[] args)
   {
+    AbstractFunction compiledFun = getCompiledFunction(env);
+
+    if (compiledFun != null)
+      return compiledFun.callMethodRef(env, qClass, qThis, args);
+
     Value oldThis = env.setThis(qThis);
     QuercusClass oldClass = env.setCallingClass(qClass);
     
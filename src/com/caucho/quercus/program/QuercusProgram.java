@@ -87,6 +87,9 @@ public class QuercusProgram {
   private ArrayList<PersistentDependency> _dependList
     = new ArrayList<PersistentDependency>();
 
+  // include targets known at parse time
+  private ArrayList<Path> _includeList = new ArrayList<Path>();
+
   // runtime function list for compilation
   private AbstractFunction []_runtimeFunList;
 
@@ -136,6 +139,19 @@ public class QuercusProgram {
 
     _functionInfo = functionInfo;
     _statement = statement;
+
+    for (Function fun : functionList) {
+      fun.setProgram(this);
+    }
+
+    for (InterpretedClassDef cl : classList) {
+      for (Map.Entry<String,AbstractFunction> entry : cl.functionSet()) {
+        AbstractFunction fun = entry.getValue();
+
+        if (fun instanceof Function)
+          ((Function) fun).setProgram(this);
+      }
+    }
   }
 
   /**
@@ -176,6 +192,23 @@ public class QuercusProgram {
     return _sourceFile;
   }
 
+  /**
+   * Adds an include/require target whose name is known at parse time.
+   */
+  public void addInclude(Path path)
+  {
+    if (! _includeList.contains(path))
+      _includeList.add(path);
+  }
+
+  /**
+   * Returns the include/require targets known at parse time.
+   */
+  public ArrayList<Path> getIncludeList()
+  {
+    return _includeList;
+  }
+
   public FunctionInfo getFunctionInfo()
   {
     return _functionInfo;
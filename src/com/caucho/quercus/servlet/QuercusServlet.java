@@ -70,8 +70,13 @@ public class QuercusServlet
   private boolean _isCompile;
   private boolean _isLazyCompile = true;
   private boolean _isCompileFailover = true;
+  private boolean _isTieredCompile;
+  private int _tieredCompileThreshold = -1;
   private double _profileProbability;
   private boolean _isRequireSource = true;
+  private boolean _isIncludePrefetch = true;
+  private boolean _isImmutableDeploy;
+  private String _deployMarker;
   
   private DataSource _database;
   
@@ -100,6 +105,9 @@ public class QuercusServlet
   private ArrayList<ServerEnv> _serverEnvList
     = new ArrayList<ServerEnv>();
 
+  private ArrayList<String> _preloadList
+    = new ArrayList<String>();
+
   public QuercusServlet()
   {
     checkJavaVersion();
@@ -148,17 +156,33 @@ public class QuercusServlet
     if ("true".equals(isCompile) || "".equals(isCompile)) {
       _isCompile = true;
       _isLazyCompile = false;
+      _isTieredCompile = false;
     } else if ("false".equals(isCompile)) {
       _isCompile = false;
       _isLazyCompile = false;
+      _isTieredCompile = false;
     } else if ("lazy".equals(isCompile)) {
       _isLazyCompile = true;
+      _isTieredCompile = false;
+    } else if ("tiered".equals(isCompile)) {
+      _isCompile = false;
+      _isLazyCompile = false;
+      _isTieredCompile = true;
     } else
       throw new ConfigException(L.l("'{0}' is an unknown compile value. "
-                                      + "Values are 'true', 'false', or 'lazy'.",
+                                      + "Values are 'true', 'false', 'lazy', or 'tiered'.",
                                     isCompile));
   }
 
+  /**
+   * Sets the invocation and loop count which makes a function hot
+   * for tiered compilation.
+   */
+  public void setTieredCompileThreshold(int threshold)
+  {
+    _tieredCompileThreshold = threshold;
+  }
+
   /**
    * Set true interpreted pages should be used for pages that fail to compile.
    */
@@ -192,6 +216,30 @@ public class QuercusServlet
     _isRequireSource = isRequireSource;
   }
 
+  /**
+   * Set true if cached pages are never checked for modification
+   */
+  public void setImmutableDeploy(boolean isImmutableDeploy)
+  {
+    _isImmutableDeploy = isImmutableDeploy;
+  }
+
+  /**
+   * Sets the marker file that invalidates an immutable deploy
+   */
+  public void setDeployMarker(String relPath)
+  {
+    _deployMarker = relPath;
+  }
+
+  /**
+   * Set true if static include targets are parsed in the background
+   */
+  public void setIncludePrefetch(boolean isIncludePrefetch)
+  {
+    _isIncludePrefetch = isIncludePrefetch;
+  }
+
   /**
    * Set the default data source.
    */
@@ -335,6 +383,15 @@ public class QuercusServlet
     _iniPath = relPath;
   }
 
+  /**
+   * Adds a file or directory whose classes and functions are loaded
+   * at startup.
+   */
+  public void addPreload(String relPath)
+  {
+    _preloadList.add(relPath);
+  }
+
   /**
    * Sets the script encoding.
    */
@@ -417,6 +474,9 @@ public class QuercusServlet
              || "page-cache-size".equals(paramName)) {
       setPageCacheSize(Integer.parseInt(paramValue));
     }
+    else if ("tiered-compile-threshold".equals(paramName)) {
+      setTieredCompileThreshold(Integer.parseInt(paramValue));
+    }
     else if ("regexp-cache-size".equals(paramName)) {
       setRegexpCacheSize(Integer.parseInt(paramValue));
     }
@@ -426,6 +486,21 @@ public class QuercusServlet
     else if ("require-source".equals(paramName)) {
       setRequireSource("true".equals(paramValue));
     }
+    else if ("immutable-deploy".equals(paramName)) {
+      setImmutableDeploy("true".equals(paramValue));
+    }
+    else if ("deploy-marker".equals(paramName)) {
+      setDeployMarker(paramValue);
+    }
+    else if ("include-prefetch".equals(paramName)) {
+      setIncludePrefetch("true".equals(paramValue));
+    }
+    else if ("preload".equals(paramName)) {
+      for (String relPath : paramValue.split("[,\\s]+")) {
+        if (relPath.length() > 0)
+          addPreload(relPath);
+      }
+    }
     else
       throw new ServletException(
           L.l("'{0}' is not a recognized init-param", paramName));
@@ -478,8 +553,12 @@ public class QuercusServlet
     quercus.setCompile(_isCompile);
     quercus.setLazyCompile(_isLazyCompile);
     quercus.setCompileFailover(_isCompileFailover);
+    quercus.setTieredCompile(_isTieredCompile);
+    quercus.setTieredCompileThreshold(_tieredCompileThreshold);
     quercus.setProfileProbability(_profileProbability);
     quercus.setRequireSource(_isRequireSource);
+    quercus.setIncludePrefetch(_isIncludePrefetch);
+    quercus.setImmutableDeploy(_isImmutableDeploy);
     quercus.setDatabase(_database);
     quercus.setStrict(_isStrict);
     quercus.setLooseParse(_isLooseParse);
@@ -495,6 +574,16 @@ public class QuercusServlet
     if (_scriptEncoding != null)
       quercus.setScriptEncoding(_scriptEncoding);
 
+    if (_deployMarker != null) {
+      String realPath = getServletContext().getRealPath(_deployMarker);
+      quercus.setDeployMarker(quercus.getPwd().lookup(realPath));
+    }
+
+    for (String relPath : _preloadList) {
+      String realPath = getServletContext().getRealPath(relPath);
+      quercus.addPreloadPath(quercus.getPwd().lookup(realPath));
+    }
+
     if (_mysqlVersion != null)
       quercus.setMysqlVersion(_mysqlVersion);
 
@@ -219,19 +219,20 @@ public class QuercusServletImpl extends HttpServlet
       catch (QuercusLineRuntimeException e) {
         log.log(Level.FINE, e.toString(), e);
 
-        ws.println(e.getMessage());
+        // the original out may be compressing the response
+        env.getOriginalOut().println(e.getMessage());
         //  return;
       }
       catch (QuercusValueException e) {
         log.log(Level.FINE, e.toString(), e);
 
-        ws.println(e.toString());
+        env.getOriginalOut().println(e.toString());
 
         //  return;
       }
       catch (Throwable e) {
         if (response.isCommitted())
-          e.printStackTrace(ws.getPrintWriter());
+          e.printStackTrace(env.getOriginalOut().getPrintWriter());
 
         ws = null;
 
@@ -69,6 +69,7 @@ public class DoStatement extends Statement {
     try {
       do {
         env.checkTimeout();
+        env.countBackEdge();
 
         Value value = _block.execute(env);
 
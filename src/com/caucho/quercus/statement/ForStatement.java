@@ -75,6 +75,7 @@ public class ForStatement extends Statement {
 
       while (_test == null || _test.evalBoolean(env)) {
         env.checkTimeout();
+        env.countBackEdge();
 
         Value value = _block.execute(env);
 
@@ -96,6 +96,8 @@ public class ForeachStatement
       while (iter.hasNext()) {
         Value value = iter.next();
 
+        env.countBackEdge();
+
         value = value.copy(); // php/0662
 
         _value.evalAssignValue(env, value);
@@ -134,6 +136,8 @@ public class ForeachStatement
       while (iter.hasNext()) {
         Value key = iter.next();
 
+        env.countBackEdge();
+
         if (_key != null)
           _key.evalAssignValue(env, key);
 
@@ -174,6 +178,8 @@ public class ForeachStatement
 
       while (iter.hasNext()) {
         Map.Entry<Value, Value> entry = iter.next();
+
+        env.countBackEdge();
         Value key = entry.getKey();
         Value value = entry.getValue();
 
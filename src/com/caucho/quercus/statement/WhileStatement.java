@@ -71,6 +71,7 @@ public class WhileStatement extends Statement {
       
       while (_test.evalBoolean(env)) {
         env.checkTimeout();
+        env.countBackEdge();
 
         Value value = _block.execute(env);
         